@@ -0,0 +1,242 @@
+/*
+ * The author disclaims copyright to this source code.  In place of
+ * a legal notice, here is a blessing:
+ *
+ *    May you do good and not evil.
+ *    May you find forgiveness for yourself and forgive others.
+ *    May you share freely, never taking more than you give.
+ *
+ */
+package org.sqlite;
+
+import java.sql.Array;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Map;
+
+/** An array of integers, reals, texts or blobs bound as one parameter.
+ *
+ * <p>Every connection registers the table-valued function
+ * <tt>carray</tt>, whose rows are the elements of the array bound to its
+ * argument, so an IN list of any length is one parameter of one prepared
+ * statement:</p>
+ *
+ * <pre>
+ *      PreparedStatement prep = conn.prepareStatement(
+ *          "select * from t where id in carray(?);");
+ *      prep.setObject(1, new long[] { 3, 5, 8 });
+ *      // or prep.setArray(1, conn.createArrayOf("integer", ids));
+ *  </pre>
+ *
+ * <p>The elements are copied by the driver when the array is created and
+ * by SQLite when it is bound, with no call per element. Texts and blobs
+ * are kept as one buffer with the end offset of each element.</p>
+ */
+final class CArray implements Array, Codes
+{
+    final int type;
+    final int length;
+    /** long[], double[], or the bytes of all elements. */
+    final Object values;
+    /** End offsets of texts and blobs in values, else null. */
+    final int[] ends;
+    private int hash = 0;
+
+    private CArray(int type, int length, Object values, int[] ends) {
+        this.type = type;
+        this.length = length;
+        this.values = values;
+        this.ends = ends;
+    }
+
+    /** Returns an array of a long[], double[], int[], String[] or
+     *  byte[][], or null for any other object. */
+    static CArray of(Object a) throws SQLException {
+        if (a instanceof long[]) {
+            final long[] v = ((long[])a).clone();
+            return new CArray(SQLITE_INTEGER, v.length, v, null);
+        } else if (a instanceof int[]) {
+            final int[] i = (int[])a;
+            final long[] v = new long[i.length];
+            for (int j=0; j < v.length; j++) v[j] = i[j];
+            return new CArray(SQLITE_INTEGER, v.length, v, null);
+        } else if (a instanceof double[]) {
+            final double[] v = ((double[])a).clone();
+            return new CArray(SQLITE_FLOAT, v.length, v, null);
+        } else if (a instanceof String[]) {
+            final String[] s = (String[])a;
+            final byte[][] b = new byte[s.length][];
+            for (int i=0; i < b.length; i++) b[i] = UTF8.encode(s[i]);
+            return pack(SQLITE_TEXT, b);
+        } else if (a instanceof byte[][]) {
+            return pack(SQLITE_BLOB, (byte[][])a);
+        }
+        return null;
+    }
+
+    /** Returns an array of the given elements. The type of the elements
+     *  is the affinity of <tt>typeName</tt>, or that of the first element
+     *  when <tt>typeName</tt> has NUMERIC affinity. */
+    static CArray of(String typeName, Object[] elements) throws SQLException {
+        if (elements == null) throw new SQLException("elements are null");
+        char affinity = Column.affinity(typeName);
+        if (affinity == Column.NUMERIC && elements.length > 0) {
+            final Object e = elements[0];
+            if (e instanceof Float || e instanceof Double)
+                affinity = Column.REAL;
+            else if (e instanceof Number) affinity = Column.INTEGER;
+            else if (e instanceof String) affinity = Column.TEXT;
+            else affinity = Column.BLOB;
+        }
+
+        for (int i=0; i < elements.length; i++)
+            if (elements[i] == null)
+                throw new SQLException("element " + i + " is null");
+        try {
+            switch (affinity) {
+                case Column.INTEGER: {
+                    final long[] v = new long[elements.length];
+                    for (int i=0; i < v.length; i++)
+                        v[i] = ((Number)elements[i]).longValue();
+                    return new CArray(SQLITE_INTEGER, v.length, v, null);
+                }
+                case Column.REAL:
+                case Column.NUMERIC: {
+                    final double[] v = new double[elements.length];
+                    for (int i=0; i < v.length; i++)
+                        v[i] = ((Number)elements[i]).doubleValue();
+                    return new CArray(SQLITE_FLOAT, v.length, v, null);
+                }
+                case Column.TEXT: {
+                    final byte[][] b = new byte[elements.length][];
+                    for (int i=0; i < b.length; i++)
+                        b[i] = UTF8.encode(elements[i].toString());
+                    return pack(SQLITE_TEXT, b);
+                }
+                default: {
+                    final byte[][] b = new byte[elements.length][];
+                    for (int i=0; i < b.length; i++)
+                        b[i] = (byte[])elements[i];
+                    return pack(SQLITE_BLOB, b);
+                }
+            }
+        } catch (ClassCastException e) {
+            throw new SQLException("elements are not of type " + typeName);
+        }
+    }
+
+    private static CArray pack(int type, byte[][] b) throws SQLException {
+        final int[] ends = new int[b.length];
+        long size = 0;
+        for (int i=0; i < b.length; i++) {
+            if (b[i] == null)
+                throw new SQLException("element " + i + " is null");
+            size += b[i].length;
+            if (size > Integer.MAX_VALUE)
+                throw new SQLException("array too large");
+            ends[i] = (int)size;
+        }
+        final byte[] values = new byte[(int)size];
+        for (int i=0, start=0; i < b.length; start = ends[i++])
+            System.arraycopy(b[i], 0, values, start, b[i].length);
+        return new CArray(type, b.length, values, ends);
+    }
+
+    /** Arrays with the same elements are equal, so queries bound to
+     *  them share entries in the result cache. */
+    public boolean equals(Object o) {
+        if (o == this) return true;
+        if (!(o instanceof CArray)) return false;
+        final CArray a = (CArray)o;
+        if (type != a.type || length != a.length
+                || !Arrays.equals(ends, a.ends))
+            return false;
+        switch (type) {
+            case SQLITE_INTEGER:
+                return Arrays.equals((long[])values, (long[])a.values);
+            case SQLITE_FLOAT:
+                return Arrays.equals((double[])values, (double[])a.values);
+            default:
+                return Arrays.equals((byte[])values, (byte[])a.values);
+        }
+    }
+
+    public int hashCode() {
+        if (hash == 0) {
+            int h;
+            switch (type) {
+                case SQLITE_INTEGER: h = Arrays.hashCode((long[])values); break;
+                case SQLITE_FLOAT: h = Arrays.hashCode((double[])values); break;
+                default: h = Arrays.hashCode((byte[])values); break;
+            }
+            hash = 31 * (31 * h + Arrays.hashCode(ends)) + type;
+        }
+        return hash;
+    }
+
+    /** Returns a text or blob element. */
+    private Object element(int i) {
+        final int start = i == 0 ? 0 : ends[i - 1];
+        final byte[] b = new byte[ends[i] - start];
+        System.arraycopy((byte[])values, start, b, 0, b.length);
+        return type == SQLITE_TEXT ? UTF8.decode(b) : b;
+    }
+
+    public String getBaseTypeName() {
+        switch (type) {
+            case SQLITE_INTEGER: return "INTEGER";
+            case SQLITE_FLOAT:   return "REAL";
+            case SQLITE_TEXT:    return "TEXT";
+            default:             return "BLOB";
+        }
+    }
+
+    public int getBaseType() {
+        switch (type) {
+            case SQLITE_INTEGER: return java.sql.Types.BIGINT;
+            case SQLITE_FLOAT:   return java.sql.Types.DOUBLE;
+            case SQLITE_TEXT:    return java.sql.Types.VARCHAR;
+            default:             return java.sql.Types.BLOB;
+        }
+    }
+
+    /** Returns a copy of the elements as a long[], double[], String[] or
+     *  byte[][]. */
+    public Object getArray() { return getArray(1, length); }
+    public Object getArray(Map<String, Class<?>> map) { return getArray(); }
+    public Object getArray(long index, int count, Map<String, Class<?>> map) {
+        return getArray(index, count); }
+
+    public Object getArray(long index, int count) {
+        if (index < 1 || count < 0 || index - 1 + count > length)
+            throw new IndexOutOfBoundsException(
+                "elements " + index + " to " + (index - 1 + count));
+        final int from = (int)index - 1;
+        final Object a;
+        switch (type) {
+            case SQLITE_INTEGER: a = new long[count]; break;
+            case SQLITE_FLOAT:   a = new double[count]; break;
+            case SQLITE_TEXT:    a = new String[count]; break;
+            default:             a = new byte[count][]; break;
+        }
+        if (type == SQLITE_INTEGER || type == SQLITE_FLOAT)
+            System.arraycopy(values, from, a, 0, count);
+        else
+            for (int i=0; i < count; i++)
+                ((Object[])a)[i] = element(from + i);
+        return a;
+    }
+
+    public ResultSet getResultSet() throws SQLException {
+        throw Util.unsupported(); }
+    public ResultSet getResultSet(Map<String, Class<?>> map)
+        throws SQLException { throw Util.unsupported(); }
+    public ResultSet getResultSet(long index, int count) throws SQLException {
+        throw Util.unsupported(); }
+    public ResultSet getResultSet(long index, int count,
+            Map<String, Class<?>> map) throws SQLException {
+        throw Util.unsupported(); }
+
+    public void free() {}
+}
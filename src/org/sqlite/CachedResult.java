@@ -0,0 +1,250 @@
+/*
+ * The author disclaims copyright to this source code.  In place of
+ * a legal notice, here is a blessing:
+ *
+ *    May you do good and not evil.
+ *    May you find forgiveness for yourself and forgive others.
+ *    May you share freely, never taking more than you give.
+ *
+ */
+package org.sqlite;
+
+import java.io.UnsupportedEncodingException;
+import java.sql.SQLException;
+
+/** The rows of a query, stored by column for the result cache.
+ *
+ * <p>Each column keeps the SQLite type of its values in a byte array and
+ * their integer or floating point value in a long array. Text and blob
+ * values are kept in an object array, only allocated for columns which
+ * have some. Values are converted on read the way sqlite3_column_*()
+ * would convert them.</p>
+ */
+final class CachedResult implements Codes
+{
+    final String[] tables;
+    private final byte[][] types;
+    private final long[][] values;
+    private final Object[][] objects;
+    private int rows = 0;
+    private long bytes;
+    /** Set when the result went over the budget of the cache: the rows
+     *  go on in the statement, positioned on the next one. */
+    boolean partial = false;
+
+    CachedResult(String[] tables, int cols) {
+        this.tables = tables;
+        types = new byte[cols][];
+        values = new long[cols][];
+        objects = new Object[cols][];
+        bytes = 64 + 32 * tables.length;
+    }
+
+    int rows() { return rows; }
+    int columns() { return types.length; }
+
+    /** Returns the approximate heap size of the result. */
+    long bytes() { return bytes; }
+
+    /** Appends a row of Integer, Long, Double, String, byte[] or null
+     *  values, as built by MetaData. */
+    void add(Object... row) {
+        grow();
+        for (int c=0; c < types.length; c++) {
+            final Object v = row[c];
+            if (v == null) {
+                types[c][rows] = SQLITE_NULL;
+            } else if (v instanceof Integer || v instanceof Long) {
+                types[c][rows] = SQLITE_INTEGER;
+                values[c][rows] = ((Number)v).longValue();
+            } else if (v instanceof Double) {
+                types[c][rows] = SQLITE_FLOAT;
+                values[c][rows] = Double.doubleToRawLongBits((Double)v);
+            } else if (v instanceof byte[]) {
+                types[c][rows] = SQLITE_BLOB;
+                object(c)[rows] = v;
+            } else {
+                types[c][rows] = SQLITE_TEXT;
+                object(c)[rows] = v.toString();
+            }
+        }
+        rows++;
+    }
+
+    /** Appends the current row of stmt. Returns false if the result
+     *  would grow over <tt>maxBytes</tt>. */
+    boolean add(DB db, long stmt, long maxBytes) throws SQLException {
+        grow();
+
+        long size = 9 * types.length;
+        for (int c=0; c < types.length; c++) {
+            final int type = db.column_type(stmt, c);
+            types[c][rows] = (byte)type;
+            switch (type) {
+                case SQLITE_INTEGER:
+                    values[c][rows] = db.column_long(stmt, c); break;
+                case SQLITE_FLOAT:
+                    values[c][rows] = Double.doubleToRawLongBits(
+                        db.column_double(stmt, c));
+                    break;
+                case SQLITE_TEXT:
+                    final String text = db.column_text(stmt, c);
+                    object(c)[rows] = text;
+                    size += 40 + 2 * text.length();
+                    break;
+                case SQLITE_BLOB:
+                    final byte[] blob = db.column_blob(stmt, c);
+                    object(c)[rows] = blob;
+                    size += 16 + (blob == null ? 0 : blob.length);
+                    break;
+            }
+        }
+        if (bytes + size > maxBytes) return false;
+        bytes += size;
+        rows++;
+        return true;
+    }
+
+    private void grow() {
+        if (rows == 0) {
+            for (int c=0; c < types.length; c++) {
+                types[c] = new byte[8];
+                values[c] = new long[8];
+            }
+        } else if (rows == types[0].length) {
+            final int n = rows * 2;
+            for (int c=0; c < types.length; c++) {
+                types[c] = copyOf(types[c], n);
+                values[c] = copyOf(values[c], n);
+                if (objects[c] != null) objects[c] = copyOf(objects[c], n);
+            }
+        }
+    }
+
+    private Object[] object(int c) {
+        if (objects[c] == null) objects[c] = new Object[types[c].length];
+        return objects[c];
+    }
+
+    int type(int row, int col) {
+        return row < 0 || row >= rows ? SQLITE_NULL : types[col][row];
+    }
+
+    long getLong(int row, int col) {
+        switch (type(row, col)) {
+            case SQLITE_INTEGER: return values[col][row];
+            case SQLITE_FLOAT:   return (long)getDouble(row, col);
+            case SQLITE_TEXT:
+            case SQLITE_BLOB:    return toLong(getText(row, col));
+            default:             return 0;
+        }
+    }
+
+    int getInt(int row, int col) { return (int)getLong(row, col); }
+
+    double getDouble(int row, int col) {
+        switch (type(row, col)) {
+            case SQLITE_INTEGER: return values[col][row];
+            case SQLITE_FLOAT:
+                return Double.longBitsToDouble(values[col][row]);
+            case SQLITE_TEXT:
+            case SQLITE_BLOB:    return toDouble(getText(row, col));
+            default:             return 0;
+        }
+    }
+
+    String getText(int row, int col) {
+        switch (type(row, col)) {
+            case SQLITE_INTEGER: return Long.toString(values[col][row]);
+            case SQLITE_FLOAT:   return Double.toString(getDouble(row, col));
+            case SQLITE_TEXT:    return (String)objects[col][row];
+            case SQLITE_BLOB:
+                final byte[] blob = (byte[])objects[col][row];
+                return blob == null ? "" : utf8(blob);
+            default:             return null;
+        }
+    }
+
+    byte[] getBlob(int row, int col) {
+        switch (type(row, col)) {
+            case SQLITE_BLOB:
+                final byte[] blob = (byte[])objects[col][row];
+                return blob == null ? null : blob.clone();
+            case SQLITE_NULL:    return null;
+            default:
+                try {
+                    return getText(row, col).getBytes("UTF-8");
+                } catch (UnsupportedEncodingException e) {
+                    throw new IllegalStateException(e);
+                }
+        }
+    }
+
+    private static String utf8(byte[] b) {
+        try {
+            return new String(b, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Converts the longest numeric prefix of s, 0 if there is none. */
+    private static double toDouble(String s) {
+        int i = 0, n = s.length();
+        while (i < n && Character.isWhitespace(s.charAt(i))) i++;
+        final int start = i;
+        if (i < n && (s.charAt(i) == '+' || s.charAt(i) == '-')) i++;
+        while (i < n && Character.isDigit(s.charAt(i))) i++;
+        if (i < n && s.charAt(i) == '.') {
+            i++;
+            while (i < n && Character.isDigit(s.charAt(i))) i++;
+        }
+        if (i < n && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+            int j = i + 1;
+            if (j < n && (s.charAt(j) == '+' || s.charAt(j) == '-')) j++;
+            if (j < n && Character.isDigit(s.charAt(j))) {
+                while (j < n && Character.isDigit(s.charAt(j))) j++;
+                i = j;
+            }
+        }
+        try {
+            return Double.parseDouble(s.substring(start, i));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /** Converts an integer prefix of s exactly, as a double may not, and
+     *  other numeric prefixes through toDouble(). */
+    private static long toLong(String s) {
+        int i = 0, n = s.length();
+        while (i < n && Character.isWhitespace(s.charAt(i))) i++;
+        final int start = i;
+        if (i < n && (s.charAt(i) == '+' || s.charAt(i) == '-')) i++;
+        while (i < n && Character.isDigit(s.charAt(i))) i++;
+        if (i < n && (s.charAt(i) == '.' || s.charAt(i) == 'e'
+                || s.charAt(i) == 'E'))
+            return (long)toDouble(s);
+        try {
+            return Long.parseLong(s.substring(start, i));
+        } catch (NumberFormatException e) {
+            return (long)toDouble(s);
+        }
+    }
+
+    private static byte[] copyOf(byte[] a, int n) {
+        final byte[] b = new byte[n];
+        System.arraycopy(a, 0, b, 0, a.length);
+        return b;
+    }
+    private static long[] copyOf(long[] a, int n) {
+        final long[] b = new long[n];
+        System.arraycopy(a, 0, b, 0, a.length);
+        return b;
+    }
+    private static Object[] copyOf(Object[] a, int n) {
+        final Object[] b = new Object[n];
+        System.arraycopy(a, 0, b, 0, a.length);
+        return b;
+    }
+}
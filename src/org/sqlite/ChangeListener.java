@@ -0,0 +1,23 @@
+/*
+ * The author disclaims copyright to this source code.  In place of
+ * a legal notice, here is a blessing:
+ *
+ *    May you do good and not evil.
+ *    May you find forgiveness for yourself and forgive others.
+ *    May you share freely, never taking more than you give.
+ *
+ */
+package org.sqlite;
+
+/** Receives the rows changed by each transaction committed on a
+ *  connection. See {@link Conn#addChangeListener(ChangeListener)}.
+ *
+ * <p>Listeners are called on the committing thread, while the commit is
+ * in progress. They must not use the connection that committed and should
+ * return quickly. Exceptions thrown by a listener are ignored.</p>
+ */
+public interface ChangeListener
+{
+    /** Called once per transaction that inserted, updated or deleted rows. */
+    void committed(ChangeSet changes);
+}
@@ -0,0 +1,95 @@
+/*
+ * The author disclaims copyright to this source code.  In place of
+ * a legal notice, here is a blessing:
+ *
+ *    May you do good and not evil.
+ *    May you find forgiveness for yourself and forgive others.
+ *    May you share freely, never taking more than you give.
+ *
+ */
+package org.sqlite;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/** The rows changed by one transaction, in the order they were changed.
+ *
+ * <p>Changes are recorded by SQLite's update hook, or its preupdate hook
+ * when the driver is compiled with it, without calling into Java until the
+ * transaction commits. A transaction changing more rows than the driver
+ * records is reported as truncated: its first changes are kept and any
+ * table may have been changed.</p>
+ *
+ * <p>Changes undone by <tt>ROLLBACK TO</tt> a savepoint are still
+ * reported. Without the preupdate hook, changes to <tt>WITHOUT ROWID</tt>
+ * tables, rows replaced by <tt>ON CONFLICT REPLACE</tt> and deletes run
+ * with the truncate optimization are not reported.</p>
+ */
+public final class ChangeSet
+{
+    public static final int DELETE = 9;
+    public static final int INSERT = 18;
+    public static final int UPDATE = 23;
+
+    private final int[] ops;
+    private final String[] names;
+    private final int[] refs;
+    private final long[] keys;
+    private final boolean truncated;
+
+    /** ops[i] is the operation of change i, names[refs[2*i]] its database
+     *  and names[refs[2*i+1]] its table, keys[2*i] the rowid before the
+     *  change and keys[2*i+1] the rowid after. */
+    ChangeSet(int[] ops, String[] names, int[] refs, long[] keys,
+              boolean truncated) {
+        this.ops = ops;
+        this.names = names;
+        this.refs = refs;
+        this.keys = keys;
+        this.truncated = truncated;
+    }
+
+    /** Returns the number of changes recorded. */
+    public int size() { return ops.length; }
+
+    /** Returns true if changes were dropped because the transaction
+     *  changed more rows than could be recorded. */
+    public boolean isTruncated() { return truncated; }
+
+    /** Returns INSERT, UPDATE or DELETE. */
+    public int getOperation(int i) { return ops[i]; }
+
+    /** Returns the schema name of the changed table, eg. "main". */
+    public String getDatabase(int i) { return names[refs[2 * i]]; }
+
+    /** Returns the name of the changed table. */
+    public String getTable(int i) { return names[refs[2 * i + 1]]; }
+
+    /** Returns the rowid of the changed row, before an UPDATE. */
+    public long getRowId(int i) { return keys[2 * i]; }
+
+    /** Returns the rowid of the changed row after an UPDATE, which
+     *  differs from getRowId() only if the UPDATE changed the rowid. */
+    public long getNewRowId(int i) { return keys[2 * i + 1]; }
+
+    /** Returns the names of the tables changed, in the order they were
+     *  first changed. */
+    public Set<String> getTables() {
+        final Set<String> tables = new LinkedHashSet<String>();
+        for (int i = 0; i < ops.length; i++) tables.add(getTable(i));
+        return Collections.unmodifiableSet(tables);
+    }
+
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("ChangeSet[");
+        for (int i = 0; i < ops.length; i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(ops[i] == INSERT ? "INSERT " : ops[i] == UPDATE
+                ? "UPDATE " : "DELETE ").append(getTable(i)).append(' ')
+              .append(getRowId(i));
+        }
+        if (truncated) sb.append(ops.length > 0 ? ", ..." : "...");
+        return sb.append(']').toString();
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * The author disclaims copyright to this source code.  In place of
+ * a legal notice, here is a blessing:
+ *
+ *    May you do good and not evil.
+ *    May you find forgiveness for yourself and forgive others.
+ *    May you share freely, never taking more than you give.
+ *
+ */
+package org.sqlite;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Runs WAL checkpoints on a dedicated thread.
+ *
+ * <p>In WAL mode, SQLite runs an automatic checkpoint inside the commit
+ * that makes the WAL cross its threshold, delaying that commit. Once a
+ * connection is attached to a <tt>Checkpointer</tt>, its automatic
+ * checkpoints are replaced by a <tt>sqlite3_wal_hook</tt> which only
+ * wakes up the checkpoint thread. That thread uses its own connection
+ * to the same database file and runs a PASSIVE checkpoint, escalated to
+ * RESTART when the WAL keeps growing and to TRUNCATE when it grows
+ * further.</p>
+ *
+ * Eg.
+ *
+ * <pre>
+ *      Connection conn = DriverManager.getConnection("jdbc:sqlite:test.db");
+ *      conn.createStatement().execute("pragma journal_mode=wal;");
+ *
+ *      Checkpointer checkpointer = new Checkpointer(conn, 1000);
+ *      ...
+ *      checkpointer.close();
+ *  </pre>
+ */
+public final class Checkpointer
+{
+    /** WAL size, as a multiple of the threshold, to escalate to RESTART. */
+    public static final int RESTART_FACTOR = 4;
+    /** WAL size, as a multiple of the threshold, to escalate to TRUNCATE. */
+    public static final int TRUNCATE_FACTOR = 16;
+
+    private final int walPages;
+    private final String filename;
+    private final Conn conn;
+    private final Thread thread;
+    private final List<Conn> attached = new ArrayList<Conn>();
+
+    /** Guards closed and pending. Separate from the monitor of this
+     *  object, as walCommit() runs while the committing db is locked. */
+    private final Object lock = new Object();
+    private boolean closed = false;
+    private boolean pending = false;
+
+    private volatile int walSize = 0;
+    private volatile long checkpoints = 0;
+    private volatile long lastNanos = 0;
+    private volatile long maxNanos = 0;
+    private volatile long totalNanos = 0;
+    private volatile int lastFrames = 0;
+    private volatile int lastCheckpointed = 0;
+    private volatile SQLException lastError = null;
+
+    /** Opens a connection to the database file of <tt>conn</tt> to run
+     *  checkpoints on, and attaches <tt>conn</tt>. A checkpoint is
+     *  triggered when a commit leaves <tt>walPages</tt> or more pages in
+     *  the WAL. */
+    public Checkpointer(Connection conn, int walPages) throws SQLException {
+        if (conn == null || !(conn instanceof Conn))
+            throw new SQLException("connection must be to an SQLite db");
+        if (conn.isClosed())
+            throw new SQLException("connection closed");
+        if (walPages < 1)
+            throw new SQLException("WAL threshold must be > 0");
+
+        final String filename = ((Conn)conn).db().db_filename("main");
+        if (filename == null || filename.length() == 0)
+            throw new SQLException("checkpoints need a database file");
+
+        this.walPages = walPages;
+        this.filename = filename;
+        this.conn = new Conn(((Conn)conn).url(), filename);
+        thread = new Thread("sqlite checkpointer " + filename) {
+            public void run() { loop(); }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        try {
+            attach(conn);
+        } catch (SQLException e) {
+            close(); // nothing else references the thread and connection
+            throw e;
+        }
+    }
+
+    /** Replaces the automatic checkpoints of a connection to the same
+     *  database file with this checkpointer. */
+    public synchronized void attach(Connection conn) throws SQLException {
+        if (conn == null || !(conn instanceof Conn))
+            throw new SQLException("connection must be to an SQLite db");
+        if (conn.isClosed())
+            throw new SQLException("connection closed");
+        if (!thread.isAlive())
+            throw new SQLException("checkpointer closed");
+        final Conn c = (Conn)conn;
+        if (!filename.equals(c.db().db_filename("main")))
+            throw new SQLException("connection to another database file");
+        if (c.db().wal_hook(this, walPages) != Codes.SQLITE_OK)
+            c.db().throwex();
+        if (!attached.contains(c)) attached.add(c);
+    }
+
+    /** Restores the automatic checkpoints of an attached connection. */
+    public synchronized void detach(Connection conn) throws SQLException {
+        if (!attached.remove(conn)) return;
+        if (!conn.isClosed()) ((Conn)conn).db().wal_hook(null, 0);
+    }
+
+    /** Detaches all connections, runs a last checkpoint and stops the
+     *  checkpoint thread. */
+    public void close() throws SQLException {
+        synchronized (this) {
+            while (!attached.isEmpty())
+                detach(attached.get(attached.size() - 1));
+        }
+        synchronized (lock) {
+            if (closed) return;
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            conn.close();
+        }
+    }
+
+    /** Returns the number of checkpoints run. */
+    public long getCheckpointCount() { return checkpoints; }
+    /** Returns the duration of the last checkpoint, in nanoseconds. */
+    public long getLastCheckpointNanos() { return lastNanos; }
+    /** Returns the duration of the longest checkpoint, in nanoseconds. */
+    public long getMaxCheckpointNanos() { return maxNanos; }
+    /** Returns the time spent in checkpoints, in nanoseconds. */
+    public long getTotalCheckpointNanos() { return totalNanos; }
+    /** Returns the number of pages in the WAL, as last reported by a
+     *  commit on an attached connection. */
+    public int getWalPages() { return walSize; }
+    /** Returns the number of frames in the WAL after the last checkpoint. */
+    public int getWalFrames() { return lastFrames; }
+    /** Returns the number of frames moved to the database by the last
+     *  checkpoint. */
+    public int getCheckpointedFrames() { return lastCheckpointed; }
+    /** Returns why the last checkpoint failed, such as SQLITE_BUSY while
+     *  readers hold the WAL, or null if it succeeded. A WAL that keeps
+     *  failing to checkpoint grows without bound. */
+    public SQLException getLastError() { return lastError; }
+
+    /** Called by the WAL hook when a commit leaves at least
+     *  <tt>walPages</tt> pages in the WAL. */
+    void walCommit(int pages) {
+        walSize = pages;
+        synchronized (lock) {
+            pending = true;
+            lock.notifyAll();
+        }
+    }
+
+    private void loop() {
+        while (true) {
+            synchronized (lock) {
+                while (!pending && !closed) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        closed = true;
+                    }
+                }
+                pending = false;
+            }
+            try {
+                checkpoint();
+                lastError = null;
+            } catch (SQLException e) {
+                // retried on the next commit crossing the threshold
+                lastError = e;
+            }
+            synchronized (lock) {
+                if (closed && !pending) return;
+            }
+        }
+    }
+
+    private void checkpoint() throws SQLException {
+        final int size = walSize;
+        int mode = Codes.SQLITE_CHECKPOINT_PASSIVE;
+        if (size >= walPages * TRUNCATE_FACTOR)
+            mode = Codes.SQLITE_CHECKPOINT_TRUNCATE;
+        else if (size >= walPages * RESTART_FACTOR)
+            mode = Codes.SQLITE_CHECKPOINT_RESTART;
+
+        final long start = System.nanoTime();
+        final int[] res = conn.db().wal_checkpoint(null, mode);
+        final long nanos = System.nanoTime() - start;
+
+        checkpoints++;
+        lastNanos = nanos;
+        totalNanos += nanos;
+        if (nanos > maxNanos) maxNanos = nanos;
+        lastFrames = res[1];
+        lastCheckpointed = res[2];
+        if (res[0] == Codes.SQLITE_BUSY) throw new SQLException(
+            "checkpoint busy, " + res[1] + " frames in the WAL");
+        if (res[0] != Codes.SQLITE_OK) conn.db().throwex();
+    }
+}
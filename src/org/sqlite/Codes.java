@@ -103,4 +103,27 @@ interface Codes
     public static final int SQLITE_TEXT       =  3;
     public static final int SQLITE_BLOB       =  4;
     public static final int SQLITE_NULL       =  5;
+
+
+    // flags for sqlite3_open_v2()
+
+    public static final int SQLITE_OPEN_READONLY     = 0x00000001;
+    public static final int SQLITE_OPEN_READWRITE    = 0x00000002;
+    public static final int SQLITE_OPEN_CREATE       = 0x00000004;
+    public static final int SQLITE_OPEN_URI          = 0x00000040;
+    public static final int SQLITE_OPEN_SHAREDCACHE  = 0x00020000;
+    public static final int SQLITE_OPEN_PRIVATECACHE = 0x00040000;
+
+
+    // modes of sqlite3_wal_checkpoint_v2()
+
+    public static final int SQLITE_CHECKPOINT_PASSIVE  = 0;
+    public static final int SQLITE_CHECKPOINT_FULL     = 1;
+    public static final int SQLITE_CHECKPOINT_RESTART  = 2;
+    public static final int SQLITE_CHECKPOINT_TRUNCATE = 3;
+
+
+    // counters of sqlite3_stmt_status()
+
+    public static final int SQLITE_STMTSTATUS_REPREPARE = 5;
 }
@@ -0,0 +1,166 @@
+/*
+ * The author disclaims copyright to this source code.  In place of
+ * a legal notice, here is a blessing:
+ *
+ *    May you do good and not evil.
+ *    May you find forgiveness for yourself and forgive others.
+ *    May you share freely, never taking more than you give.
+ *
+ */
+package org.sqlite;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.text.Collator;
+
+/** Provides an interface for creating SQLite collating sequences.
+ *
+ * <p>A subclass of <tt>org.sqlite.Collation</tt> registered with
+ * <tt>Collation.create()</tt> can be used by name in a COLLATE clause,
+ * including those of indexes and column definitions. SQLite calls
+ * <tt>compare()</tt> with views of the UTF-8 bytes of the two texts, so
+ * no <tt>String</tt> is created for a comparison.</p>
+ *
+ * Eg.
+ *
+ * <pre>
+ *      Collation.create(conn, "french", Collation.collator(
+ *          Collator.getInstance(Locale.FRENCH), 1024));
+ *
+ *      conn.createStatement().executeQuery(
+ *          "select name from people order by name collate french;");
+ *  </pre>
+ *
+ * <p>A collation must be consistent: an index built with one ordering
+ * is corrupt for another. It cannot report errors to SQLite, so if
+ * <tt>compare()</tt> throws, the texts are compared as bytes.</p>
+ */
+public abstract class Collation
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Registers the given collation with the Connection using the
+     *  provided name. */
+    public static void create(Connection conn, String name, Collation c)
+            throws SQLException {
+        if (conn == null || !(conn instanceof Conn))
+            throw new SQLException("connection must be to an SQLite db");
+        if (conn.isClosed())
+            throw new SQLException("connection closed");
+        if (name == null || name.length() > 255)
+            throw new SQLException("invalid collation name: '"+name+"'");
+        if (c == null)
+            throw new SQLException("null collation");
+
+        if (((Conn)conn).db().create_collation(name, c) != Codes.SQLITE_OK)
+            throw new SQLException("error creating collation");
+    }
+
+    /** Removes the named collation from the Connection. Does nothing once
+     *  the Connection is closed, which removed its collations. */
+    public static void destroy(Connection conn, String name)
+            throws SQLException {
+        if (conn == null || !(conn instanceof Conn))
+            throw new SQLException("connection must be to an SQLite db");
+        if (conn.isClosed()) return;
+        ((Conn)conn).db().create_collation(name, null);
+    }
+
+    /** Returns a collation ordering text as <tt>collator</tt> does. The
+     *  sort keys of the last texts compared are cached in
+     *  <tt>cacheSize</tt> slots, none if 0. */
+    public static Collation collator(final Collator collator, int cacheSize) {
+        return new Keyed(cacheSize) {
+            protected byte[] key(ByteBuffer text) {
+                return collator.getCollationKey(decode(text)).toByteArray();
+            }
+        };
+    }
+
+    /** Returns the text between the position and the limit of a
+     *  buffer passed to <tt>compare()</tt>. */
+    protected static String decode(ByteBuffer text) {
+        return UTF8.decode(text.duplicate()).toString();
+    }
+
+    /** Compares the UTF-8 text between the position and the limit of
+     *  each buffer. Returns a negative number, zero or a positive number
+     *  if <tt>a</tt> sorts before, with or after <tt>b</tt>. The buffers
+     *  are only valid during the call. */
+    protected abstract int compare(ByteBuffer a, ByteBuffer b);
+
+
+    // called by native code, a and b belong to one registration
+    final int xCompare(ByteBuffer a, int alen, ByteBuffer b, int blen) {
+        a.clear().limit(alen);
+        b.clear().limit(blen);
+        return compare(a, b);
+    }
+
+
+    /** A collation comparing sort keys, such as those of a
+     *  <tt>java.text.Collator</tt>, computed once per text as long as
+     *  it stays in the cache.
+     *
+     * <p>The cache is direct-mapped: the hash of a text picks the only
+     * slot its key can be found in, so a lookup costs a hash and a byte
+     * comparison, and no allocation.</p>
+     */
+    public static abstract class Keyed extends Collation
+    {
+        private final byte[][] texts;
+        private final byte[][] keys;
+
+        /** Caches the keys of the last texts in <tt>cacheSize</tt>
+         *  slots, none if 0. */
+        protected Keyed(int cacheSize) {
+            if (cacheSize < 0)
+                throw new IllegalArgumentException("negative cache size");
+            texts = new byte[cacheSize][];
+            keys = new byte[cacheSize][];
+        }
+
+        /** Returns the sort key of the text between the position and the
+         *  limit of <tt>text</tt>. Keys are compared as unsigned bytes. */
+        protected abstract byte[] key(ByteBuffer text);
+
+        protected final int compare(ByteBuffer a, ByteBuffer b) {
+            final byte[] ka, kb;
+            synchronized (this) {
+                ka = cached(a);
+                kb = cached(b);
+            }
+            final int n = Math.min(ka.length, kb.length);
+            for (int i=0; i < n; i++) {
+                final int c = (ka[i] & 0xff) - (kb[i] & 0xff);
+                if (c != 0) return c;
+            }
+            return ka.length - kb.length;
+        }
+
+        private byte[] cached(ByteBuffer text) {
+            if (texts.length == 0) return key(text);
+
+            final int pos = text.position(), lim = text.limit();
+            int h = 0;
+            for (int i=pos; i < lim; i++) h = 31 * h + text.get(i);
+            final int slot = (h & 0x7fffffff) % texts.length;
+
+            final byte[] t = texts[slot];
+            if (t != null && t.length == lim - pos) {
+                int i = 0;
+                while (i < t.length && t[i] == text.get(pos + i)) i++;
+                if (i == t.length) return keys[slot];
+            }
+
+            final byte[] key = key(text.duplicate());
+            final byte[] copy = new byte[lim - pos];
+            text.duplicate().get(copy);
+            texts[slot] = copy;
+            keys[slot] = key;
+            return key;
+        }
+    }
+}
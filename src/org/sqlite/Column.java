@@ -0,0 +1,88 @@
+/*
+ * The author disclaims copyright to this source code.  In place of
+ * a legal notice, here is a blessing:
+ *
+ *    May you do good and not evil.
+ *    May you find forgiveness for yourself and forgive others.
+ *    May you share freely, never taking more than you give.
+ *
+ */
+package org.sqlite;
+
+import java.sql.SQLException;
+
+/** Describes a column of a statement, as reported by SQLite when it was
+ *  compiled. Built once per statement and shared by its result sets. */
+final class Column
+{
+    // column affinities, with the codes used by SQLite
+    static final char BLOB    = 'A';
+    static final char TEXT    = 'B';
+    static final char NUMERIC = 'C';
+    static final char INTEGER = 'D';
+    static final char REAL    = 'E';
+
+    // bits of the flags returned by DB.column_descriptors()
+    static final int NOT_NULL       = 1;
+    static final int PRIMARY_KEY    = 2;
+    static final int AUTO_INCREMENT = 4;
+    static final int ROWID          = 8;
+
+    /** Name of the column in the result. */
+    final String name;
+    /** Declared type, null for an expression. */
+    final String declType;
+    /** Table and column the value comes from, null for an expression. */
+    final String table, origin;
+    /** Affinity of the declared type. */
+    final char affinity;
+    final boolean notNull, primaryKey, autoIncrement;
+    /** Whether the column is an alias of the rowid, which is never NULL. */
+    final boolean rowid;
+
+    Column(String name, String declType, String table, String origin,
+           int flags) {
+        this.name = name;
+        this.declType = declType;
+        this.table = table;
+        this.origin = origin;
+        this.affinity = affinity(declType);
+        notNull = (flags & NOT_NULL) != 0;
+        primaryKey = (flags & PRIMARY_KEY) != 0;
+        autoIncrement = (flags & AUTO_INCREMENT) != 0;
+        rowid = (flags & ROWID) != 0;
+    }
+
+    /** Returns the descriptors of the columns of a statement. */
+    static Column[] describe(DB db, long stmt) throws SQLException {
+        final int[] flags = new int[db.column_count(stmt)];
+        final String[] s = db.column_descriptors(stmt, flags);
+        final Column[] columns = new Column[flags.length];
+        for (int i=0; i < columns.length; i++)
+            columns[i] = new Column(s[i*4], s[i*4 + 1], s[i*4 + 2],
+                                    s[i*4 + 3], flags[i]);
+        return columns;
+    }
+
+    /** Returns descriptors for columns that do not come from a table,
+     *  such as those of results built by MetaData. */
+    static Column[] describe(String[] names) {
+        final Column[] columns = new Column[names.length];
+        for (int i=0; i < columns.length; i++)
+            columns[i] = new Column(names[i], null, "", null, 0);
+        return columns;
+    }
+
+    /** Returns the affinity of a declared type, by the rules of SQLite. */
+    static char affinity(String type) {
+        if (type == null) return BLOB;
+        final String t = type.toUpperCase();
+        if (t.indexOf("INT") >= 0) return INTEGER;
+        if (t.indexOf("CHAR") >= 0 || t.indexOf("CLOB") >= 0
+                || t.indexOf("TEXT") >= 0) return TEXT;
+        if (t.indexOf("BLOB") >= 0 || t.length() == 0) return BLOB;
+        if (t.indexOf("REAL") >= 0 || t.indexOf("FLOA") >= 0
+                || t.indexOf("DOUB") >= 0) return REAL;
+        return NUMERIC;
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * The author disclaims copyright to this source code.  In place of
+ * a legal notice, here is a blessing:
+ *
+ *    May you do good and not evil.
+ *    May you find forgiveness for yourself and forgive others.
+ *    May you share freely, never taking more than you give.
+ *
+ */
+package org.sqlite;
+
+/** Finds columns by name, ignoring case, without allocating.
+ *
+ * <p>Names are hashed into an open addressing table when the statement
+ * is prepared, the hash folding case a code point at a time. The index is
+ * kept by the statement and reused by each of its result sets.</p>
+ */
+final class ColumnIndex
+{
+    /** Names indexed, as returned by the statement. */
+    final String[] names;
+    /** Column index + 1 by slot, 0 for an empty slot. */
+    private final int[] slots;
+
+    ColumnIndex(String[] names) {
+        this.names = names;
+        int n = 4;
+        while (n < names.length * 2) n <<= 1;
+        slots = new int[n];
+        for (int i=0; i < names.length; i++) {
+            if (names[i] == null) continue;
+            int s = hash(names[i]) & (n - 1);
+            for (; slots[s] != 0; s = (s + 1) & (n - 1))
+                if (names[slots[s] - 1].equalsIgnoreCase(names[i])) break;
+            if (slots[s] == 0) slots[s] = i + 1; // first of duplicates wins
+        }
+    }
+
+    /** Returns the index of a column, in [1,x] form, or 0. */
+    int find(String name) {
+        final int mask = slots.length - 1;
+        for (int s = hash(name) & mask; slots[s] != 0; s = (s + 1) & mask)
+            if (names[slots[s] - 1].equalsIgnoreCase(name)) return slots[s];
+        return 0;
+    }
+
+    /** Folds each code point as String.equalsIgnoreCase() compares them,
+     *  so that names equal ignoring case hash alike. Since Java 16 it folds
+     *  supplementary characters rather than each of their surrogates,
+     *  which older versions only match when equal. */
+    private static int hash(String s) {
+        int h = 0;
+        for (int i=0; i < s.length(); ) {
+            final int c = s.codePointAt(i);
+            h = 31 * h + Character.toLowerCase(Character.toUpperCase(c));
+            i += Character.charCount(c);
+        }
+        return h ^ (h >>> 16);
+    }
+}
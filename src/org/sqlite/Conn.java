@@ -16,6 +16,9 @@
 package org.sqlite;
 
 import java.io.File;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
 import java.sql.Array;
 import java.sql.Blob;
 import java.sql.CallableStatement;
@@ -33,14 +36,26 @@ import java.sql.SQLXML;
 import java.sql.Savepoint;
 import java.sql.Statement;
 import java.sql.Struct;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
 
-class Conn implements Connection
+/** Implements a JDBC Connection.
+ *
+ * <p>SQLite specific extensions are available by unwrapping a connection
+ * obtained from the driver:</p>
+ *
+ * <pre>
+ *      Conn conn = DriverManager.getConnection("jdbc:sqlite:").unwrap(Conn.class);
+ * </pre>
+ */
+public class Conn implements Connection
 {
     private final String url;
-    private final boolean readOnly;
+    private boolean readOnly = false; // set by setReadOnly(), see query_only
     private DB db = null;
     private MetaData meta = null;
     private boolean autoCommit = true;
@@ -49,17 +64,31 @@ class Conn implements Connection
     private int savepointId = 0;
     private Properties clientInfo = null;
 
-    public Conn(String url, String filename, boolean sharedCache, boolean julianDayMode)
-            throws SQLException {
-        this(url, filename);
-        db.shared_cache(sharedCache);
-        db.setJulianDayMode(julianDayMode);
-    }
-    public Conn(String url, String filename) throws SQLException {
-        boolean ro = false;
+    /** Read-only database images deserialized in place, by schema. */
+    private final Map<String, ByteBuffer> images = new HashMap<String, ByteBuffer>();
+
+    /** Maximum number of row changes recorded per transaction. */
+    static final int CHANGE_CAPACITY = 4096;
+    private final List<ChangeListener> changeListeners =
+        new CopyOnWriteArrayList<ChangeListener>();
 
-        // check the path to the file exists
-        if (!":memory:".equals(filename)) {
+    private ResultCache resultCache = null;
+
+    public Conn(String url, String filename) throws SQLException {
+        this(url, filename, new Properties());
+    }
+    public Conn(String url, String filename, Properties info)
+            throws SQLException {
+        final boolean ro = Boolean.parseBoolean(info.getProperty("read_only"));
+        int flags = Codes.SQLITE_OPEN_URI | (ro ? Codes.SQLITE_OPEN_READONLY
+            : Codes.SQLITE_OPEN_READWRITE | Codes.SQLITE_OPEN_CREATE);
+        if (Boolean.parseBoolean(info.getProperty("shared_cache")))
+            flags |= Codes.SQLITE_OPEN_SHAREDCACHE;
+
+        // only names starting with "file:" are URIs, such as
+        // "file:test.db?mode=ro", left to SQLite; any other name is a plain
+        // path, even with '?', '%' or '#', whose parent must exist
+        if (!":memory:".equals(filename) && !filename.startsWith("file:")) {
             File file = new File(filename).getAbsoluteFile();
             File parent = file.getParentFile();
             if (parent != null && !parent.exists()) {
@@ -72,7 +101,7 @@ class Conn implements Connection
             }
 
             // check write access if file does not exist
-            try {
+            if (!ro) try {
                  // The extra check to exists() is necessary as createNewFile()
                  // does not follow the JavaDoc when used on read-only shares.
                 if (!file.exists() && file.createNewFile()) file.delete();
@@ -81,12 +110,8 @@ class Conn implements Connection
                     "opening db: '" + filename + "': " +e.getMessage());
             }
             filename = file.getAbsolutePath();
-            if (file.exists())
-                ro = !file.canWrite();
         }
 
-        readOnly = ro;
-
         final String[] errMsg = new String[1];
         if (NativeDB.load(errMsg))
             db = new NativeDB();
@@ -94,8 +119,32 @@ class Conn implements Connection
             throw new SQLException(errMsg[0]);
 
         this.url = url;
-        db.open(this, filename);
+        db.open(this, filename, flags,
+            Boolean.parseBoolean(info.getProperty("io_stats")) ? DB.STATS_VFS : null);
+        db.setJulianDayMode(Boolean.parseBoolean(info.getProperty("julian_day")));
         setTimeout(3000);
+
+        final String mmapSize = info.getProperty("mmap_size");
+        if (mmapSize != null) try {
+            setMmapSize(Long.parseLong(mmapSize));
+        } catch (NumberFormatException e) {
+            close();
+            throw new SQLException("invalid mmap_size: '" + mmapSize + "'");
+        } catch (SQLException e) {
+            close();
+            throw e;
+        }
+
+        final String cacheSize = info.getProperty("result_cache");
+        if (cacheSize != null) try {
+            setResultCacheSize(Long.parseLong(cacheSize));
+        } catch (NumberFormatException e) {
+            close();
+            throw new SQLException("invalid result_cache: '" + cacheSize + "'");
+        } catch (SQLException e) {
+            close();
+            throw e;
+        }
     }
 
     int getTimeout() { return timeout; }
@@ -104,6 +153,160 @@ class Conn implements Connection
         db.busy_timeout(ms);
     }
     String url() { return url; }
+
+    /** Sets the maximum number of bytes of the main database accessed
+     *  through memory-mapped I/O, 0 to disable it. Fails if <tt>size</tt>
+     *  is above the maximum SQLite was compiled with. */
+    public void setMmapSize(long size) throws SQLException {
+        checkOpen();
+        if (size < 0) throw new SQLException("mmap_size must be >= 0");
+        // the pragma returns the size in effect, nothing for memory dbs
+        final long max = db.queryLong("PRAGMA mmap_size = " + size + ";", size);
+        if (max < size) throw new SQLException("mmap_size " + size
+            + " exceeds the compile-time maximum of " + max + " bytes");
+    }
+    /** Returns the number of bytes of the main database accessed through
+     *  memory-mapped I/O. */
+    public long getMmapSize() throws SQLException {
+        checkOpen();
+        return db.queryLong("PRAGMA mmap_size;", 0);
+    }
+
+    /** Returns the number of pages of the main database served from its
+     *  memory mapping since it was opened, or -1 if the connection was
+     *  not opened with the <tt>io_stats</tt> property. */
+    public long getMappedPageCount() throws SQLException {
+        checkOpen();
+        final long[] stats = db.io_stats();
+        return stats == null ? -1 : stats[0];
+    }
+    /** Returns the number of read() calls made on the main database since
+     *  it was opened, or -1 if the connection was not opened with the
+     *  <tt>io_stats</tt> property. */
+    public long getReadCount() throws SQLException {
+        checkOpen();
+        final long[] stats = db.io_stats();
+        return stats == null ? -1 : stats[1];
+    }
+
+    /** Registers a listener notified of the rows changed by each
+     *  transaction committed on this connection. Changes are buffered in
+     *  native code and reported once per transaction, when it commits. */
+    public void addChangeListener(ChangeListener l) throws SQLException {
+        checkOpen();
+        if (l == null) throw new SQLException("listener is null");
+        synchronized (changeListeners) {
+            if (changeListeners.isEmpty()
+                    && db.change_hook(this, CHANGE_CAPACITY) != Codes.SQLITE_OK)
+                db.throwex();
+            changeListeners.add(l);
+        }
+    }
+    /** Unregisters a listener. Changes stop being recorded once no
+     *  listener is left. */
+    public void removeChangeListener(ChangeListener l) throws SQLException {
+        synchronized (changeListeners) {
+            if (!changeListeners.remove(l) || !changeListeners.isEmpty())
+                return;
+            if (db != null) db.change_hook(null, 0);
+        }
+    }
+
+    /** Called once a transaction has committed, see ChangeSet(). */
+    void committed(int[] ops, String[] names, int[] refs, long[] keys,
+                   boolean truncated) {
+        final ChangeSet changes = new ChangeSet(ops, names, refs, keys, truncated);
+        for (ChangeListener l : changeListeners) {
+            try {
+                l.committed(changes);
+            } catch (RuntimeException e) {
+                // a failing listener must not hide the commit from the others
+            }
+        }
+    }
+
+    /** Caches the results of queries run with PreparedStatement's
+     *  executeQuery(), using up to <tt>bytes</tt> of heap, 0 to disable
+     *  the cache. Results are keyed by SQL and parameters, and dropped
+     *  when a table they read is changed. Queries calling user-defined
+     *  functions or reading virtual tables whose results change without
+     *  a table changing must not be run with the cache enabled. */
+    public void setResultCacheSize(long bytes) throws SQLException {
+        checkOpen();
+        if (bytes < 0) throw new SQLException("result_cache must be >= 0");
+        if (resultCache != null) {
+            removeChangeListener(resultCache);
+            resultCache.close();
+            resultCache = null;
+        }
+        if (bytes > 0) {
+            final ResultCache cache = new ResultCache(db, bytes);
+            addChangeListener(cache);
+            resultCache = cache;
+        }
+    }
+    /** Returns the heap budget of the result cache, 0 if disabled. */
+    public long getResultCacheSize() {
+        return resultCache == null ? 0 : resultCache.maxBytes();
+    }
+    /** Returns the number of queries served from the result cache. */
+    public long getResultCacheHits() {
+        return resultCache == null ? 0 : resultCache.hits();
+    }
+    /** Returns the number of queries looked up in the result cache and
+     *  run on the database. */
+    public long getResultCacheMisses() {
+        return resultCache == null ? 0 : resultCache.misses();
+    }
+    /** Characters of a script read per call into the native loop. */
+    static final int SCRIPT_CHUNK = 64 * 1024;
+
+    /** Runs the statements of an SQL script, such as a migration or a
+     *  dump file, in one native loop over <code>sqlite3_prepare_v2</code>.
+     *  The script is read in chunks, so its size is not bounded by the
+     *  heap. Rows returned by queries are discarded.
+     *
+     *  <p>With <tt>transaction</tt> set, and no transaction open on the
+     *  connection, the script runs inside a transaction committed once
+     *  all its statements ran, and rolled back if one fails. The script
+     *  itself should then not BEGIN or COMMIT.</p>
+     *
+     *  @throws java.sql.BatchUpdateException with the update counts of
+     *          the statements run before the one that failed. */
+    public ScriptResult executeScript(Reader script, boolean transaction)
+            throws SQLException {
+        checkOpen();
+        if (script == null) throw new SQLException("script is null");
+        synchronized (db) {
+            final boolean txn = transaction && db.get_autocommit();
+            if (txn) db.exec("begin;");
+            boolean ok = false;
+            try {
+                final ScriptResult res = db.executeScript(script, SCRIPT_CHUNK);
+                if (txn && !db.get_autocommit()) db.exec("commit;");
+                ok = true;
+                return res;
+            } finally {
+                if (txn && !ok && !db.get_autocommit()) try {
+                    db.exec("rollback;");
+                } catch (SQLException e) {
+                    // the failure of the script is reported instead
+                }
+            }
+        }
+    }
+    public ScriptResult executeScript(Reader script) throws SQLException {
+        return executeScript(script, false); }
+    public ScriptResult executeScript(String script, boolean transaction)
+            throws SQLException {
+        if (script == null) throw new SQLException("script is null");
+        return executeScript(new StringReader(script), transaction);
+    }
+    public ScriptResult executeScript(String script) throws SQLException {
+        return executeScript(script, false); }
+
+    ResultCache resultCache() { return resultCache; }
+
     String libversion() throws SQLException { return db.libversion(); }
     DB db() { return db; }
 
@@ -125,9 +328,13 @@ class Conn implements Connection
         if (db == null) return;
         if (meta != null) meta.close();
         if (clientInfo != null) clientInfo.clear();
+        if (resultCache != null) resultCache.close();
+        resultCache = null;
 
         db.close();
         db = null;
+        images.clear();
+        changeListeners.clear();
     }
 
     public boolean isClosed() throws SQLException { return db == null; }
@@ -163,8 +370,25 @@ class Conn implements Connection
     public void setTypeMap(Map<String, Class<?>> map) throws SQLException
         { throw Util.unsupported();}
 
-    public boolean isReadOnly() throws SQLException { return readOnly; }
-    public void setReadOnly(boolean ro) throws SQLException {}
+    /** Returns true if the main database was opened read-only (with the
+     *  <tt>read_only</tt> property, a <tt>mode=ro</tt> or <tt>immutable=1</tt>
+     *  URI parameter, or because the file is not writable), or if
+     *  <tt>setReadOnly(true)</tt> was called. */
+    public boolean isReadOnly() throws SQLException {
+        checkOpen();
+        return readOnly || db.db_readonly("main");
+    }
+    /** Enables or disables <tt>PRAGMA query_only</tt>, which rejects any
+     *  change to the databases. A database opened read-only cannot be
+     *  made writable. */
+    public void setReadOnly(boolean ro) throws SQLException {
+        checkOpen();
+        if (!ro && db.db_readonly("main")) throw new SQLException(
+            "database opened read-only");
+        if (ro == readOnly) return;
+        db.exec(ro ? "PRAGMA query_only = true;" : "PRAGMA query_only = false;");
+        readOnly = ro;
+    }
 
     public DatabaseMetaData getMetaData() {
         if (meta == null) meta = new MetaData(this);
@@ -254,6 +478,71 @@ class Conn implements Connection
         return new PrepStmt(this, sql);
     }
 
+    /** Returns a direct buffer holding a copy of the image of the given
+     *  database (<tt>main</tt> if <tt>schema</tt> is null), as it would
+     *  be stored on disk. */
+    public ByteBuffer serialize(String schema) throws SQLException {
+        checkOpen();
+        schema = schemaName(schema);
+        synchronized (db) {
+            final long size = db.serialize(schema, null, 0, 0);
+            if (size > Integer.MAX_VALUE) throw new SQLException(
+                "database image too large: " + size + " bytes");
+            final ByteBuffer image = ByteBuffer.allocateDirect((int)size);
+            serialize(schema, image);
+            image.flip();
+            return image;
+        }
+    }
+
+    /** Copies the image of the given database into the direct buffer
+     *  <tt>dst</tt>, typically a <tt>MappedByteBuffer</tt>, at its current
+     *  position. Returns the number of bytes written and advances the
+     *  position of the buffer accordingly. */
+    public int serialize(String schema, ByteBuffer dst) throws SQLException {
+        checkOpen();
+        if (dst == null || !dst.isDirect())
+            throw new SQLException("serialization buffer must be direct");
+        final long n = db.serialize(schemaName(schema), dst, dst.position(),
+                                    dst.remaining());
+        if (n < 0) throw new SQLException(
+            "buffer too small for database image: " + dst.remaining()
+            + " < " + (-n) + " bytes");
+        dst.position(dst.position() + (int)n);
+        return (int)n;
+    }
+
+    /** Replaces the given database with the image found between the
+     *  position and the limit of <tt>image</tt>.
+     *
+     *  <p>With <tt>readOnly</tt>, a direct buffer (such as a memory-mapped
+     *  file) is used in place without any copy and the database cannot be
+     *  modified; the buffer is referenced by the connection until it is
+     *  closed or the database replaced. Otherwise the image is copied and
+     *  the database lives in memory.</p> */
+    public void deserialize(String schema, ByteBuffer image, boolean readOnly)
+            throws SQLException {
+        checkOpen();
+        if (image == null) throw new SQLException("null database image");
+        schema = schemaName(schema);
+        if (!image.isDirect()) {
+            final ByteBuffer copy = ByteBuffer.allocateDirect(image.remaining());
+            copy.put(image.duplicate()).flip();
+            image = copy;
+        }
+        synchronized (db) {
+            if (db.deserialize(schema, image, image.position(),
+                        image.remaining(), readOnly) != Codes.SQLITE_OK)
+                db.throwex();
+            if (readOnly) images.put(schema, image);
+            else images.remove(schema);
+        }
+    }
+
+    private static String schemaName(String schema) {
+        return schema == null ? "main" : schema;
+    }
+
     /** Used to supply DatabaseMetaData.getDriverVersion(). */
     String getDriverVersion() {
         if (db != null) {
@@ -325,8 +614,11 @@ class Conn implements Connection
         return clientInfo;
     }
 
+    /** Returns an array to bind to the table-valued function carray(?),
+     *  of elements of the affinity of <tt>typeName</tt>. */
     public Array createArrayOf(String typeName, Object[] elements) throws SQLException {
-        throw Util.unsupported(); // TODO
+        checkOpen();
+        return CArray.of(typeName, elements);
     }
 
     public Struct createStruct(String typeName, Object[] attributes) throws SQLException {
@@ -373,10 +665,11 @@ class Conn implements Connection
     }
 
     public <T> T unwrap(Class<T> iface) throws SQLException {
-        throw new SQLException("Not a wrapper");
+        if (iface.isInstance(this)) return iface.cast(this);
+        throw new SQLException("Not a wrapper for " + iface.getName());
     }
 
     public boolean isWrapperFor(Class<?> iface) throws SQLException {
-        return false;
+        return iface.isInstance(this);
     }
 }
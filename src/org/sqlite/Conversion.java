@@ -0,0 +1,260 @@
+/*
+ * The author disclaims copyright to this source code.  In place of
+ * a legal notice, here is a blessing:
+ *
+ *    May you do good and not evil.
+ *    May you find forgiveness for yourself and forgive others.
+ *    May you share freely, never taking more than you give.
+ *
+ */
+package org.sqlite;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/** Converts cells to the classes of ResultSet.getObject(int, Class).
+ *
+ * <p>Each conversion reads the value as SQLite stores it: dates as
+ * milliseconds since 1970 or as Julian days, per
+ * <tt>DB.isJulianDayMode()</tt>, or as ISO 8601 text, UUIDs as 16 byte
+ * blobs or text. The conversion for a column is looked up once and kept
+ * by its statement. <tt>encode()</tt> is the reverse, used by
+ * PreparedStatement.setObject().</p>
+ */
+abstract class Conversion implements Codes
+{
+    private static final Map<Class<?>, Conversion> conversions =
+        new HashMap<Class<?>, Conversion>();
+
+    /** Class converted to. */
+    final Class<?> type;
+
+    private Conversion(Class<?> type) { this.type = type; }
+
+    /** Returns the value of col, in [1,x] form, or null for NULL. */
+    abstract Object read(RS rs, int col) throws SQLException;
+
+    /** Returns the conversion to <tt>type</tt>. */
+    static Conversion of(Class<?> type) throws SQLException {
+        final Conversion c = conversions.get(type);
+        if (c == null) throw new SQLException(
+            "cannot convert to " + type.getName());
+        return c;
+    }
+
+    /** Returns the value to bind for a java.time or UUID object, null
+     *  for any other. */
+    static Object encode(DB db, Object v) {
+        if (v instanceof Instant)
+            return millis(db, ((Instant)v).toEpochMilli());
+        if (v instanceof LocalDate) return v.toString();
+        if (v instanceof LocalDateTime)
+            return v.toString().replace('T', ' ');
+        if (v instanceof OffsetDateTime)
+            return v.toString().replace('T', ' ');
+        if (v instanceof UUID) {
+            final UUID u = (UUID)v;
+            return ByteBuffer.allocate(16).putLong(u.getMostSignificantBits())
+                .putLong(u.getLeastSignificantBits()).array();
+        }
+        return null;
+    }
+
+    private static Object millis(DB db, long ms) {
+        if (db.isJulianDayMode()) return PrepStmt.toJulianDay(ms);
+        return ms;
+    }
+
+
+    // DATES ////////////////////////////////////////////////////////
+
+    /** Reads a date: a number, as stored by setTimestamp(), or text. */
+    private static abstract class Temporal extends Conversion
+    {
+        Temporal(Class<?> type) { super(type); }
+
+        final Object read(RS rs, int col) throws SQLException {
+            final double d = rs.getDouble(col);
+            switch (rs.lastType()) {
+                case SQLITE_NULL: return null;
+                case SQLITE_TEXT:
+                case SQLITE_BLOB:
+                    final String s = rs.getString(col);
+                    try {
+                        return parse(s.length() > 10 && s.charAt(10) == ' '
+                            ? s.substring(0, 10) + 'T' + s.substring(11) : s);
+                    } catch (DateTimeParseException e) {
+                        throw new SQLException("bad value for type "
+                            + type.getSimpleName() + ": " + s);
+                    }
+                default:
+                    return instant(Instant.ofEpochMilli(
+                        rs.db().isJulianDayMode()
+                            ? RS.fromJulianDay(d) : (long)d));
+            }
+        }
+
+        abstract Object instant(Instant i);
+        abstract Object parse(String iso);
+    }
+
+    /** Returns ISO text with no offset read as UTC, as from datetime(). */
+    private static OffsetDateTime offset(String iso) {
+        final int t = iso.indexOf('T');
+        if (t < 0) return LocalDate.parse(iso).atStartOfDay()
+                                   .atOffset(ZoneOffset.UTC);
+        if (iso.endsWith("Z") || iso.indexOf('+', t) > 0
+                || iso.indexOf('-', t) > 0)
+            return OffsetDateTime.parse(iso);
+        return LocalDateTime.parse(iso).atOffset(ZoneOffset.UTC);
+    }
+
+    private static void add(Conversion c) { conversions.put(c.type, c); }
+
+    static {
+        add(new Temporal(Instant.class) {
+            Object instant(Instant i) { return i; }
+            Object parse(String iso) { return offset(iso).toInstant(); }
+        });
+        add(new Temporal(OffsetDateTime.class) {
+            Object instant(Instant i) { return i.atOffset(ZoneOffset.UTC); }
+            Object parse(String iso) { return offset(iso); }
+        });
+        add(new Temporal(LocalDateTime.class) {
+            Object instant(Instant i) {
+                return i.atZone(ZoneId.systemDefault()).toLocalDateTime(); }
+            Object parse(String iso) {
+                return iso.indexOf('T') < 0
+                    ? LocalDate.parse(iso).atStartOfDay()
+                    : offset(iso).toLocalDateTime();
+            }
+        });
+        add(new Temporal(LocalDate.class) {
+            Object instant(Instant i) {
+                return i.atZone(ZoneId.systemDefault()).toLocalDate(); }
+            Object parse(String iso) {
+                return LocalDate.parse(iso.length() > 10
+                    ? iso.substring(0, 10) : iso);
+            }
+        });
+        add(new Conversion(Date.class) {
+            Object read(RS rs, int col) throws SQLException {
+                return rs.getDate(col); }
+        });
+        add(new Conversion(Time.class) {
+            Object read(RS rs, int col) throws SQLException {
+                return rs.getTime(col); }
+        });
+        final Conversion timestamp = new Conversion(Timestamp.class) {
+            Object read(RS rs, int col) throws SQLException {
+                return rs.getTimestamp(col); }
+        };
+        add(timestamp);
+        conversions.put(java.util.Date.class, timestamp);
+    }
+
+
+    // OTHER TYPES //////////////////////////////////////////////////
+
+    static {
+        add(new Conversion(String.class) {
+            Object read(RS rs, int col) throws SQLException {
+                return rs.getString(col); }
+        });
+        add(new Conversion(byte[].class) {
+            Object read(RS rs, int col) throws SQLException {
+                return rs.getBytes(col); }
+        });
+        add(new Conversion(Object.class) {
+            Object read(RS rs, int col) throws SQLException {
+                return rs.getObject(col); }
+        });
+        add(new Conversion(Long.class) {
+            Object read(RS rs, int col) throws SQLException {
+                final long v = rs.getLong(col);
+                return rs.wasNull() ? null : Long.valueOf(v);
+            }
+        });
+        add(new Conversion(Integer.class) {
+            Object read(RS rs, int col) throws SQLException {
+                final int v = rs.getInt(col);
+                return rs.wasNull() ? null : Integer.valueOf(v);
+            }
+        });
+        add(new Conversion(Short.class) {
+            Object read(RS rs, int col) throws SQLException {
+                final short v = rs.getShort(col);
+                return rs.wasNull() ? null : Short.valueOf(v);
+            }
+        });
+        add(new Conversion(Byte.class) {
+            Object read(RS rs, int col) throws SQLException {
+                final byte v = rs.getByte(col);
+                return rs.wasNull() ? null : Byte.valueOf(v);
+            }
+        });
+        add(new Conversion(Boolean.class) {
+            Object read(RS rs, int col) throws SQLException {
+                final boolean v = rs.getBoolean(col);
+                return rs.wasNull() ? null : Boolean.valueOf(v);
+            }
+        });
+        add(new Conversion(Double.class) {
+            Object read(RS rs, int col) throws SQLException {
+                final double v = rs.getDouble(col);
+                return rs.wasNull() ? null : Double.valueOf(v);
+            }
+        });
+        add(new Conversion(Float.class) {
+            Object read(RS rs, int col) throws SQLException {
+                final float v = rs.getFloat(col);
+                return rs.wasNull() ? null : Float.valueOf(v);
+            }
+        });
+        add(new Conversion(BigDecimal.class) {
+            Object read(RS rs, int col) throws SQLException {
+                final long v = rs.getLong(col);
+                switch (rs.lastType()) {
+                    case SQLITE_NULL:    return null;
+                    case SQLITE_INTEGER: return BigDecimal.valueOf(v);
+                    default:             return rs.getBigDecimal(col);
+                }
+            }
+        });
+        add(new Conversion(UUID.class) {
+            Object read(RS rs, int col) throws SQLException {
+                rs.getLong(col); // for lastType
+                switch (rs.lastType()) {
+                    case SQLITE_NULL: return null;
+                    case SQLITE_BLOB:
+                        final byte[] b = rs.getBytes(col);
+                        if (b == null || b.length != 16) throw new SQLException(
+                            "bad value for type UUID: blob of "
+                            + (b == null ? 0 : b.length) + " bytes");
+                        final ByteBuffer buf = ByteBuffer.wrap(b);
+                        return new UUID(buf.getLong(), buf.getLong());
+                }
+                final String s = rs.getString(col);
+                try {
+                    return UUID.fromString(s);
+                } catch (IllegalArgumentException e) {
+                    throw new SQLException("bad value for type UUID: " + s);
+                }
+            }
+        });
+    }
+}
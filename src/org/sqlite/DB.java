@@ -15,6 +15,9 @@
  */
 package org.sqlite;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
 import java.sql.*;
 import java.util.*;
 
@@ -61,6 +64,7 @@ abstract class DB implements Codes
     abstract String libversion() throws SQLException;
     abstract int changes() throws SQLException;
     abstract int shared_cache(boolean enable) throws SQLException;
+    abstract boolean db_readonly(String schema) throws SQLException;
 
     final synchronized void exec(String sql) throws SQLException {
         long pointer = 0;
@@ -80,9 +84,13 @@ abstract class DB implements Codes
         }
     }
 
-    final synchronized void open(Conn conn, String file) throws SQLException {
+    /** Name of the VFS counting memory-mapped and read() page accesses. */
+    static final String STATS_VFS = "sqlitejdbc-stats";
+
+    final synchronized void open(Conn conn, String file, int flags, String vfs)
+            throws SQLException {
         this.conn = conn;
-        _open(file);
+        _open(file, flags, vfs);
     }
 
     final synchronized void close() throws SQLException {
@@ -100,8 +108,10 @@ abstract class DB implements Codes
             }
         }
 
-        // remove memory used by user-defined functions
+        // remove memory used by user-defined functions and hooks
         free_functions();
+        wal_hook(null, 0);
+        change_hook(null, 0);
 
         // clean up commit object
         if (begin != 0) {
@@ -120,6 +130,9 @@ abstract class DB implements Codes
         if (stmt.pointer != 0)
             finalize(stmt);
         stmt.pointer = prepare(stmt.sql);
+        stmt.names = null;
+        stmt.columns = null;
+        stmt.reprepared = 0;
         stmts.put(stmt.pointer, stmt);
     }
 
@@ -135,33 +148,60 @@ abstract class DB implements Codes
         return rc;
     }
 
-    protected abstract void _open(String filename) throws SQLException;
+    /** Compiles <code>sql</code>, passed to SQLite as UTF-8. */
+    protected final long prepare(String sql) throws SQLException {
+        return prepare(UTF8.encode(sql));
+    }
+
+    /** Returns the text of a column, decoded from its UTF-8 bytes. */
+    final String column_text(long stmt, int col) throws SQLException {
+        return UTF8.decode(column_utf8(stmt, col));
+    }
+
+    protected abstract void _open(String filename, int flags, String vfs)
+        throws SQLException;
     protected abstract void _close() throws SQLException;
-    protected abstract long prepare(String sql) throws SQLException;
+    protected abstract long prepare(byte[] sql) throws SQLException;
     protected abstract int finalize(long stmt) throws SQLException;
     protected abstract int step(long stmt) throws SQLException;
     protected abstract int reset(long stmt) throws SQLException;
 
     abstract int clear_bindings(long stmt) throws SQLException; // TODO remove?
     abstract int bind_parameter_count(long stmt) throws SQLException;
+    /** Returns the UTF-8 names of the parameters, with their prefix, null
+     *  for a parameter without a name. */
+    abstract byte[][] bind_parameter_names(long stmt) throws SQLException;
 
     abstract int    column_count      (long stmt) throws SQLException;
     abstract int    column_type       (long stmt, int col) throws SQLException;
     abstract String column_decltype   (long stmt, int col) throws SQLException;
     abstract String column_table_name (long stmt, int col) throws SQLException;
     abstract String column_name       (long stmt, int col) throws SQLException;
-    abstract String column_text       (long stmt, int col) throws SQLException;
+    abstract byte[] column_utf8       (long stmt, int col) throws SQLException;
     abstract byte[] column_blob       (long stmt, int col) throws SQLException;
     abstract double column_double     (long stmt, int col) throws SQLException;
     abstract long   column_long       (long stmt, int col) throws SQLException;
     abstract int    column_int        (long stmt, int col) throws SQLException;
 
+    /** Returns the value of a column and sets <code>type[0]</code> to its
+     *  type, read before any conversion, in one call. */
+    abstract long column_typed_long(long stmt, int col, int[] type)
+        throws SQLException;
+    /** Returns the value of a column and sets <code>type[0]</code> to its
+     *  type, read before any conversion, in one call. */
+    abstract double column_typed_double(long stmt, int col, int[] type)
+        throws SQLException;
+
     abstract int bind_null  (long stmt, int pos) throws SQLException;
     abstract int bind_int   (long stmt, int pos, int    v) throws SQLException;
     abstract int bind_long  (long stmt, int pos, long   v) throws SQLException;
     abstract int bind_double(long stmt, int pos, double v) throws SQLException;
-    abstract int bind_text  (long stmt, int pos, String v) throws SQLException;
+    abstract int bind_text  (long stmt, int pos, byte[] v) throws SQLException;
     abstract int bind_blob  (long stmt, int pos, byte[] v) throws SQLException;
+    /** Binds a copy of a long[], a double[], or the bytes of texts or
+     *  blobs ending at <tt>ends</tt>, as a pointer read by carray(). */
+    abstract int bind_carray(long stmt, int pos, int type, Object values,
+                             int[] ends, int n) throws SQLException;
 
     abstract void result_null  (long context) throws SQLException;
     abstract void result_text  (long context, String val) throws SQLException;
@@ -179,16 +219,98 @@ abstract class DB implements Codes
     abstract int    value_int   (Function f, int arg) throws SQLException;
     abstract int    value_type  (Function f, int arg) throws SQLException;
 
-    abstract int create_function(String name, Function f) throws SQLException;
-    abstract void destroy_function(String name) throws SQLException;
+    /** Registers a function for calls with <code>nArgs</code> arguments,
+     *  any number if -1, with the given SQLITE_DETERMINISTIC,
+     *  SQLITE_DIRECTONLY and SQLITE_INNOCUOUS flags. */
+    abstract int create_function(String name, Function f, int nArgs,
+        int flags) throws SQLException;
+    abstract void destroy_function(String name, int nArgs)
+        throws SQLException;
     abstract void free_functions() throws SQLException;
 
-    /** Provides metadata for the columns of a statement. Returns:
-     *   res[col][0] = true if column constrained NOT NULL
-     *   res[col][1] = true if column is part of the primary key
-     *   res[col][2] = true if column is auto-increment
-     */
-    abstract boolean[][] column_metadata(long stmt) throws SQLException;
+    /** Steps <code>stmt</code> for up to <code>max</code> rows, writing
+     *  the type and value of each column to the arrays, by column, and
+     *  returns the number of rows read. Fewer than <code>max</code> rows
+     *  means the statement is done. */
+    abstract int step_batch(long stmt, byte[] types, long[] longs,
+        double[] doubles, int max) throws SQLException;
+
+    /** Registers a virtual table module, or removes it if <code>m</code>
+     *  is null. An <code>eponymous</code> module only provides the table
+     *  named after it, without CREATE VIRTUAL TABLE. */
+    abstract int create_module(String name, VirtualTable.Module m,
+        boolean eponymous) throws SQLException;
+
+    /** Registers a collating sequence, or removes it if <code>c</code>
+     *  is null. */
+    abstract int create_collation(String name, Collation c)
+        throws SQLException;
+
+    /** Copies the image of the given database into the <code>space</code>
+     *  bytes of <code>dst</code> found at <code>offset</code>. Returns the
+     *  number of bytes written, or the negated image size if it does not
+     *  fit. */
+    abstract long serialize(String schema, ByteBuffer dst, int offset,
+        int space) throws SQLException;
+    /** Replaces the given database with the <code>size</code> bytes image
+     *  found at <code>offset</code> in the direct buffer <code>src</code>.
+     *  A read-only image is used in place, otherwise it is copied. */
+    abstract int deserialize(String schema, ByteBuffer src, int offset,
+        long size, boolean readOnly) throws SQLException;
+
+    /** Returns the number of pages of the main database served from its
+     *  memory mapping and the number of reads, or null if the database
+     *  was not opened with <code>STATS_VFS</code>. */
+    abstract long[] io_stats() throws SQLException;
+
+    /** Returns the file name of the given database, empty for a
+     *  temporary or in-memory database. */
+    abstract String db_filename(String schema) throws SQLException;
+
+    /** Calls <code>c.walCommit(pages)</code> whenever a commit leaves
+     *  <code>walPages</code> or more pages in the WAL, instead of running
+     *  automatic checkpoints. A null <code>c</code> restores the automatic
+     *  checkpoints set before the first call. */
+    abstract int wal_hook(Checkpointer c, int walPages) throws SQLException;
+    /** Returns the result code of <code>sqlite3_wal_checkpoint_v2</code>,
+     *  the number of frames in the WAL and the number checkpointed. */
+    abstract int[] wal_checkpoint(String schema, int mode) throws SQLException;
+
+    /** Records up to <code>capacity</code> row changes per transaction and
+     *  passes them to <code>conn.committed()</code> once the transaction
+     *  has committed, dropping them on rollback. A null
+     *  <code>conn</code> removes the hooks. */
+    abstract int change_hook(Conn conn, int capacity) throws SQLException;
+
+    /** Returns true if no transaction is open on the connection. */
+    abstract boolean get_autocommit() throws SQLException;
+    /** Returns the names of the tables read by the first statement of
+     *  <code>sql</code>, or null if its result may change without the
+     *  tables changing: it writes or calls a function such as random(). */
+    abstract String[] tables_read(String sql) throws SQLException;
+
+    /** Describes all the columns of a statement in one call. Returns the
+     *  name, declared type, table and origin column of each column, four
+     *  strings per column, and sets <code>flags[col]</code> to the
+     *  Column.NOT_NULL, PRIMARY_KEY, AUTO_INCREMENT and ROWID bits of its
+     *  origin column. */
+    abstract String[] column_descriptors(long stmt, int[] flags)
+        throws SQLException;
+
+    /** Returns a SQLITE_STMTSTATUS_* counter of a statement. */
+    abstract int stmt_status(long stmt, int op, boolean reset)
+        throws SQLException;
+
+    /** Runs the statements of <code>sql[pos[0]..len)</code> with one
+     *  prepare/step/finalize loop, storing the changes and nanoseconds of
+     *  each in <code>out</code> until it is full. Unless <code>last</code>
+     *  is set, an incomplete statement at the end is left to be run once
+     *  the next chunk of the script is appended, and the first
+     *  <code>pos[2]</code> bytes are known not to end a statement. Sets
+     *  <code>pos[0]</code> to the offset of the first statement not run and
+     *  <code>pos[1]</code> to the number run. */
+    abstract int exec_script(byte[] sql, int len, boolean last, int[] pos,
+                             long[] out) throws SQLException;
 
 
     // COMPOUND FUNCTIONS ////////////////////////////////////////////
@@ -200,6 +322,87 @@ abstract class DB implements Codes
         return names;
     }
 
+    /** Runs a query returning a single integer, such as a pragma, or
+     *  <code>dflt</code> if the query returns no row. */
+    final synchronized long queryLong(String sql, long dflt)
+            throws SQLException {
+        long pointer = 0;
+        try {
+            pointer = prepare(sql);
+            switch (step(pointer)) {
+                case SQLITE_ROW:  return column_long(pointer, 0);
+                case SQLITE_DONE: return dflt;
+                default:          throwex(); return dflt;
+            }
+        } finally {
+            finalize(pointer);
+        }
+    }
+
+    /** Runs a script read in chunks of <code>chunk</code> characters. On
+     *  an error, throws a BatchUpdateException with the update counts of
+     *  the statements run before the failing one. */
+    final synchronized ScriptResult executeScript(Reader in, int chunk)
+            throws SQLException {
+        final ScriptResult res = new ScriptResult();
+        final char[] chars = new char[chunk];
+        final int[] pos = new int[3];
+        final long[] out = new long[2 * 1024];
+        byte[] sql = new byte[0];
+        int len = 0, held = 0;
+        boolean last = false;
+
+        while (!last) {
+            int n;
+            try {
+                n = in.read(chars, held, chars.length - held);
+            } catch (IOException e) {
+                throw new SQLException("reading script: " + e.getMessage());
+            }
+            last = n < 0;
+            n = held + Math.max(n, 0);
+
+            // keep a high surrogate back for the rest of its pair
+            held = !last && n > 0
+                && Character.isHighSurrogate(chars[n - 1]) ? 1 : 0;
+            final byte[] bytes = UTF8.encode(new String(chars, 0, n - held));
+            if (held > 0) chars[0] = chars[n - 1];
+
+            if (len + bytes.length > sql.length)
+                sql = Arrays.copyOf(sql, Math.max(len + bytes.length,
+                                                  sql.length * 2));
+            System.arraycopy(bytes, 0, sql, len, bytes.length);
+            final int pending = len;
+            len += bytes.length;
+
+            // the text left by the last call ends no statement, a chunk
+            // without ';' cannot either: a long statement is only parsed
+            // once a chunk may end it
+            if (!last && indexOf(sql, (byte)';', pending, len) < 0) continue;
+
+            pos[0] = 0;
+            pos[2] = pending;
+            do {
+                final int rc = exec_script(sql, len, last, pos, out);
+                pos[2] = 0;
+                for (int i=0; i < pos[1]; i++)
+                    res.add(out[2*i], out[2*i + 1]);
+                if (rc != SQLITE_OK) throw new BatchUpdateException(
+                    "statement " + res.size() + ": " + errmsg(),
+                    res.getUpdateCounts());
+            } while (pos[1] == out.length / 2);
+
+            System.arraycopy(sql, pos[0], sql, 0, len - pos[0]);
+            len -= pos[0];
+        }
+        return res;
+    }
+
+    private static int indexOf(byte[] b, byte v, int from, int to) {
+        for (int i=from; i < to; i++) if (b[i] == v) return i;
+        return -1;
+    }
+
     final synchronized int sqlbind(long stmt, int pos, Object v)
             throws SQLException {
         pos++;
@@ -212,9 +415,12 @@ abstract class DB implements Codes
         } else if (v instanceof Double) {
             return bind_double(stmt, pos, (Double) v);
         } else if (v instanceof String) {
-            return bind_text(stmt, pos, (String)v);
+            return bind_text(stmt, pos, UTF8.encode((String)v));
         } else if (v instanceof byte[]) {
             return bind_blob(stmt, pos, (byte[])v);
+        } else if (v instanceof CArray) {
+            final CArray a = (CArray)v;
+            return bind_carray(stmt, pos, a.type, a.values, a.ends, a.length);
         } else {
             throw new SQLException("unexpected param type: "+v.getClass());
         }
@@ -15,7 +15,11 @@
  */
 package org.sqlite;
 
+import java.nio.ByteBuffer;
 import java.sql.*;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /** Provides an interface for creating SQLite user-defined functions.
  *
@@ -46,43 +50,105 @@ import java.sql.*;
  *  argument. Similarly a function can return a value using the
  *  <tt>result(&lt;type&gt;)</tt> function.</p>
  *
- *  <p>Aggregate functions are not yet supported, but coming soon.</p>
+ *  <p>Aggregate functions extend <tt>Function.Aggregate</tt>, which is
+ *  cloned for each group, or <tt>Function.Accumulator</tt>, which keeps
+ *  the state of each group in SQLite's memory.</p>
  *
  */
 public abstract class Function
 {
-    private Conn conn;
+    /** Flag telling SQLite the function always returns the same result
+     *  for the same arguments, so it can be used in indexes on
+     *  expressions and factored out of loops. */
+    public static final int DETERMINISTIC = 0x000000800;
+    /** Flag allowing the function only in top-level SQL, not in
+     *  triggers, views, CHECK constraints or indexes. */
+    public static final int DIRECTONLY    = 0x000080000;
+    /** Flag telling SQLite the function has no side effects, so it can
+     *  be used in schema and triggers even with trusted_schema off. */
+    public static final int INNOCUOUS     = 0x000200000;
+
     private DB db;
 
     long context = 0;     // pointer sqlite3_context*
     long value = 0;       // pointer sqlite3_value**
     int args = 0;
 
+    /** Native memory shared with the sqlite3_context of the current
+     *  call, as longs: the type and value of the result, then the type
+     *  and value of each argument. A value is an integer, the bits of a
+     *  double or the number of bytes of a text or blob. A result type of
+     *  0 means the result was set through SQLite. Each registration of
+     *  the function owns a block, passed with each call. */
+    ByteBuffer block;
+    int slots;            // number of arguments the block holds
+
+    private Map<Args, Object> memo;  // results by arguments, if memoized
+    private Object memoResult;
+
     /** Registers the given function with the Connection using the
      *  provided name. */
     public static void create(Connection conn, String name, Function f)
             throws SQLException {
+        create(conn, name, f, -1, 0, 0);
+    }
+
+    /** Registers the given function with the Connection using the
+     *  provided name, for calls with <tt>nArgs</tt> arguments, any number
+     *  if -1. <tt>flags</tt> is a combination of <tt>DETERMINISTIC</tt>,
+     *  <tt>DIRECTONLY</tt> and <tt>INNOCUOUS</tt>. */
+    public static void create(Connection conn, String name, Function f,
+                              int nArgs, int flags) throws SQLException {
+        create(conn, name, f, nArgs, flags, 0);
+    }
+
+    /** Registers the given function as above, remembering the results of
+     *  the last <tt>cacheSize</tt> distinct arguments it was called with.
+     *  A memoized function must be DETERMINISTIC and not an aggregate. */
+    public static void create(Connection conn, String name, Function f,
+                              int nArgs, int flags, int cacheSize)
+            throws SQLException {
         if (conn == null || !(conn instanceof Conn))
             throw new SQLException("connection must be to an SQLite db");
         if (conn.isClosed())
             throw new SQLException("connection closed");
-
-        f.conn = (Conn)conn;
-        f.db = f.conn.db();
-
         if (name == null || name.length() > 255)
             throw new SQLException("invalid function name: '"+name+"'");
-
-        if (f.db.create_function(name, f) != Codes.SQLITE_OK)
+        if (nArgs < -1 || nArgs > 127)
+            throw new SQLException("invalid number of arguments: "+nArgs);
+        if ((flags & ~(DETERMINISTIC | DIRECTONLY | INNOCUOUS)) != 0)
+            throw new SQLException("invalid function flags: "+flags);
+        if (cacheSize < 0)
+            throw new SQLException("negative cache size");
+        if (cacheSize > 0 && ((flags & DETERMINISTIC) == 0
+                || f instanceof Aggregate || f instanceof Accumulator))
+            throw new SQLException(
+                "only deterministic scalar functions can be memoized");
+
+        if (f instanceof BatchAccumulator && nArgs < 1)
+            throw new SQLException(
+                "batch functions need a fixed number of arguments");
+
+        f.db = ((Conn)conn).db();
+        f.memo = cacheSize == 0 ? null : lru(cacheSize);
+
+        if (f.db.create_function(name, f, nArgs, flags) != Codes.SQLITE_OK)
             throw new SQLException("error creating function");
     }
 
     /** Removes the named function form the Connection. */
     public static void destroy(Connection conn, String name)
             throws SQLException {
+        destroy(conn, name, -1);
+    }
+
+    /** Removes the named function registered for <tt>nArgs</tt>
+     *  arguments from the Connection. */
+    public static void destroy(Connection conn, String name, int nArgs)
+            throws SQLException {
         if (conn == null || !(conn instanceof Conn))
             throw new SQLException("connection must be to an SQLite db");
-        ((Conn)conn).db().destroy_function(name);
+        ((Conn)conn).db().destroy_function(name, nArgs);
     }
 
 
@@ -94,40 +160,63 @@ public abstract class Function
 
     /** Returns the number of arguments passed to the function.
      *  Can only be called from <tt>xFunc()</tt>. */
-    protected synchronized final int args()
+    protected final int args()
         throws SQLException { checkContext(); return args; }
 
     /** Called by <tt>xFunc</tt> to return a value. */
     protected synchronized final void result(byte[] value)
-        throws SQLException { checkContext(); db.result_blob(context, value); }
+        throws SQLException { checkContext(); db.result_blob(context, value);
+                              block.putLong(0, 0);
+                              memoResult = value == null ? NULL : value; }
 
     /** Called by <tt>xFunc</tt> to return a value. */
-    protected synchronized final void result(double value)
-        throws SQLException { checkContext(); db.result_double(context,value);}
+    protected final void result(double value) throws SQLException {
+        checkContext();
+        block.putLong(0, Codes.SQLITE_FLOAT);
+        block.putLong(8, Double.doubleToRawLongBits(value));
+        if (memo != null) memoResult = Double.valueOf(value);
+    }
 
     /** Called by <tt>xFunc</tt> to return a value. */
-    protected synchronized final void result(int value)
-        throws SQLException { checkContext(); db.result_int(context, value); }
+    protected final void result(int value)
+        throws SQLException { result((long)value); }
 
     /** Called by <tt>xFunc</tt> to return a value. */
-    protected synchronized final void result(long value)
-        throws SQLException { checkContext(); db.result_long(context, value); }
+    protected final void result(long value) throws SQLException {
+        checkContext();
+        block.putLong(0, Codes.SQLITE_INTEGER);
+        block.putLong(8, value);
+        if (memo != null) memoResult = Long.valueOf(value);
+    }
 
     /** Called by <tt>xFunc</tt> to return a value. */
-    protected synchronized final void result()
-        throws SQLException { checkContext(); db.result_null(context); }
+    protected final void result() throws SQLException {
+        checkContext();
+        block.putLong(0, Codes.SQLITE_NULL);
+        memoResult = NULL;
+    }
 
     /** Called by <tt>xFunc</tt> to return a value. */
     protected synchronized final void result(String value)
-        throws SQLException { checkContext(); db.result_text(context, value); }
+        throws SQLException { checkContext(); db.result_text(context, value);
+                              block.putLong(0, 0);
+                              memoResult = value == null ? NULL : value; }
 
     /** Called by <tt>xFunc</tt> to throw an error. */
     protected synchronized final void error(String err)
-        throws SQLException { checkContext(); db.result_error(context, err); }
+        throws SQLException { checkContext(); db.result_error(context, err);
+                              block.putLong(0, 0);
+                              memoResult = null; }
 
     /** Called by <tt>xFunc</tt> to access the value of an argument. */
-    protected synchronized final int value_bytes(int arg)
-        throws SQLException {checkValue(arg); return db.value_bytes(this,arg);}
+    protected final int value_bytes(int arg) throws SQLException {
+        switch (type(arg)) {
+            case Codes.SQLITE_TEXT:
+            case Codes.SQLITE_BLOB: return (int)block.getLong(24 + arg * 16);
+            case Codes.SQLITE_NULL: return 0;
+        }
+        return db.value_bytes(this, arg);
+    }
 
     /** Called by <tt>xFunc</tt> to access the value of an argument. */
     protected synchronized final String value_text(int arg)
@@ -138,29 +227,151 @@ public abstract class Function
         throws SQLException {checkValue(arg); return db.value_blob(this,arg); }
 
     /** Called by <tt>xFunc</tt> to access the value of an argument. */
-    protected synchronized final double value_double(int arg)
-        throws SQLException {checkValue(arg); return db.value_double(this,arg);}
+    protected final double value_double(int arg) throws SQLException {
+        switch (type(arg)) {
+            case Codes.SQLITE_INTEGER: return block.getLong(24 + arg * 16);
+            case Codes.SQLITE_FLOAT:
+                return Double.longBitsToDouble(block.getLong(24 + arg * 16));
+            case Codes.SQLITE_NULL: return 0;
+        }
+        return db.value_double(this, arg);
+    }
 
     /** Called by <tt>xFunc</tt> to access the value of an argument. */
-    protected synchronized final int value_int(int arg)
-        throws SQLException {checkValue(arg); return db.value_int(this, arg); }
+    protected final int value_int(int arg)
+        throws SQLException { return (int)value_long(arg); }
 
     /** Called by <tt>xFunc</tt> to access the value of an argument. */
-    protected synchronized final long value_long(int arg)
-        throws SQLException { checkValue(arg); return db.value_long(this,arg); }
+    protected final long value_long(int arg) throws SQLException {
+        switch (type(arg)) {
+            case Codes.SQLITE_INTEGER: return block.getLong(24 + arg * 16);
+            case Codes.SQLITE_FLOAT:
+                return (long)Double.longBitsToDouble(
+                    block.getLong(24 + arg * 16));
+            case Codes.SQLITE_NULL: return 0;
+        }
+        return db.value_long(this, arg);
+    }
 
     /** Called by <tt>xFunc</tt> to access the value of an argument. */
-    protected synchronized final int value_type(int arg)
-        throws SQLException {checkValue(arg); return db.value_type(this,arg); }
+    protected final int value_type(int arg) throws SQLException {
+        final int type = type(arg);
+        return type != 0 ? type : db.value_type(this, arg);
+    }
+
+
+    /** Returns the size of the state following the arguments in the
+     *  block. */
+    int stateBytes() { return 0; }
 
+    /** Returns the type of an argument found in the block, 0 if it is not
+     *  there and must be read from SQLite. */
+    private int type(int arg) throws SQLException {
+        checkValue(arg);
+        return arg < slots ? (int)block.getLong(16 + arg * 16) : 0;
+    }
+
+    // called by native code, after writing the arguments to the block
+
+    final synchronized void xCall(long context, long value, int args,
+                                  ByteBuffer block) throws SQLException {
+        enter(context, value, args, block);
+        try {
+            if (memo == null) xFunc(); else memoized();
+        } finally {
+            exit();
+        }
+    }
+
+    final void enter(long context, long value, int args, ByteBuffer block) {
+        this.context = context;
+        this.value = value;
+        this.args = args;
+        if (block != this.block) {
+            this.block = block;
+            slots = (block.capacity() - stateBytes()) / 16 - 1;
+        }
+    }
 
-    private void checkContext() throws SQLException {
-        if (conn == null || conn.db() == null || context == 0)
+    final void exit() {
+        context = value = 0;
+        args = 0;
+    }
+
+    /** Calls <tt>xFunc()</tt> unless the result for the arguments is
+     *  remembered. */
+    private void memoized() throws SQLException {
+        final Object[] values = new Object[args];
+        for (int i=0; i < values.length; i++) {
+            switch (value_type(i)) {
+                case Codes.SQLITE_INTEGER:
+                    values[i] = Long.valueOf(value_long(i)); break;
+                case Codes.SQLITE_FLOAT:
+                    values[i] = Double.valueOf(value_double(i)); break;
+                case Codes.SQLITE_TEXT:
+                    values[i] = value_text(i); break;
+                case Codes.SQLITE_BLOB:
+                    values[i] = value_blob(i); break;
+            }
+        }
+        final Args key = new Args(values);
+
+        Object res;
+        synchronized (memo) { res = memo.get(key); }
+        if (res == null) {
+            memoResult = null;
+            xFunc();
+            res = memoResult;
+            memoResult = null;
+            // not remembered: no result set, or an error
+            if (res != null) synchronized (memo) { memo.put(key, res); }
+            return;
+        }
+
+        if (res == NULL) result();
+        else if (res instanceof Long) result(((Long)res).longValue());
+        else if (res instanceof Double) result(((Double)res).doubleValue());
+        else if (res instanceof String) result((String)res);
+        else result((byte[])res);
+    }
+
+    private static final Object NULL = new Object();
+
+    private static Map<Args, Object> lru(final int size) {
+        return new LinkedHashMap<Args, Object>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Args, Object> e) {
+                return size() > size;
+            }
+        };
+    }
+
+    /** Arguments of a call, compared by value. */
+    private static final class Args {
+        private final Object[] values;
+        private final int hash;
+
+        Args(Object[] values) {
+            this.values = values;
+            hash = Arrays.deepHashCode(values);
+        }
+        public int hashCode() { return hash; }
+        public boolean equals(Object o) {
+            return o instanceof Args
+                && Arrays.deepEquals(values, ((Args)o).values);
+        }
+    }
+
+
+    // context and value are only set while SQLite calls the function, on
+    // an open connection, which may not be the one registered last
+
+    void checkContext() throws SQLException {
+        if (context == 0)
             throw new SQLException("no context, not allowed to read value");
     }
 
     private void checkValue(int arg) throws SQLException {
-        if (conn == null || conn.db() == null || value == 0)
+        if (value == 0)
             throw new SQLException("not in value access state");
         if (arg >= args)
             throw new SQLException("arg "+arg+" out bounds [0,"+args+")");
@@ -175,8 +386,373 @@ public abstract class Function
         protected abstract void xStep() throws SQLException;
         protected abstract void xFinal() throws SQLException;
 
+        // called by native code
+
+        final synchronized void xCallStep(long context, long value,
+                                          int args, ByteBuffer block)
+                throws SQLException {
+            enter(context, value, args, block);
+            try { xStep(); } finally { exit(); }
+        }
+
+        final synchronized void xCallFinal(long context, long value,
+                                           int args, ByteBuffer block)
+                throws SQLException {
+            enter(context, 0, 0, block);
+            try { xFinal(); } finally { exit(); }
+        }
+
         public Object clone() throws CloneNotSupportedException {
             return super.clone();
         }
     }
+
+
+    /** An aggregate function which can also be used as a window function,
+     *  with an OVER clause. As the window frame slides, SQLite calls
+     *  <tt>xStep()</tt> for the rows entering it, <tt>xInverse()</tt> for
+     *  the rows leaving it and <tt>xValue()</tt> for the current result,
+     *  so a frame costs the rows it gained and lost. */
+    public static abstract class Window extends Aggregate
+    {
+        /** Removes the row given as arguments from the frame. */
+        protected abstract void xInverse() throws SQLException;
+        /** Returns the result for the current frame with
+         *  <tt>result(*)</tt>, keeping the state. */
+        protected abstract void xValue() throws SQLException;
+
+        // called by native code
+
+        final synchronized void xCallInverse(long context, long value,
+                                             int args, ByteBuffer block)
+                throws SQLException {
+            enter(context, value, args, block);
+            try { xInverse(); } finally { exit(); }
+        }
+
+        final synchronized void xCallValue(long context, long value,
+                                           int args, ByteBuffer block)
+                throws SQLException {
+            enter(context, 0, 0, block);
+            try { xValue(); } finally { exit(); }
+        }
+    }
+
+
+    /** An aggregate function keeping the state of each group in the
+     *  memory SQLite allocates for it, rather than in a Java object.
+     *
+     * <p>The state is a fixed number of slots, each holding a long or a
+     * double, which read as 0 in a new group. <tt>xStep()</tt> and
+     * <tt>xFinal()</tt> read and write the slots of the group being
+     * computed. A group can also hold one object, for state which does
+     * not fit in slots; it is released after <tt>xFinal()</tt>.</p>
+     *
+     * Eg.
+     *
+     * <pre>
+     *      Function.create(conn, "mysum", new Function.Accumulator(1) {
+     *          protected void xStep() throws SQLException {
+     *              state(0, state_long(0) + value_long(0));
+     *          }
+     *          protected void xFinal() throws SQLException {
+     *              result(state_long(0));
+     *          }
+     *      });
+     *  </pre>
+     */
+    public static abstract class Accumulator extends Function
+    {
+        /** Maximum number of slots. */
+        public static final int MAX_SLOTS = 64;
+
+        final int states;
+
+        // objects of groups, by index - 1 as stored in the state
+        private Object[] objects = new Object[16];
+        private int[] free = new int[16];
+        private int nfree = 0, nobjects = 0;
+
+        /** Keeps <tt>slots</tt> numbers per group. */
+        protected Accumulator(int slots) {
+            if (slots < 0 || slots > MAX_SLOTS)
+                throw new IllegalArgumentException("invalid slots: "+slots);
+            states = slots;
+        }
+
+        protected final void xFunc() {}
+        protected abstract void xStep() throws SQLException;
+        protected abstract void xFinal() throws SQLException;
+
+        /** Returns a slot of the group as a long. */
+        protected final long state_long(int slot) throws SQLException {
+            return block.getLong(state(slot));
+        }
+
+        /** Returns a slot of the group as a double. */
+        protected final double state_double(int slot) throws SQLException {
+            return Double.longBitsToDouble(block.getLong(state(slot)));
+        }
+
+        /** Sets a slot of the group. */
+        protected final void state(int slot, long value)
+                throws SQLException {
+            block.putLong(state(slot), value);
+        }
+
+        /** Sets a slot of the group. */
+        protected final void state(int slot, double value)
+                throws SQLException {
+            block.putLong(state(slot), Double.doubleToRawLongBits(value));
+        }
+
+        /** Returns the object of the group, null if none was set. */
+        protected final Object state_object() throws SQLException {
+            checkContext();
+            final int i = (int)block.getLong(16 + slots * 16);
+            return i == 0 ? null : objects[i - 1];
+        }
+
+        /** Sets the object of the group. */
+        protected final void state(Object o) throws SQLException {
+            checkContext();
+            int i = (int)block.getLong(16 + slots * 16);
+            if (i == 0) {
+                if (o == null) return;
+                if (nfree > 0) i = free[--nfree];
+                else {
+                    if (nobjects == objects.length)
+                        objects = Arrays.copyOf(objects, nobjects * 2);
+                    i = ++nobjects;
+                }
+                block.putLong(16 + slots * 16, i);
+            }
+            objects[i - 1] = o;
+        }
+
+        int stateBytes() { return (1 + states) * 8; }
+
+        private int state(int slot) throws SQLException {
+            checkContext();
+            if (slot < 0 || slot >= states)
+                throw new SQLException("slot "+slot+" out bounds [0,"
+                    +states+")");
+            return 16 + slots * 16 + 8 + slot * 8;
+        }
+
+        // called by native code, with the state of the group in the block
+
+        final synchronized void xCallStep(long context, long value,
+                                          int args, ByteBuffer block)
+                throws SQLException {
+            enter(context, value, args, block);
+            try { xStep(); } finally { exit(); }
+        }
+
+        final synchronized void xCallFinal(long context, long value,
+                                           int args, ByteBuffer block)
+                throws SQLException {
+            enter(context, 0, 0, block);
+            try { xFinal(); } finally { exit(); release(); }
+        }
+
+        /** Frees the object of the group in the block. */
+        final void release() {
+            final int i = (int)block.getLong(16 + slots * 16);
+            if (i != 0) {
+                objects[i - 1] = null;
+                if (nfree == free.length)
+                    free = Arrays.copyOf(free, nfree * 2);
+                free[nfree++] = i;
+            }
+        }
+    }
+
+
+    /** An accumulator which can also be used as a window function, with
+     *  an OVER clause. See <tt>Function.Window</tt>. */
+    public static abstract class WindowAccumulator extends Accumulator
+    {
+        /** Keeps <tt>slots</tt> numbers per group or frame. */
+        protected WindowAccumulator(int slots) { super(slots); }
+
+        /** Removes the row given as arguments from the frame. */
+        protected abstract void xInverse() throws SQLException;
+        /** Returns the result for the current frame with
+         *  <tt>result(*)</tt>, keeping the state. */
+        protected abstract void xValue() throws SQLException;
+
+        // called by native code, with the state of the frame in the block
+
+        final synchronized void xCallInverse(long context, long value,
+                                             int args, ByteBuffer block)
+                throws SQLException {
+            enter(context, value, args, block);
+            try { xInverse(); } finally { exit(); }
+        }
+
+        final synchronized void xCallValue(long context, long value,
+                                           int args, ByteBuffer block)
+                throws SQLException {
+            enter(context, 0, 0, block);
+            try { xValue(); } finally { exit(); }
+        }
+    }
+
+
+    /** A batch of rows of numbers, stored by column in primitive arrays
+     *  suited to vectorized loops.
+     *
+     * <p>The cells of column <tt>c</tt> start at <tt>offset(c)</tt> in
+     * each array: <tt>types()</tt> holds their SQLITE_* types,
+     * <tt>longs()</tt> and <tt>doubles()</tt> their values converted by
+     * SQLite to integers and to doubles.</p>
+     */
+    public static final class Batch
+    {
+        final int columns;
+        final int capacity;
+        final byte[] types;
+        final long[] longs;
+        final double[] doubles;
+        int size = 0;
+
+        Batch(int columns, int capacity) {
+            this.columns = columns;
+            this.capacity = capacity;
+            types = new byte[columns * capacity];
+            longs = new long[columns * capacity];
+            doubles = new double[columns * capacity];
+        }
+
+        /** Returns the number of rows in the batch. */
+        public int size() { return size; }
+        /** Returns the number of columns. */
+        public int columns() { return columns; }
+        /** Returns the offset of the first cell of a column. */
+        public int offset(int column) { return column * capacity; }
+
+        /** Returns the types of the cells. */
+        public byte[] types() { return types; }
+        /** Returns the values of the cells as integers. */
+        public long[] longs() { return longs; }
+        /** Returns the values of the cells as doubles. */
+        public double[] doubles() { return doubles; }
+
+        /** Returns the type of a cell. */
+        public int getType(int column, int row) {
+            return types[column * capacity + row]; }
+        /** Returns the value of a cell as an integer. */
+        public long getLong(int column, int row) {
+            return longs[column * capacity + row]; }
+        /** Returns the value of a cell as a double. */
+        public double getDouble(int column, int row) {
+            return doubles[column * capacity + row]; }
+    }
+
+    /** A function computed a batch of rows at a time. */
+    public interface Vector
+    {
+        /** Sets <tt>results[i]</tt> for each row <tt>i</tt> of
+         *  <tt>rows</tt>. */
+        void apply(Batch rows, double[] results) throws SQLException;
+    }
+
+    /** Runs <tt>query</tt> and returns the results of <tt>fn</tt> for
+     *  each of its rows, in order. The rows are stepped and copied in
+     *  batches of <tt>batchSize</tt> by a single native call each. */
+    public static double[] mapColumn(Connection conn, String query,
+                                     Vector fn, int batchSize)
+            throws SQLException {
+        if (conn == null || !(conn instanceof Conn))
+            throw new SQLException("connection must be to an SQLite db");
+        if (conn.isClosed())
+            throw new SQLException("connection closed");
+        if (batchSize < 1)
+            throw new SQLException("batch size must be > 0");
+
+        final DB db = ((Conn)conn).db();
+        synchronized (db) {
+            long pointer = 0;
+            try {
+                pointer = db.prepare(query);
+                final Batch rows = new Batch(
+                    db.column_count(pointer), batchSize);
+                final double[] out = new double[batchSize];
+                double[] results = new double[batchSize];
+                int n = 0;
+                do {
+                    rows.size = db.step_batch(pointer, rows.types,
+                        rows.longs, rows.doubles, batchSize);
+                    if (rows.size == 0) break;
+                    fn.apply(rows, out);
+                    if (n + rows.size > results.length)
+                        results = Arrays.copyOf(results,
+                            Math.max(n + rows.size, results.length * 2));
+                    System.arraycopy(out, 0, results, n, rows.size);
+                    n += rows.size;
+                } while (rows.size == batchSize);
+                return Arrays.copyOf(results, n);
+            } finally {
+                if (pointer != 0) db.finalize(pointer);
+            }
+        }
+    }
+
+    /** Runs <tt>query</tt> as above, in batches of 1024 rows. */
+    public static double[] mapColumn(Connection conn, String query,
+                                     Vector fn) throws SQLException {
+        return mapColumn(conn, query, fn, 1024);
+    }
+
+
+    /** An accumulator receiving its arguments a batch of rows at a time.
+     *
+     * <p>SQLite steps an aggregate one row at a time. The native code
+     * keeps the arguments of the rows of a group in a buffer and calls
+     * <tt>xStepBatch()</tt> once it is full, when rows of another group
+     * arrive and before <tt>xFinal()</tt>. Arguments are read as numbers,
+     * so the function must be registered with a fixed number of
+     * arguments.</p>
+     */
+    public static abstract class BatchAccumulator extends Accumulator
+    {
+        final int capacity;
+
+        /** Keeps <tt>slots</tt> numbers per group and passes the arguments
+         *  in batches of <tt>batchSize</tt> rows. */
+        protected BatchAccumulator(int slots, int batchSize) {
+            super(slots);
+            if (batchSize < 1)
+                throw new IllegalArgumentException("batch size must be > 0");
+            capacity = batchSize;
+        }
+
+        /** Adds a batch of argument rows, one column per argument, to the
+         *  state of the group. */
+        protected abstract void xStepBatch(Batch rows) throws SQLException;
+
+        protected final void xStep() {}
+
+        // called by native code, with the batch of the registration
+        // filled and the state of its group in the block
+
+        final synchronized void xCallBatch(long context, long value,
+                                           int rows, ByteBuffer block,
+                                           Batch batch) throws SQLException {
+            enter(context, 0, 0, block);
+            batch.size = rows;
+            try { xStepBatch(batch); } finally { exit(); }
+        }
+
+        // called by native code instead of xCallFinal() when the last
+        // batch of the group failed
+
+        final synchronized void xCallRelease(long context, long value,
+                                             int args, ByteBuffer block) {
+            enter(context, 0, 0, block);
+            exit();
+            release();
+        }
+    }
 }
@@ -61,19 +61,45 @@ public class JDBC implements Driver
             "Store Dates/Times as julian day numbers.";
         julianDay.required = false;
 
-        return new DriverPropertyInfo[] { sharedCache };
+        DriverPropertyInfo readOnly = new DriverPropertyInfo(
+            "read_only", "false");
+        readOnly.choices = new String[] { "true", "false" };
+        readOnly.description =
+            "Open the database with SQLITE_OPEN_READONLY.";
+        readOnly.required = false;
+
+        DriverPropertyInfo mmapSize = new DriverPropertyInfo(
+            "mmap_size", null);
+        mmapSize.description =
+            "Maximum number of bytes of the database accessed through memory-mapped I/O.";
+        mmapSize.required = false;
+
+        DriverPropertyInfo ioStats = new DriverPropertyInfo(
+            "io_stats", "false");
+        ioStats.choices = new String[] { "true", "false" };
+        ioStats.description =
+            "Count pages served from the memory mapping and read() calls.";
+        ioStats.required = false;
+
+        DriverPropertyInfo resultCache = new DriverPropertyInfo(
+            "result_cache", "0");
+        resultCache.description =
+            "Bytes of heap used to cache the results of prepared queries.";
+        resultCache.required = false;
+
+        return new DriverPropertyInfo[] {
+            sharedCache, julianDay, readOnly, mmapSize, ioStats, resultCache };
     }
 
     public Connection connect(String url, Properties info) throws SQLException {
         if (!acceptsURL(url)) return null;
         url = url.trim();
 
-        // if no file name is given use a memory database
+        // if no file name is given use a memory database, the file name
+        // may also be an URI such as "file:test.db?mode=ro&immutable=1"
         String file = PREFIX.equalsIgnoreCase(url) ?
             ":memory:" : url.substring(PREFIX.length());
 
-        boolean sharedCache = Boolean.parseBoolean(info.getProperty("shared_cache"));
-        boolean julianDayMode = Boolean.parseBoolean(info.getProperty("julian_day"));
-        return new Conn(url, file, sharedCache, julianDayMode);
+        return new Conn(url, file, info == null ? new Properties() : info);
     }
 }
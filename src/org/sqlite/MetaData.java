@@ -17,8 +17,10 @@
 package org.sqlite;
 
 import java.sql.*;
-import java.util.Map;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 
 class MetaData implements DatabaseMetaData
 {
@@ -30,7 +32,6 @@ class MetaData implements DatabaseMetaData
         getCatalogs = null,
         getSchemas = null,
         getUDTs = null,
-        getColumnsTblName = null,
         getSuperTypes = null,
         getSuperTables = null,
         getTablePrivileges = null,
@@ -46,6 +47,10 @@ class MetaData implements DatabaseMetaData
     /** Used by PrepStmt to save generating a new statement every call. */
     private PreparedStatement getGeneratedKeys = null;
 
+    /** Schema model, valid for the schema_version it was read with. */
+    private Schema schema = null;
+    private static final String[] NO_TABLES = new String[0];
+
     MetaData(Conn conn) { this.conn = conn; }
 
     void checkOpen() throws SQLException {
@@ -61,7 +66,6 @@ class MetaData implements DatabaseMetaData
             if (getCatalogs != null) getCatalogs.close();
             if (getSchemas != null) getSchemas.close();
             if (getUDTs != null) getUDTs.close();
-            if (getColumnsTblName != null) getColumnsTblName.close();
             if (getSuperTypes != null) getSuperTypes.close();
             if (getSuperTables != null) getSuperTables.close();
             if (getTablePrivileges != null) getTablePrivileges.close();
@@ -81,7 +85,6 @@ class MetaData implements DatabaseMetaData
             getCatalogs = null;
             getSchemas = null;
             getUDTs = null;
-            getColumnsTblName = null;
             getSuperTypes = null;
             getSuperTables = null;
             getTablePrivileges = null;
@@ -96,6 +99,7 @@ class MetaData implements DatabaseMetaData
             getPseudoColumns = null;
         } finally {
             conn = null;
+            schema = null;
         }
     }
 
@@ -341,60 +345,28 @@ class MetaData implements DatabaseMetaData
 
     public ResultSet getBestRowIdentifier(String catalog, String schema, String table,
             int scope, boolean nullable) throws SQLException {
-        final StringBuffer sql = new StringBuffer();
-        Statement stat = conn.createStatement();
-
-        sql.append("select ").
-            append(scope).append(" as SCOPE, ").
-            append("cn as COLUMN_NAME, ").
-            append("ct as DATA_TYPE, ").
-            append("tn as TYPE_NAME, ").
-            append("10 as COLUMN_SIZE, "). // FIXME
-            append("0 as BUFFER_LENGTH, ").
-            append("0 as DECIMAL_DIGITS, ").
-            append("pc as PSEUDO_COLUMN from (");
+        final CachedResult res = new CachedResult(NO_TABLES, 8);
 
         if (null != table) {
-            boolean exists = false;
             int i = 0;
-            String colName = null;
-            String colType = null;
-            ResultSet rs = null;
-            try {
-                rs = stat.executeQuery("pragma table_info("+escape(table)+");");
-                exists = true;
-                for (i=0; rs.next(); i++) {
-                    if (!rs.getBoolean(6) || (!nullable && "0".equals(rs.getString(4)))) { i--; continue; }
-                    if (i > 1) { break; }
-                    colName = rs.getString(2);
-                    colType = getSQLiteType(rs.getString(3));
-                }
-            } catch (SQLException e) {
-            } finally {
-                if (rs != null) {
-                    rs.close();
-                }
+            Schema.Column col = null;
+            for (Schema.Column c : table(table).columns) {
+                if (c.pk == 0 || (!nullable && !c.notNull)) continue;
+                if (++i > 1) break;
+                col = c;
             }
-            if (!exists) {
-                sql.append("select null as cn, null as ct, null as tn, null as pc) limit 0;");
-            } else if (i != 1) {
-                sql.append("select ").
-                    append("'ROWID' as cn, ").
-                    append(Types.INTEGER).append(" as ct, ").
-                    append("'INTEGER' as tn, ").
-                    append(bestRowPseudo).append(" as pc) order by SCOPE;");
+            if (i != 1) {
+                res.add(scope, "ROWID", Types.INTEGER, "INTEGER", 10, 0, 0,
+                    bestRowPseudo);
             } else {
-                sql.append("select ").
-                    append(escape(colName)).append(" as cn, ").
-                    append(getJavaType(colType)).append(" as ct, ").
-                    append("'").append(colType).append("' as tn, ").
-                    append(bestRowNotPseudo).append(" as pc) order by SCOPE;");
+                final String colType = getSQLiteType(col.type);
+                res.add(scope, col.name, getJavaType(colType), colType, 10, 0,
+                    0, bestRowNotPseudo);
             }
-        } else {
-            sql.append("select null as cn, null as ct, null as tn, null as pc) limit 0;");
         }
 
-        return stat.executeQuery(sql.toString());
+        return result(res, "SCOPE", "COLUMN_NAME", "DATA_TYPE", "TYPE_NAME",
+            "COLUMN_SIZE", "BUFFER_LENGTH", "DECIMAL_DIGITS", "PSEUDO_COLUMN");
     }
 
     public ResultSet getColumnPrivileges(String c, String s, String t,
@@ -416,84 +388,38 @@ class MetaData implements DatabaseMetaData
 
     public ResultSet getColumns(String c, String s, String tbl, String colPat)
             throws SQLException {
-        Statement stat = conn.createStatement();
-        ResultSet rs;
-        final StringBuilder sql = new StringBuilder();
-
         checkOpen();
-
-        if (getColumnsTblName == null)
-            getColumnsTblName = conn.prepareStatement(
-                "select tbl_name from sqlite_master where tbl_name like ?;");
+        final CachedResult res = new CachedResult(NO_TABLES, 22);
 
         // determine exact table name
-        getColumnsTblName.setString(1, tbl);
-        rs = getColumnsTblName.executeQuery();
-        if (!rs.next())
-            return rs;
-        tbl = rs.getString(1);
-        rs.close();
-
-        sql.append("select ").
-            append("null as TABLE_CAT, ").
-            append("null as TABLE_SCHEM, ").
-            append(escape(tbl)).append(" as TABLE_NAME, ").
-            append("cn as COLUMN_NAME, ").
-            append("ct as DATA_TYPE, ").
-            append("tn as TYPE_NAME, ").
-            append("2000000000 as COLUMN_SIZE, "). // FIXME
-            append("2000000000 as BUFFER_LENGTH, ").
-            append("10   as DECIMAL_DIGITS, ").
-            append("10   as NUM_PREC_RADIX, ").
-            append("colnullable as NULLABLE, ").
-            append("null as REMARKS, ").
-            append("null as COLUMN_DEF, ").
-            append("0    as SQL_DATA_TYPE, ").
-            append("0    as SQL_DATETIME_SUB, ").
-            append("2000000000 as CHAR_OCTET_LENGTH, ").
-            append("ordpos as ORDINAL_POSITION, ").
-            append("(case colnullable when 0 then 'N' when 1 then 'Y' else '' end)").
-            append("    as IS_NULLABLE, ").
-            append("null as SCOPE_CATLOG, ").
-            append("null as SCOPE_SCHEMA, ").
-            append("null as SCOPE_TABLE, ").
-            append("null as SOURCE_DATA_TYPE from (");
-
-        // the command "pragma table_info('tablename')" does not embed
-        // like a normal select statement so we must extract the information
-        // and then build a resultset from unioned select statements
-        rs = stat.executeQuery("pragma table_info ("+escape(tbl)+");");
-
-        boolean colFound = false;
-        for (int i=0; rs.next(); i++) {
-            String colName = rs.getString(2);
-            String colType = rs.getString(3);
-            String colNotNull = rs.getString(4);
-
-            int colNullable = 2;
-            if (colNotNull != null) colNullable = colNotNull.equals("0") ? 1:0;
-            if (colFound) sql.append(" union all ");
-            colFound = true;
-
-            colType = getSQLiteType(colType);
-            int colJavaType = getJavaType(colType);
-
-            sql.append("select ").
-                append(i).append(" as ordpos, ").
-                append(colNullable).append(" as colnullable, '").
-                append(colJavaType).append("' as ct, ").
-                append(escape(colName)).append(" as cn, ").
-                append(escape(colType)).append(" as tn");
-
-            if (colPat != null)
-                sql.append(" where upper(cn) like upper(").append(escape(colPat)).append(")");
+        String name = null;
+        for (Schema.Entry e : schema().entries) {
+            if (tbl != null && Schema.like(tbl, e.tableName)) {
+                name = e.tableName;
+                break;
+            }
         }
-        sql.append(colFound ? ") order by TABLE_SCHEM, TABLE_NAME, ORDINAL_POSITION;" :
-            "select null as ordpos, null as colnullable, "
-            + "null as cn, null as tn) limit 0;");
-        rs.close();
 
-        return stat.executeQuery(sql.toString());
+        final Schema.Column[] cols = name == null ? new Schema.Column[0]
+            : table(name).columns;
+        for (int i=0; i < cols.length; i++) {
+            final Schema.Column col = cols[i];
+            if (colPat != null && !Schema.like(colPat, col.name)) continue;
+            final String colType = getSQLiteType(col.type);
+            final int colNullable = col.notNull ? 0 : 1;
+            res.add(null, null, name, col.name,
+                String.valueOf(getJavaType(colType)), colType,
+                2000000000, 2000000000, 10, 10, colNullable, null, null, 0,
+                0, 2000000000, i, col.notNull ? "N" : "Y", null, null, null,
+                null);
+        }
+
+        return result(res, "TABLE_CAT", "TABLE_SCHEM", "TABLE_NAME",
+            "COLUMN_NAME", "DATA_TYPE", "TYPE_NAME", "COLUMN_SIZE",
+            "BUFFER_LENGTH", "DECIMAL_DIGITS", "NUM_PREC_RADIX", "NULLABLE",
+            "REMARKS", "COLUMN_DEF", "SQL_DATA_TYPE", "SQL_DATETIME_SUB",
+            "CHAR_OCTET_LENGTH", "ORDINAL_POSITION", "IS_NULLABLE",
+            "SCOPE_CATLOG", "SCOPE_SCHEMA", "SCOPE_TABLE", "SOURCE_DATA_TYPE");
     }
 
     private String getSQLiteType(String colType) {
@@ -519,65 +445,30 @@ class MetaData implements DatabaseMetaData
         return getForeignKeys(primaryTable, foreignTable, true);
     }
 
-    private ResultSet getForeignKeys(String primaryTable, String foreignTable, boolean cross) throws SQLException {
-        Statement stat = conn.createStatement();
-
-        final StringBuilder sql = new StringBuilder();
-
-        sql.append("select ").
-            append("null as PKTABLE_CAT, ").
-            append("null as PKTABLE_SCHEM, ").
-            append("pt as PKTABLE_NAME, ").
-            append("pc as PKCOLUMN_NAME, ").
-            append("null as FKTABLE_CAT, ").
-            append("null as FKTABLE_SCHEM, ").
-            append(null == foreignTable ? "null" : escape(foreignTable)).append(" as FKTABLE_NAME, ").
-            append("fc as FKCOLUMN_NAME, ").
-            append("seq as KEY_SEQ, ").
-            append(importedKeyNoAction).append(" as UPDATE_RULE, ").
-            append(importedKeyNoAction).append(" as DELETE_RULE, ").
-            append("null as FK_NAME, ").
-            append("null as PK_NAME, ").
-            append(importedKeyNotDeferrable).append(" as DEFERRABILITY ").
-            append("from (");
-
-        int i = 0;
+    private ResultSet getForeignKeys(String primaryTable, String foreignTable, final boolean cross) throws SQLException {
+        final List<Schema.ForeignKey> fks = new ArrayList<Schema.ForeignKey>();
         if (null != foreignTable) {
-            ResultSet rs = null;
-            try {
-                rs = stat.executeQuery("pragma foreign_key_list("+escape(foreignTable)+");");
-                for (i=0; rs.next(); i++) {
-                    final String pt = rs.getString(3);
-                    if (null != primaryTable && !primaryTable.equalsIgnoreCase(pt)) { i--; continue; }
-                    if (i > 0) {
-                        sql.append(" union all ");
-                    }
-                    sql.append("select ").
-                        append(escape(pt)).append(" as pt, ").
-                        append(escape(rs.getString(5))).append(" as pc, ").
-                        append(escape(rs.getString(4))).append(" as fc, ").
-                        append(rs.getShort(2) + 1).append(" as seq");
-                }
-            } catch(SQLException e) {
-                i = 0;
-            } finally {
-                if (rs != null) {
-                    rs.close();
-                }
-            }
+            for (Schema.ForeignKey fk : table(foreignTable).foreignKeys)
+                if (null == primaryTable || primaryTable.equalsIgnoreCase(fk.table))
+                    fks.add(fk);
         }
-
-        if (i == 0) {
-            sql.append("select null as pt, null as pc, null as fc, null as seq) limit 0;");
-        } else {
-            if (cross) {
-                sql.append(") order by FKTABLE_CAT, FKTABLE_SCHEM, FKTABLE_NAME, KEY_SEQ;");
-            } else {
-                sql.append(") order by PKTABLE_CAT, PKTABLE_SCHEM, PKTABLE_NAME, KEY_SEQ;");
+        Collections.sort(fks, new Comparator<Schema.ForeignKey>() {
+            public int compare(Schema.ForeignKey a, Schema.ForeignKey b) {
+                final int c = cross ? 0 : a.table.compareTo(b.table);
+                return c != 0 ? c : a.seq - b.seq;
             }
-        }
+        });
 
-        return stat.executeQuery(sql.toString());
+        final CachedResult res = new CachedResult(NO_TABLES, 14);
+        for (Schema.ForeignKey fk : fks)
+            res.add(null, null, fk.table, fk.to, null, null, foreignTable,
+                fk.from, fk.seq + 1, importedKeyNoAction, importedKeyNoAction,
+                null, null, importedKeyNotDeferrable);
+
+        return result(res, "PKTABLE_CAT", "PKTABLE_SCHEM", "PKTABLE_NAME",
+            "PKCOLUMN_NAME", "FKTABLE_CAT", "FKTABLE_SCHEM", "FKTABLE_NAME",
+            "FKCOLUMN_NAME", "KEY_SEQ", "UPDATE_RULE", "DELETE_RULE",
+            "FK_NAME", "PK_NAME", "DEFERRABILITY");
     }
 
     public ResultSet getSchemas() throws SQLException {
@@ -598,83 +489,24 @@ class MetaData implements DatabaseMetaData
 
     public ResultSet getPrimaryKeys(String c, String s, String table)
             throws SQLException {
-        final StringBuffer sql = new StringBuffer();
-        Statement stat = conn.createStatement();
-
-        sql.append("select ").
-            append("null as TABLE_CAT, ").
-            append("null as TABLE_SCHEM, ").
-            append(null == table ? "null" : escape(table)).append(" as TABLE_NAME, ").
-            append("cn as COLUMN_NAME, ").
-            append("seqno as KEY_SEQ, ").
-            append("null as PK_NAME from (");
-
-        int i = 0;
-        String colName = null;
-        ResultSet rs = null;
+        final List<Schema.Column> pk = new ArrayList<Schema.Column>();
         if (null != table) {
-            try {
-                rs = stat.executeQuery("pragma table_info("+escape(table)+");");
-                for (i=0; rs.next(); i++) {
-                    if (!rs.getBoolean(6)) { i--; continue; }
-                    if (i > 1) { break; }
-                    colName = rs.getString(2);
-                }
-            } catch (SQLException e) {
-                i = 0;
-            } finally {
-                if (rs != null) {
-                    rs.close();
-                }
-            }
+            for (Schema.Column col : table(table).columns)
+                if (col.pk != 0) pk.add(col);
         }
-        if (i == 0) {
-            sql.append("select null as cn, null as seqno) limit 0;");
-        } else if (i == 1) {
-            sql.append("select ").
-                append(escape(colName)).append(" as cn, ").
-                append(0).append(" as seqno) order by COLUMN_NAME;");
-        } else {
-            String indexName = null;
-            try {
-                rs = stat.executeQuery("pragma index_list("+escape(table)+");");
-                while (rs.next()) {
-                    if (!rs.getBoolean(3)) { continue; }
-                    final String name = rs.getString(2);
-                    if (name.startsWith("sqlite_autoindex_")) { indexName = name; break; }
-                }
-            } finally {
-                if (rs != null) {
-                    rs.close();
-                }
+        Collections.sort(pk, new Comparator<Schema.Column>() {
+            public int compare(Schema.Column a, Schema.Column b) {
+                return a.name.compareTo(b.name);
             }
-            if (null != indexName) {
-                try {
-                    rs = stat.executeQuery("pragma index_info("+escape(indexName)+");");
-                    for (i=0; rs.next(); i++) {
-                        if (i > 0) {
-                            sql.append(" union all ");
-                        }
-                        sql.append("select ").
-                            append(escape(rs.getString(3))).append(" as cn, ").
-                            append(rs.getInt(1)).append(" as seqno");
-                    }
-                    if (i == 0) {
-                        sql.append("select null as cn, null as seqno) limit 0;");
-                    } else {
-                        sql.append(") order by COLUMN_NAME;");
-                    }
-                } finally {
-                    if (rs != null) {
-                        rs.close();
-                    }
-                }
-            } else {
-                sql.append("select null as cn, null as seqno) limit 0;");
-            }
-        }
+        });
 
-        return stat.executeQuery(sql.toString());
+        final CachedResult res = new CachedResult(NO_TABLES, 6);
+        for (Schema.Column col : pk)
+            res.add(null, null, table, col.name, pk.size() == 1 ? 0 : col.pk - 1,
+                null);
+
+        return result(res, "TABLE_CAT", "TABLE_SCHEM", "TABLE_NAME",
+            "COLUMN_NAME", "KEY_SEQ", "PK_NAME");
     }
 
     public ResultSet getExportedKeys(String c, String s, String t)
@@ -707,75 +539,30 @@ class MetaData implements DatabaseMetaData
     public ResultSet getIndexInfo(String catalog, String schema, String table,
 			   boolean unique, boolean approximate)
             throws SQLException {
-        Statement stat = conn.createStatement();
-        final StringBuffer sql = new StringBuffer();
-        sql.append("select ").
-            append("null as TABLE_CAT, ").
-            append("null as TABLE_SCHEM, ").
-            append(null == table ? null : escape(table)).append(" as TABLE_NAME, ").
-            append("nu as NON_UNIQUE, ").
-            append("null as INDEX_QUALIFIER, ").
-            append("idx as INDEX_NAME, ").
-            append(tableIndexOther).append(" as TYPE, ").
-            append("seqno as ORDINAL_POSITION, ").
-            append("cn as COLUMN_NAME, ").
-            append("'A' as ASC_OR_DESC, ").
-            append("0 as CARDINALITY, ").
-            append("0 as PAGES, ").
-            append("null as FILTER_CONDITION ").
-            append("from (");
-        
-        Map<String,Boolean> indexes = new HashMap<String, Boolean>();
-        ResultSet rs = null;
+        final List<Schema.Index> indexes = new ArrayList<Schema.Index>();
         if (null != table) {
-            rs = null;
-            try {
-                rs = stat.executeQuery("pragma index_list("+escape(table)+");");
-                while (rs.next()) {
-                    final boolean notuniq = !rs.getBoolean(3);
-                    if (unique && notuniq) { continue; }
-                    indexes.put(rs.getString(2), notuniq);
-                }
-            } catch (SQLException e) {
-            } finally {
-                if (rs != null) {
-                    rs.close();
-                }
-            }
+            for (Schema.Index index : table(table).indexes)
+                if (!unique || index.unique) indexes.add(index);
         }
-
-        if (indexes.isEmpty()) {
-            sql.append("select null as nu, null as idx, null as seqno, null as cn) limit 0;");
-        } else {
-            boolean found = false;
-            for (final Map.Entry<String,Boolean> index : indexes.entrySet()) {
-                try {
-                    rs = stat.executeQuery("pragma index_info(" + escape(index.getKey()) + ");");
-                    while (rs.next()) {
-                        if (found) {
-                            sql.append(" union all ");
-                        }
-                        sql.append("select ").
-                                append(index.getValue() ? 1 : 0).append(" as nu, ").
-                                append(escape(index.getKey())).append(" as idx, ").
-                                append(rs.getInt(1)).append(" as seqno, ").
-                                append(escape(rs.getString(3))).append(" as cn");
-                        found = true;
-                    }
-                } finally {
-                    if (rs != null) {
-                        rs.close();
-                    }
-                }
-            }
-            if (found) {
-                sql.append(") order by NON_UNIQUE, TYPE, INDEX_NAME, ORDINAL_POSITION;");
-            } else {
-                sql.append("select null as nu, null as idx, null as seqno, null as cn) limit 0;");
+        Collections.sort(indexes, new Comparator<Schema.Index>() {
+            public int compare(Schema.Index a, Schema.Index b) {
+                if (a.unique != b.unique) return a.unique ? -1 : 1;
+                return a.name.compareTo(b.name);
             }
+        });
+
+        final CachedResult res = new CachedResult(NO_TABLES, 13);
+        for (Schema.Index index : indexes) {
+            for (int i=0; i < index.columns.length; i++)
+                res.add(null, null, table, index.unique ? 0 : 1, null,
+                    index.name, (int)tableIndexOther, index.seqnos[i],
+                    index.columns[i], "A", 0, 0, null);
         }
 
-        return stat.executeQuery(sql.toString());
+        return result(res, "TABLE_CAT", "TABLE_SCHEM", "TABLE_NAME",
+            "NON_UNIQUE", "INDEX_QUALIFIER", "INDEX_NAME", "TYPE",
+            "ORDINAL_POSITION", "COLUMN_NAME", "ASC_OR_DESC", "CARDINALITY",
+            "PAGES", "FILTER_CONDITION");
     }
 
     public ResultSet getProcedureColumns(String c, String s, String p,
@@ -860,35 +647,35 @@ class MetaData implements DatabaseMetaData
 
         t = (t == null || "".equals(t)) ? "%" : t;
 
-        final StringBuilder sql = new StringBuilder().append("select").
-                append(" null as TABLE_CAT,").
-                append(" null as TABLE_SCHEM,").
-                append(" name as TABLE_NAME,").
-                append(" upper(type) as TABLE_TYPE,").
-                append(" null as REMARKS,").
-                append(" null as TYPE_CAT,").
-                append(" null as TYPE_SCHEM,").
-                append(" null as TYPE_NAME,").
-                append(" null as SELF_REFERENCING_COL_NAME,").
-                append(" null as REF_GENERATION").
-                append(" from (select name, type from sqlite_master union all").
-                append("       select name, type from sqlite_temp_master)").
-                append(" where TABLE_NAME like ").append(escape(t));
-
-        if (types != null) {
-            sql.append(" and TABLE_TYPE in (");
-            for (int i=0; i < types.length; i++) {
-                if (i > 0) sql.append(", ");
-                sql.append("'").append(types[i].toUpperCase()).append("'");
+        final List<String[]> rows = new ArrayList<String[]>();
+        for (Schema.Entry e : schema().entries) {
+            final String type = e.type.toUpperCase();
+            if (!Schema.like(t, e.name)) continue;
+            if (types == null) {
+                if (!"TABLE".equals(type) && !"VIEW".equals(type)) continue;
+            } else {
+                boolean found = false;
+                for (int i=0; i < types.length && !found; i++)
+                    found = type.equals(types[i].toUpperCase());
+                if (!found) continue;
             }
-            sql.append(")");
-        } else {
-            sql.append(" and TABLE_TYPE in ('TABLE', 'VIEW')");
+            rows.add(new String[] { e.name, type });
         }
+        Collections.sort(rows, new Comparator<String[]>() {
+            public int compare(String[] a, String[] b) {
+                final int c = a[1].compareTo(b[1]);
+                return c != 0 ? c : a[0].compareTo(b[0]);
+            }
+        });
 
-        sql.append(" order by TABLE_TYPE, TABLE_SCHEM, TABLE_NAME;");
+        final CachedResult res = new CachedResult(NO_TABLES, 10);
+        for (String[] row : rows)
+            res.add(null, null, row[0], row[1], null, null, null, null, null,
+                null);
 
-        return conn.createStatement().executeQuery(sql.toString());
+        return result(res, "TABLE_CAT", "TABLE_SCHEM", "TABLE_NAME",
+            "TABLE_TYPE", "REMARKS", "TYPE_CAT", "TYPE_SCHEM", "TYPE_NAME",
+            "SELF_REFERENCING_COL_NAME", "REF_GENERATION");
     }
 
     public ResultSet getTableTypes() throws SQLException {
@@ -972,20 +759,25 @@ class MetaData implements DatabaseMetaData
         return getGeneratedKeys.executeQuery();
     }
 
-    /** Replace all instances of ' with '' */
-    private String escape(final String val) {
-        // TODO: this function is ugly, pass this work off to SQLite, then we
-        //       don't have to worry about Unicode 4, other characters needing
-        //       escaping, etc.
-        int len = val.length();
-        StringBuffer buf = new StringBuffer(len);
-        buf.append('\'');
-        for (int i=0; i < len; i++) {
-            if (val.charAt(i) == '\'') buf.append('\'');
-            buf.append(val.charAt(i));
-        }
-        buf.append('\'');
-        return buf.toString();
+    /** Returns the schema model, read again if the schema changed. */
+    synchronized Schema schema() throws SQLException {
+        checkOpen();
+        return schema = Schema.load(conn, schema);
+    }
+
+    private Schema.Table table(String name) throws SQLException {
+        return schema().table(conn, name);
+    }
+
+    /** Returns a ResultSet over rows built from the schema model. */
+    private ResultSet result(CachedResult res, String... cols)
+            throws SQLException {
+        final Stmt stat = new Stmt(conn);
+        stat.rs.colsMeta = cols;
+        stat.rs.cols = cols;
+        stat.rs.cache = res;
+        stat.rs.open = res.rows() > 0;
+        return stat.rs;
     }
 
     public <T> T unwrap(Class<T> iface) throws SQLException {
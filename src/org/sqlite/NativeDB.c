@@ -17,12 +17,27 @@
 #include <stdlib.h>
 #include <string.h>
 #include <assert.h>
+#ifdef _WIN32
+#include <windows.h>
+#else
+#include <sys/time.h>
+#endif
 #include "NativeDB.h"
 #include "sqlite3.h"
 
 static jclass dbclass = 0;
 static jclass  fclass = 0;
 static jclass  aclass = 0;
+static jclass  uclass = 0;
+static jclass  wclass = 0;
+static jclass  xclass = 0;
+static jclass  bclass = 0;
+static jclass  vclass = 0;
+static jclass  mclass = 0;
+static jclass  cclass = 0;
+static jclass  iclass = 0;
+static jclass  rclass = 0;
+static jclass  oclass = 0;
 
 static void * toref(jlong value)
 {
@@ -90,8 +105,36 @@ struct UDFData {
     JavaVM *vm;
     jobject func;
     struct UDFData *next;  // linked list of all UDFData instances
+    jlong *block;          // result and arguments, see Function.block
+    jobject buf;           // global ref to a direct ByteBuffer over block
+    int slots;             // number of arguments the block holds
+    int states;            // size of Function.Accumulator state, in jlongs
+    struct UDFBatch *batch; // rows buffered for a Function.BatchAccumulator
 };
 
+/* The arguments of the rows stepped into one group, by column, until they
+ * are passed to Function.BatchAccumulator.xStepBatch(). */
+struct UDFBatch {
+    jobject batch;         // global refs to the Function.Batch and its arrays
+    jobject types;
+    jobject longs;
+    jobject doubles;
+    int columns;
+    int capacity;
+    int size;              // number of rows buffered
+    jlong *state;          // aggregate context of the buffered rows
+    jlong *lbuf;           // one allocation for the three buffers
+    jdouble *dbuf;
+    jbyte *tbuf;
+};
+
+/* Most functions are registered for up to this number of arguments. */
+#define UDF_SLOTS 127
+
+/* Signature of the xCall* methods of Function: context, values, number
+ * of values and block of the registration. */
+#define UDF_CALL "(JJILjava/nio/ByteBuffer;)V"
+
 /* Returns the sqlite3_value for the given arg of the given function.
  * If 0 is returned, an exception has been thrown to report the reason. */
 static sqlite3_value * tovalue(JNIEnv *env, jobject function, jint arg)
@@ -150,7 +193,10 @@ static void xFunc_error(sqlite3_context *context, JNIEnv *env)
     (*env)->ReleaseStringUTFChars(env, msg, strmsg);
 }
 
-/* used to call xFunc, xStep and xFinal */
+/* used to call xFunc, xStep and xFinal: the arguments are written to
+ * the block of the registration, passed with the call, for the Function
+ * to read without calling back into native code, and a number or NULL
+ * result is read back from it */
 static void xCall(
     sqlite3_context *context,
     int args,
@@ -158,100 +204,1609 @@ static void xCall(
     jobject func,
     jmethodID method)
 {
-    static jfieldID fld_context = 0,
-                     fld_value = 0,
-                     fld_args = 0;
     JNIEnv *env = 0;
     struct UDFData *udf = 0;
+    jlong *block;
+    double d;
+    int i, n;
 
     udf = (struct UDFData*)sqlite3_user_data(context);
     assert(udf);
     (*udf->vm)->AttachCurrentThread(udf->vm, (void **)&env, 0);
     if (!func) func = udf->func;
 
-    if (!fld_context || !fld_value || !fld_args) {
-        fld_context = (*env)->GetFieldID(env, fclass, "context", "J");
-        fld_value   = (*env)->GetFieldID(env, fclass, "value", "J");
-        fld_args    = (*env)->GetFieldID(env, fclass, "args", "I");
+    block = udf->block;
+    block[0] = 0;
+    n = args < udf->slots ? args : udf->slots;
+    for (i=0; i < n; i++) {
+        int type = sqlite3_value_type(value[i]);
+        block[2 + i*2] = type;
+        switch (type) {
+            case SQLITE_INTEGER:
+                block[3 + i*2] = sqlite3_value_int64(value[i]);
+                break;
+            case SQLITE_FLOAT:
+                d = sqlite3_value_double(value[i]);
+                memcpy(&block[3 + i*2], &d, sizeof(double));
+                break;
+            case SQLITE_TEXT:
+            case SQLITE_BLOB:
+                block[3 + i*2] = sqlite3_value_bytes(value[i]);
+                break;
+            default:
+                block[3 + i*2] = 0;
+        }
+    }
+
+    (*env)->CallVoidMethod(env, func, method, fromref(context),
+                           value ? fromref(value) : 0, args, udf->buf);
+
+    // check if xFunc threw an Exception
+    if ((*env)->ExceptionCheck(env)) { xFunc_error(context, env); return; }
+
+    switch (block[0]) {
+        case SQLITE_INTEGER:
+            sqlite3_result_int64(context, block[1]);
+            break;
+        case SQLITE_FLOAT:
+            memcpy(&d, &block[1], sizeof(double));
+            sqlite3_result_double(context, d);
+            break;
+        case SQLITE_NULL:
+            sqlite3_result_null(context);
+            break;
+    }
+}
+
+
+void xFunc(sqlite3_context *context, int args, sqlite3_value** value)
+{
+    static jmethodID mth = 0;
+    if (!mth) {
+        JNIEnv *env;
+        struct UDFData *udf = (struct UDFData*)sqlite3_user_data(context);
+        (*udf->vm)->AttachCurrentThread(udf->vm, (void **)&env, 0);
+        mth = (*env)->GetMethodID(env, fclass, "xCall", UDF_CALL);
+    }
+    xCall(context, args, value, 0, mth);
+}
+
+/* Returns the Function.Aggregate instance of a group, cloned on first
+ * use and stored in SQLite's aggregate_context (cleaned up in xFinal),
+ * or 0 if out of memory. */
+static jobject agg_instance(sqlite3_context *context)
+{
+    JNIEnv *env;
+    struct UDFData *udf = (struct UDFData*)sqlite3_user_data(context);
+    jobject *func = sqlite3_aggregate_context(context, sizeof(jobject));
+    static jmethodID clone = 0;
+
+    if (!func) return 0;
+    if (!*func) {
+        (*udf->vm)->AttachCurrentThread(udf->vm, (void **)&env, 0);
+        if (!clone) clone = (*env)->GetMethodID(env, aclass, "clone",
+            "()Ljava/lang/Object;");
+
+        *func = (*env)->CallObjectMethod(env, udf->func, clone);
+        *func = (*env)->NewGlobalRef(env, *func);
+    }
+    return *func;
+}
+
+/* Calls a method of the Function.Aggregate instance of a group. */
+static void agg_call(sqlite3_context *context, int args,
+        sqlite3_value** value, jclass cls, const char *name,
+        jmethodID *mth)
+{
+    jobject func = agg_instance(context);
+    if (!func) { sqlite3_result_error_nomem(context); return; }
+
+    if (!*mth) {
+        JNIEnv *env;
+        struct UDFData *udf = (struct UDFData*)sqlite3_user_data(context);
+        (*udf->vm)->AttachCurrentThread(udf->vm, (void **)&env, 0);
+        *mth = (*env)->GetMethodID(env, cls, name, UDF_CALL);
+    }
+    xCall(context, args, value, func, *mth);
+}
+
+void xStep(sqlite3_context *context, int args, sqlite3_value** value)
+{
+    static jmethodID mth = 0;
+    agg_call(context, args, value, aclass, "xCallStep", &mth);
+}
+
+void xInverse(sqlite3_context *context, int args, sqlite3_value** value)
+{
+    static jmethodID mth = 0;
+    agg_call(context, args, value, wclass, "xCallInverse", &mth);
+}
+
+void xValue(sqlite3_context *context)
+{
+    static jmethodID mth = 0;
+    agg_call(context, 0, 0, wclass, "xCallValue", &mth);
+}
+
+void xFinal(sqlite3_context *context)
+{
+    static jmethodID mth = 0;
+    JNIEnv *env = 0;
+    struct UDFData *udf = (struct UDFData*)sqlite3_user_data(context);
+    jobject func;
+
+    agg_call(context, 0, 0, aclass, "xCallFinal", &mth);
+
+    // clean up Function.Aggregate instance
+    func = agg_instance(context);
+    if (func) {
+        (*udf->vm)->AttachCurrentThread(udf->vm, (void **)&env, 0);
+        (*env)->DeleteGlobalRef(env, func);
+    }
+}
+
+/* Function.Accumulator keeps the state of a group in its aggregate
+ * context: the index of its object, then its slots. The state is copied
+ * to the block, after the arguments, for the call. */
+static void acc_call(sqlite3_context *context, int args,
+        sqlite3_value** value, jclass cls, const char *name,
+        jmethodID *mth)
+{
+    struct UDFData *udf = (struct UDFData*)sqlite3_user_data(context);
+    jlong *block = udf->block + 2 + udf->slots * 2;
+    int size = udf->states * sizeof(jlong);
+    jlong *state = sqlite3_aggregate_context(context, size);
+
+    if (!*mth) {
+        JNIEnv *env;
+        (*udf->vm)->AttachCurrentThread(udf->vm, (void **)&env, 0);
+        *mth = (*env)->GetMethodID(env, cls, name, UDF_CALL);
+    }
+    if (!state) { sqlite3_result_error_nomem(context); return; }
+
+    memcpy(block, state, size);
+    xCall(context, args, value, udf->func, *mth);
+    memcpy(state, block, size);
+}
+
+void xAccStep(sqlite3_context *context, int args, sqlite3_value** value)
+{
+    static jmethodID mth = 0;
+    acc_call(context, args, value, uclass, "xCallStep", &mth);
+}
+
+void xAccInverse(sqlite3_context *context, int args, sqlite3_value** value)
+{
+    static jmethodID mth = 0;
+    acc_call(context, args, value, xclass, "xCallInverse", &mth);
+}
+
+void xAccValue(sqlite3_context *context)
+{
+    static jmethodID mth = 0;
+    acc_call(context, 0, 0, xclass, "xCallValue", &mth);
+}
+
+void xAccFinal(sqlite3_context *context)
+{
+    static jmethodID mth = 0;
+    acc_call(context, 0, 0, uclass, "xCallFinal", &mth);
+}
+
+/* Passes the buffered rows to xStepBatch() with the state of their group
+ * in the block. Returns 0 and sets an error result if it threw. */
+static int batch_flush(sqlite3_context *context, struct UDFData *udf,
+                       JNIEnv *env)
+{
+    static jmethodID mth = 0;
+    struct UDFBatch *b = udf->batch;
+    jlong *block = udf->block + 2 + udf->slots * 2;
+    int size = udf->states * sizeof(jlong);
+    int c, n = b->size;
+
+    if (!n) return 1;
+    if (!mth) mth = (*env)->GetMethodID(env, bclass, "xCallBatch",
+        "(JJILjava/nio/ByteBuffer;Lorg/sqlite/Function$Batch;)V");
+
+    for (c=0; c < b->columns; c++) {
+        int off = c * b->capacity;
+        (*env)->SetByteArrayRegion(env, b->types, off, n, b->tbuf + off);
+        (*env)->SetLongArrayRegion(env, b->longs, off, n, b->lbuf + off);
+        (*env)->SetDoubleArrayRegion(env, b->doubles, off, n, b->dbuf + off);
+    }
+
+    b->size = 0;
+    memcpy(block, b->state, size);
+    (*env)->CallVoidMethod(env, udf->func, mth, fromref(context), 0, n,
+                           udf->buf, b->batch);
+    if ((*env)->ExceptionCheck(env)) { xFunc_error(context, env); return 0; }
+    memcpy(b->state, block, size);
+    return 1;
+}
+
+void xBatchStep(sqlite3_context *context, int args, sqlite3_value** value)
+{
+    JNIEnv *env = 0;
+    struct UDFData *udf = (struct UDFData*)sqlite3_user_data(context);
+    struct UDFBatch *b = udf->batch;
+    jlong *state = sqlite3_aggregate_context(
+        context, udf->states * sizeof(jlong));
+    int i, row;
+
+    if (!state) { sqlite3_result_error_nomem(context); return; }
+    (*udf->vm)->AttachCurrentThread(udf->vm, (void **)&env, 0);
+
+    // rows of another group are pending: their context is still live
+    if (b->size && b->state != state && !batch_flush(context, udf, env))
+        return;
+
+    b->state = state;
+    row = b->size;
+    for (i=0; i < args && i < b->columns; i++) {
+        int at = i * b->capacity + row;
+        b->tbuf[at] = (jbyte)sqlite3_value_type(value[i]);
+        b->lbuf[at] = sqlite3_value_int64(value[i]);
+        b->dbuf[at] = sqlite3_value_double(value[i]);
+    }
+
+    if (++b->size == b->capacity) batch_flush(context, udf, env);
+}
+
+void xBatchFinal(sqlite3_context *context)
+{
+    static jmethodID mth = 0, rel = 0;
+    JNIEnv *env = 0;
+    struct UDFData *udf = (struct UDFData*)sqlite3_user_data(context);
+    struct UDFBatch *b = udf->batch;
+    jlong *state = sqlite3_aggregate_context(
+        context, udf->states * sizeof(jlong));
+
+    if (!state) { sqlite3_result_error_nomem(context); return; }
+    (*udf->vm)->AttachCurrentThread(udf->vm, (void **)&env, 0);
+
+    if (b->size && b->state == state && !batch_flush(context, udf, env)) {
+        // keep the error result, only free the object of the group
+        if (!rel) rel = (*env)->GetMethodID(
+            env, bclass, "xCallRelease", UDF_CALL);
+        memcpy(udf->block + 2 + udf->slots * 2, state,
+               udf->states * sizeof(jlong));
+        (*env)->CallVoidMethod(env, udf->func, rel, fromref(context), 0, 0,
+                               udf->buf);
+        return;
+    }
+    acc_call(context, 0, 0, uclass, "xCallFinal", &mth);
+}
+
+/* Allocates the buffers of a Function.BatchAccumulator, and the
+ * Function.Batch they are copied to, owned by the registration. */
+static struct UDFBatch * batch_new(JNIEnv *env, jobject func, int columns)
+{
+    static jmethodID init = 0;
+    static jfieldID fld_capacity = 0, fld_types = 0, fld_longs = 0,
+                    fld_doubles = 0;
+    static jclass cls = 0;
+    struct UDFBatch *b = malloc(sizeof(struct UDFBatch));
+    jobject batch, array;
+    int n;
+
+    assert(b); // out-of-memory
+    if (!init) {
+        jclass c = (*env)->FindClass(env, "org/sqlite/Function$Batch");
+        cls = (*env)->NewGlobalRef(env, c);
+        init = (*env)->GetMethodID(env, cls, "<init>", "(II)V");
+        fld_capacity = (*env)->GetFieldID(env, bclass, "capacity", "I");
+        fld_types = (*env)->GetFieldID(env, cls, "types", "[B");
+        fld_longs = (*env)->GetFieldID(env, cls, "longs", "[J");
+        fld_doubles = (*env)->GetFieldID(env, cls, "doubles", "[D");
+        (*env)->DeleteLocalRef(env, c);
+    }
+
+    b->columns = columns;
+    b->capacity = (*env)->GetIntField(env, func, fld_capacity);
+    b->size = 0;
+    b->state = 0;
+    batch = (*env)->NewObject(env, cls, init, columns, b->capacity);
+    assert(batch); // out-of-memory
+    b->batch = (*env)->NewGlobalRef(env, batch);
+    array = (*env)->GetObjectField(env, batch, fld_types);
+    b->types = (*env)->NewGlobalRef(env, array);
+    (*env)->DeleteLocalRef(env, array);
+    array = (*env)->GetObjectField(env, batch, fld_longs);
+    b->longs = (*env)->NewGlobalRef(env, array);
+    (*env)->DeleteLocalRef(env, array);
+    array = (*env)->GetObjectField(env, batch, fld_doubles);
+    b->doubles = (*env)->NewGlobalRef(env, array);
+    (*env)->DeleteLocalRef(env, array);
+    (*env)->DeleteLocalRef(env, batch);
+
+    n = columns * b->capacity;
+    b->lbuf = malloc(n * (sizeof(jlong) + sizeof(jdouble) + sizeof(jbyte)));
+    assert(b->lbuf); // out-of-memory
+    b->dbuf = (jdouble*)(b->lbuf + n);
+    b->tbuf = (jbyte*)(b->dbuf + n);
+    return b;
+}
+
+
+// WAL HOOK /////////////////////////////////////////////////////////
+
+struct WalHook {
+    JavaVM *vm;
+    jobject checkpointer;
+    int threshold;
+    int autocheckpoint; // setting to restore when the hook is removed
+};
+
+/* Returns the pages of the automatic checkpoints of db, 0 if they are
+ * off or replaced by another WAL hook. SQLite has no getter for it, but
+ * the pragma reports it. */
+static int wal_autocheckpoint(sqlite3 *db)
+{
+    sqlite3_stmt *stmt = 0;
+    int pages = 0;
+
+    if (sqlite3_prepare_v2(db, "PRAGMA wal_autocheckpoint;", -1, &stmt, 0)
+            == SQLITE_OK && sqlite3_step(stmt) == SQLITE_ROW)
+        pages = sqlite3_column_int(stmt, 0);
+    sqlite3_finalize(stmt);
+    return pages;
+}
+
+/* Replaces automatic checkpoints: wakes up the Checkpointer once the WAL
+ * holds enough pages, commits below the threshold stay in native code. */
+static int xWalHook(void *ctx, sqlite3 *db, const char *name, int pages)
+{
+    static jmethodID mth = 0;
+    JNIEnv *env = 0;
+    struct WalHook *hook = (struct WalHook *)ctx;
+
+    if (pages < hook->threshold) return SQLITE_OK;
+
+    (*hook->vm)->AttachCurrentThread(hook->vm, (void **)&env, 0);
+    if (!mth) {
+        jclass cls = (*env)->GetObjectClass(env, hook->checkpointer);
+        mth = (*env)->GetMethodID(env, cls, "walCommit", "(I)V");
+    }
+    (*env)->CallVoidMethod(env, hook->checkpointer, mth, pages);
+
+    // the commit has happened, do not report a failure to wake up
+    if ((*env)->ExceptionCheck(env)) (*env)->ExceptionClear(env);
+    return SQLITE_OK;
+}
+
+// CHANGE HOOK //////////////////////////////////////////////////////
+
+/* Rows changed by the current transaction are recorded in a buffer
+ * allocated with the hook, without calling into Java. The commit hook
+ * runs before the commit is durable and may be followed by a failed
+ * COMMIT, so it only marks the buffer: change_publish() hands it to
+ * Conn.committed() once a step is done and autocommit is back on. The
+ * rollback hook drops it. All hooks run with the db mutex held. */
+
+#define CHANGE_NAMES 64
+
+struct ChangeHook {
+    jobject conn;
+    int capacity;
+    int count;              // changes recorded in this transaction
+    int truncated;          // changes were dropped
+    int committed;          // the commit hook ran for these changes
+    int nnames;
+    char *names[CHANGE_NAMES]; // database and table names, kept until full
+    jlong *keys;            // 2 per change: rowid before and after
+    jint *refs;             // 2 per change: index of database and table name
+    jint *ops;              // 1 per change
+};
+
+static struct ChangeHook * change_alloc(int capacity)
+{
+    struct ChangeHook *hook = malloc(sizeof(struct ChangeHook)
+        + capacity * (2 * sizeof(jlong) + 3 * sizeof(jint)));
+    if (!hook) return 0;
+    memset(hook, 0, sizeof(struct ChangeHook));
+    hook->capacity = capacity;
+    hook->keys = (jlong *)(hook + 1);
+    hook->refs = (jint *)(hook->keys + 2 * capacity);
+    hook->ops = hook->refs + 2 * capacity;
+    return hook;
+}
+
+static void change_clear(struct ChangeHook *hook, int names)
+{
+    if (names || hook->nnames == CHANGE_NAMES) {
+        while (hook->nnames > 0) sqlite3_free(hook->names[--hook->nnames]);
+    }
+    hook->count = 0;
+    hook->truncated = 0;
+    hook->committed = 0;
+}
+
+static int change_name(struct ChangeHook *hook, const char *name)
+{
+    int i;
+    for (i = hook->nnames - 1; i >= 0; i--)
+        if (strcmp(hook->names[i], name) == 0) return i;
+    if (hook->nnames == CHANGE_NAMES) return -1;
+    hook->names[hook->nnames] = sqlite3_mprintf("%s", name);
+    return hook->names[hook->nnames] ? hook->nnames++ : -1;
+}
+
+static void change_add(struct ChangeHook *hook, int op, const char *db,
+        const char *table, sqlite3_int64 before, sqlite3_int64 after)
+{
+    int n = hook->count, idb, itable;
+
+    if (hook->truncated) return;
+    if (n == hook->capacity) { hook->truncated = 1; return; }
+    idb = change_name(hook, db);
+    itable = change_name(hook, table);
+    if (idb < 0 || itable < 0) { hook->truncated = 1; return; }
+
+    hook->ops[n] = op;
+    hook->refs[2 * n] = idb;
+    hook->refs[2 * n + 1] = itable;
+    hook->keys[2 * n] = before;
+    hook->keys[2 * n + 1] = after;
+    hook->count = n + 1;
+}
+
+#ifdef SQLITE_ENABLE_PREUPDATE_HOOK
+static void xPreUpdateHook(void *ctx, sqlite3 *db, int op, const char *dbname,
+        const char *table, sqlite3_int64 before, sqlite3_int64 after)
+{
+    change_add((struct ChangeHook *)ctx, op, dbname, table, before, after);
+}
+#else
+static void xUpdateHook(void *ctx, int op, const char *dbname,
+        const char *table, sqlite3_int64 rowid)
+{
+    change_add((struct ChangeHook *)ctx, op, dbname, table, rowid, rowid);
+}
+#endif
+
+static int xCommitHook(void *ctx)
+{
+    ((struct ChangeHook *)ctx)->committed = 1;
+    return 0;
+}
+
+static void xRollbackHook(void *ctx)
+{
+    change_clear((struct ChangeHook *)ctx, 0);
+}
+
+static void change_unregister(sqlite3 *db)
+{
+#ifdef SQLITE_ENABLE_PREUPDATE_HOOK
+    sqlite3_preupdate_hook(db, 0, 0);
+#else
+    sqlite3_update_hook(db, 0, 0);
+#endif
+    sqlite3_commit_hook(db, 0, 0);
+    sqlite3_rollback_hook(db, 0, 0);
+}
+
+static jfieldID changehook = 0;
+
+/* Passes the changes of a transaction to Conn.committed() once its commit
+ * has succeeded: the commit hook ran and the connection is back in
+ * autocommit mode. Called after the steps that may end a transaction. */
+static void change_publish(JNIEnv *env, jobject this, sqlite3 *db)
+{
+    static jmethodID mth = 0;
+    struct ChangeHook *hook;
+    jobjectArray names = 0;
+    jintArray ops = 0, refs = 0;
+    jlongArray keys = 0;
+    int i, n, truncated;
+
+    if (!changehook)
+        changehook = (*env)->GetFieldID(env, dbclass, "changehook", "J");
+    hook = toref((*env)->GetLongField(env, this, changehook));
+    if (!hook || !hook->committed || !sqlite3_get_autocommit(db)) return;
+
+    n = hook->count;
+    truncated = hook->truncated;
+    if (n == 0 && !truncated) { change_clear(hook, 0); return; }
+
+    if (!mth) {
+        jclass cls = (*env)->GetObjectClass(env, hook->conn);
+        mth = (*env)->GetMethodID(env, cls, "committed",
+            "([I[Ljava/lang/String;[I[JZ)V");
+    }
+
+    names = (*env)->NewObjectArray(env, hook->nnames,
+        (*env)->FindClass(env, "java/lang/String"), 0);
+    ops = (*env)->NewIntArray(env, n);
+    refs = (*env)->NewIntArray(env, 2 * n);
+    keys = (*env)->NewLongArray(env, 2 * n);
+    if (names && ops && refs && keys) {
+        for (i = 0; i < hook->nnames; i++) {
+            jstring name = (*env)->NewStringUTF(env, hook->names[i]);
+            (*env)->SetObjectArrayElement(env, names, i, name);
+            (*env)->DeleteLocalRef(env, name);
+        }
+        (*env)->SetIntArrayRegion(env, ops, 0, n, hook->ops);
+        (*env)->SetIntArrayRegion(env, refs, 0, 2 * n, hook->refs);
+        (*env)->SetLongArrayRegion(env, keys, 0, 2 * n, hook->keys);
     }
+    change_clear(hook, 0);
+    if (names && ops && refs && keys)
+        (*env)->CallVoidMethod(env, hook->conn, mth, ops, names, refs, keys,
+            truncated ? JNI_TRUE : JNI_FALSE);
+
+    // the commit is done, a failing listener does not fail the statement
+    if ((*env)->ExceptionCheck(env)) (*env)->ExceptionClear(env);
+    if (names) (*env)->DeleteLocalRef(env, names);
+    if (ops) (*env)->DeleteLocalRef(env, ops);
+    if (refs) (*env)->DeleteLocalRef(env, refs);
+    if (keys) (*env)->DeleteLocalRef(env, keys);
+}
+
+// RESULT CACHE SUPPORT /////////////////////////////////////////////
+
+/* Functions whose result does not only depend on their arguments. A
+ * query calling one of them cannot be served from the result cache. */
+static const char *volatile_functions[] = {
+    "random", "randomblob", "changes", "total_changes", "last_insert_rowid",
+    "date", "time", "datetime", "julianday", "unixepoch", "strftime",
+    "timediff", "current_date", "current_time", "current_timestamp", 0
+};
+
+struct TablesRead {
+    int count;
+    int capacity;
+    int volatile_fn;
+    char **names;
+};
 
-    (*env)->SetLongField(env, func, fld_context, fromref(context));
-    (*env)->SetLongField(env, func, fld_value, value ? fromref(value) : 0);
-    (*env)->SetIntField(env, func, fld_args, args);
+/* Authorizer recording the tables read while a statement is prepared. */
+static int xAuthTables(void *ctx, int action, const char *arg1,
+        const char *arg2, const char *dbname, const char *trigger)
+{
+    struct TablesRead *t = (struct TablesRead *)ctx;
+    int i;
+
+    if (action == SQLITE_FUNCTION) {
+        for (i = 0; volatile_functions[i]; i++)
+            if (sqlite3_stricmp(volatile_functions[i], arg2) == 0)
+                t->volatile_fn = 1;
+        return SQLITE_OK;
+    }
+    if (action != SQLITE_READ || !arg1) return SQLITE_OK;
+
+    for (i = 0; i < t->count; i++)
+        if (sqlite3_stricmp(t->names[i], arg1) == 0) return SQLITE_OK;
+    if (t->count == t->capacity) {
+        char **names = sqlite3_realloc(t->names,
+            (t->capacity + 8) * sizeof(char *));
+        if (!names) return SQLITE_DENY;
+        t->names = names;
+        t->capacity += 8;
+    }
+    t->names[t->count] = sqlite3_mprintf("%s", arg1);
+    if (!t->names[t->count]) return SQLITE_DENY;
+    t->count++;
+    return SQLITE_OK;
+}
+
+// VIRTUAL TABLES ///////////////////////////////////////////////////
+
+/* A VirtualTable.Cursor fills a RowBuffer with a batch of rows, which
+ * is copied here with one call per array. xColumn and xNext then serve
+ * the batch without calling into Java. */
+
+struct VTabModule {
+    JavaVM *vm;
+    jobject module;
+};
+
+struct VTab {
+    sqlite3_vtab base;
+    JavaVM *vm;
+    jobject table;
+};
+
+struct VCursor {
+    sqlite3_vtab_cursor base;
+    jobject cursor;
+    int columns;
+    int size;           // rows in the batch
+    int row;            // current row
+    jbyte *types;       // SQLITE_* type of each cell
+    jlong *values;      // integer, bits of double or length in bytes
+    jint *offsets;      // offset in data of a text or blob cell
+    jlong *rowids;
+    jbyte *data;
+    int datacap;
+};
+
+static JNIEnv * vtab_env(sqlite3_vtab *base)
+{
+    JNIEnv *env = 0;
+    struct VTab *vtab = (struct VTab *)base;
+    (*vtab->vm)->AttachCurrentThread(vtab->vm, (void **)&env, 0);
+    return env;
+}
+
+/* Clears the pending exception and returns its description, allocated
+ * with sqlite3_malloc(). */
+static char * vtab_error(JNIEnv *env)
+{
+    static jmethodID exp_msg = 0;
+    jthrowable ex = (*env)->ExceptionOccurred(env);
+    jstring msg = 0;
+    const char *str = 0;
+    char *ret = 0;
+
+    (*env)->ExceptionClear(env);
+    if (!exp_msg) {
+        jclass exclass = (*env)->FindClass(env, "java/lang/Throwable");
+        exp_msg = (*env)->GetMethodID(
+                env, exclass, "toString", "()Ljava/lang/String;");
+    }
+
+    msg = (jstring)(*env)->CallObjectMethod(env, ex, exp_msg);
+    if (!msg || (*env)->ExceptionCheck(env)) {
+        (*env)->ExceptionClear(env);
+        return sqlite3_mprintf("unknown error");
+    }
+    str = (*env)->GetStringUTFChars(env, msg, 0);
+    ret = sqlite3_mprintf("%s", str);
+    (*env)->ReleaseStringUTFChars(env, msg, str);
+    (*env)->DeleteLocalRef(env, msg);
+    (*env)->DeleteLocalRef(env, ex);
+    return ret;
+}
+
+static int vtab_fail(JNIEnv *env, sqlite3_vtab *base)
+{
+    sqlite3_free(base->zErrMsg);
+    base->zErrMsg = vtab_error(env);
+    return SQLITE_ERROR;
+}
+
+/* Returns a new local reference to a Long, Double, String or byte[]
+ * holding the value, or null for a NULL value. */
+static jobject tojava(JNIEnv *env, sqlite3_value *value)
+{
+    static jclass lclass = 0, dclass = 0;
+    static jmethodID lvalueof = 0, dvalueof = 0;
+    jbyteArray blob;
+    int n;
+
+    if (!lclass) {
+        lclass = (*env)->NewGlobalRef(env,
+            (*env)->FindClass(env, "java/lang/Long"));
+        dclass = (*env)->NewGlobalRef(env,
+            (*env)->FindClass(env, "java/lang/Double"));
+        lvalueof = (*env)->GetStaticMethodID(env, lclass, "valueOf",
+            "(J)Ljava/lang/Long;");
+        dvalueof = (*env)->GetStaticMethodID(env, dclass, "valueOf",
+            "(D)Ljava/lang/Double;");
+    }
+
+    switch (sqlite3_value_type(value)) {
+        case SQLITE_INTEGER:
+            return (*env)->CallStaticObjectMethod(env, lclass, lvalueof,
+                (jlong)sqlite3_value_int64(value));
+        case SQLITE_FLOAT:
+            return (*env)->CallStaticObjectMethod(env, dclass, dvalueof,
+                (jdouble)sqlite3_value_double(value));
+        case SQLITE_TEXT:
+            return (*env)->NewString(env, sqlite3_value_text16(value),
+                sqlite3_value_bytes16(value) / sizeof(jchar));
+        case SQLITE_BLOB:
+            n = sqlite3_value_bytes(value);
+            blob = (*env)->NewByteArray(env, n);
+            if (blob) (*env)->SetByteArrayRegion(env, blob, 0, n,
+                (const jbyte *)sqlite3_value_blob(value));
+            return blob;
+    }
+    return 0;
+}
+
+static int xVTabConnect(sqlite3 *db, void *aux, int argc,
+        const char *const *argv, sqlite3_vtab **ppvtab, char **err)
+{
+    static jmethodID connect = 0, schema = 0;
+    struct VTabModule *mod = (struct VTabModule *)aux;
+    struct VTab *vtab;
+    JNIEnv *env = 0;
+    jclass strclass;
+    jobjectArray args;
+    jobject table;
+    jstring sql;
+    const char *str;
+    int i, rc;
+
+    (*mod->vm)->AttachCurrentThread(mod->vm, (void **)&env, 0);
+    if (!connect) {
+        connect = (*env)->GetMethodID(env, mclass, "connect",
+            "([Ljava/lang/String;)Lorg/sqlite/VirtualTable;");
+        schema = (*env)->GetMethodID(env, vclass, "xSchema",
+            "()Ljava/lang/String;");
+    }
+
+    strclass = (*env)->FindClass(env, "java/lang/String");
+    args = (*env)->NewObjectArray(env, argc, strclass, 0);
+    (*env)->DeleteLocalRef(env, strclass);
+    if (!args) { *err = vtab_error(env); return SQLITE_NOMEM; }
+    for (i=0; i < argc; i++) {
+        jstring arg = (*env)->NewStringUTF(env, argv[i]);
+        (*env)->SetObjectArrayElement(env, args, i, arg);
+        (*env)->DeleteLocalRef(env, arg);
+    }
+
+    table = (*env)->CallObjectMethod(env, mod->module, connect, args);
+    (*env)->DeleteLocalRef(env, args);
+    if ((*env)->ExceptionCheck(env)) {
+        *err = vtab_error(env);
+        return SQLITE_ERROR;
+    }
+    if (!table) {
+        *err = sqlite3_mprintf("module %s returned no table", argv[0]);
+        return SQLITE_ERROR;
+    }
+
+    sql = (jstring)(*env)->CallObjectMethod(env, table, schema);
+    str = (*env)->GetStringUTFChars(env, sql, 0);
+    rc = sqlite3_declare_vtab(db, str);
+    (*env)->ReleaseStringUTFChars(env, sql, str);
+    (*env)->DeleteLocalRef(env, sql);
+    if (rc != SQLITE_OK) {
+        *err = sqlite3_mprintf("%s", sqlite3_errmsg(db));
+        (*env)->DeleteLocalRef(env, table);
+        return rc;
+    }
+
+    vtab = sqlite3_malloc(sizeof(struct VTab));
+    if (!vtab) { (*env)->DeleteLocalRef(env, table); return SQLITE_NOMEM; }
+    memset(vtab, 0, sizeof(struct VTab));
+    vtab->vm = mod->vm;
+    vtab->table = (*env)->NewGlobalRef(env, table);
+    (*env)->DeleteLocalRef(env, table);
+
+    *ppvtab = &vtab->base;
+    return SQLITE_OK;
+}
+
+static int xVTabBestIndex(sqlite3_vtab *base, sqlite3_index_info *info)
+{
+    static jmethodID bestindex = 0;
+    static jfieldID fld_usage = 0, fld_num = 0, fld_str = 0,
+                    fld_ordered = 0, fld_unique = 0, fld_cost = 0,
+                    fld_rows = 0;
+    JNIEnv *env = vtab_env(base);
+    struct VTab *vtab = (struct VTab *)base;
+    int nc = info->nConstraint, no = info->nOrderBy, i;
+    jintArray constraints, orderby, usage;
+    jobject res;
+    jstring idxstr;
+    jint *buf;
+
+    if (!bestindex) {
+        bestindex = (*env)->GetMethodID(env, vclass, "xBestIndex",
+            "([I[IDJ)Lorg/sqlite/VirtualTable$IndexInfo;");
+        fld_usage   = (*env)->GetFieldID(env, iclass, "usage", "[I");
+        fld_num     = (*env)->GetFieldID(env, iclass, "indexNumber", "I");
+        fld_str     = (*env)->GetFieldID(env, iclass, "indexString",
+                                         "Ljava/lang/String;");
+        fld_ordered = (*env)->GetFieldID(env, iclass, "orderByConsumed","Z");
+        fld_unique  = (*env)->GetFieldID(env, iclass, "unique", "Z");
+        fld_cost    = (*env)->GetFieldID(env, iclass, "estimatedCost", "D");
+        fld_rows    = (*env)->GetFieldID(env, iclass, "estimatedRows", "J");
+    }
+
+    buf = sqlite3_malloc((nc * 3 + no * 2 + 1) * sizeof(jint));
+    if (!buf) return SQLITE_NOMEM;
+    for (i=0; i < nc; i++) {
+        buf[i*3]   = info->aConstraint[i].iColumn;
+        buf[i*3+1] = info->aConstraint[i].op;
+        buf[i*3+2] = info->aConstraint[i].usable;
+    }
+    for (i=0; i < no; i++) {
+        buf[nc*3 + i*2]   = info->aOrderBy[i].iColumn;
+        buf[nc*3 + i*2+1] = info->aOrderBy[i].desc;
+    }
+    constraints = (*env)->NewIntArray(env, nc * 3);
+    orderby = (*env)->NewIntArray(env, no * 2);
+    if (!constraints || !orderby) {
+        sqlite3_free(buf);
+        return vtab_fail(env, base);
+    }
+    (*env)->SetIntArrayRegion(env, constraints, 0, nc * 3, buf);
+    (*env)->SetIntArrayRegion(env, orderby, 0, no * 2, buf + nc * 3);
+
+    res = (*env)->CallObjectMethod(env, vtab->table, bestindex,
+        constraints, orderby, (jdouble)info->estimatedCost,
+        (jlong)info->estimatedRows);
+    (*env)->DeleteLocalRef(env, constraints);
+    (*env)->DeleteLocalRef(env, orderby);
+    if ((*env)->ExceptionCheck(env)) {
+        sqlite3_free(buf);
+        return vtab_fail(env, base);
+    }
+
+    usage = (*env)->GetObjectField(env, res, fld_usage);
+    (*env)->GetIntArrayRegion(env, usage, 0, nc * 2, buf);
+    (*env)->DeleteLocalRef(env, usage);
+    for (i=0; i < nc; i++) {
+        info->aConstraintUsage[i].argvIndex = buf[i*2];
+        info->aConstraintUsage[i].omit = (unsigned char)buf[i*2+1];
+    }
+    sqlite3_free(buf);
+
+    info->idxNum = (*env)->GetIntField(env, res, fld_num);
+    idxstr = (*env)->GetObjectField(env, res, fld_str);
+    if (idxstr) {
+        const char *str = (*env)->GetStringUTFChars(env, idxstr, 0);
+        info->idxStr = sqlite3_mprintf("%s", str);
+        info->needToFreeIdxStr = 1;
+        (*env)->ReleaseStringUTFChars(env, idxstr, str);
+        (*env)->DeleteLocalRef(env, idxstr);
+    }
+    info->orderByConsumed = (*env)->GetBooleanField(env, res, fld_ordered);
+    info->estimatedCost = (*env)->GetDoubleField(env, res, fld_cost);
+    info->estimatedRows = (*env)->GetLongField(env, res, fld_rows);
+    if ((*env)->GetBooleanField(env, res, fld_unique))
+        info->idxFlags |= SQLITE_INDEX_SCAN_UNIQUE;
+    (*env)->DeleteLocalRef(env, res);
+
+    return SQLITE_OK;
+}
+
+static int xVTabDisconnect(sqlite3_vtab *base)
+{
+    static jmethodID disconnect = 0;
+    JNIEnv *env = vtab_env(base);
+    struct VTab *vtab = (struct VTab *)base;
+
+    if (!disconnect)
+        disconnect = (*env)->GetMethodID(env, vclass, "xDisconnect", "()V");
+    (*env)->CallVoidMethod(env, vtab->table, disconnect);
+    if ((*env)->ExceptionCheck(env)) (*env)->ExceptionClear(env);
+
+    (*env)->DeleteGlobalRef(env, vtab->table);
+    sqlite3_free(vtab->base.zErrMsg);
+    sqlite3_free(vtab);
+    return SQLITE_OK;
+}
+
+static int xVTabOpen(sqlite3_vtab *base, sqlite3_vtab_cursor **ppcursor)
+{
+    static jmethodID open = 0;
+    JNIEnv *env = vtab_env(base);
+    struct VTab *vtab = (struct VTab *)base;
+    struct VCursor *cur;
+    jobject cursor;
+
+    if (!open) open = (*env)->GetMethodID(env, vclass, "xOpen",
+        "()Lorg/sqlite/VirtualTable$Cursor;");
+
+    cursor = (*env)->CallObjectMethod(env, vtab->table, open);
+    if ((*env)->ExceptionCheck(env)) return vtab_fail(env, base);
+
+    cur = sqlite3_malloc(sizeof(struct VCursor));
+    if (!cur) { (*env)->DeleteLocalRef(env, cursor); return SQLITE_NOMEM; }
+    memset(cur, 0, sizeof(struct VCursor));
+    cur->cursor = (*env)->NewGlobalRef(env, cursor);
+    (*env)->DeleteLocalRef(env, cursor);
+
+    *ppcursor = &cur->base;
+    return SQLITE_OK;
+}
+
+static int xVTabClose(sqlite3_vtab_cursor *base)
+{
+    static jmethodID close = 0;
+    JNIEnv *env = vtab_env(base->pVtab);
+    struct VCursor *cur = (struct VCursor *)base;
+
+    if (!close) close = (*env)->GetMethodID(env, cclass, "xClose", "()V");
+    (*env)->CallVoidMethod(env, cur->cursor, close);
+    if ((*env)->ExceptionCheck(env)) (*env)->ExceptionClear(env);
+
+    (*env)->DeleteGlobalRef(env, cur->cursor);
+    sqlite3_free(cur->values);
+    sqlite3_free(cur->data);
+    sqlite3_free(cur);
+    return SQLITE_OK;
+}
+
+/* Copies the next batch of rows of the cursor. An empty batch ends the
+ * scan. */
+static int vcursor_fetch(JNIEnv *env, struct VCursor *cur)
+{
+    static jmethodID fetch = 0;
+    static jfieldID fld_size = 0, fld_columns = 0, fld_capacity = 0,
+                    fld_types = 0, fld_values = 0, fld_offsets = 0,
+                    fld_rowids = 0, fld_data = 0, fld_datasize = 0;
+    jobject rows, arr;
+    int cells, datasize;
+
+    if (!fetch) {
+        fetch = (*env)->GetMethodID(env, cclass, "xFetch",
+            "()Lorg/sqlite/RowBuffer;");
+        fld_size     = (*env)->GetFieldID(env, rclass, "size", "I");
+        fld_columns  = (*env)->GetFieldID(env, rclass, "columns", "I");
+        fld_capacity = (*env)->GetFieldID(env, rclass, "capacity", "I");
+        fld_types    = (*env)->GetFieldID(env, rclass, "types", "[B");
+        fld_values   = (*env)->GetFieldID(env, rclass, "values", "[J");
+        fld_offsets  = (*env)->GetFieldID(env, rclass, "offsets", "[I");
+        fld_rowids   = (*env)->GetFieldID(env, rclass, "rowids", "[J");
+        fld_data     = (*env)->GetFieldID(env, rclass, "data", "[B");
+        fld_datasize = (*env)->GetFieldID(env, rclass, "dataSize", "I");
+    }
+
+    cur->row = cur->size = 0;
+    rows = (*env)->CallObjectMethod(env, cur->cursor, fetch);
+    if ((*env)->ExceptionCheck(env)) return vtab_fail(env, cur->base.pVtab);
+
+    if (!cur->values) {
+        // one allocation for the fixed size arrays of a batch
+        int capacity = (*env)->GetIntField(env, rows, fld_capacity);
+        cur->columns = (*env)->GetIntField(env, rows, fld_columns);
+        cells = capacity * cur->columns;
+        cur->values = sqlite3_malloc(cells * (sizeof(jlong) + sizeof(jint)
+            + sizeof(jbyte)) + capacity * sizeof(jlong));
+        if (!cur->values) {
+            (*env)->DeleteLocalRef(env, rows);
+            return SQLITE_NOMEM;
+        }
+        cur->rowids = cur->values + cells;
+        cur->offsets = (jint *)(cur->rowids + capacity);
+        cur->types = (jbyte *)(cur->offsets + cells);
+    }
+
+    cur->size = (*env)->GetIntField(env, rows, fld_size);
+    cells = cur->size * cur->columns;
+
+    arr = (*env)->GetObjectField(env, rows, fld_types);
+    (*env)->GetByteArrayRegion(env, arr, 0, cells, cur->types);
+    (*env)->DeleteLocalRef(env, arr);
+    arr = (*env)->GetObjectField(env, rows, fld_values);
+    (*env)->GetLongArrayRegion(env, arr, 0, cells, cur->values);
+    (*env)->DeleteLocalRef(env, arr);
+    arr = (*env)->GetObjectField(env, rows, fld_offsets);
+    (*env)->GetIntArrayRegion(env, arr, 0, cells, cur->offsets);
+    (*env)->DeleteLocalRef(env, arr);
+    arr = (*env)->GetObjectField(env, rows, fld_rowids);
+    (*env)->GetLongArrayRegion(env, arr, 0, cur->size, cur->rowids);
+    (*env)->DeleteLocalRef(env, arr);
+
+    datasize = (*env)->GetIntField(env, rows, fld_datasize);
+    if (datasize > cur->datacap) {
+        jbyte *data = sqlite3_realloc(cur->data, datasize);
+        if (!data) { (*env)->DeleteLocalRef(env, rows); return SQLITE_NOMEM; }
+        cur->data = data;
+        cur->datacap = datasize;
+    }
+    arr = (*env)->GetObjectField(env, rows, fld_data);
+    (*env)->GetByteArrayRegion(env, arr, 0, datasize, cur->data);
+    (*env)->DeleteLocalRef(env, arr);
+
+    (*env)->DeleteLocalRef(env, rows);
+    return SQLITE_OK;
+}
+
+static int xVTabFilter(sqlite3_vtab_cursor *base, int num, const char *str,
+        int argc, sqlite3_value **argv)
+{
+    static jmethodID filter = 0;
+    JNIEnv *env = vtab_env(base->pVtab);
+    struct VCursor *cur = (struct VCursor *)base;
+    jclass objclass;
+    jobjectArray args;
+    jstring idxstr = 0;
+    int i;
+
+    if (!filter) filter = (*env)->GetMethodID(env, cclass, "xFilter",
+        "(ILjava/lang/String;[Ljava/lang/Object;)V");
+
+    objclass = (*env)->FindClass(env, "java/lang/Object");
+    args = (*env)->NewObjectArray(env, argc, objclass, 0);
+    (*env)->DeleteLocalRef(env, objclass);
+    if (!args) return vtab_fail(env, base->pVtab);
+    for (i=0; i < argc; i++) {
+        jobject arg = tojava(env, argv[i]);
+        (*env)->SetObjectArrayElement(env, args, i, arg);
+        (*env)->DeleteLocalRef(env, arg);
+    }
+    if (str) idxstr = (*env)->NewStringUTF(env, str);
+
+    (*env)->CallVoidMethod(env, cur->cursor, filter, num, idxstr, args);
+    (*env)->DeleteLocalRef(env, args);
+    (*env)->DeleteLocalRef(env, idxstr);
+    if ((*env)->ExceptionCheck(env)) return vtab_fail(env, base->pVtab);
+
+    return vcursor_fetch(env, cur);
+}
+
+static int xVTabNext(sqlite3_vtab_cursor *base)
+{
+    struct VCursor *cur = (struct VCursor *)base;
+    if (++cur->row < cur->size) return SQLITE_OK;
+    return vcursor_fetch(vtab_env(base->pVtab), cur);
+}
+
+static int xVTabEof(sqlite3_vtab_cursor *base)
+{
+    struct VCursor *cur = (struct VCursor *)base;
+    return cur->row >= cur->size;
+}
+
+static int xVTabColumn(sqlite3_vtab_cursor *base, sqlite3_context *ctx,
+        int col)
+{
+    struct VCursor *cur = (struct VCursor *)base;
+    int cell = cur->row * cur->columns + col;
+    double d;
+
+    if (col < 0 || col >= cur->columns) {
+        sqlite3_result_null(ctx);
+        return SQLITE_OK;
+    }
+
+    switch (cur->types[cell]) {
+        case SQLITE_INTEGER:
+            sqlite3_result_int64(ctx, cur->values[cell]);
+            break;
+        case SQLITE_FLOAT:
+            memcpy(&d, &cur->values[cell], sizeof(double));
+            sqlite3_result_double(ctx, d);
+            break;
+        case SQLITE_TEXT:
+            sqlite3_result_text(ctx, (const char *)cur->data
+                + cur->offsets[cell], (int)cur->values[cell],
+                SQLITE_TRANSIENT);
+            break;
+        case SQLITE_BLOB:
+            sqlite3_result_blob(ctx, cur->data + cur->offsets[cell],
+                (int)cur->values[cell], SQLITE_TRANSIENT);
+            break;
+        default:
+            sqlite3_result_null(ctx);
+    }
+    return SQLITE_OK;
+}
+
+static int xVTabRowid(sqlite3_vtab_cursor *base, sqlite3_int64 *rowid)
+{
+    struct VCursor *cur = (struct VCursor *)base;
+    *rowid = cur->rowids[cur->row];
+    return SQLITE_OK;
+}
+
+static void vtab_module_free(void *p)
+{
+    JNIEnv *env = 0;
+    struct VTabModule *mod = (struct VTabModule *)p;
+    (*mod->vm)->AttachCurrentThread(mod->vm, (void **)&env, 0);
+    (*env)->DeleteGlobalRef(env, mod->module);
+    free(mod);
+}
+
+static sqlite3_module vtab_module = {
+    0,
+    xVTabConnect,       // xCreate
+    xVTabConnect,
+    xVTabBestIndex,
+    xVTabDisconnect,
+    xVTabDisconnect,    // xDestroy
+    xVTabOpen,
+    xVTabClose,
+    xVTabFilter,
+    xVTabNext,
+    xVTabEof,
+    xVTabColumn,
+    xVTabRowid
+};
+
+/* no xCreate: the table named after the module is the only one */
+static sqlite3_module vtab_eponymous = {
+    0,
+    0,
+    xVTabConnect,
+    xVTabBestIndex,
+    xVTabDisconnect,
+    xVTabDisconnect,
+    xVTabOpen,
+    xVTabClose,
+    xVTabFilter,
+    xVTabNext,
+    xVTabEof,
+    xVTabColumn,
+    xVTabRowid
+};
+
+// ARRAYS ///////////////////////////////////////////////////////////
+
+/* A Java array bound with sqlite3_bind_pointer() to the hidden column of
+ * the eponymous table carray, so "x in carray(?)" reads all the elements
+ * from one bind. Text and blob elements share one buffer, with the end
+ * offset of each element. The array is freed with the statement. */
+
+#define CARRAY_POINTER "org.sqlite.CArray"
+
+struct CArray {
+    int type;
+    int n;
+    void *values;
+    jint *ends;
+};
+
+struct CArrayCursor {
+    sqlite3_vtab_cursor base;
+    struct CArray *array;
+    int row;
+};
+
+static int xCArrayConnect(sqlite3 *db, void *aux, int argc,
+        const char * const *argv, sqlite3_vtab **vtab, char **err)
+{
+    int rc = sqlite3_declare_vtab(db, "create table x(value, pointer hidden)");
+    if (rc != SQLITE_OK) return rc;
+    *vtab = sqlite3_malloc(sizeof(sqlite3_vtab));
+    if (!*vtab) return SQLITE_NOMEM;
+    memset(*vtab, 0, sizeof(sqlite3_vtab));
+    return SQLITE_OK;
+}
+
+static int xCArrayDisconnect(sqlite3_vtab *vtab)
+{
+    sqlite3_free(vtab);
+    return SQLITE_OK;
+}
+
+/* Only a plan with the array bound to the hidden column is usable. */
+static int xCArrayBestIndex(sqlite3_vtab *vtab, sqlite3_index_info *info)
+{
+    int i;
+    for (i = 0; i < info->nConstraint; i++) {
+        if (info->aConstraint[i].iColumn != 1) continue;
+        if (info->aConstraint[i].op != SQLITE_INDEX_CONSTRAINT_EQ) continue;
+        if (!info->aConstraint[i].usable) continue;
+        info->aConstraintUsage[i].argvIndex = 1;
+        info->aConstraintUsage[i].omit = 1;
+        info->idxNum = 1;
+        info->estimatedCost = 10;
+        info->estimatedRows = 10;
+        return SQLITE_OK;
+    }
+    info->idxNum = 0;
+    info->estimatedCost = 2147483647;
+    info->estimatedRows = 2147483647;
+    return SQLITE_OK;
+}
+
+static int xCArrayOpen(sqlite3_vtab *vtab, sqlite3_vtab_cursor **cursor)
+{
+    struct CArrayCursor *cur = sqlite3_malloc(sizeof(struct CArrayCursor));
+    if (!cur) return SQLITE_NOMEM;
+    memset(cur, 0, sizeof(struct CArrayCursor));
+    *cursor = &cur->base;
+    return SQLITE_OK;
+}
+
+static int xCArrayClose(sqlite3_vtab_cursor *cursor)
+{
+    sqlite3_free(cursor);
+    return SQLITE_OK;
+}
+
+static int xCArrayFilter(sqlite3_vtab_cursor *cursor, int idxNum,
+        const char *idxStr, int argc, sqlite3_value **argv)
+{
+    struct CArrayCursor *cur = (struct CArrayCursor *)cursor;
+    cur->array = idxNum && argc > 0
+        ? sqlite3_value_pointer(argv[0], CARRAY_POINTER) : 0;
+    cur->row = 0;
+    return SQLITE_OK;
+}
+
+static int xCArrayNext(sqlite3_vtab_cursor *cursor)
+{
+    ((struct CArrayCursor *)cursor)->row++;
+    return SQLITE_OK;
+}
+
+static int xCArrayEof(sqlite3_vtab_cursor *cursor)
+{
+    struct CArrayCursor *cur = (struct CArrayCursor *)cursor;
+    return !cur->array || cur->row >= cur->array->n;
+}
+
+static int xCArrayColumn(sqlite3_vtab_cursor *cursor,
+        sqlite3_context *ctx, int col)
+{
+    struct CArrayCursor *cur = (struct CArrayCursor *)cursor;
+    struct CArray *a = cur->array;
+    int row = cur->row, start;
+
+    if (col != 0) { sqlite3_result_null(ctx); return SQLITE_OK; }
+    switch (a->type) {
+        case SQLITE_INTEGER:
+            sqlite3_result_int64(ctx, ((jlong *)a->values)[row]);
+            break;
+        case SQLITE_FLOAT:
+            sqlite3_result_double(ctx, ((jdouble *)a->values)[row]);
+            break;
+        default:
+            start = row ? a->ends[row - 1] : 0;
+            if (a->type == SQLITE_TEXT)
+                sqlite3_result_text(ctx, (char *)a->values + start,
+                    a->ends[row] - start, SQLITE_TRANSIENT);
+            else
+                sqlite3_result_blob(ctx, (char *)a->values + start,
+                    a->ends[row] - start, SQLITE_TRANSIENT);
+    }
+    return SQLITE_OK;
+}
+
+static int xCArrayRowid(sqlite3_vtab_cursor *cursor, sqlite3_int64 *rowid)
+{
+    *rowid = ((struct CArrayCursor *)cursor)->row + 1;
+    return SQLITE_OK;
+}
+
+static sqlite3_module carray_module = {
+    0,
+    0,
+    xCArrayConnect,
+    xCArrayBestIndex,
+    xCArrayDisconnect,
+    xCArrayDisconnect,
+    xCArrayOpen,
+    xCArrayClose,
+    xCArrayFilter,
+    xCArrayNext,
+    xCArrayEof,
+    xCArrayColumn,
+    xCArrayRowid
+};
+
+// COLLATIONS ///////////////////////////////////////////////////////
+
+/* Each registration owns two direct ByteBuffers over native memory. The
+ * texts compared are copied there, so a comparison allocates nothing.
+ * The buffers grow when a longer text comes. */
+
+struct CollData {
+    JavaVM *vm;
+    jobject collation;
+    jobject buf[2];
+    void *mem[2];
+    int cap[2];
+};
+
+static int coll_reserve(JNIEnv *env, struct CollData *coll, int i, int n)
+{
+    int cap = coll->cap[i] ? coll->cap[i] : 256;
+    void *mem;
+    jobject buf;
+
+    if (coll->buf[i] && n <= coll->cap[i]) return 1;
+    while (cap < n) cap *= 2;
+
+    mem = realloc(coll->mem[i], cap);
+    if (!mem) return 0;
+    coll->mem[i] = mem;
+
+    if (coll->buf[i]) (*env)->DeleteGlobalRef(env, coll->buf[i]);
+    coll->buf[i] = 0;
+    coll->cap[i] = 0;
+    buf = (*env)->NewDirectByteBuffer(env, mem, cap);
+    if (!buf) { (*env)->ExceptionClear(env); return 0; }
+    coll->buf[i] = (*env)->NewGlobalRef(env, buf);
+    (*env)->DeleteLocalRef(env, buf);
+    coll->cap[i] = cap;
+    return 1;
+}
+
+/* the BINARY collation, used when the Java one fails */
+static int coll_binary(int n1, const void *s1, int n2, const void *s2)
+{
+    int c = memcmp(s1, s2, n1 < n2 ? n1 : n2);
+    return c ? c : n1 - n2;
+}
+
+static int xCompare(void *ctx, int n1, const void *s1, int n2, const void *s2)
+{
+    static jmethodID mth = 0;
+    struct CollData *coll = (struct CollData *)ctx;
+    JNIEnv *env = 0;
+    int res;
+
+    (*coll->vm)->AttachCurrentThread(coll->vm, (void **)&env, 0);
+    if (!mth) mth = (*env)->GetMethodID(env, oclass, "xCompare",
+        "(Ljava/nio/ByteBuffer;ILjava/nio/ByteBuffer;I)I");
+
+    if (!coll_reserve(env, coll, 0, n1) || !coll_reserve(env, coll, 1, n2))
+        return coll_binary(n1, s1, n2, s2);
+    memcpy(coll->mem[0], s1, n1);
+    memcpy(coll->mem[1], s2, n2);
+
+    res = (*env)->CallIntMethod(env, coll->collation, mth,
+        coll->buf[0], n1, coll->buf[1], n2);
+    if ((*env)->ExceptionCheck(env)) {
+        (*env)->ExceptionClear(env);
+        return coll_binary(n1, s1, n2, s2);
+    }
+    return res;
+}
+
+static void coll_free(void *ctx)
+{
+    struct CollData *coll = (struct CollData *)ctx;
+    JNIEnv *env = 0;
+    int i;
+
+    (*coll->vm)->AttachCurrentThread(coll->vm, (void **)&env, 0);
+    for (i=0; i < 2; i++) {
+        if (coll->buf[i]) (*env)->DeleteGlobalRef(env, coll->buf[i]);
+        free(coll->mem[i]);
+    }
+    (*env)->DeleteGlobalRef(env, coll->collation);
+    free(coll);
+}
+
+// I/O STATISTICS ///////////////////////////////////////////////////
+
+/* A VFS shim over the default VFS which counts, for each file, the pages
+ * served from the memory mapping (xFetch) and the calls to xRead. It is
+ * selected by opening a database with the vfs named STATS_VFS. */
+
+#define STATS_VFS "sqlitejdbc-stats"
+
+struct StatsFile {
+    sqlite3_file base;
+    sqlite3_int64 fetches;
+    sqlite3_int64 reads;
+    sqlite3_file *real;    // allocated right after this struct
+};
+
+static sqlite3_vfs *stats_real_vfs(sqlite3_vfs *vfs)
+{
+    return (sqlite3_vfs *)vfs->pAppData;
+}
+
+static sqlite3_file *stats_real(sqlite3_file *file)
+{
+    return ((struct StatsFile *)file)->real;
+}
+
+static int stats_close(sqlite3_file *f)
+{
+    sqlite3_file *r = stats_real(f);
+    return r->pMethods ? r->pMethods->xClose(r) : SQLITE_OK;
+}
+
+static int stats_read(sqlite3_file *f, void *buf, int amt, sqlite3_int64 off)
+{
+    sqlite3_file *r = stats_real(f);
+    ((struct StatsFile *)f)->reads++;
+    return r->pMethods->xRead(r, buf, amt, off);
+}
+
+static int stats_write(sqlite3_file *f, const void *buf, int amt,
+                       sqlite3_int64 off)
+{
+    sqlite3_file *r = stats_real(f);
+    return r->pMethods->xWrite(r, buf, amt, off);
+}
+
+static int stats_truncate(sqlite3_file *f, sqlite3_int64 size)
+{
+    sqlite3_file *r = stats_real(f);
+    return r->pMethods->xTruncate(r, size);
+}
+
+static int stats_sync(sqlite3_file *f, int flags)
+{
+    sqlite3_file *r = stats_real(f);
+    return r->pMethods->xSync(r, flags);
+}
+
+static int stats_file_size(sqlite3_file *f, sqlite3_int64 *size)
+{
+    sqlite3_file *r = stats_real(f);
+    return r->pMethods->xFileSize(r, size);
+}
+
+static int stats_lock(sqlite3_file *f, int lock)
+{
+    sqlite3_file *r = stats_real(f);
+    return r->pMethods->xLock(r, lock);
+}
+
+static int stats_unlock(sqlite3_file *f, int lock)
+{
+    sqlite3_file *r = stats_real(f);
+    return r->pMethods->xUnlock(r, lock);
+}
+
+static int stats_check_reserved_lock(sqlite3_file *f, int *res)
+{
+    sqlite3_file *r = stats_real(f);
+    return r->pMethods->xCheckReservedLock(r, res);
+}
+
+static int stats_file_control(sqlite3_file *f, int op, void *arg)
+{
+    sqlite3_file *r = stats_real(f);
+    return r->pMethods->xFileControl(r, op, arg);
+}
+
+static int stats_sector_size(sqlite3_file *f)
+{
+    sqlite3_file *r = stats_real(f);
+    return r->pMethods->xSectorSize(r);
+}
+
+static int stats_device_characteristics(sqlite3_file *f)
+{
+    sqlite3_file *r = stats_real(f);
+    return r->pMethods->xDeviceCharacteristics(r);
+}
+
+static int stats_shm_map(sqlite3_file *f, int pg, int pgsz, int extend,
+                         void volatile **pp)
+{
+    sqlite3_file *r = stats_real(f);
+    return r->pMethods->xShmMap(r, pg, pgsz, extend, pp);
+}
+
+static int stats_shm_lock(sqlite3_file *f, int offset, int n, int flags)
+{
+    sqlite3_file *r = stats_real(f);
+    return r->pMethods->xShmLock(r, offset, n, flags);
+}
+
+static void stats_shm_barrier(sqlite3_file *f)
+{
+    sqlite3_file *r = stats_real(f);
+    r->pMethods->xShmBarrier(r);
+}
+
+static int stats_shm_unmap(sqlite3_file *f, int delete_flag)
+{
+    sqlite3_file *r = stats_real(f);
+    return r->pMethods->xShmUnmap(r, delete_flag);
+}
+
+static int stats_fetch(sqlite3_file *f, sqlite3_int64 off, int amt, void **pp)
+{
+    int rc;
+    sqlite3_file *r = stats_real(f);
+    if (r->pMethods->iVersion < 3) { *pp = 0; return SQLITE_OK; }
+    rc = r->pMethods->xFetch(r, off, amt, pp);
+    if (rc == SQLITE_OK && *pp) ((struct StatsFile *)f)->fetches++;
+    return rc;
+}
 
-    (*env)->CallVoidMethod(env, func, method);
+static int stats_unfetch(sqlite3_file *f, sqlite3_int64 off, void *p)
+{
+    sqlite3_file *r = stats_real(f);
+    if (r->pMethods->iVersion < 3) return SQLITE_OK;
+    return r->pMethods->xUnfetch(r, off, p);
+}
 
-    (*env)->SetLongField(env, func, fld_context, 0);
-    (*env)->SetLongField(env, func, fld_value, 0);
-    (*env)->SetIntField(env, func, fld_args, 0);
+static const sqlite3_io_methods stats_io_methods = {
+    3,
+    stats_close, stats_read, stats_write, stats_truncate, stats_sync,
+    stats_file_size, stats_lock, stats_unlock, stats_check_reserved_lock,
+    stats_file_control, stats_sector_size, stats_device_characteristics,
+    stats_shm_map, stats_shm_lock, stats_shm_barrier, stats_shm_unmap,
+    stats_fetch, stats_unfetch
+};
 
-    // check if xFunc threw an Exception
-    if ((*env)->ExceptionCheck(env)) xFunc_error(context, env);
+static int stats_open(sqlite3_vfs *vfs, const char *name, sqlite3_file *file,
+                      int flags, int *out_flags)
+{
+    int rc;
+    struct StatsFile *p = (struct StatsFile *)file;
+    sqlite3_vfs *real = stats_real_vfs(vfs);
+
+    memset(p, 0, sizeof(struct StatsFile));
+    p->real = (sqlite3_file *)&p[1];
+    rc = real->xOpen(real, name, p->real, flags, out_flags);
+    // SQLite only calls xClose if pMethods is set
+    p->base.pMethods = p->real->pMethods ? &stats_io_methods : 0;
+    return rc;
 }
 
+static int stats_delete(sqlite3_vfs *vfs, const char *name, int sync_dir)
+{
+    sqlite3_vfs *real = stats_real_vfs(vfs);
+    return real->xDelete(real, name, sync_dir);
+}
 
-void xFunc(sqlite3_context *context, int args, sqlite3_value** value)
+static int stats_access(sqlite3_vfs *vfs, const char *name, int flags,
+                        int *res)
 {
-    static jmethodID mth = 0;
-    if (!mth) {
-        JNIEnv *env;
-        struct UDFData *udf = (struct UDFData*)sqlite3_user_data(context);
-        (*udf->vm)->AttachCurrentThread(udf->vm, (void **)&env, 0);
-        mth = (*env)->GetMethodID(env, fclass, "xFunc", "()V");
-    }
-    xCall(context, args, value, 0, mth);
+    sqlite3_vfs *real = stats_real_vfs(vfs);
+    return real->xAccess(real, name, flags, res);
 }
 
-void xStep(sqlite3_context *context, int args, sqlite3_value** value)
+static int stats_full_pathname(sqlite3_vfs *vfs, const char *name, int n,
+                               char *out)
 {
-    JNIEnv *env;
-    struct UDFData *udf;
-    jobject *func = 0;
-    static jmethodID mth = 0;
-    static jmethodID clone = 0;
+    sqlite3_vfs *real = stats_real_vfs(vfs);
+    return real->xFullPathname(real, name, n, out);
+}
 
-    if (!mth || !clone) {
-        udf = (struct UDFData*)sqlite3_user_data(context);
-        (*udf->vm)->AttachCurrentThread(udf->vm, (void **)&env, 0);
+static void *stats_dl_open(sqlite3_vfs *vfs, const char *name)
+{
+    sqlite3_vfs *real = stats_real_vfs(vfs);
+    return real->xDlOpen(real, name);
+}
 
-        mth = (*env)->GetMethodID(env, aclass, "xStep", "()V");
-        clone = (*env)->GetMethodID(env, aclass, "clone",
-            "()Ljava/lang/Object;");
-    }
+static void stats_dl_error(sqlite3_vfs *vfs, int n, char *msg)
+{
+    sqlite3_vfs *real = stats_real_vfs(vfs);
+    real->xDlError(real, n, msg);
+}
 
-    // clone the Function.Aggregate instance and store a pointer
-    // in SQLite's aggregate_context (clean up in xFinal)
-    func = sqlite3_aggregate_context(context, sizeof(jobject));
-    if (!*func) {
-        udf = (struct UDFData*)sqlite3_user_data(context);
-        (*udf->vm)->AttachCurrentThread(udf->vm, (void **)&env, 0);
+static void (*stats_dl_sym(sqlite3_vfs *vfs, void *h, const char *sym))(void)
+{
+    sqlite3_vfs *real = stats_real_vfs(vfs);
+    return real->xDlSym(real, h, sym);
+}
 
-        *func = (*env)->CallObjectMethod(env, udf->func, clone);
-        *func = (*env)->NewGlobalRef(env, *func);
-    }
+static void stats_dl_close(sqlite3_vfs *vfs, void *h)
+{
+    sqlite3_vfs *real = stats_real_vfs(vfs);
+    real->xDlClose(real, h);
+}
 
-    xCall(context, args, value, *func, mth);
+static int stats_randomness(sqlite3_vfs *vfs, int n, char *out)
+{
+    sqlite3_vfs *real = stats_real_vfs(vfs);
+    return real->xRandomness(real, n, out);
 }
 
-void xFinal(sqlite3_context *context)
+static int stats_sleep(sqlite3_vfs *vfs, int us)
 {
-    JNIEnv *env = 0;
-    struct UDFData *udf = 0;
-    jobject *func = 0;
-    static jmethodID mth = 0;
+    sqlite3_vfs *real = stats_real_vfs(vfs);
+    return real->xSleep(real, us);
+}
 
-    udf = (struct UDFData*)sqlite3_user_data(context);
-    (*udf->vm)->AttachCurrentThread(udf->vm, (void **)&env, 0);
+static int stats_current_time(sqlite3_vfs *vfs, double *t)
+{
+    sqlite3_vfs *real = stats_real_vfs(vfs);
+    return real->xCurrentTime(real, t);
+}
 
-    if (!mth) mth = (*env)->GetMethodID(env, aclass, "xFinal", "()V");
+static int stats_get_last_error(sqlite3_vfs *vfs, int n, char *msg)
+{
+    sqlite3_vfs *real = stats_real_vfs(vfs);
+    return real->xGetLastError(real, n, msg);
+}
 
-    func = sqlite3_aggregate_context(context, sizeof(jobject));
-    assert(*func); // disaster
+static int stats_current_time_int64(sqlite3_vfs *vfs, sqlite3_int64 *t)
+{
+    sqlite3_vfs *real = stats_real_vfs(vfs);
+    return real->xCurrentTimeInt64(real, t);
+}
 
-    xCall(context, 0, 0, *func, mth);
+static sqlite3_vfs stats_vfs = {
+    2, 0, 0, 0, STATS_VFS, 0,
+    stats_open, stats_delete, stats_access, stats_full_pathname,
+    stats_dl_open, stats_dl_error, stats_dl_sym, stats_dl_close,
+    stats_randomness, stats_sleep, stats_current_time,
+    stats_get_last_error, stats_current_time_int64
+};
 
-    // clean up Function.Aggregate instance
-    (*env)->DeleteGlobalRef(env, *func);
+static int stats_register(void)
+{
+    sqlite3_vfs *real = sqlite3_vfs_find(0);
+    if (!real) return SQLITE_ERROR;
+    if (real->iVersion < 2) stats_vfs.xCurrentTimeInt64 = 0;
+    stats_vfs.szOsFile = sizeof(struct StatsFile) + real->szOsFile;
+    stats_vfs.mxPathname = real->mxPathname;
+    stats_vfs.pAppData = real;
+    return sqlite3_vfs_register(&stats_vfs, 0);
 }
 
 
@@ -276,6 +1831,49 @@ JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved)
     if (!aclass) return JNI_ERR;
     aclass = (*env)->NewWeakGlobalRef(env, aclass);
 
+    uclass = (*env)->FindClass(env, "org/sqlite/Function$Accumulator");
+    if (!uclass) return JNI_ERR;
+    uclass = (*env)->NewWeakGlobalRef(env, uclass);
+
+    wclass = (*env)->FindClass(env, "org/sqlite/Function$Window");
+    if (!wclass) return JNI_ERR;
+    wclass = (*env)->NewWeakGlobalRef(env, wclass);
+
+    xclass = (*env)->FindClass(env, "org/sqlite/Function$WindowAccumulator");
+    if (!xclass) return JNI_ERR;
+    xclass = (*env)->NewWeakGlobalRef(env, xclass);
+
+    bclass = (*env)->FindClass(env, "org/sqlite/Function$BatchAccumulator");
+    if (!bclass) return JNI_ERR;
+    bclass = (*env)->NewWeakGlobalRef(env, bclass);
+
+    vclass = (*env)->FindClass(env, "org/sqlite/VirtualTable");
+    if (!vclass) return JNI_ERR;
+    vclass = (*env)->NewWeakGlobalRef(env, vclass);
+
+    mclass = (*env)->FindClass(env, "org/sqlite/VirtualTable$Module");
+    if (!mclass) return JNI_ERR;
+    mclass = (*env)->NewWeakGlobalRef(env, mclass);
+
+    cclass = (*env)->FindClass(env, "org/sqlite/VirtualTable$Cursor");
+    if (!cclass) return JNI_ERR;
+    cclass = (*env)->NewWeakGlobalRef(env, cclass);
+
+    iclass = (*env)->FindClass(env, "org/sqlite/VirtualTable$IndexInfo");
+    if (!iclass) return JNI_ERR;
+    iclass = (*env)->NewWeakGlobalRef(env, iclass);
+
+    rclass = (*env)->FindClass(env, "org/sqlite/RowBuffer");
+    if (!rclass) return JNI_ERR;
+    rclass = (*env)->NewWeakGlobalRef(env, rclass);
+
+    oclass = (*env)->FindClass(env, "org/sqlite/Collation");
+    if (!oclass) return JNI_ERR;
+    oclass = (*env)->NewWeakGlobalRef(env, oclass);
+
+    if (sqlite3_initialize() != SQLITE_OK || stats_register() != SQLITE_OK)
+        return JNI_ERR;
+
     return JNI_VERSION_1_2;
 }
 
@@ -289,6 +1887,16 @@ JNIEXPORT void JNICALL JNI_OnUnload(JavaVM *vm, void *reserved)
     (*env)->DeleteWeakGlobalRef(env, dbclass);
     (*env)->DeleteWeakGlobalRef(env, fclass);
     (*env)->DeleteWeakGlobalRef(env, aclass);
+    (*env)->DeleteWeakGlobalRef(env, uclass);
+    (*env)->DeleteWeakGlobalRef(env, wclass);
+    (*env)->DeleteWeakGlobalRef(env, xclass);
+    (*env)->DeleteWeakGlobalRef(env, bclass);
+    (*env)->DeleteWeakGlobalRef(env, vclass);
+    (*env)->DeleteWeakGlobalRef(env, mclass);
+    (*env)->DeleteWeakGlobalRef(env, cclass);
+    (*env)->DeleteWeakGlobalRef(env, iclass);
+    (*env)->DeleteWeakGlobalRef(env, rclass);
+    (*env)->DeleteWeakGlobalRef(env, oclass);
     return;
 }
 
@@ -302,11 +1910,11 @@ JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_shared_1cache(
 }
 
 JNIEXPORT void JNICALL Java_org_sqlite_NativeDB__1open(
-        JNIEnv *env, jobject this, jstring file)
+        JNIEnv *env, jobject this, jstring file, jint flags, jstring vfs)
 {
-    int ret;
+    int rc;
     sqlite3 *db = gethandle(env, this);
-    const char *str;
+    const char *str, *strvfs = 0;
 
     if (db) {
         throwexmsg(env, "DB already open");
@@ -317,12 +1925,23 @@ JNIEXPORT void JNICALL Java_org_sqlite_NativeDB__1open(
     sqlite3_initialize();
 
     str = (*env)->GetStringUTFChars(env, file, 0); 
-    if (sqlite3_open(str, &db)) {
-        throwex(env, this);
+    if (vfs) strvfs = (*env)->GetStringUTFChars(env, vfs, 0);
+    rc = sqlite3_open_v2(str, &db, flags, strvfs);
+    (*env)->ReleaseStringUTFChars(env, file, str);
+    if (vfs) (*env)->ReleaseStringUTFChars(env, vfs, strvfs);
+    if (rc != SQLITE_OK) {
+        // the handle is not set yet, so report the error from here
+        throwexmsg(env, db ? sqlite3_errmsg(db) : "out of memory");
+        sqlite3_close(db);
+        return;
+    }
+
+    rc = sqlite3_create_module_v2(db, "carray", &carray_module, 0, 0);
+    if (rc != SQLITE_OK) {
+        throwexmsg(env, sqlite3_errmsg(db));
         sqlite3_close(db);
         return;
     }
-    (*env)->ReleaseStringUTFChars(env, file, str);
 
     sethandle(env, this, db);
 }
@@ -335,6 +1954,16 @@ JNIEXPORT void JNICALL Java_org_sqlite_NativeDB__1close(
     sethandle(env, this, 0);
 }
 
+JNIEXPORT jboolean JNICALL Java_org_sqlite_NativeDB_db_1readonly(
+        JNIEnv *env, jobject this, jstring schema)
+{
+    int ro;
+    const char *strschema = (*env)->GetStringUTFChars(env, schema, 0);
+    ro = sqlite3_db_readonly(gethandle(env, this), strschema);
+    (*env)->ReleaseStringUTFChars(env, schema, strschema);
+    return ro > 0 ? JNI_TRUE : JNI_FALSE;
+}
+
 JNIEXPORT void JNICALL Java_org_sqlite_NativeDB_interrupt(JNIEnv *env, jobject this)
 {
     sqlite3_interrupt(gethandle(env, this));
@@ -347,14 +1976,21 @@ JNIEXPORT void JNICALL Java_org_sqlite_NativeDB_busy_1timeout(
 }
 
 JNIEXPORT jlong JNICALL Java_org_sqlite_NativeDB_prepare(
-        JNIEnv *env, jobject this, jstring sql)
+        JNIEnv *env, jobject this, jbyteArray sql)
 {
     sqlite3* db = gethandle(env, this);
     sqlite3_stmt* stmt;
-
-    const char *strsql = (*env)->GetStringUTFChars(env, sql, 0);
-    int status = sqlite3_prepare_v2(db, strsql, -1, &stmt, 0);
-    (*env)->ReleaseStringUTFChars(env, sql, strsql);
+    jsize size = (*env)->GetArrayLength(env, sql);
+    int status;
+
+    // copied, as an authorizer may call back into Java while compiling;
+    // the terminator saves SQLite its own copy
+    char *strsql = malloc(size + 1);
+    if (!strsql) { throwexmsg(env, "out of memory"); return fromref(0); }
+    (*env)->GetByteArrayRegion(env, sql, 0, size, (jbyte*)strsql);
+    strsql[size] = 0;
+    status = sqlite3_prepare_v2(db, strsql, size + 1, &stmt, 0);
+    free(strsql);
 
     if (status != SQLITE_OK) {
         throwex(env, this);
@@ -383,19 +2019,66 @@ JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_changes(
 JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_finalize(
         JNIEnv *env, jobject this, jlong stmt)
 {
-    return sqlite3_finalize(toref(stmt));
+    int rc = sqlite3_finalize(toref(stmt));
+    change_publish(env, this, gethandle(env, this));
+    return rc;
 }
 
 JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_step(
         JNIEnv *env, jobject this, jlong stmt)
 {
-    return sqlite3_step(toref(stmt));
+    int rc = sqlite3_step(toref(stmt));
+    if (rc != SQLITE_ROW) change_publish(env, this, gethandle(env, this));
+    return rc;
+}
+
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_step_1batch(
+        JNIEnv *env, jobject this, jlong stmt, jbyteArray types,
+        jlongArray longs, jdoubleArray doubles, jint max)
+{
+    sqlite3_stmt *dbstmt = toref(stmt);
+    int cols = sqlite3_column_count(dbstmt);
+    int n = cols * max;
+    int c, rc, row = 0;
+    jlong *lbuf = malloc(n * (sizeof(jlong) + sizeof(jdouble) + 1) + 1);
+    jdouble *dbuf = (jdouble*)(lbuf + n);
+    jbyte *tbuf = (jbyte*)(dbuf + n);
+
+    if (!lbuf) { throwexmsg(env, "out of memory"); return 0; }
+
+    // step all the rows first, then copy each column in one call
+    while (row < max) {
+        rc = sqlite3_step(dbstmt);
+        if (rc == SQLITE_DONE) {
+            change_publish(env, this, sqlite3_db_handle(dbstmt));
+            break;
+        }
+        if (rc != SQLITE_ROW) { free(lbuf); throwex(env, this); return 0; }
+        for (c=0; c < cols; c++) {
+            int at = c * max + row;
+            tbuf[at] = (jbyte)sqlite3_column_type(dbstmt, c);
+            lbuf[at] = sqlite3_column_int64(dbstmt, c);
+            dbuf[at] = sqlite3_column_double(dbstmt, c);
+        }
+        row++;
+    }
+
+    for (c=0; c < cols && row; c++) {
+        (*env)->SetByteArrayRegion(env, types, c * max, row, tbuf + c * max);
+        (*env)->SetLongArrayRegion(env, longs, c * max, row, lbuf + c * max);
+        (*env)->SetDoubleArrayRegion(env, doubles, c * max, row,
+                                     dbuf + c * max);
+    }
+    free(lbuf);
+    return row;
 }
 
 JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_reset(
         JNIEnv *env, jobject this, jlong stmt)
 {
-    return sqlite3_reset(toref(stmt));
+    int rc = sqlite3_reset(toref(stmt));
+    change_publish(env, this, gethandle(env, this));
+    return rc;
 }
 
 JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_clear_1bindings(
@@ -416,6 +2099,31 @@ JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_bind_1parameter_1count(
     return sqlite3_bind_parameter_count(toref(stmt));
 }
 
+JNIEXPORT jobjectArray JNICALL Java_org_sqlite_NativeDB_bind_1parameter_1names(
+        JNIEnv *env, jobject this, jlong stmt)
+{
+    sqlite3_stmt *dbstmt = toref(stmt);
+    int i, count = sqlite3_bind_parameter_count(dbstmt);
+    jclass bytes = (*env)->FindClass(env, "[B");
+    jobjectArray array = (*env)->NewObjectArray(env, count, bytes, NULL);
+    assert(array); // out-of-memory
+    (*env)->DeleteLocalRef(env, bytes);
+
+    for (i = 0; i < count; i++) {
+        const char *name = sqlite3_bind_parameter_name(dbstmt, i + 1);
+        jsize length;
+        jbyteArray jName;
+        if (!name) continue;
+        length = strlen(name);
+        jName = (*env)->NewByteArray(env, length);
+        assert(jName); // out-of-memory
+        (*env)->SetByteArrayRegion(env, jName, 0, length, (const jbyte*)name);
+        (*env)->SetObjectArrayElement(env, array, i, jName);
+        (*env)->DeleteLocalRef(env, jName);
+    }
+    return array;
+}
+
 JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_column_1count(
         JNIEnv *env, jobject this, jlong stmt)
 {
@@ -449,11 +2157,19 @@ JNIEXPORT jstring JNICALL Java_org_sqlite_NativeDB_column_1name(
     return str ? (*env)->NewString(env, str, jstrlen(str)) : NULL;
 }
 
-JNIEXPORT jstring JNICALL Java_org_sqlite_NativeDB_column_1text(
+JNIEXPORT jbyteArray JNICALL Java_org_sqlite_NativeDB_column_1utf8(
         JNIEnv *env, jobject this, jlong stmt, jint col)
 {
-    return (*env)->NewStringUTF(
-        env, (const char*)sqlite3_column_text(toref(stmt), col));
+    jsize length;
+    jbyteArray jText;
+    const void *text = sqlite3_column_text(toref(stmt), col);
+    if (!text) return NULL;
+
+    length = sqlite3_column_bytes(toref(stmt), col);
+    jText = (*env)->NewByteArray(env, length);
+    assert(jText); // out-of-memory
+    (*env)->SetByteArrayRegion(env, jText, 0, length, text);
+    return jText;
 }
 
 JNIEXPORT jbyteArray JNICALL Java_org_sqlite_NativeDB_column_1blob(
@@ -494,6 +2210,22 @@ JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_column_1int(
     return sqlite3_column_int(toref(stmt), col);
 }
 
+JNIEXPORT jlong JNICALL Java_org_sqlite_NativeDB_column_1typed_1long(
+        JNIEnv *env, jobject this, jlong stmt, jint col, jintArray type)
+{
+    jint t = sqlite3_column_type(toref(stmt), col);
+    (*env)->SetIntArrayRegion(env, type, 0, 1, &t);
+    return t == SQLITE_NULL ? 0 : sqlite3_column_int64(toref(stmt), col);
+}
+
+JNIEXPORT jdouble JNICALL Java_org_sqlite_NativeDB_column_1typed_1double(
+        JNIEnv *env, jobject this, jlong stmt, jint col, jintArray type)
+{
+    jint t = sqlite3_column_type(toref(stmt), col);
+    (*env)->SetIntArrayRegion(env, type, 0, 1, &t);
+    return t == SQLITE_NULL ? 0 : sqlite3_column_double(toref(stmt), col);
+}
+
 JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_bind_1null(
         JNIEnv *env, jobject this, jlong stmt, jint pos)
 {
@@ -519,11 +2251,14 @@ JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_bind_1double(
 }
 
 JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_bind_1text(
-        JNIEnv *env, jobject this, jlong stmt, jint pos, jstring v)
+        JNIEnv *env, jobject this, jlong stmt, jint pos, jbyteArray v)
 {
-    const char *chars = (*env)->GetStringUTFChars(env, v, 0);
-    int rc = sqlite3_bind_text(toref(stmt), pos, chars, -1, SQLITE_TRANSIENT);
-    (*env)->ReleaseStringUTFChars(env, v, chars);
+    jint rc;
+    jsize size = (*env)->GetArrayLength(env, v);
+    void *chars = (*env)->GetPrimitiveArrayCritical(env, v, 0);
+    if (!chars) return SQLITE_NOMEM;
+    rc = sqlite3_bind_text(toref(stmt), pos, chars, size, SQLITE_TRANSIENT);
+    (*env)->ReleasePrimitiveArrayCritical(env, v, chars, JNI_ABORT);
     return rc;
 }
 
@@ -539,6 +2274,38 @@ JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_bind_1blob(
     return rc;
 }
 
+/* Copies the elements to one allocation owned by the statement. values is
+ * a long[], a double[], or the bytes of all text or blob elements. */
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_bind_1carray(
+        JNIEnv *env, jobject this, jlong stmt, jint pos, jint type,
+        jarray values, jintArray ends, jint n)
+{
+    struct CArray *a;
+    jsize size = (*env)->GetArrayLength(env, values);
+    jsize nends = ends ? n : 0;
+
+    if (type == SQLITE_INTEGER) size *= sizeof(jlong);
+    else if (type == SQLITE_FLOAT) size *= sizeof(jdouble);
+
+    a = malloc(sizeof(struct CArray) + nends * sizeof(jint) + size);
+    if (!a) return SQLITE_NOMEM;
+    a->type = type;
+    a->n = n;
+    a->ends = (jint *)(a + 1);
+    a->values = (char *)a->ends + nends * sizeof(jint);
+
+    if (nends)
+        (*env)->GetIntArrayRegion(env, ends, 0, nends, a->ends);
+    if (type == SQLITE_INTEGER)
+        (*env)->GetLongArrayRegion(env, values, 0, n, a->values);
+    else if (type == SQLITE_FLOAT)
+        (*env)->GetDoubleArrayRegion(env, values, 0, n, a->values);
+    else
+        (*env)->GetByteArrayRegion(env, values, 0, size, a->values);
+
+    return sqlite3_bind_pointer(toref(stmt), pos, a, CARRAY_POINTER, free);
+}
+
 JNIEXPORT void JNICALL Java_org_sqlite_NativeDB_result_1null(
         JNIEnv *env, jobject this, jlong context)
 {
@@ -663,24 +2430,63 @@ JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_value_1type(
 
 
 JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_create_1function(
-        JNIEnv *env, jobject this, jstring name, jobject func)
+        JNIEnv *env, jobject this, jstring name, jobject func, jint nArgs,
+        jint flags)
 {
     jint ret = 0;
     const char *strname = 0;
     int isAgg = 0;
 
-    static jfieldID udfdatalist = 0;
+    static jfieldID udfdatalist = 0, fld_states = 0;
+    static jmethodID order = 0, native_order = 0;
+    static jclass order_class = 0;
     struct UDFData *udf = malloc(sizeof(struct UDFData));
+    jobject block, nat;
+    int isAcc = 0, isBatch = 0, size;
 
     assert(udf); // out-of-memory
 
     if (!udfdatalist)
         udfdatalist = (*env)->GetFieldID(env, dbclass, "udfdatalist", "J");
 
+    if (!order) {
+        jclass c = (*env)->FindClass(env, "java/nio/ByteBuffer");
+        order = (*env)->GetMethodID(env, c, "order",
+            "(Ljava/nio/ByteOrder;)Ljava/nio/ByteBuffer;");
+        (*env)->DeleteLocalRef(env, c);
+        c = (*env)->FindClass(env, "java/nio/ByteOrder");
+        order_class = (*env)->NewGlobalRef(env, c);
+        native_order = (*env)->GetStaticMethodID(env, order_class,
+            "nativeOrder", "()Ljava/nio/ByteOrder;");
+        (*env)->DeleteLocalRef(env, c);
+    }
+
+    if (!fld_states)
+        fld_states = (*env)->GetFieldID(env, uclass, "states", "I");
+
     isAgg = (*env)->IsInstanceOf(env, func, aclass);
+    isAcc = (*env)->IsInstanceOf(env, func, uclass);
+    isBatch = (*env)->IsInstanceOf(env, func, bclass);
     udf->func = (*env)->NewGlobalRef(env, func);
     (*env)->GetJavaVM(env, &udf->vm);
 
+    udf->slots = nArgs < 0 ? UDF_SLOTS : nArgs;
+    udf->states = isAcc
+        ? 1 + (*env)->GetIntField(env, func, fld_states) : 0;
+    size = (2 + udf->slots * 2 + udf->states) * sizeof(jlong);
+    udf->block = malloc(size);
+    assert(udf->block); // out-of-memory
+    // each registration has its own block, so an instance registered
+    // several times, or on several connections, passes the right one
+    block = (*env)->NewDirectByteBuffer(env, udf->block, size);
+    assert(block); // out-of-memory
+    nat = (*env)->CallStaticObjectMethod(env, order_class, native_order);
+    (*env)->DeleteLocalRef(env, (*env)->CallObjectMethod(env, block, order, nat));
+    (*env)->DeleteLocalRef(env, nat);
+    udf->buf = (*env)->NewGlobalRef(env, block);
+    (*env)->DeleteLocalRef(env, block);
+    udf->batch = isBatch ? batch_new(env, func, nArgs) : 0;
+
     // add new function def to linked list
     udf->next = toref((*env)->GetLongField(env, this, udfdatalist));
     (*env)->SetLongField(env, this, udfdatalist, fromref(udf));
@@ -688,16 +2494,25 @@ JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_create_1function(
     strname = (*env)->GetStringUTFChars(env, name, 0);
     assert(strname); // out-of-memory
 
-    ret = sqlite3_create_function(
+    if ((*env)->IsInstanceOf(env, func, wclass))
+        ret = sqlite3_create_window_function(gethandle(env, this), strname,
+            nArgs, SQLITE_UTF16 | flags, udf,
+            &xStep, &xFinal, &xValue, &xInverse, 0);
+    else if ((*env)->IsInstanceOf(env, func, xclass))
+        ret = sqlite3_create_window_function(gethandle(env, this), strname,
+            nArgs, SQLITE_UTF16 | flags, udf,
+            &xAccStep, &xAccFinal, &xAccValue, &xAccInverse, 0);
+    else
+        ret = sqlite3_create_function(
             gethandle(env, this),
             strname,       // function name
-            -1,            // number of args
-            SQLITE_UTF16,  // preferred chars
+            nArgs,         // number of args
+            SQLITE_UTF16 | flags,
             udf,
-            isAgg ? 0 :&xFunc,
-            isAgg ? &xStep : 0,
-            isAgg ? &xFinal : 0
-    );
+            isAgg || isAcc ? 0 : &xFunc,
+            isAgg ? &xStep : isBatch ? &xBatchStep : isAcc ? &xAccStep : 0,
+            isAgg ? &xFinal : isBatch ? &xBatchFinal : isAcc ? &xAccFinal : 0
+        );
 
     (*env)->ReleaseStringUTFChars(env, name, strname);
 
@@ -705,11 +2520,11 @@ JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_create_1function(
 }
 
 JNIEXPORT void JNICALL Java_org_sqlite_NativeDB_destroy_1function(
-        JNIEnv *env, jobject this, jstring name)
+        JNIEnv *env, jobject this, jstring name, jint nArgs)
 {
     const char* strname = (*env)->GetStringUTFChars(env, name, 0);
     sqlite3_create_function(
-        gethandle(env, this), strname, -1, SQLITE_UTF16, 0, 0, 0, 0
+        gethandle(env, this), strname, nArgs, SQLITE_UTF16, 0, 0, 0, 0
     );
     (*env)->ReleaseStringUTFChars(env, name, strname);
 }
@@ -729,67 +2544,545 @@ JNIEXPORT void JNICALL Java_org_sqlite_NativeDB_free_1functions(
     while (udf) {
         udfpass = udf->next;
         (*env)->DeleteGlobalRef(env, udf->func);
+        (*env)->DeleteGlobalRef(env, udf->buf);
+        free(udf->block);
+        if (udf->batch) {
+            (*env)->DeleteGlobalRef(env, udf->batch->batch);
+            (*env)->DeleteGlobalRef(env, udf->batch->types);
+            (*env)->DeleteGlobalRef(env, udf->batch->longs);
+            (*env)->DeleteGlobalRef(env, udf->batch->doubles);
+            free(udf->batch->lbuf);
+            free(udf->batch);
+        }
         free(udf);
         udf = udfpass;
     }
 }
 
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_create_1module(
+        JNIEnv *env, jobject this, jstring name, jobject module,
+        jboolean eponymous)
+{
+    jint ret = 0;
+    const char *strname = 0;
+    struct VTabModule *mod = 0;
+
+    if (module) {
+        mod = malloc(sizeof(struct VTabModule));
+        assert(mod); // out-of-memory
+        (*env)->GetJavaVM(env, &mod->vm);
+        mod->module = (*env)->NewGlobalRef(env, module);
+    }
+
+    strname = (*env)->GetStringUTFChars(env, name, 0);
+    assert(strname); // out-of-memory
+
+    // SQLite owns mod from here, vtab_module_free() releases it when the
+    // module is replaced, removed or the db closed
+    ret = sqlite3_create_module_v2(
+            gethandle(env, this),
+            strname,
+            module ? (eponymous ? &vtab_eponymous : &vtab_module) : 0,
+            mod,
+            module ? &vtab_module_free : 0
+    );
+
+    (*env)->ReleaseStringUTFChars(env, name, strname);
+
+    return ret;
+}
+
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_create_1collation(
+        JNIEnv *env, jobject this, jstring name, jobject collation)
+{
+    jint ret = 0;
+    const char *strname = 0;
+    struct CollData *coll = 0;
+
+    if (collation) {
+        coll = calloc(1, sizeof(struct CollData));
+        assert(coll); // out-of-memory
+        (*env)->GetJavaVM(env, &coll->vm);
+        coll->collation = (*env)->NewGlobalRef(env, collation);
+    }
+
+    strname = (*env)->GetStringUTFChars(env, name, 0);
+    assert(strname); // out-of-memory
+
+    ret = sqlite3_create_collation_v2(
+            gethandle(env, this),
+            strname,
+            SQLITE_UTF8,
+            coll,
+            collation ? &xCompare : 0,
+            collation ? &coll_free : 0
+    );
+
+    (*env)->ReleaseStringUTFChars(env, name, strname);
+
+    // on failure, SQLite does not call the destructor
+    if (ret != SQLITE_OK && coll) coll_free(coll);
+
+    return ret;
+}
+
+JNIEXPORT jlong JNICALL Java_org_sqlite_NativeDB_serialize(
+        JNIEnv *env, jobject this, jstring schema, jobject dst, jint offset,
+        jint space)
+{
+    sqlite3 *db = gethandle(env, this);
+    sqlite3_int64 size = -1;
+    unsigned char *image = 0, *out = 0;
+    const char *strschema;
+    int copied = 0;
+
+    strschema = (*env)->GetStringUTFChars(env, schema, 0);
+    assert(strschema); // out-of-memory
+
+    // NOCOPY reports the size of any database, and exposes the image of
+    // an in-memory database without an extra copy
+    image = sqlite3_serialize(db, strschema, &size, SQLITE_SERIALIZE_NOCOPY);
+    if (size < 0) {
+        (*env)->ReleaseStringUTFChars(env, schema, strschema);
+        throwexmsg(env, "unable to serialize database");
+        return 0;
+    }
+    if (!dst) {
+        (*env)->ReleaseStringUTFChars(env, schema, strschema);
+        return size;
+    }
+
+    out = (*env)->GetDirectBufferAddress(env, dst);
+    if (!out) {
+        (*env)->ReleaseStringUTFChars(env, schema, strschema);
+        throwexmsg(env, "serialization buffer must be direct");
+        return 0;
+    }
+
+    if (!image && size > 0) {
+        image = sqlite3_serialize(db, strschema, &size, 0);
+        copied = 1;
+    }
+    (*env)->ReleaseStringUTFChars(env, schema, strschema);
+    if (!image && size > 0) {
+        throwexmsg(env, "out of memory serializing database");
+        return 0;
+    }
+
+    // only the bytes up to the limit of dst are ours to write
+    if (space < size) {
+        if (copied) sqlite3_free(image);
+        return -size;
+    }
+    if (size > 0) memcpy(out + offset, image, size);
+    if (copied) sqlite3_free(image);
+
+    return size;
+}
+
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_deserialize(
+        JNIEnv *env, jobject this, jstring schema, jobject src, jint offset,
+        jlong size, jboolean readOnly)
+{
+    unsigned char *data, *image;
+    const char *strschema;
+    unsigned int flags;
+    int rc;
+
+    data = (*env)->GetDirectBufferAddress(env, src);
+    if (!data) {
+        throwexmsg(env, "deserialization buffer must be direct");
+        return SQLITE_MISUSE;
+    }
+    data += offset;
+
+    if (readOnly) {
+        // served in place: the Java side keeps the buffer reachable
+        image = data;
+        flags = SQLITE_DESERIALIZE_READONLY;
+    } else {
+        image = sqlite3_malloc64(size > 0 ? size : 1);
+        if (!image) return SQLITE_NOMEM;
+        if (size > 0) memcpy(image, data, size);
+        flags = SQLITE_DESERIALIZE_FREEONCLOSE | SQLITE_DESERIALIZE_RESIZEABLE;
+    }
+
+    strschema = (*env)->GetStringUTFChars(env, schema, 0);
+    assert(strschema); // out-of-memory
+    // frees image on failure when FREEONCLOSE is set
+    rc = sqlite3_deserialize(gethandle(env, this), strschema, image, size,
+                             size, flags);
+    (*env)->ReleaseStringUTFChars(env, schema, strschema);
+
+    return rc;
+}
+
+JNIEXPORT jlongArray JNICALL Java_org_sqlite_NativeDB_io_1stats(
+        JNIEnv *env, jobject this)
+{
+    sqlite3_file *file = 0;
+    struct StatsFile *stats;
+    jlong counts[2];
+    jlongArray array;
+
+    sqlite3_file_control(gethandle(env, this), "main",
+                         SQLITE_FCNTL_FILE_POINTER, &file);
+    if (!file || file->pMethods != &stats_io_methods) return NULL;
+
+    stats = (struct StatsFile *)file;
+    counts[0] = stats->fetches;
+    counts[1] = stats->reads;
+
+    array = (*env)->NewLongArray(env, 2);
+    assert(array); // out-of-memory
+    (*env)->SetLongArrayRegion(env, array, 0, 2, counts);
+    return array;
+}
+
+JNIEXPORT jstring JNICALL Java_org_sqlite_NativeDB_db_1filename(
+        JNIEnv *env, jobject this, jstring schema)
+{
+    const char *name;
+    const char *strschema = (*env)->GetStringUTFChars(env, schema, 0);
+    name = sqlite3_db_filename(gethandle(env, this), strschema);
+    (*env)->ReleaseStringUTFChars(env, schema, strschema);
+    return name ? (*env)->NewStringUTF(env, name) : NULL;
+}
+
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_wal_1hook(
+        JNIEnv *env, jobject this, jobject checkpointer, jint threshold)
+{
+    static jfieldID walhook = 0;
+    sqlite3 *db = gethandle(env, this);
+    struct WalHook *hook;
+
+    if (!walhook)
+        walhook = (*env)->GetFieldID(env, dbclass, "walhook", "J");
+
+    hook = toref((*env)->GetLongField(env, this, walhook));
+    if (!checkpointer) {
+        if (!hook) return SQLITE_OK;
+        (*env)->SetLongField(env, this, walhook, 0);
+        // also unregisters xWalHook, a setting of 0 leaves no hook
+        sqlite3_wal_autocheckpoint(db, hook->autocheckpoint);
+        (*env)->DeleteGlobalRef(env, hook->checkpointer);
+        free(hook);
+        return SQLITE_OK;
+    }
+
+    if (!hook) {
+        hook = malloc(sizeof(struct WalHook));
+        if (!hook) return SQLITE_NOMEM;
+        (*env)->GetJavaVM(env, &hook->vm);
+        hook->checkpointer = 0;
+        hook->autocheckpoint = wal_autocheckpoint(db);
+        (*env)->SetLongField(env, this, walhook, fromref(hook));
+    }
+    if (hook->checkpointer)
+        (*env)->DeleteGlobalRef(env, hook->checkpointer);
+    hook->checkpointer = (*env)->NewGlobalRef(env, checkpointer);
+    hook->threshold = threshold;
+
+    sqlite3_wal_hook(db, &xWalHook, hook);
+    return SQLITE_OK;
+}
+
+JNIEXPORT jintArray JNICALL Java_org_sqlite_NativeDB_wal_1checkpoint(
+        JNIEnv *env, jobject this, jstring schema, jint mode)
+{
+    jint res[3] = { 0, -1, -1 };
+    jintArray array;
+    const char *strschema = 0;
+    int log = -1, ckpt = -1;
+
+    if (schema) strschema = (*env)->GetStringUTFChars(env, schema, 0);
+    res[0] = sqlite3_wal_checkpoint_v2(gethandle(env, this), strschema, mode,
+                                       &log, &ckpt);
+    if (schema) (*env)->ReleaseStringUTFChars(env, schema, strschema);
+    res[1] = log;
+    res[2] = ckpt;
+
+    array = (*env)->NewIntArray(env, 3);
+    assert(array); // out-of-memory
+    (*env)->SetIntArrayRegion(env, array, 0, 3, res);
+    return array;
+}
+
+
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_change_1hook(
+        JNIEnv *env, jobject this, jobject conn, jint capacity)
+{
+    sqlite3 *db = gethandle(env, this);
+    struct ChangeHook *hook;
+
+    if (!changehook)
+        changehook = (*env)->GetFieldID(env, dbclass, "changehook", "J");
+
+    hook = toref((*env)->GetLongField(env, this, changehook));
+    if (hook && (!conn || hook->capacity != capacity)) {
+        (*env)->SetLongField(env, this, changehook, 0);
+        change_unregister(db);
+        change_clear(hook, 1);
+        (*env)->DeleteGlobalRef(env, hook->conn);
+        free(hook);
+        hook = 0;
+    }
+    if (!conn) return SQLITE_OK;
+
+    if (!hook) {
+        if (capacity < 1) return SQLITE_MISUSE;
+        hook = change_alloc(capacity);
+        if (!hook) return SQLITE_NOMEM;
+        (*env)->SetLongField(env, this, changehook, fromref(hook));
+    } else {
+        (*env)->DeleteGlobalRef(env, hook->conn);
+    }
+    hook->conn = (*env)->NewGlobalRef(env, conn);
+
+#ifdef SQLITE_ENABLE_PREUPDATE_HOOK
+    sqlite3_preupdate_hook(db, &xPreUpdateHook, hook);
+#else
+    sqlite3_update_hook(db, &xUpdateHook, hook);
+#endif
+    sqlite3_commit_hook(db, &xCommitHook, hook);
+    sqlite3_rollback_hook(db, &xRollbackHook, hook);
+    return SQLITE_OK;
+}
+
+
+JNIEXPORT jboolean JNICALL Java_org_sqlite_NativeDB_get_1autocommit(
+        JNIEnv *env, jobject this)
+{
+    return sqlite3_get_autocommit(gethandle(env, this)) ? JNI_TRUE : JNI_FALSE;
+}
+
+JNIEXPORT jobjectArray JNICALL Java_org_sqlite_NativeDB_tables_1read(
+        JNIEnv *env, jobject this, jstring sql)
+{
+    sqlite3 *db = gethandle(env, this);
+    sqlite3_stmt *stmt = 0;
+    struct TablesRead tables = { 0, 0, 0, 0 };
+    jobjectArray array = 0;
+    const char *strsql = 0;
+    int rc, readonly, i;
+
+    strsql = (*env)->GetStringUTFChars(env, sql, 0);
+    if (!strsql) return 0;
+
+    sqlite3_set_authorizer(db, &xAuthTables, &tables);
+    rc = sqlite3_prepare_v2(db, strsql, -1, &stmt, 0);
+    sqlite3_set_authorizer(db, 0, 0);
+    (*env)->ReleaseStringUTFChars(env, sql, strsql);
+
+    if (rc != SQLITE_OK) {
+        throwex(env, this);
+    } else {
+        readonly = stmt && sqlite3_stmt_readonly(stmt);
+        sqlite3_finalize(stmt);
+        if (readonly && !tables.volatile_fn) {
+            array = (*env)->NewObjectArray(env, tables.count,
+                (*env)->FindClass(env, "java/lang/String"), 0);
+            for (i = 0; array && i < tables.count; i++) {
+                jstring name = (*env)->NewStringUTF(env, tables.names[i]);
+                (*env)->SetObjectArrayElement(env, array, i, name);
+                (*env)->DeleteLocalRef(env, name);
+            }
+        }
+    }
+
+    for (i = 0; i < tables.count; i++) sqlite3_free(tables.names[i]);
+    sqlite3_free(tables.names);
+    return array;
+}
 
 // COMPOUND FUNCTIONS ///////////////////////////////////////////////
 
-JNIEXPORT jobjectArray JNICALL Java_org_sqlite_NativeDB_column_1metadata(
-        JNIEnv *env, jobject this, jlong stmt)
+/* Returns a Java string for a UTF-16 string from SQLite, or NULL. */
+static jstring tostring16(JNIEnv *env, const void *str)
+{
+    return str ? (*env)->NewString(env, str, jstrlen(str)) : NULL;
+}
+
+/* Returns whether the table has a single primary key column, which when
+ * declared INTEGER is the rowid. */
+static int sole_primary_key(sqlite3 *db, const char *zDbName,
+                            const char *zTableName)
+{
+    sqlite3_stmt *stmt;
+    int n = 0;
+
+    if (sqlite3_prepare_v2(db,
+            "select count(*) from pragma_table_info(?, ?) where pk;",
+            -1, &stmt, 0) != SQLITE_OK)
+        return 0;
+    sqlite3_bind_text(stmt, 1, zTableName, -1, SQLITE_STATIC);
+    sqlite3_bind_text(stmt, 2, zDbName, -1, SQLITE_STATIC);
+    if (sqlite3_step(stmt) == SQLITE_ROW) n = sqlite3_column_int(stmt, 0);
+    sqlite3_finalize(stmt);
+    return n == 1;
+}
+
+JNIEXPORT jobjectArray JNICALL Java_org_sqlite_NativeDB_column_1descriptors(
+        JNIEnv *env, jobject this, jlong stmt, jintArray flags)
 {
-    const char *zTableName, *zColumnName;
-    int pNotNull, pPrimaryKey, pAutoinc, i, colCount;
+    static jclass strclass = 0;
+    sqlite3 *db = gethandle(env, this);
+    sqlite3_stmt *dbstmt = toref(stmt);
+    int i, colCount = sqlite3_column_count(dbstmt);
     jobjectArray array;
-    jbooleanArray colData;
-    jboolean* colDataRaw;
-    sqlite3 *db;
-    sqlite3_stmt *dbstmt;
+    jint *colFlags;
 
-    db = gethandle(env, this);
-    dbstmt = toref(stmt);
+    if (!strclass) {
+        jclass cls = (*env)->FindClass(env, "java/lang/String");
+        strclass = (*env)->NewGlobalRef(env, cls);
+        (*env)->DeleteLocalRef(env, cls);
+    }
 
-    colCount = sqlite3_column_count(dbstmt);
-    array = (*env)->NewObjectArray(
-        env, colCount, (*env)->FindClass(env, "[Z"), NULL) ;
+    array = (*env)->NewObjectArray(env, colCount * 4, strclass, NULL);
     assert(array); // out-of-memory
-
-    colDataRaw = (jboolean*)malloc(3 * sizeof(jboolean));
-    assert(colDataRaw); // out-of-memory
+    colFlags = malloc((colCount + 1) * sizeof(jint));
+    assert(colFlags); // out-of-memory
 
     for (i = 0; i < colCount; i++) {
-        // load passed column name and table name
-        zColumnName = sqlite3_column_name(dbstmt, i);
-        zTableName  = sqlite3_column_table_name(dbstmt, i);
-
-        pNotNull = 0;
-        pPrimaryKey = 0;
-        pAutoinc = 0;
+        const char *zDbName = sqlite3_column_database_name(dbstmt, i);
+        const char *zTableName = sqlite3_column_table_name(dbstmt, i);
+        const char *zColumnName = sqlite3_column_origin_name(dbstmt, i);
+        const char *zDeclType = 0;
+        int pNotNull = 0, pPrimaryKey = 0, pAutoinc = 0, rowid = 0;
+        jstring str;
 
-        // request metadata for column and load into output variables
         if (zTableName && zColumnName) {
             sqlite3_table_column_metadata(
-                db, 0, zTableName, zColumnName,
-                0, 0, &pNotNull, &pPrimaryKey, &pAutoinc
+                db, zDbName, zTableName, zColumnName,
+                &zDeclType, 0, &pNotNull, &pPrimaryKey, &pAutoinc
             );
+            rowid = pPrimaryKey && zDeclType
+                && sqlite3_stricmp(zDeclType, "integer") == 0
+                && sole_primary_key(db, zDbName, zTableName);
         }
+        colFlags[i] = (pNotNull ? 1 : 0) | (pPrimaryKey ? 2 : 0)
+                    | (pAutoinc ? 4 : 0) | (rowid ? 8 : 0);
+
+        str = tostring16(env, sqlite3_column_name16(dbstmt, i));
+        (*env)->SetObjectArrayElement(env, array, i*4, str);
+        (*env)->DeleteLocalRef(env, str);
+        str = tostring16(env, sqlite3_column_decltype16(dbstmt, i));
+        (*env)->SetObjectArrayElement(env, array, i*4 + 1, str);
+        (*env)->DeleteLocalRef(env, str);
+        str = tostring16(env, sqlite3_column_table_name16(dbstmt, i));
+        (*env)->SetObjectArrayElement(env, array, i*4 + 2, str);
+        (*env)->DeleteLocalRef(env, str);
+        str = tostring16(env, sqlite3_column_origin_name16(dbstmt, i));
+        (*env)->SetObjectArrayElement(env, array, i*4 + 3, str);
+        (*env)->DeleteLocalRef(env, str);
+    }
+
+    (*env)->SetIntArrayRegion(env, flags, 0, colCount, colFlags);
+    free(colFlags);
+    return array;
+}
 
-        // load relevant metadata into 2nd dimension of return results
-        colDataRaw[0] = pNotNull;
-        colDataRaw[1] = pPrimaryKey;
-        colDataRaw[2] = pAutoinc;
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_stmt_1status(
+        JNIEnv *env, jobject this, jlong stmt, jint op, jboolean reset)
+{
+    return sqlite3_stmt_status(toref(stmt), op, reset ? 1 : 0);
+}
 
-        colData = (*env)->NewBooleanArray(env, 3);
-        assert(colData); // out-of-memory
+/* Microseconds since an arbitrary origin, to time script statements. */
+static sqlite3_int64 script_clock(void)
+{
+#ifdef _WIN32
+    LARGE_INTEGER count, freq;
+    QueryPerformanceCounter(&count);
+    QueryPerformanceFrequency(&freq);
+    return (sqlite3_int64)(count.QuadPart * 1000000.0 / freq.QuadPart);
+#else
+    struct timeval tv;
+    gettimeofday(&tv, 0);
+    return (sqlite3_int64)tv.tv_sec * 1000000 + tv.tv_usec;
+#endif
+}
 
-        (*env)->SetBooleanArrayRegion(env, colData, 0, 3, colDataRaw);
-        (*env)->SetObjectArrayElement(env, array, i, colData);
+/* Returns whether the statement at s ends before end: at a ';' which
+ * sqlite3_complete() takes for its end, and not inside a string or a
+ * trigger body. The first from bytes are known not to end it. end[0]
+ * must be writable. */
+static int script_ends(char *s, char *end, int from)
+{
+    char *p = s + from;
+    char c;
+    int complete;
+
+    for (; p < end && (p = memchr(p, ';', end - p)); p++) {
+        c = p[1];
+        p[1] = 0;
+        complete = sqlite3_complete(s);
+        p[1] = c;
+        if (complete) return 1;
     }
+    return 0;
+}
 
-    free(colDataRaw);
+/* Runs the statements of sql[pos[0]..len), walking the tail left by
+ * sqlite3_prepare_v2(), until an error, the end of the text or out is
+ * full of (changes, nanoseconds) pairs. Unless last is set, the text may
+ * end inside a statement continued by the next chunk of the script: that
+ * statement is left for the next call without being parsed, so that a
+ * statement spanning many chunks is parsed once. Its first pos[2] bytes
+ * are known not to end it. Returns in pos[0] the offset of the first
+ * statement not run, and in pos[1] the number of statements run. */
+JNIEXPORT jint JNICALL Java_org_sqlite_NativeDB_exec_1script(
+        JNIEnv *env, jobject this, jbyteArray sql, jint len, jboolean last,
+        jintArray pos, jlongArray out)
+{
+    sqlite3 *db = gethandle(env, this);
+    sqlite3_stmt *stmt;
+    sqlite3_int64 start;
+    jint p[3], cap = (*env)->GetArrayLength(env, out) / 2;
+    jlong *res;
+    char *buf;
+    const char *s, *end, *tail;
+    int rc = SQLITE_OK, n = 0, before;
+
+    (*env)->GetIntArrayRegion(env, pos, 0, 3, p);
+    buf = malloc(len - p[0] + 1);
+    res = malloc(cap * 2 * sizeof(jlong) + 1);
+    if (!buf || !res) { free(buf); free(res); return SQLITE_NOMEM; }
+    (*env)->GetByteArrayRegion(env, sql, p[0], len - p[0], (jbyte *)buf);
+    buf[len - p[0]] = 0;
+
+    s = buf;
+    end = buf + (len - p[0]);
+    while (s < end && n < cap) {
+        // also leaves comments and whitespace at the end to the next chunk
+        if (!last && !script_ends((char *)s, (char *)end,
+                                  s == buf ? p[2] : 0))
+            break;
+        rc = sqlite3_prepare_v2(db, s, end - s, &stmt, &tail);
+        if (rc != SQLITE_OK) break;
+        if (!stmt) {
+            s = tail;
+            continue;
+        }
 
-    return array;
-}
+        before = sqlite3_total_changes(db);
+        start = script_clock();
+        while ((rc = sqlite3_step(stmt)) == SQLITE_ROW);
+        res[n*2 + 1] = (script_clock() - start) * 1000;
+        sqlite3_finalize(stmt);
+        change_publish(env, this, db);
+        if (rc != SQLITE_DONE) break;
+        rc = SQLITE_OK;
+        res[n*2] = sqlite3_total_changes(db) == before ? 0 : sqlite3_changes(db);
+        n++;
+        s = tail;
+    }
 
+    p[0] += s - buf;
+    p[1] = n;
+    (*env)->SetIntArrayRegion(env, pos, 0, 2, p);
+    (*env)->SetLongArrayRegion(env, out, 0, n * 2, res);
+    free(buf);
+    free(res);
+    return rc;
+}
@@ -17,6 +17,7 @@
 package org.sqlite;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.sql.SQLException;
 
 /** This class provides a thin JNI layer over the SQLite3 C API. */
@@ -119,16 +120,24 @@ final class NativeDB extends DB
     /** linked list of all instanced UDFDatas */
     private long udfdatalist = 0;
 
+    /** WalHook of the attached Checkpointer */
+    private long walhook = 0;
+
+    /** ChangeHook recording changes for the listeners of the Conn */
+    private long changehook = 0;
+
 
     // WRAPPER FUNCTIONS ////////////////////////////////////////////
 
-    protected native synchronized void _open(String file) throws SQLException;
+    protected native synchronized void _open(String file, int flags, String vfs)
+        throws SQLException;
     protected native synchronized void _close() throws SQLException;
     native synchronized int shared_cache(boolean enable);
+    native synchronized boolean db_readonly(String schema);
     native synchronized void interrupt();
     native synchronized void busy_timeout(int ms);
     //native synchronized void exec(String sql) throws SQLException;
-    protected native synchronized long prepare(String sql) throws SQLException;
+    protected native synchronized long prepare(byte[] sql) throws SQLException;
     native synchronized String errmsg();
     native synchronized String libversion();
     native synchronized int changes();
@@ -139,24 +148,31 @@ final class NativeDB extends DB
     native synchronized int clear_bindings(long stmt);
 
     native synchronized int bind_parameter_count(long stmt);
+    native synchronized byte[][] bind_parameter_names(long stmt);
 
     native synchronized int    column_count      (long stmt);
     native synchronized int    column_type       (long stmt, int col);
     native synchronized String column_decltype   (long stmt, int col);
     native synchronized String column_table_name (long stmt, int col);
     native synchronized String column_name       (long stmt, int col);
-    native synchronized String column_text       (long stmt, int col);
+    native synchronized byte[] column_utf8       (long stmt, int col);
     native synchronized byte[] column_blob       (long stmt, int col);
     native synchronized double column_double     (long stmt, int col);
     native synchronized long   column_long       (long stmt, int col);
     native synchronized int    column_int        (long stmt, int col);
+    native synchronized long   column_typed_long  (long stmt, int col,
+                                                   int[] type);
+    native synchronized double column_typed_double(long stmt, int col,
+                                                   int[] type);
 
     native synchronized int bind_null  (long stmt, int pos);
     native synchronized int bind_int   (long stmt, int pos, int    v);
     native synchronized int bind_long  (long stmt, int pos, long   v);
     native synchronized int bind_double(long stmt, int pos, double v);
-    native synchronized int bind_text  (long stmt, int pos, String v);
+    native synchronized int bind_text  (long stmt, int pos, byte[] v);
     native synchronized int bind_blob  (long stmt, int pos, byte[] v);
+    native synchronized int bind_carray(long stmt, int pos, int type,
+                                        Object values, int[] ends, int n);
 
     native synchronized void result_null  (long context);
     native synchronized void result_text  (long context, String val);
@@ -174,18 +190,49 @@ final class NativeDB extends DB
     native synchronized int    value_int   (Function f, int arg);
     native synchronized int    value_type  (Function f, int arg);
 
-    native synchronized int create_function(String name, Function func);
-    native synchronized void destroy_function(String name);
+    native synchronized int create_function(String name, Function func,
+        int nArgs, int flags);
+    native synchronized void destroy_function(String name, int nArgs);
     native synchronized void free_functions();
+    native synchronized int step_batch(long stmt, byte[] types,
+        long[] longs, double[] doubles, int max);
+    native synchronized int create_module(String name, VirtualTable.Module m,
+        boolean eponymous);
+    native synchronized int create_collation(String name, Collation c);
+
+    native synchronized long serialize(String schema, ByteBuffer dst, int offset,
+        int space);
+    native synchronized int deserialize(String schema, ByteBuffer src, int offset,
+        long size, boolean readOnly);
+
+    native synchronized long[] io_stats();
+    native synchronized String db_filename(String schema);
+
+    native synchronized int wal_hook(Checkpointer c, int walPages);
+    native synchronized int[] wal_checkpoint(String schema, int mode);
+
+    native synchronized int change_hook(Conn conn, int capacity);
+
+    native synchronized boolean get_autocommit();
+    native synchronized String[] tables_read(String sql) throws SQLException;
 
     // COMPOUND FUNCTIONS (for optimisation) /////////////////////////
 
-    /** Provides metadata for the columns of a statement. Returns:
-     *   res[col][0] = true if column constrained NOT NULL
-     *   res[col][1] = true if column is part of the primary key
-     *   res[col][2] = true if column is auto-increment
+    /** Provides metadata for the columns of a statement. Returns the
+     *  name, declared type, table and origin column of each column, four
+     *  strings per column, and sets in flags[col]:
+     *   Column.NOT_NULL       if the column is constrained NOT NULL
+     *   Column.PRIMARY_KEY    if the column is part of the primary key
+     *   Column.AUTO_INCREMENT if the column is auto-increment
+     *   Column.ROWID          if the column is the table's INTEGER
+     *                         PRIMARY KEY, an alias of the rowid
      */
-    native synchronized boolean[][] column_metadata(long stmt);
+    native synchronized String[] column_descriptors(long stmt, int[] flags);
+
+    native synchronized int stmt_status(long stmt, int op, boolean reset);
+
+    native synchronized int exec_script(byte[] sql, int len, boolean last,
+                                        int[] pos, long[] out);
 
     static void throwex(String msg) throws SQLException {
         throw new SQLException(msg);
@@ -0,0 +1,207 @@
+/*
+ * The author disclaims copyright to this source code.  In place of
+ * a legal notice, here is a blessing:
+ *
+ *    May you do good and not evil.
+ *    May you find forgiveness for yourself and forgive others.
+ *    May you share freely, never taking more than you give.
+ *
+ */
+package org.sqlite;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Infers the types of the parameters of a statement from its program.
+ *
+ * <p>The statement is compiled again with EXPLAIN, and its opcodes are
+ * walked in address order, following the registers parameters are
+ * loaded into by OP_Variable. A parameter takes the affinity of what it
+ * is compared to (the P5 of OP_Eq, OP_Lt...), of the column it is stored
+ * into (OP_Affinity and OP_MakeRecord), of the index column it seeks
+ * (looked up in the schema model by root page), or INTEGER when it is a
+ * rowid or a LIMIT. Jumps are not followed, and a parameter only used
+ * in an expression keeps no affinity.</p>
+ */
+final class ParameterTypes implements Codes
+{
+    private ParameterTypes() {}
+
+    /** Returns the affinity of each parameter, as in Column, or 0 when
+     *  none could be inferred, in which case the parameter is reported
+     *  as VARCHAR. */
+    static char[] infer(Conn conn, String sql, int count) throws SQLException {
+        final char[] aff = new char[count];
+        if (count == 0) return aff;
+
+        final List<String> ops = new ArrayList<String>();
+        final List<int[]> ps = new ArrayList<int[]>();
+        final List<String> p4s = new ArrayList<String>();
+        final Statement stat = conn.createStatement();
+        try {
+            final ResultSet rs = stat.executeQuery("explain " + sql);
+            while (rs.next()) {
+                ops.add(rs.getString(2));
+                ps.add(new int[] {
+                    rs.getInt(3), rs.getInt(4), rs.getInt(5), rs.getInt(7) });
+                p4s.add(rs.getString(6));
+            }
+        } catch (SQLException e) {
+            return aff; // such as a statement that is already an EXPLAIN
+        } finally {
+            stat.close();
+        }
+
+        // constants, parameters among them, are loaded once after the
+        // program and jumped back from: their registers are never reused
+        int end = ops.size();
+        final Map<Integer, Integer> regs = new HashMap<Integer, Integer>();
+        if (end > 0 && "Init".equals(ops.get(0))) {
+            end = Math.min(ps.get(0)[1], end);
+            for (int i=end; i < ops.size(); i++)
+                if ("Variable".equals(ops.get(i)))
+                    regs.put(ps.get(i)[1], ps.get(i)[0]);
+        }
+
+        final Map<Integer, int[]> cursors = new HashMap<Integer, int[]>();
+        Schema schema = null;
+        for (int i=0; i < end; i++) {
+            final String op = ops.get(i);
+            final int[] p = ps.get(i);
+            final String p4 = p4s.get(i);
+
+            if (op.equals("Variable")) {
+                regs.put(p[1], p[0]);
+            } else if (op.equals("SCopy") || op.equals("Copy")
+                    || op.equals("IntCopy")) {
+                final Integer param = regs.get(p[0]);
+                if (param == null) regs.remove(p[1]);
+                else regs.put(p[1], param);
+            } else if (op.equals("Column") || op.equals("Function")
+                    || op.equals("PureFunc")) {
+                regs.remove(p[2]);
+            } else if (op.equals("Rowid") || op.equals("IdxRowid")
+                    || op.equals("Integer") || op.equals("Int64")
+                    || op.equals("Real") || op.equals("String8")) {
+                regs.remove(p[1]);
+            } else if (op.equals("Null")) {
+                for (int r = p[1]; r <= Math.max(p[1], p[2]); r++)
+                    regs.remove(r);
+            } else if (op.equals("OpenRead") || op.equals("OpenWrite")
+                    || op.equals("ReopenIdx")) {
+                if (p4 != null && p4.startsWith("k("))
+                    cursors.put(p[0], new int[] { p[1], p[2] });
+                else
+                    cursors.remove(p[0]);
+            } else if (op.equals("Eq") || op.equals("Ne") || op.equals("Lt")
+                    || op.equals("Le") || op.equals("Gt") || op.equals("Ge")) {
+                // the mask also folds the lowercase codes of old versions
+                final char a = (char)(p[3] & 0x47);
+                final Integer l = regs.get(p[0]), r = regs.get(p[2]);
+                if (l != null && r == null) note(aff, l, a);
+                if (r != null && l == null) note(aff, r, a);
+            } else if (op.equals("Affinity") || op.equals("MakeRecord")) {
+                if (op.equals("MakeRecord")) regs.remove(p[2]);
+                if (p4 == null) continue;
+                for (int k=0; k < p[1] && k < p4.length(); k++) {
+                    final Integer param = regs.get(p[0] + k);
+                    if (param != null)
+                        note(aff, param, (char)(p4.charAt(k) & 0x47));
+                }
+            } else if (op.equals("SeekRowid") || op.equals("NotExists")) {
+                final Integer param = regs.get(p[2]);
+                if (param != null) note(aff, param, Column.INTEGER);
+            } else if (op.equals("MustBeInt")) {
+                final Integer param = regs.get(p[0]);
+                if (param != null) note(aff, param, Column.INTEGER);
+            } else if (op.startsWith("Seek") || op.startsWith("Idx")) {
+                final int[] cursor = cursors.get(p[0]);
+                if (cursor == null || p4 == null) continue;
+                final int n;
+                try { n = Integer.parseInt(p4); }
+                catch (NumberFormatException e) { continue; }
+                for (int k=0; k < n; k++) {
+                    final Integer param = regs.get(p[2] + k);
+                    if (param == null) continue;
+                    if (schema == null)
+                        schema = ((MetaData)conn.getMetaData()).schema();
+                    note(aff, param, indexAffinity(conn, schema, cursor, k));
+                }
+            }
+        }
+        return aff;
+    }
+
+    /** Keeps the most specific affinity of a parameter: TEXT, INTEGER or
+     *  REAL over NUMERIC. BLOB is ignored, as columns without a declared
+     *  type take any value. */
+    private static void note(char[] aff, int param, char a) {
+        if (param < 1 || param > aff.length) return;
+        if (a < Column.TEXT || a > Column.REAL) return;
+        if (aff[param - 1] == 0 || aff[param - 1] == Column.NUMERIC)
+            aff[param - 1] = a;
+    }
+
+    /** Returns the affinity of column <tt>k</tt> of the index with root
+     *  page cursor[0] in database cursor[1], or 0. The schema model only
+     *  holds main and temp: root pages of attached databases are not
+     *  looked up, as they repeat those of main. */
+    private static char indexAffinity(Conn conn, Schema schema, int[] cursor,
+                                      int k) throws SQLException {
+        if (cursor[1] != 0 && cursor[1] != 1) return 0;
+        for (Schema.Entry e : schema.entries) {
+            if (e.rootPage != cursor[0] || e.temp != (cursor[1] == 1)
+                    || !"index".equals(e.type))
+                continue;
+            final Schema.Table table = schema.table(conn, e.tableName);
+            for (Schema.Index index : table.indexes) {
+                if (!index.name.equalsIgnoreCase(e.name)) continue;
+                if (k >= index.columns.length || index.columns[k] == null)
+                    return 0;
+                for (Schema.Column c : table.columns)
+                    if (c.name.equalsIgnoreCase(index.columns[k]))
+                        return Column.affinity(c.type);
+                return 0;
+            }
+            return 0;
+        }
+        return 0;
+    }
+
+    /** Returns the JDBC type of an affinity: integers hold 64 bits, so
+     *  BIGINT, as the Long of className(). */
+    static int type(char affinity) {
+        switch (affinity) {
+            case Column.INTEGER: return Types.BIGINT;
+            case Column.REAL:    return Types.DOUBLE;
+            case Column.NUMERIC: return Types.NUMERIC;
+            default:             return Types.VARCHAR;
+        }
+    }
+
+    /** Returns the SQL type name of an affinity. */
+    static String typeName(char affinity) {
+        switch (affinity) {
+            case Column.INTEGER: return "INTEGER";
+            case Column.REAL:    return "REAL";
+            case Column.NUMERIC: return "NUMERIC";
+            default:             return "VARCHAR";
+        }
+    }
+
+    /** Returns the class of the values to bind for an affinity. */
+    static String className(char affinity) {
+        switch (affinity) {
+            case Column.INTEGER: return "java.lang.Long";
+            case Column.REAL:    return "java.lang.Double";
+            case Column.NUMERIC: return "java.math.BigDecimal";
+            default:             return "java.lang.String";
+        }
+    }
+}
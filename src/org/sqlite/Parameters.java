@@ -0,0 +1,103 @@
+/*
+ * The author disclaims copyright to this source code.  In place of
+ * a legal notice, here is a blessing:
+ *
+ *    May you do good and not evil.
+ *    May you find forgiveness for yourself and forgive others.
+ *    May you share freely, never taking more than you give.
+ *
+ */
+package org.sqlite;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Map;
+
+/** Binds the named parameters of a prepared statement.
+ *
+ * <p>SQLite names parameters written <tt>:name</tt>, <tt>@name</tt> or
+ * <tt>$name</tt>. The names of a statement are read from SQLite once and
+ * kept in an index, so binding by name costs a hash lookup. A name can be
+ * given without its prefix, unless the statement uses it with two
+ * prefixes, such as <tt>:id</tt> and <tt>$id</tt>.</p>
+ *
+ * Eg.
+ *
+ * <pre>
+ *      PreparedStatement prep = conn.prepareStatement(
+ *          "select * from people where surname = :surname and age &gt; :age;");
+ *      Parameters.set(prep, "surname", "Gandhi");
+ *      Parameters.set(prep, ":age", 20);
+ *  </pre>
+ */
+public final class Parameters
+{
+    private Parameters() {}
+
+    /** Returns the index of a named parameter, as used by the setters of
+     *  PreparedStatement. */
+    public static int index(PreparedStatement prep, String name)
+            throws SQLException {
+        return prepStmt(prep).parameterIndex(name);
+    }
+
+    /** Sets a named parameter, as with <tt>setObject()</tt>. */
+    public static void set(PreparedStatement prep, String name, Object value)
+            throws SQLException {
+        final PrepStmt p = prepStmt(prep);
+        p.setObject(p.parameterIndex(name), value);
+    }
+
+    /** Sets the named parameters given by the keys of <tt>values</tt>. */
+    public static void bind(PreparedStatement prep, Map<String, ?> values)
+            throws SQLException {
+        final PrepStmt p = prepStmt(prep);
+        for (Map.Entry<String, ?> e : values.entrySet())
+            p.setObject(p.parameterIndex(e.getKey()), e.getValue());
+    }
+
+    /** Sets each named parameter of the statement to the field of
+     *  <tt>o</tt> with the same name, ignoring case and underscores as
+     *  RowMapper does. Parameters without a field are left as set. */
+    public static void bind(PreparedStatement prep, Object o)
+            throws SQLException {
+        final PrepStmt p = prepStmt(prep);
+        final Field[] fields = p.parameterFields(o.getClass());
+        try {
+            for (int i=0; i < fields.length; i++)
+                if (fields[i] != null) p.setObject(i + 1, fields[i].get(o));
+        } catch (IllegalAccessException e) {
+            throw new SQLException(e.toString());
+        }
+    }
+
+    /** Returns the fields of class <tt>type</tt> named as the parameters
+     *  <tt>names</tt>, by parameter, null where there is none. */
+    static Field[] fields(Class<?> type, String[] names) {
+        final Field[] fields = new Field[names.length];
+        for (Class<?> c = type; c != null && c != Object.class;
+                c = c.getSuperclass()) {
+            for (Field f : c.getDeclaredFields()) {
+                if (Modifier.isStatic(f.getModifiers())) continue;
+                final String name = RowMapper.normalize(f.getName());
+                for (int i=0; i < names.length; i++) {
+                    if (fields[i] != null || names[i] == null
+                            || !name.equals(RowMapper.normalize(names[i])))
+                        continue;
+                    f.setAccessible(true);
+                    fields[i] = f;
+                }
+            }
+        }
+        return fields;
+    }
+
+    private static PrepStmt prepStmt(PreparedStatement prep)
+            throws SQLException {
+        if (prep == null || !(prep instanceof PrepStmt))
+            throw new SQLException("statement must be of an SQLite db");
+        return (PrepStmt)prep;
+    }
+}
@@ -25,6 +25,7 @@ import java.io.Reader;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
+import java.lang.reflect.Field;
 import java.math.BigDecimal;
 import java.net.URL;
 import java.sql.Array;
@@ -44,6 +45,10 @@ import java.sql.Time;
 import java.sql.Timestamp;
 import java.sql.Types;
 import java.util.Calendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 final class PrepStmt extends Stmt
         implements PreparedStatement, ParameterMetaData, Codes
@@ -51,12 +56,17 @@ final class PrepStmt extends Stmt
     private int columnCount;
     private int paramCount;
 
+    /** Tables read by the query, set by the result cache. */
+    String[] tables = null;
+    /** True if the result cache must not be used for this query. */
+    boolean uncacheable = false;
+
     PrepStmt(Conn conn, String sql) throws SQLException {
         super(conn);
 
         this.sql = sql;
         db.prepare(this);
-        rs.colsMeta = db.column_names(pointer);
+        rs.colsMeta = names();
         columnCount = db.column_count(pointer);
         paramCount = db.bind_parameter_count(pointer);
         batch = new Object[paramCount];
@@ -85,7 +95,14 @@ final class PrepStmt extends Stmt
             throw new SQLException("query does not return results");
         rs.close();
         db.reset(pointer);
-        resultsWaiting = db.execute(this, batch);
+        final ResultCache cache = rs.maxRows == 0 ? conn.resultCache() : null;
+        final CachedResult res = cache == null ? null : cache.query(this, batch);
+        if (res != null) {
+            rs.cache = res;
+            resultsWaiting = res.rows() > 0 || res.partial;
+        } else {
+            resultsWaiting = db.execute(this, batch);
+        }
         return getResultSet();
     }
 
@@ -132,10 +149,12 @@ final class PrepStmt extends Stmt
 
     public int getParameterCount() throws SQLException {
         checkOpen(); return paramCount; }
-    public String getParameterClassName(int param) throws SQLException {
-        checkOpen(); return "java.lang.String"; }
-    public String getParameterTypeName(int pos) { return "VARCHAR"; }
-    public int getParameterType(int pos) { return Types.VARCHAR; }
+    public String getParameterClassName(int pos) throws SQLException {
+        return ParameterTypes.className(parameterAffinity(pos)); }
+    public String getParameterTypeName(int pos) throws SQLException {
+        return ParameterTypes.typeName(parameterAffinity(pos)); }
+    public int getParameterType(int pos) throws SQLException {
+        return ParameterTypes.type(parameterAffinity(pos)); }
     public int getParameterMode(int pos) { return parameterModeIn; }
     public int getPrecision(int pos) { return 0; }
     public int getScale(int pos) { return 0; }
@@ -143,8 +162,76 @@ final class PrepStmt extends Stmt
     public boolean isSigned(int pos) { return true; }
 
 
+    /** Affinities of the parameters, inferred for the program compiled
+     *  when the statement had been reprepared paramTypesReprepared times. */
+    private char[] paramTypes = null;
+    private int paramTypesReprepared = 0;
+
+    private char parameterAffinity(int pos) throws SQLException {
+        checkOpen();
+        if (pos < 1 || pos > paramCount) throw new SQLException(
+            "parameter " + pos + " out of bounds [1," + paramCount + "]");
+        final int n = db.stmt_status(
+            pointer, SQLITE_STMTSTATUS_REPREPARE, false);
+        if (paramTypes == null || n != paramTypesReprepared) {
+            paramTypes = ParameterTypes.infer(conn, sql, paramCount);
+            paramTypesReprepared = n;
+        }
+        return paramTypes[pos - 1];
+    }
+
+
     // PARAMETER FUNCTIONS //////////////////////////////////////////
 
+    /** Index of the named parameters, by name with and without prefix,
+     *  and their names without prefix, by parameter. */
+    private Map<String, Integer> paramIndex = null;
+    private String[] paramNames = null;
+    /** Fields last bound by Parameters.bind(), by parameter. */
+    private Class<?> fieldsClass = null;
+    private Field[] fields = null;
+
+    /** Returns the index of a named parameter, in [1,x] form. The name is
+     *  given with its prefix, ':', '@' or '$', or without it if no other
+     *  parameter has the same name with another prefix. */
+    int parameterIndex(String name) throws SQLException {
+        checkOpen();
+        if (paramIndex == null) indexParameters();
+        final Integer i = name == null ? null : paramIndex.get(name);
+        if (i == null) throw new SQLException("no such parameter: " + name);
+        return i;
+    }
+
+    /** Returns the fields of class <code>type</code> named as the
+     *  parameters, by parameter. */
+    Field[] parameterFields(Class<?> type) throws SQLException {
+        checkOpen();
+        if (paramIndex == null) indexParameters();
+        if (type != fieldsClass) {
+            fields = Parameters.fields(type, paramNames);
+            fieldsClass = type;
+        }
+        return fields;
+    }
+
+    private void indexParameters() throws SQLException {
+        final byte[][] names = db.bind_parameter_names(pointer);
+        final Map<String, Integer> index = new HashMap<String, Integer>();
+        final Set<String> ambiguous = new HashSet<String>();
+        paramNames = new String[names.length];
+        for (int i=0; i < names.length; i++) {
+            if (names[i] == null) continue;
+            final String full = UTF8.decode(names[i]);
+            index.put(full, i + 1);
+            if (full.length() < 2 || full.charAt(0) == '?') continue;
+            paramNames[i] = full.substring(1);
+            final Integer other = index.put(paramNames[i], i + 1);
+            if (other != null && other != i + 1) ambiguous.add(paramNames[i]);
+        }
+        for (String bare : ambiguous) index.remove(bare);
+        paramIndex = index;
+    }
+
     private void batch(int pos, Object value) throws SQLException {
         checkOpen();
         if (batch == null) batch = new Object[paramCount];
@@ -214,7 +301,11 @@ final class PrepStmt extends Stmt
         } else if (value instanceof Array) {
           setArray(pos, (Array)value);
         } else {
-          throw new SQLException("Can't infer type for " + value.getClass().getName() + '.');
+          Object v = Conversion.encode(db, value);
+          if (v == null) v = CArray.of(value);
+          if (v == null) throw new SQLException(
+              "Can't infer type for " + value.getClass().getName() + '.');
+          batch(pos, v);
         }
     }
     public void setObject(int p, Object v, int t) throws SQLException {
@@ -325,8 +416,18 @@ final class PrepStmt extends Stmt
         setAsciiStream(parameterIndex, x); // TODO length ignored
     }
 
-    public void setArray(int i, Array x)
-        throws SQLException { throw Util.unsupported(); }
+    /** Binds an array for the table-valued function carray(?). Arrays
+     *  not created by this driver are copied. */
+    public void setArray(int pos, Array x) throws SQLException {
+        if (x == null || x instanceof CArray) { batch(pos, x); return; }
+        final Object a = x.getArray();
+        CArray c = CArray.of(a);
+        if (c == null && a instanceof Object[])
+            c = CArray.of(x.getBaseTypeName(), (Object[])a);
+        if (c == null) throw new SQLException(
+            "Can't bind array of " + x.getBaseTypeName() + '.');
+        batch(pos, c);
+    }
 
     public void setBlob(int i, Blob x)
         throws SQLException { throw Util.unsupported(); }
@@ -31,8 +31,6 @@ import java.sql.Time;
 import java.sql.Timestamp;
 import java.sql.Types;
 import java.util.Calendar;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * Implements a JDBC ResultSet.
@@ -45,12 +43,17 @@ final class RS extends UnusedRS implements ResultSet, ResultSetMetaData, Codes
     boolean open = false   ;  // true means have results and can iterate them
     int maxRows;              // max. number of rows as set by a Statement
     String[] cols = null;     // if null, the RS is closed()
-    Map<String, Integer> columnNameToIndex = null;
     String[] colsMeta = null; // same as cols, but used by Meta interface
-    boolean[][] meta = null;
+    Column[] columns = null;  // descriptors shared with the statement
 
     private int row = 0;   // number of current row, starts at 1
     private int lastCol;   // last column accessed, for wasNull(). -1 if none
+    // type of the last cell read, for wasNull(), set by the native read
+    // of its value. SQLITE_TEXT for any text, -1 if unknown
+    private final int[] lastType = { -1 };
+
+    CachedResult cache = null; // rows from the result cache, if not null
+    private int cacheRow = -1; // current row of cache
 
     RS(Stmt stmt) {
         this.stmt = stmt;
@@ -78,12 +81,70 @@ final class RS extends UnusedRS implements ResultSet, ResultSetMetaData, Codes
 
     // takes col in [1,x] form, marks it as last accessed and returns [0,x-1]
     private int markCol(int col) throws SQLException {
-        checkOpen(); checkCol(col); lastCol = col; return --col;
+        checkOpen(); checkCol(col); lastCol = col; lastType[0] = -1;
+        return --col;
     }
 
-    private void checkMeta() throws SQLException {
-        checkCol(1);
-        if (meta == null) meta = db.column_metadata(stmt.pointer);
+    // takes col in [1,x] form, returns its descriptor
+    private Column column(int col) throws SQLException {
+        col = checkCol(col);
+        if (columns == null) columns = stmt.pointer == 0
+            ? Column.describe(colsMeta) // built by MetaData
+            : stmt.columns();
+        return columns[col];
+    }
+
+    DB db() { return db; }
+
+    /** Returns the type of the last cell read, -1 if unknown. */
+    int lastType() { return lastType[0]; }
+
+    // takes col in [0,x-1] form, reads the current row of the statement
+    // or of the cached result
+
+    private int columnType(int col) throws SQLException {
+        // like a statement, the first row is readable before next()
+        if (cache != null) return cache.type(Math.max(cacheRow, 0), col);
+        return db.column_type(stmt.pointer, col);
+    }
+    // the following also set lastType, in one native call per cell
+
+    private long columnLong(int col) throws SQLException {
+        if (cache == null)
+            return db.column_typed_long(stmt.pointer, col, lastType);
+        lastType[0] = cache.type(cacheRow, col);
+        return cache.getLong(cacheRow, col);
+    }
+    private int columnInt(int col) throws SQLException {
+        return (int)columnLong(col);
+    }
+    private double columnDouble(int col) throws SQLException {
+        if (cache == null)
+            return db.column_typed_double(stmt.pointer, col, lastType);
+        lastType[0] = cache.type(cacheRow, col);
+        return cache.getDouble(cacheRow, col);
+    }
+    private String columnText(int col) throws SQLException {
+        if (cache != null) {
+            lastType[0] = cache.type(cacheRow, col);
+            return cache.getText(cacheRow, col);
+        }
+        // only NULL has no text
+        final String text = db.column_text(stmt.pointer, col);
+        lastType[0] = text == null ? SQLITE_NULL : SQLITE_TEXT;
+        return text;
+    }
+    private byte[] columnBlob(int col) throws SQLException {
+        if (cache != null) {
+            lastType[0] = cache.type(cacheRow, col);
+            return cache.getBlob(cacheRow, col);
+        }
+        return db.column_blob(stmt.pointer, col); // null for NULL and x''
+    }
+    // reads a date as milliseconds, see lastType for NULL
+    private long columnMillis(int col) throws SQLException {
+        return db.isJulianDayMode()
+            ? fromJulianDay(columnDouble(col)) : columnLong(col);
     }
 
 
@@ -95,12 +156,14 @@ final class RS extends UnusedRS implements ResultSet, ResultSetMetaData, Codes
 
     public void close() throws SQLException {
         cols = null;
-        columnNameToIndex = null;
         colsMeta = null;
-        meta = null;
+        columns = null;
         open = false;
         row = 0;
         lastCol = -1;
+        lastType[0] = -1;
+        cache = null;
+        cacheRow = -1;
 
         if (stmt == null)
             return;
@@ -111,36 +174,28 @@ final class RS extends UnusedRS implements ResultSet, ResultSetMetaData, Codes
     // returns col in [1,x] form
     public int findColumn(String col) throws SQLException {
         checkOpen();
-        Integer index = findColumnIndexInCache(col);
-        if (null != index) {
-          return index;
-        }
-        for (int i=0; i < cols.length; i++) {
-            if (col.equalsIgnoreCase(cols[i])) {
-              addColumnIndexInCache(col, i+1);
-              return i+1;
-            }
-        }
-        throw new SQLException("no such column: '"+col+"'");
-    }
-
-    private Integer findColumnIndexInCache(String col) {
-        if (null == columnNameToIndex) {
-            return null;
-        } else {
-            return columnNameToIndex.get(col);
-        }
-    }
-    private void addColumnIndexInCache(String col, int index) {
-        if (null == columnNameToIndex) {
-            columnNameToIndex = new HashMap<String, Integer>(cols.length);
-        }
-        columnNameToIndex.put(col, index);
+        final int i = col == null ? 0 : stmt.index(cols).find(col);
+        if (i == 0) throw new SQLException("no such column: '"+col+"'");
+        return i;
     }
 
     public boolean next() throws SQLException {
         if (!open) return false;  // finished ResultSet
         lastCol = -1;
+        lastType[0] = -1;
+
+        if (cache != null) {
+            if (++cacheRow < cache.rows()) { row++; return true; }
+            if (cache.partial) {
+                // the statement is on the row after the cached ones
+                cache = null;
+                cacheRow = -1;
+                row++;
+                return true;
+            }
+            close();
+            return false;
+        }
 
         // first row is loaded by execute(), so do not step() again
         if (row == 0) { row++; return true; } else { row++; }
@@ -190,7 +245,10 @@ final class RS extends UnusedRS implements ResultSet, ResultSetMetaData, Codes
     public int getRow() throws SQLException { return row; }
 
     public boolean wasNull() throws SQLException {
-        return db.column_type(stmt.pointer, markCol(lastCol)) == SQLITE_NULL;
+        if (lastType[0] < 0)
+            return columnType(markCol(lastCol)) == SQLITE_NULL;
+        checkOpen();
+        return lastType[0] == SQLITE_NULL;
     }
 
 
@@ -207,32 +265,20 @@ final class RS extends UnusedRS implements ResultSet, ResultSetMetaData, Codes
         return getByte(findColumn(col)); }
 
     public byte[] getBytes(int col) throws SQLException {
-        return db.column_blob(stmt.pointer, markCol(col)); }
+        return columnBlob(markCol(col)); }
     public byte[] getBytes(String col) throws SQLException {
         return getBytes(findColumn(col)); }
 
     public Date getDate(int col) throws SQLException {
-        if (db.column_type(stmt.pointer, markCol(col)) == SQLITE_NULL)
-            return null;
-        if (db.isJulianDayMode()) {
-            final double jd = db.column_double(stmt.pointer, markCol(col));
-            return new Date(fromJulianDay(jd));
-        } else {
-            return new Date(db.column_long(stmt.pointer, markCol(col)));
-        }
+        final long ms = columnMillis(markCol(col));
+        return lastType[0] == SQLITE_NULL ? null : new Date(ms);
     }
     public Date getDate(int col, Calendar cal) throws SQLException {
-        if (db.column_type(stmt.pointer, markCol(col)) == SQLITE_NULL)
-            return null;
         if (cal == null) return getDate(col);
-        if (db.isJulianDayMode()) {
-            final double jd = db.column_double(stmt.pointer, markCol(col));
-            cal.setTimeInMillis(fromJulianDay(jd));
-            return new Date(cal.getTime().getTime());
-        } else {
-            cal.setTimeInMillis(db.column_long(stmt.pointer, markCol(col)));
-            return new Date(cal.getTime().getTime());
-        }
+        final long ms = columnMillis(markCol(col));
+        if (lastType[0] == SQLITE_NULL) return null;
+        cal.setTimeInMillis(ms);
+        return new Date(cal.getTime().getTime());
     }
     public Date getDate(String col) throws SQLException {
         return getDate(findColumn(col)); }
@@ -240,28 +286,26 @@ final class RS extends UnusedRS implements ResultSet, ResultSetMetaData, Codes
         return getDate(findColumn(col), cal); }
 
     public double getDouble(int col) throws SQLException {
-        if (db.column_type(stmt.pointer, markCol(col)) == SQLITE_NULL)
-            return 0;
-        return db.column_double(stmt.pointer, markCol(col));
+        final double d = columnDouble(markCol(col));
+        return lastType[0] == SQLITE_NULL ? 0 : d;
     }
     public double getDouble(String col) throws SQLException {
         return getDouble(findColumn(col)); }
 
     public float getFloat(int col) throws SQLException {
-        if (db.column_type(stmt.pointer, markCol(col)) == SQLITE_NULL)
-            return 0;
-        return (float)db.column_double(stmt.pointer, markCol(col));
+        final double d = columnDouble(markCol(col));
+        return lastType[0] == SQLITE_NULL ? 0 : (float)d;
     }
     public float getFloat(String col) throws SQLException {
         return getFloat(findColumn(col)); }
 
     public int getInt(int col) throws SQLException {
-        return db.column_int(stmt.pointer, markCol(col)); }
+        return columnInt(markCol(col)); }
     public int getInt(String col) throws SQLException {
         return getInt(findColumn(col)); }
 
     public long getLong(int col) throws SQLException {
-        return db.column_long(stmt.pointer, markCol(col)); }
+        return columnLong(markCol(col)); }
     public long getLong(String col) throws SQLException {
         return getLong(findColumn(col)); }
 
@@ -271,32 +315,20 @@ final class RS extends UnusedRS implements ResultSet, ResultSetMetaData, Codes
         return getShort(findColumn(col)); }
 
     public String getString(int col) throws SQLException {
-        return db.column_text(stmt.pointer, markCol(col)); }
+        return columnText(markCol(col)); }
     public String getString(String col) throws SQLException {
         return getString(findColumn(col)); }
 
     public Time getTime(int col) throws SQLException {
-        if (db.column_type(stmt.pointer, markCol(col)) == SQLITE_NULL)
-            return null;
-        if (db.isJulianDayMode()) {
-            final double jd = db.column_double(stmt.pointer, markCol(col));
-            return new Time(fromJulianDay(jd));
-        } else {
-            return new Time(db.column_long(stmt.pointer, markCol(col)));
-        }
+        final long ms = columnMillis(markCol(col));
+        return lastType[0] == SQLITE_NULL ? null : new Time(ms);
     }
     public Time getTime(int col, Calendar cal) throws SQLException {
         if (cal == null) return getTime(col);
-        if (db.column_type(stmt.pointer, markCol(col)) == SQLITE_NULL)
-            return null;
-        if (db.isJulianDayMode()) {
-            final double jd = db.column_double(stmt.pointer, markCol(col));
-            cal.setTimeInMillis(fromJulianDay(jd));
-            return new Time(cal.getTime().getTime());
-        } else {
-            cal.setTimeInMillis(db.column_long(stmt.pointer, markCol(col)));
-            return new Time(cal.getTime().getTime());
-        }
+        final long ms = columnMillis(markCol(col));
+        if (lastType[0] == SQLITE_NULL) return null;
+        cal.setTimeInMillis(ms);
+        return new Time(cal.getTime().getTime());
     }
     public Time getTime(String col) throws SQLException {
         return getTime(findColumn(col)); }
@@ -304,27 +336,15 @@ final class RS extends UnusedRS implements ResultSet, ResultSetMetaData, Codes
         return getTime(findColumn(col), cal); }
 
     public Timestamp getTimestamp(int col) throws SQLException {
-        if (db.column_type(stmt.pointer, markCol(col)) == SQLITE_NULL)
-            return null;
-        if (db.isJulianDayMode()) {
-            final double jd = db.column_double(stmt.pointer, markCol(col));
-            return new Timestamp(fromJulianDay(jd));
-        } else {
-            return new Timestamp(db.column_long(stmt.pointer, markCol(col)));
-        }
+        final long ms = columnMillis(markCol(col));
+        return lastType[0] == SQLITE_NULL ? null : new Timestamp(ms);
     }
     public Timestamp getTimestamp(int col, Calendar cal) throws SQLException {
         if (cal == null) return getTimestamp(col);
-        if (db.column_type(stmt.pointer, markCol(col)) == SQLITE_NULL)
-            return null;
-        if (db.isJulianDayMode()) {
-            final double jd = db.column_double(stmt.pointer, markCol(col));
-            cal.setTimeInMillis(fromJulianDay(jd));
-            return new Timestamp(cal.getTime().getTime());
-        } else {
-            cal.setTimeInMillis(db.column_long(stmt.pointer, markCol(col)));
-            return new Timestamp(cal.getTime().getTime());
-        }
+        final long ms = columnMillis(markCol(col));
+        if (lastType[0] == SQLITE_NULL) return null;
+        cal.setTimeInMillis(ms);
+        return new Timestamp(cal.getTime().getTime());
     }
     public Timestamp getTimestamp(String col) throws SQLException {
         return getTimestamp(findColumn(col)); }
@@ -347,12 +367,15 @@ final class RS extends UnusedRS implements ResultSet, ResultSetMetaData, Codes
         return getNCharacterStream(findColumn(col));
     }
 
-    public <T> T getObject(int columnIndex, Class<T> type) throws SQLException {
-        return null;  // FIXME
+    public <T> T getObject(int col, Class<T> type) throws SQLException {
+        if (type == null) throw new SQLException("type is null");
+        checkCol(col);
+        return type.cast(stmt.conversion(col - 1, colsMeta.length, type)
+                             .read(this, col));
     }
 
-    public <T> T getObject(String columnLabel, Class<T> type) throws SQLException {
-        return null;  // FIXME
+    public <T> T getObject(String col, Class<T> type) throws SQLException {
+        return getObject(findColumn(col), type);
     }
 
     public int getHoldability() throws SQLException {
@@ -416,7 +439,7 @@ final class RS extends UnusedRS implements ResultSet, ResultSetMetaData, Codes
     }
 
     public Object getObject(int col) throws SQLException {
-        switch (db.column_type(stmt.pointer, checkCol(col))) {
+        switch (columnType(checkCol(col))) {
             case SQLITE_INTEGER:
                 long val = getLong(col);
                 if (val > (long)Integer.MAX_VALUE
@@ -449,7 +472,7 @@ final class RS extends UnusedRS implements ResultSet, ResultSetMetaData, Codes
         return this; }
 
     public String getCatalogName(int col) throws SQLException { // FIXME
-        return db.column_table_name(stmt.pointer, checkCol(col)); }
+        return getTableName(col); }
     public String getColumnClassName(int col) throws SQLException { // FIXME
         checkCol(col); return "java.lang.Object"; }
     public int getColumnCount() throws SQLException {
@@ -460,9 +483,9 @@ final class RS extends UnusedRS implements ResultSet, ResultSetMetaData, Codes
     public String getColumnLabel(int col) throws SQLException {
         return getColumnName(col); }
     public String getColumnName(int col) throws SQLException {
-        return db.column_name(stmt.pointer, checkCol(col)); }
+        return colsMeta[checkCol(col)]; }
     public int getColumnType(int col) throws SQLException {
-        switch (db.column_type(stmt.pointer, checkCol(col))) {
+        switch (columnType(checkCol(col))) {
             case SQLITE_INTEGER: return Types.INTEGER;
             case SQLITE_FLOAT:   return Types.FLOAT;
             case SQLITE_BLOB:    return Types.BLOB;
@@ -473,7 +496,7 @@ final class RS extends UnusedRS implements ResultSet, ResultSetMetaData, Codes
         }
     }
     public String getColumnTypeName(int col) throws SQLException {
-        switch (db.column_type(stmt.pointer, checkCol(col))) {
+        switch (columnType(checkCol(col))) {
             case SQLITE_INTEGER: return "integer";
             case SQLITE_FLOAT:   return "float";
             case SQLITE_BLOB:    return "blob";
@@ -486,13 +509,15 @@ final class RS extends UnusedRS implements ResultSet, ResultSetMetaData, Codes
     public int getScale(int col) throws SQLException { return 0; }
     public String getSchemaName(int col) throws SQLException { return ""; }
     public String getTableName(int col) throws SQLException {
-        return db.column_table_name(stmt.pointer, checkCol(col)); }
+        return column(col).table; }
     public int isNullable(int col) throws SQLException {
-        checkMeta();
-        return meta[checkCol(col)][1] ? columnNoNulls: columnNullable;
+        // other key columns may hold NULL, but not an INTEGER PRIMARY KEY,
+        // which is the rowid
+        final Column c = column(col);
+        return c.notNull || c.rowid ? columnNoNulls : columnNullable;
     }
-    public boolean isAutoIncrement(int col) throws SQLException { // TODO Validate
-        checkMeta(); return meta[checkCol(col)][2]; }
+    public boolean isAutoIncrement(int col) throws SQLException {
+        return column(col).autoIncrement; }
     public boolean isCaseSensitive(int col) throws SQLException { return true; }
     public boolean isCurrency(int col) throws SQLException { return false; }
     public boolean isDefinitelyWritable(int col) throws SQLException {
@@ -516,7 +541,7 @@ final class RS extends UnusedRS implements ResultSet, ResultSetMetaData, Codes
     }
 
     // 1970-01-01 00:00:00 is JD 2440587.5
-    private static long fromJulianDay(double jd) {
+    static long fromJulianDay(double jd) {
         jd -= 2440587.5;
         jd *= 86400000.0;
         return (long) jd;
@@ -0,0 +1,235 @@
+/*
+ * The author disclaims copyright to this source code.  In place of
+ * a legal notice, here is a blessing:
+ *
+ *    May you do good and not evil.
+ *    May you find forgiveness for yourself and forgive others.
+ *    May you share freely, never taking more than you give.
+ *
+ */
+package org.sqlite;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/** Caches the results of prepared queries of a connection, keyed by SQL
+ *  and parameter values, within a budget of bytes.
+ *
+ * <p>Only read-only queries which do not call functions such as random()
+ * or datetime('now') are cached, and the cache is bypassed while a
+ * transaction is open. Results are dropped when a transaction committed
+ * on the connection changes one of the tables they were read from, and
+ * all results are dropped when <tt>PRAGMA data_version</tt> or
+ * <tt>PRAGMA schema_version</tt> show another connection changed the
+ * database or the schema changed. User-defined functions and virtual
+ * tables are assumed to be deterministic.</p>
+ */
+final class ResultCache implements ChangeListener, Codes
+{
+    private final DB db;
+    private final long maxBytes;
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    /** Least recently used first. */
+    private final LinkedHashMap<Key, CachedResult> entries =
+        new LinkedHashMap<Key, CachedResult>(16, 0.75f, true);
+    /** Keys of the results read from each table, by lower case name. */
+    private final Map<String, Set<Key>> byTable =
+        new HashMap<String, Set<Key>>();
+    /** Keys whose result went over the budget, read from their statement
+     *  until a change may have shrunk it. */
+    private final Set<Key> oversized = new HashSet<Key>();
+    private static final int MAX_OVERSIZED = 256;
+
+    private long versionStmt = 0;
+    private long dataVersion = -1;
+    private long schemaVersion = -1;
+
+    ResultCache(DB db, long maxBytes) {
+        this.db = db;
+        this.maxBytes = maxBytes;
+    }
+
+    long maxBytes() { return maxBytes; }
+    long hits() { return hits; }
+    long misses() { return misses; }
+
+    /** Returns the result of stmt with the given parameters, running it
+     *  on a cache miss. Returns null, with stmt reset, if the result is
+     *  not cached and must be read from stmt. A result over the budget
+     *  is returned partial, with the rows read so far and stmt on the
+     *  next one, and not cached. */
+    CachedResult query(PrepStmt stmt, Object[] params) throws SQLException {
+        if (stmt.uncacheable) return null;
+        synchronized (db) {
+            if (!db.get_autocommit()) return null;
+            checkVersion();
+
+            final Key key = new Key(stmt.sql, params);
+            CachedResult res = entries.get(key);
+            if (res != null) {
+                hits++;
+                return res;
+            }
+            misses++;
+            if (oversized.contains(key)) return null;
+
+            if (stmt.tables == null) {
+                stmt.tables = db.tables_read(stmt.sql);
+                if (stmt.tables == null) {
+                    stmt.uncacheable = true;
+                    return null;
+                }
+            }
+
+            res = read(stmt, params);
+            if (res.partial) {
+                if (oversized.size() == MAX_OVERSIZED) oversized.clear();
+                oversized.add(key);
+            } else {
+                put(key, res);
+            }
+            return res;
+        }
+    }
+
+    private CachedResult read(PrepStmt stmt, Object[] params)
+            throws SQLException {
+        final CachedResult res = new CachedResult(
+            stmt.tables, db.column_count(stmt.pointer));
+        try {
+            if (!db.execute(stmt, params)) return res;
+            int rc = SQLITE_ROW;
+            while (rc == SQLITE_ROW) {
+                if (!res.add(db, stmt.pointer, maxBytes)) {
+                    // the rows read are handed back, the rest read on
+                    res.partial = true;
+                    return res;
+                }
+                rc = db.step(stmt.pointer);
+            }
+            if (rc != SQLITE_DONE) db.throwex();
+            return res;
+        } finally {
+            if (!res.partial) db.reset(stmt.pointer);
+        }
+    }
+
+    private void put(Key key, CachedResult res) {
+        entries.put(key, res);
+        bytes += res.bytes();
+        for (String table : res.tables) {
+            final String name = table.toLowerCase();
+            Set<Key> keys = byTable.get(name);
+            if (keys == null) byTable.put(name, keys = new HashSet<Key>());
+            keys.add(key);
+        }
+
+        final Iterator<Map.Entry<Key, CachedResult>> i =
+            entries.entrySet().iterator();
+        while (bytes > maxBytes && i.hasNext()) {
+            final Map.Entry<Key, CachedResult> e = i.next();
+            i.remove();
+            unindex(e.getKey(), e.getValue());
+        }
+    }
+
+    private void remove(Key key) {
+        final CachedResult res = entries.remove(key);
+        if (res != null) unindex(key, res);
+    }
+
+    private void unindex(Key key, CachedResult res) {
+        bytes -= res.bytes();
+        for (String table : res.tables) {
+            final String name = table.toLowerCase();
+            final Set<Key> keys = byTable.get(name);
+            if (keys != null && keys.remove(key) && keys.isEmpty())
+                byTable.remove(name);
+        }
+    }
+
+    /** Drops all results if another connection changed the database. */
+    private void checkVersion() throws SQLException {
+        if (versionStmt == 0) versionStmt = db.prepare(
+            "select d.data_version, s.schema_version"
+            + " from pragma_data_version d, pragma_schema_version s;");
+        final long data, schema;
+        try {
+            if (db.step(versionStmt) != SQLITE_ROW) db.throwex();
+            data = db.column_long(versionStmt, 0);
+            schema = db.column_long(versionStmt, 1);
+        } finally {
+            db.reset(versionStmt);
+        }
+        if (data != dataVersion || schema != schemaVersion) {
+            clear();
+            dataVersion = data;
+            schemaVersion = schema;
+        }
+    }
+
+    /** Drops the results read from the tables changed by a transaction
+     *  committed on the connection. */
+    public void committed(ChangeSet changes) {
+        synchronized (db) {
+            oversized.clear();
+            if (changes.isTruncated()) {
+                clear();
+                return;
+            }
+            for (String table : changes.getTables()) {
+                final Set<Key> keys = byTable.get(table.toLowerCase());
+                if (keys == null) continue;
+                for (Key key : keys.toArray(new Key[keys.size()]))
+                    remove(key);
+            }
+        }
+    }
+
+    void clear() {
+        synchronized (db) {
+            entries.clear();
+            byTable.clear();
+            oversized.clear();
+            bytes = 0;
+        }
+    }
+
+    void close() throws SQLException {
+        synchronized (db) {
+            clear();
+            if (versionStmt != 0) db.finalize(versionStmt);
+            versionStmt = 0;
+        }
+    }
+
+    private static final class Key
+    {
+        private final String sql;
+        private final Object[] params;
+        private final int hash;
+
+        Key(String sql, Object[] params) {
+            this.sql = sql;
+            this.params = params == null ? null : params.clone();
+            hash = 31 * sql.hashCode() + Arrays.deepHashCode(this.params);
+        }
+
+        public int hashCode() { return hash; }
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            final Key k = (Key)o;
+            return hash == k.hash && sql.equals(k.sql)
+                && Arrays.deepEquals(params, k.params);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * The author disclaims copyright to this source code.  In place of
+ * a legal notice, here is a blessing:
+ *
+ *    May you do good and not evil.
+ *    May you find forgiveness for yourself and forgive others.
+ *    May you share freely, never taking more than you give.
+ *
+ */
+package org.sqlite;
+
+import java.util.Arrays;
+
+/** A batch of rows produced by a virtual table cursor.
+ *
+ * <p>Rows are stored in primitive arrays which the native code copies
+ * in bulk, so a batch costs a few JNI calls whatever its number of
+ * cells. A row is started with <tt>row()</tt> and its cells are added
+ * in column order. Cells not added are NULL.</p>
+ *
+ * Eg.
+ *
+ * <pre>
+ *      while (!rows.isFull() &amp;&amp; it.hasNext()) {
+ *          Item item = it.next();
+ *          rows.row(item.id).add(item.name).add(item.price);
+ *      }
+ *  </pre>
+ */
+public final class RowBuffer implements Codes
+{
+    /** Number of rows per batch. */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    final int columns;
+    final int capacity;
+    final byte[] types;     // SQLITE_* type of each cell
+    final long[] values;    // integer, bits of double or length in bytes
+    final int[] offsets;    // offset in data of a text or blob cell
+    final long[] rowids;
+    byte[] data = new byte[1024];
+    int dataSize = 0;
+    int size = 0;
+
+    private int cell = 0;   // next cell of the current row
+    private int end = 0;    // end of the current row
+    private long rowid = 0; // rowid given by row()
+
+    RowBuffer(int columns, int capacity) {
+        this.columns = columns;
+        this.capacity = capacity;
+        types = new byte[columns * capacity];
+        values = new long[columns * capacity];
+        offsets = new int[columns * capacity];
+        rowids = new long[capacity];
+    }
+
+    /** Returns the number of columns of a row. */
+    public int columns() { return columns; }
+    /** Returns the maximum number of rows of the batch. */
+    public int capacity() { return capacity; }
+    /** Returns the number of rows in the batch. */
+    public int size() { return size; }
+    /** Returns true if no row can be added to the batch. */
+    public boolean isFull() { return size == capacity; }
+
+    /** Starts a row with the given rowid. */
+    public RowBuffer row(long rowid) {
+        if (size == capacity)
+            throw new IllegalStateException("row buffer full");
+        cell = size * columns;
+        end = cell + columns;
+        Arrays.fill(types, cell, end, (byte)SQLITE_NULL);
+        rowids[size++] = rowid;
+        this.rowid = rowid + 1;
+        return this;
+    }
+
+    /** Starts a row, with the rowid following the one of the last row
+     *  started since the scan began. */
+    public RowBuffer row() { return row(rowid); }
+
+    /** Adds a NULL cell to the current row. */
+    public RowBuffer addNull() {
+        next();
+        return this;
+    }
+
+    /** Adds an integer cell to the current row. */
+    public RowBuffer add(long value) {
+        final int i = next();
+        values[i] = value;
+        types[i] = SQLITE_INTEGER;
+        return this;
+    }
+
+    /** Adds a floating point cell to the current row. */
+    public RowBuffer add(double value) {
+        final int i = next();
+        values[i] = Double.doubleToRawLongBits(value);
+        types[i] = SQLITE_FLOAT;
+        return this;
+    }
+
+    /** Adds a text cell to the current row, NULL if <tt>value</tt> is. */
+    public RowBuffer add(String value) {
+        if (value == null) return addNull();
+        final int start = dataSize;
+        final int n = value.length();
+        reserve(n);
+        for (int i=0; i < n; i++) {
+            final char c = value.charAt(i);
+            if (c < 0x80) {
+                data[dataSize++] = (byte)c;
+                continue;
+            }
+            reserve(n - i + 3);
+            if (c < 0x800) {
+                data[dataSize++] = (byte)(0xc0 | (c >> 6));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                final int cp = Character.toCodePoint(c, value.charAt(++i));
+                data[dataSize++] = (byte)(0xf0 | (cp >> 18));
+                data[dataSize++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+                data[dataSize++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+                data[dataSize++] = (byte)(0x80 | (cp & 0x3f));
+                continue;
+            } else if (c >= 0xd800 && c <= 0xdfff) {
+                data[dataSize++] = (byte)'?';
+                continue;
+            } else {
+                data[dataSize++] = (byte)(0xe0 | (c >> 12));
+                data[dataSize++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+            }
+            data[dataSize++] = (byte)(0x80 | (c & 0x3f));
+        }
+        offsets[cell] = start;
+        values[cell] = dataSize - start;
+        types[next()] = SQLITE_TEXT;
+        return this;
+    }
+
+    /** Adds a blob cell to the current row, NULL if <tt>value</tt> is. */
+    public RowBuffer add(byte[] value) {
+        if (value == null) return addNull();
+        reserve(value.length);
+        System.arraycopy(value, 0, data, dataSize, value.length);
+        offsets[cell] = dataSize;
+        values[cell] = value.length;
+        dataSize += value.length;
+        types[next()] = SQLITE_BLOB;
+        return this;
+    }
+
+    /** Adds a cell holding <tt>value</tt>, converted as by
+     *  <tt>PreparedStatement.setObject()</tt>. */
+    public RowBuffer add(Object value) {
+        if (value == null) return addNull();
+        if (value instanceof String) return add((String)value);
+        if (value instanceof byte[]) return add((byte[])value);
+        if (value instanceof Double || value instanceof Float)
+            return add(((Number)value).doubleValue());
+        if (value instanceof Number) return add(((Number)value).longValue());
+        if (value instanceof Boolean)
+            return add(((Boolean)value).booleanValue() ? 1 : 0);
+        return add(value.toString());
+    }
+
+    /** Sets a column of the rows from <tt>from</tt> to the end of the
+     *  batch to <tt>value</tt>. Text and blob bytes are stored once. */
+    void fill(int from, int column, Object value) {
+        if (from >= size) return;
+        final int first = from * columns + column;
+        final int saveCell = cell, saveEnd = end;
+        cell = first;
+        end = first + 1;
+        add(value);
+        cell = saveCell;
+        end = saveEnd;
+        for (int i = first + columns; i < size * columns; i += columns) {
+            types[i] = types[first];
+            values[i] = values[first];
+            offsets[i] = offsets[first];
+        }
+    }
+
+    /** Empties the batch. */
+    void clear() {
+        size = 0;
+        dataSize = 0;
+        cell = end = 0;
+    }
+
+    /** Empties the batch and restarts the rowids given by row(). */
+    void reset() {
+        clear();
+        rowid = 0;
+    }
+
+    private int next() {
+        if (cell == end)
+            throw new IllegalStateException("no cell left in row");
+        return cell++;
+    }
+
+    private void reserve(int n) {
+        if (cell == end)
+            throw new IllegalStateException("no cell left in row");
+        if (dataSize + n <= data.length) return;
+        data = Arrays.copyOf(data, Math.max(data.length * 2, dataSize + n));
+    }
+}
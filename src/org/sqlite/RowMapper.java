@@ -0,0 +1,405 @@
+/*
+ * The author disclaims copyright to this source code.  In place of
+ * a legal notice, here is a blessing:
+ *
+ *    May you do good and not evil.
+ *    May you find forgiveness for yourself and forgive others.
+ *    May you share freely, never taking more than you give.
+ *
+ */
+package org.sqlite;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Parameter;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Maps the rows of a result set to objects.
+ *
+ * <p>A mapper is written by hand, or built for a class by
+ * <tt>RowMapper.of()</tt>. That mapper creates objects with the
+ * constructor without parameters of the class and sets the fields named
+ * as the columns, ignoring case and underscores: column
+ * <tt>first_name</tt> sets field <tt>firstName</tt>. Columns without a
+ * field are skipped. Which field each column sets is worked out once for
+ * the columns of a statement, and fields of primitive types are set from
+ * the primitive getters of the result set, without boxing.</p>
+ *
+ * <p>Records and other classes without a constructor without parameters
+ * are created with a constructor instead, its parameters matched to the
+ * columns by name in the same way: the canonical constructor of a record,
+ * else the constructor with the most parameters if the class was compiled
+ * with <tt>-parameters</tt>, else the constructor taking the instance
+ * fields of the class in their declared order. Parameters without a
+ * column are given null, or zero.</p>
+ *
+ * Eg.
+ *
+ * <pre>
+ *      class Person { long id; String firstName; double height; }
+ *
+ *      PreparedStatement prep = conn.prepareStatement(
+ *          "select id, first_name, height from people;");
+ *      List&lt;Person&gt; people = RowMapper.query(prep, Person.class);
+ *  </pre>
+ */
+public abstract class RowMapper<T>
+{
+    /** Returns the object for the current row of <tt>rs</tt>. */
+    public abstract T map(ResultSet rs) throws SQLException;
+
+    /** Executes <tt>prep</tt> and returns its rows mapped by
+     *  <tt>mapper</tt>. */
+    public static <T> List<T> query(PreparedStatement prep,
+                                    RowMapper<T> mapper)
+            throws SQLException {
+        final List<T> rows = new ArrayList<T>();
+        final ResultSet rs = prep.executeQuery();
+        try {
+            while (rs.next()) rows.add(mapper.map(rs));
+        } finally {
+            rs.close();
+        }
+        return rows;
+    }
+
+    /** Executes <tt>prep</tt> and returns its rows mapped to objects of
+     *  class <tt>type</tt>. */
+    public static <T> List<T> query(PreparedStatement prep, Class<T> type)
+            throws SQLException {
+        return query(prep, of(type));
+    }
+
+    /** Returns a mapper setting the fields of new objects of class
+     *  <tt>type</tt>. Mappers are built once per class and can be shared
+     *  between threads. */
+    @SuppressWarnings("unchecked")
+    public static <T> RowMapper<T> of(Class<T> type) throws SQLException {
+        final Object m = MAPPERS.get(type);
+        if (m instanceof SQLException)
+            throw new SQLException(((SQLException)m).getMessage());
+        return (RowMapper<T>)m;
+    }
+
+    /** Mapper of each class, or the reason it has none. A ClassValue does
+     *  not keep the classes of unloaded class loaders. */
+    private static final ClassValue<Object> MAPPERS = new ClassValue<Object>() {
+        protected Object computeValue(Class<?> type) {
+            try {
+                return new Auto<Object>(type);
+            } catch (SQLException e) {
+                return e;
+            }
+        }
+    };
+
+
+    /** Returns a name in lower case without underscores. */
+    static String normalize(String name) {
+        final StringBuilder s = new StringBuilder(name.length());
+        for (int i=0; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            if (c != '_') s.append(Character.toLowerCase(c));
+        }
+        return s.toString();
+    }
+
+    // kinds of values, by how they are read from the result set
+    private static final int BOOLEAN = 1, BYTE = 2, SHORT = 3, INT = 4,
+        LONG = 5, FLOAT = 6, DOUBLE = 7, STRING = 8, OBJECT = 9;
+
+    private static final class Auto<T> extends RowMapper<T>
+    {
+        private final Constructor<?> constructor;
+        /** Settable fields, by name in lower case without underscores,
+         *  when objects are created without parameters, else null. */
+        private final Map<String, Field> fields;
+        /** Otherwise, the constructor parameters by normalized name, and
+         *  the arguments given to those without a column. */
+        private final Map<String, Integer> params;
+        private final Object[] defaults;
+
+        /** Plan for the columns last mapped, replaced as a whole so that
+         *  threads mapping other statements never see half of one. */
+        private volatile Plan plan = null;
+
+        Auto(Class<?> type) throws SQLException {
+            Constructor<?> c = null;
+            String[] names = null;
+            if (!isRecord(type)) {
+                try {
+                    c = type.getDeclaredConstructor();
+                } catch (NoSuchMethodException e) {}
+            }
+            if (c == null) {
+                if (isRecord(type)) {
+                    final Object[] comps =
+                        (Object[])invoke(type, "getRecordComponents");
+                    names = new String[comps.length];
+                    c = canonical(type, comps, names);
+                } else {
+                    c = namedConstructor(type);
+                    if (c != null) {
+                        final Parameter[] ps = c.getParameters();
+                        names = new String[ps.length];
+                        for (int i=0; i < ps.length; i++)
+                            names[i] = ps[i].getName();
+                    } else {
+                        names = instanceFields(type);
+                        c = fieldsConstructor(type);
+                    }
+                }
+                if (c == null) throw new SQLException(type.getName()
+                    + " has no constructor without parameters, nor one"
+                    + " with named parameters or taking its fields");
+            }
+            constructor = c;
+            constructor.setAccessible(true);
+
+            if (names == null) {
+                fields = new HashMap<String, Field>();
+                params = null;
+                defaults = null;
+                for (Class<?> k = type; k != null && k != Object.class;
+                        k = k.getSuperclass()) {
+                    for (Field f : k.getDeclaredFields()) {
+                        final int m = f.getModifiers();
+                        if (Modifier.isStatic(m) || Modifier.isFinal(m))
+                            continue;
+                        final String name = normalize(f.getName());
+                        if (fields.containsKey(name)) continue; // hidden
+                        f.setAccessible(true);
+                        fields.put(name, f);
+                    }
+                }
+            } else {
+                fields = null;
+                params = new HashMap<String, Integer>();
+                final Class<?>[] types = c.getParameterTypes();
+                defaults = new Object[types.length];
+                for (int i=0; i < types.length; i++) {
+                    params.put(normalize(names[i]), i);
+                    defaults[i] = zero(types[i]);
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        public T map(ResultSet rs) throws SQLException {
+            final Object s = rs instanceof RS ? ((RS)rs).cols : rs;
+            Plan p = plan;
+            if (p == null || p.shape != s)
+                plan = p = new Plan(this, rs.getMetaData(), s);
+            final int[] kinds = p.kinds;
+
+            try {
+                if (fields == null) {
+                    final Object[] args = defaults.clone();
+                    for (int i=0; i < kinds.length; i++)
+                        if (kinds[i] != 0)
+                            args[p.args[i]] = p.read(rs, i);
+                    return (T)constructor.newInstance(args);
+                }
+
+                final Field[] targets = p.fields;
+                final T o = (T)constructor.newInstance();
+                for (int i=0; i < targets.length; i++) {
+                    final Field f = targets[i];
+                    final int col = i + 1;
+                    switch (kinds[i]) {
+                        case 0: break;
+                        case BOOLEAN: f.setBoolean(o, rs.getBoolean(col)); break;
+                        case BYTE:    f.setByte(o, rs.getByte(col)); break;
+                        case SHORT:   f.setShort(o, rs.getShort(col)); break;
+                        case INT:     f.setInt(o, rs.getInt(col)); break;
+                        case LONG:    f.setLong(o, rs.getLong(col)); break;
+                        case FLOAT:   f.setFloat(o, rs.getFloat(col)); break;
+                        case DOUBLE:  f.setDouble(o, rs.getDouble(col)); break;
+                        case STRING:  f.set(o, rs.getString(col)); break;
+                        default:      f.set(o, p.read(rs, i));
+                    }
+                }
+                return o;
+            } catch (InstantiationException e) {
+                throw new SQLException(e.toString());
+            } catch (IllegalAccessException e) {
+                throw new SQLException(e.toString());
+            } catch (InvocationTargetException e) {
+                throw new SQLException(e.getCause().toString());
+            }
+        }
+    }
+
+    // CONSTRUCTORS /////////////////////////////////////////////////
+
+    // records are found through reflection, as this tree builds for Java 8
+
+    private static boolean isRecord(Class<?> type) {
+        final Class<?> s = type.getSuperclass();
+        return s != null && "java.lang.Record".equals(s.getName());
+    }
+
+    /** Returns the canonical constructor of a record, setting the names
+     *  of its components. */
+    private static Constructor<?> canonical(Class<?> type, Object[] comps,
+                                            String[] names)
+            throws SQLException {
+        final Class<?>[] types = new Class<?>[comps.length];
+        for (int i=0; i < comps.length; i++) {
+            names[i] = (String)invoke(comps[i], "getName");
+            types[i] = (Class<?>)invoke(comps[i], "getType");
+        }
+        try {
+            return type.getDeclaredConstructor(types);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static Object invoke(Object o, String method)
+            throws SQLException {
+        try {
+            final Method m = o.getClass().getMethod(method);
+            return m.invoke(o);
+        } catch (Exception e) {
+            throw new SQLException("reading record " + o + ": " + e);
+        }
+    }
+
+    /** Returns the constructor with the most parameters, if their names
+     *  were compiled in, or null. */
+    private static Constructor<?> namedConstructor(Class<?> type) {
+        Constructor<?> best = null;
+        for (Constructor<?> c : type.getDeclaredConstructors()) {
+            final Parameter[] ps = c.getParameters();
+            if (ps.length == 0 || !ps[0].isNamePresent()) continue;
+            if (best == null || ps.length > best.getParameterCount())
+                best = c;
+        }
+        return best;
+    }
+
+    /** Returns the names of the instance fields declared by a class. */
+    private static String[] instanceFields(Class<?> type) {
+        final List<String> names = new ArrayList<String>();
+        for (Field f : type.getDeclaredFields())
+            if (!Modifier.isStatic(f.getModifiers()) && !f.isSynthetic())
+                names.add(f.getName());
+        return names.toArray(new String[names.size()]);
+    }
+
+    /** Returns the constructor taking the instance fields of a class in
+     *  their declared order, or null. */
+    private static Constructor<?> fieldsConstructor(Class<?> type) {
+        final List<Class<?>> types = new ArrayList<Class<?>>();
+        for (Field f : type.getDeclaredFields())
+            if (!Modifier.isStatic(f.getModifiers()) && !f.isSynthetic())
+                types.add(f.getType());
+        if (types.isEmpty()) return null;
+        try {
+            return type.getDeclaredConstructor(
+                types.toArray(new Class<?>[types.size()]));
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /** Returns the argument for a parameter without a column. */
+    private static Object zero(Class<?> t) {
+        if (!t.isPrimitive()) return null;
+        if (t == boolean.class) return Boolean.FALSE;
+        if (t == char.class) return Character.valueOf('\0');
+        if (t == byte.class) return Byte.valueOf((byte)0);
+        if (t == short.class) return Short.valueOf((short)0);
+        if (t == int.class) return Integer.valueOf(0);
+        if (t == long.class) return Long.valueOf(0);
+        if (t == float.class) return Float.valueOf(0);
+        return Double.valueOf(0);
+    }
+
+    /** How each column is read and where it goes, worked out once for
+     *  the columns of a statement. */
+    private static final class Plan
+    {
+        /** The column names of a statement of this driver, else the
+         *  result set the plan was worked out for. */
+        final Object shape;
+        /** By column: the field set, or the constructor argument. */
+        final Field[] fields;
+        final int[] args;
+        final int[] kinds;
+        final Class<?>[] types;
+        final Conversion[] conversions;
+
+        Plan(Auto<?> auto, ResultSetMetaData meta, Object shape)
+                throws SQLException {
+            final int n = meta.getColumnCount();
+            final Class<?>[] params = auto.fields == null
+                ? auto.constructor.getParameterTypes() : null;
+            fields = new Field[n];
+            args = new int[n];
+            kinds = new int[n];
+            types = new Class<?>[n];
+            conversions = new Conversion[n];
+            for (int i=0; i < n; i++) {
+                final String name = normalize(meta.getColumnLabel(i+1));
+                if (params == null) {
+                    final Field f = auto.fields.get(name);
+                    if (f == null) continue;
+                    fields[i] = f;
+                    types[i] = f.getType();
+                } else {
+                    final Integer a = auto.params.get(name);
+                    if (a == null) continue;
+                    args[i] = a;
+                    types[i] = params[a];
+                }
+                kinds[i] = kind(types[i]);
+                if (kinds[i] == OBJECT)
+                    conversions[i] = Conversion.of(types[i]);
+            }
+            this.shape = shape;
+        }
+
+        /** Returns the value of column i + 1, boxed. */
+        Object read(ResultSet rs, int i) throws SQLException {
+            final int col = i + 1;
+            switch (kinds[i]) {
+                case BOOLEAN: return Boolean.valueOf(rs.getBoolean(col));
+                case BYTE:    return Byte.valueOf(rs.getByte(col));
+                case SHORT:   return Short.valueOf(rs.getShort(col));
+                case INT:     return Integer.valueOf(rs.getInt(col));
+                case LONG:    return Long.valueOf(rs.getLong(col));
+                case FLOAT:   return Float.valueOf(rs.getFloat(col));
+                case DOUBLE:  return Double.valueOf(rs.getDouble(col));
+                case STRING:  return rs.getString(col);
+                default:
+                    return rs instanceof RS
+                        ? conversions[i].read((RS)rs, col)
+                        : rs.getObject(col, types[i]);
+            }
+        }
+
+        private static int kind(Class<?> t) {
+            if (t == long.class) return LONG;
+            if (t == int.class) return INT;
+            if (t == double.class) return DOUBLE;
+            if (t == String.class) return STRING;
+            if (t == boolean.class) return BOOLEAN;
+            if (t == float.class) return FLOAT;
+            if (t == short.class) return SHORT;
+            if (t == byte.class) return BYTE;
+            return OBJECT;
+        }
+    }
+}
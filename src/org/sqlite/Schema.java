@@ -0,0 +1,223 @@
+/*
+ * The author disclaims copyright to this source code.  In place of
+ * a legal notice, here is a blessing:
+ *
+ *    May you do good and not evil.
+ *    May you find forgiveness for yourself and forgive others.
+ *    May you share freely, never taking more than you give.
+ *
+ */
+package org.sqlite;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** An immutable model of the schema of a connection, as read by
+ *  MetaData. The list of schema objects is read when the model is
+ *  created; the columns, indexes and foreign keys of a table the first
+ *  time they are asked for. A model is only valid for the schema
+ *  versions it was created with. */
+final class Schema
+{
+    /** A row of sqlite_master or sqlite_temp_master. */
+    static final class Entry {
+        final String name, type, tableName;
+        final int rootPage;    // 0 for views and triggers
+        final boolean temp;
+        Entry(String name, String type, String tableName, int rootPage,
+              boolean temp) {
+            this.name = name;
+            this.type = type;
+            this.tableName = tableName;
+            this.rootPage = rootPage;
+            this.temp = temp;
+        }
+    }
+
+    static final class Column {
+        final String name;
+        final String type;     // declared type, null if none
+        final boolean notNull;
+        final int pk;          // position in the primary key, 0 if none
+        Column(String name, String type, boolean notNull, int pk) {
+            this.name = name;
+            this.type = type;
+            this.notNull = notNull;
+            this.pk = pk;
+        }
+    }
+
+    static final class Index {
+        final String name;
+        final boolean unique;
+        final int[] seqnos;
+        final String[] columns;
+        Index(String name, boolean unique, int[] seqnos, String[] columns) {
+            this.name = name;
+            this.unique = unique;
+            this.seqnos = seqnos;
+            this.columns = columns;
+        }
+    }
+
+    static final class ForeignKey {
+        final String table;    // parent table
+        final String from;
+        final String to;       // null for the primary key of the parent
+        final int seq;
+        ForeignKey(String table, String from, String to, int seq) {
+            this.table = table;
+            this.from = from;
+            this.to = to;
+            this.seq = seq;
+        }
+    }
+
+    static final class Table {
+        final Column[] columns;
+        final Index[] indexes;
+        final ForeignKey[] foreignKeys;
+        Table(Column[] columns, Index[] indexes, ForeignKey[] foreignKeys) {
+            this.columns = columns;
+            this.indexes = indexes;
+            this.foreignKeys = foreignKeys;
+        }
+    }
+
+    final long mainVersion, tempVersion;
+    final Entry[] entries;
+    private final Map<String, Table> tables = new HashMap<String, Table>();
+
+    private Schema(long mainVersion, long tempVersion, Entry[] entries) {
+        this.mainVersion = mainVersion;
+        this.tempVersion = tempVersion;
+        this.entries = entries;
+    }
+
+    /** Returns <tt>schema</tt> if it is still current, otherwise reads
+     *  the schema objects of the connection. */
+    static Schema load(Conn conn, Schema schema) throws SQLException {
+        final DB db = conn.db();
+        final long main = db.queryLong("pragma main.schema_version;", 0);
+        final long temp = db.queryLong("pragma temp.schema_version;", 0);
+        if (schema != null && schema.mainVersion == main
+                && schema.tempVersion == temp)
+            return schema;
+
+        final List<Entry> entries = new ArrayList<Entry>();
+        final Statement stat = conn.createStatement();
+        try {
+            final ResultSet rs = stat.executeQuery(
+                "select name, type, tbl_name, rootpage, 0 from sqlite_master"
+                + " union all select name, type, tbl_name, rootpage, 1"
+                + " from sqlite_temp_master;");
+            while (rs.next())
+                entries.add(new Entry(rs.getString(1), rs.getString(2),
+                    rs.getString(3), rs.getInt(4), rs.getInt(5) == 1));
+        } finally {
+            stat.close();
+        }
+        return new Schema(main, temp, entries.toArray(new Entry[entries.size()]));
+    }
+
+    /** Returns the columns, indexes and foreign keys of a table or view,
+     *  empty if there is no such table. */
+    synchronized Table table(Conn conn, String name) throws SQLException {
+        final String key = name.toLowerCase();
+        Table table = tables.get(key);
+        if (table != null) return table;
+
+        final List<Column> columns = new ArrayList<Column>();
+        final List<Index> indexes = new ArrayList<Index>();
+        final List<ForeignKey> fks = new ArrayList<ForeignKey>();
+        final Statement stat = conn.createStatement();
+        try {
+            ResultSet rs = stat.executeQuery(
+                "pragma table_info(" + quote(name) + ");");
+            while (rs.next())
+                columns.add(new Column(rs.getString(2), rs.getString(3),
+                    !"0".equals(rs.getString(4)), rs.getInt(6)));
+            rs.close();
+
+            final List<String> names = new ArrayList<String>();
+            final List<Boolean> unique = new ArrayList<Boolean>();
+            rs = stat.executeQuery("pragma index_list(" + quote(name) + ");");
+            while (rs.next()) {
+                names.add(rs.getString(2));
+                unique.add(rs.getBoolean(3));
+            }
+            rs.close();
+            for (int i=0; i < names.size(); i++) {
+                final List<Integer> seqnos = new ArrayList<Integer>();
+                final List<String> cols = new ArrayList<String>();
+                rs = stat.executeQuery(
+                    "pragma index_info(" + quote(names.get(i)) + ");");
+                while (rs.next()) {
+                    seqnos.add(rs.getInt(1));
+                    cols.add(rs.getString(3));
+                }
+                rs.close();
+                final int[] s = new int[seqnos.size()];
+                for (int j=0; j < s.length; j++) s[j] = seqnos.get(j);
+                indexes.add(new Index(names.get(i), unique.get(i), s,
+                    cols.toArray(new String[cols.size()])));
+            }
+
+            rs = stat.executeQuery(
+                "pragma foreign_key_list(" + quote(name) + ");");
+            while (rs.next())
+                fks.add(new ForeignKey(rs.getString(3), rs.getString(4),
+                    rs.getString(5), rs.getInt(2)));
+            rs.close();
+        } finally {
+            stat.close();
+        }
+
+        table = new Table(columns.toArray(new Column[columns.size()]),
+            indexes.toArray(new Index[indexes.size()]),
+            fks.toArray(new ForeignKey[fks.size()]));
+        tables.put(key, table);
+        return table;
+    }
+
+    /** Matches s against a LIKE pattern, case-insensitive for ASCII. */
+    static boolean like(String pattern, String s) {
+        return like(pattern, 0, s, 0);
+    }
+
+    private static boolean like(String p, int i, String s, int j) {
+        for (; i < p.length(); i++, j++) {
+            final char c = p.charAt(i);
+            if (c == '%') {
+                while (i + 1 < p.length() && p.charAt(i + 1) == '%') i++;
+                if (i + 1 == p.length()) return true;
+                for (int k = j; k <= s.length(); k++)
+                    if (like(p, i + 1, s, k)) return true;
+                return false;
+            }
+            if (j == s.length()) return false;
+            if (c != '_' && lower(c) != lower(s.charAt(j))) return false;
+        }
+        return j == s.length();
+    }
+
+    private static char lower(char c) {
+        return c >= 'A' && c <= 'Z' ? (char)(c + ('a' - 'A')) : c;
+    }
+
+    /** Quotes a string literal. */
+    static String quote(String val) {
+        final StringBuilder buf = new StringBuilder(val.length() + 2);
+        buf.append('\'');
+        for (int i=0; i < val.length(); i++) {
+            if (val.charAt(i) == '\'') buf.append('\'');
+            buf.append(val.charAt(i));
+        }
+        return buf.append('\'').toString();
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * The author disclaims copyright to this source code.  In place of
+ * a legal notice, here is a blessing:
+ *
+ *    May you do good and not evil.
+ *    May you find forgiveness for yourself and forgive others.
+ *    May you share freely, never taking more than you give.
+ *
+ */
+package org.sqlite;
+
+import java.util.Arrays;
+
+/** The update counts and timings of the statements of a script run by
+ *  Conn.executeScript(), in script order. The update count of a
+ *  statement that changed no row, such as a query or a CREATE TABLE, is
+ *  0. Timings are in nanoseconds, measured around the steps of each
+ *  statement with microsecond resolution. */
+public final class ScriptResult
+{
+    private int size = 0;
+    private int[] counts = new int[16];
+    private long[] nanos = new long[16];
+
+    ScriptResult() {}
+
+    void add(long count, long time) {
+        if (size == counts.length) {
+            counts = Arrays.copyOf(counts, size * 2);
+            nanos = Arrays.copyOf(nanos, size * 2);
+        }
+        counts[size] = (int)count;
+        nanos[size] = time;
+        size++;
+    }
+
+    /** Returns the number of statements run. */
+    public int size() { return size; }
+    /** Returns the number of rows changed by statement <tt>i</tt>. */
+    public int getUpdateCount(int i) { return counts[check(i)]; }
+    /** Returns the time spent running statement <tt>i</tt>. */
+    public long getNanos(int i) { return nanos[check(i)]; }
+
+    /** Returns the number of rows changed by each statement. */
+    public int[] getUpdateCounts() {
+        return Arrays.copyOf(counts, size); }
+
+    /** Returns the time spent running all statements. */
+    public long getTotalNanos() {
+        long total = 0;
+        for (int i=0; i < size; i++) total += nanos[i];
+        return total;
+    }
+
+    private int check(int i) {
+        if (i < 0 || i >= size) throw new IndexOutOfBoundsException(
+            "statement " + i + " of " + size);
+        return i;
+    }
+}
@@ -35,6 +35,17 @@ class Stmt implements Statement, Codes
     Object[] batch = null;
     boolean resultsWaiting = false;
 
+    /** Names and descriptors of the columns, null until asked for. */
+    String[] names = null;
+    Column[] columns = null;
+    /** Conversions by column for getObject(int, Class). */
+    private Conversion[] conversions = null;
+    /** Index of the column names of the last result set. */
+    private ColumnIndex index = null;
+    /** Times SQLite had recompiled the statement when names and columns
+     *  were read. */
+    int reprepared = 0;
+
     Stmt(Conn c) {
         conn = c;
         db = conn.db();
@@ -45,6 +56,51 @@ class Stmt implements Statement, Codes
         if (pointer == 0) throw new SQLException("statement is not executing");
     }
 
+    /** Forgets the names and descriptors of the columns if SQLite has
+     *  recompiled the statement since they were read, after a schema
+     *  change. Called once per execution. */
+    final void checkReprepared() throws SQLException {
+        final int n = db.stmt_status(
+            pointer, SQLITE_STMTSTATUS_REPREPARE, false);
+        if (n != reprepared) {
+            names = null;
+            columns = null;
+            reprepared = n;
+        }
+    }
+
+    /** Returns the names of the columns. */
+    final String[] names() throws SQLException {
+        if (names == null) names = db.column_names(pointer);
+        return names;
+    }
+
+    /** Returns the descriptors of the columns. */
+    final Column[] columns() throws SQLException {
+        if (columns == null) columns = Column.describe(db, pointer);
+        return columns;
+    }
+
+    /** Returns the conversion of a column to <code>type</code>, looked up
+     *  once and kept while the column is read as that type. */
+    final Conversion conversion(int col, int count, Class<?> type)
+            throws SQLException {
+        if (conversions == null || conversions.length != count)
+            conversions = new Conversion[count];
+        Conversion c = conversions[col];
+        if (c == null || c.type != type)
+            conversions[col] = c = Conversion.of(type);
+        return c;
+    }
+
+    /** Returns the index of the column names of a result set, reused
+     *  while the statement returns the same names. */
+    final ColumnIndex index(String[] cols) {
+        if (index == null || index.names != cols)
+            index = new ColumnIndex(cols);
+        return index;
+    }
+
     /** Calls sqlite3_step() and sets up results. Expects a clean stmt. */
     protected boolean exec() throws SQLException {
         if (sql == null) throw new SQLException(
@@ -134,8 +190,9 @@ class Stmt implements Statement, Codes
         if (rs.isOpen()) throw new SQLException("ResultSet already requested");
         if (db.column_count(pointer) == 0) throw new SQLException(
             "no ResultSet available");
+        checkReprepared();
         if (rs.colsMeta == null)
-            rs.colsMeta = db.column_names(pointer);
+            rs.colsMeta = names();
         rs.cols = rs.colsMeta;
 
         rs.open = resultsWaiting;
@@ -0,0 +1,157 @@
+/*
+ * The author disclaims copyright to this source code.  In place of
+ * a legal notice, here is a blessing:
+ *
+ *    May you do good and not evil.
+ *    May you find forgiveness for yourself and forgive others.
+ *    May you share freely, never taking more than you give.
+ *
+ */
+package org.sqlite;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/** Provides an interface for creating table-valued functions.
+ *
+ * <p>A <tt>TableFunction</tt> registered with
+ * <tt>TableFunction.create()</tt> is an eponymous virtual table: it is
+ * used in a FROM clause under the name it was given, with its arguments
+ * in parentheses. Each call returns a <tt>Generator</tt>, which produces
+ * the rows in batches of a <tt>RowBuffer</tt>.</p>
+ *
+ * Eg.
+ *
+ * <pre>
+ *      TableFunction.create(conn, "series", new TableFunction(
+ *              new String[] { "start", "stop" }, "value integer") {
+ *          protected Generator call(Object[] args) {
+ *              final long stop = ((Number)args[1]).longValue();
+ *              final long[] i = { ((Number)args[0]).longValue() };
+ *              return new Generator() {
+ *                  public boolean next(RowBuffer rows) {
+ *                      while (!rows.isFull() &amp;&amp; i[0] &lt;= stop)
+ *                          rows.row().add(i[0]++);
+ *                      return i[0] &lt;= stop;
+ *                  }
+ *              };
+ *          }
+ *      });
+ *
+ *      conn.createStatement().executeQuery(
+ *          "select value from series(1, 100);");
+ *  </pre>
+ *
+ * <p>The parameters are hidden columns of the table, so an argument can
+ * also be given by name: <tt>select * from series where start = 1 and
+ * stop = 100</tt>. They read as the arguments of the call.</p>
+ */
+public abstract class TableFunction
+{
+    private final String[] parameters;
+    private final String[] columns;
+
+    /** Declares the parameters of the function, by name, and the columns
+     *  of its rows, each as in a CREATE TABLE statement. */
+    protected TableFunction(String[] parameters, String... columns) {
+        if (parameters == null || parameters.length > 31)
+            throw new IllegalArgumentException("too many parameters");
+        if (columns == null || columns.length == 0)
+            throw new IllegalArgumentException("no columns");
+        this.parameters = parameters.clone();
+        this.columns = columns.clone();
+    }
+
+    /** Registers the given function with the Connection using the
+     *  provided name. */
+    public static void create(Connection conn, String name,
+                              final TableFunction f) throws SQLException {
+        if (f == null) throw new SQLException("null function");
+        VirtualTable.create(conn, name, new VirtualTable.Module() {
+            public VirtualTable connect(String[] args) {
+                return f.new Table();
+            }
+        }, true);
+    }
+
+    /** Removes the named function from the Connection. */
+    public static void destroy(Connection conn, String name)
+            throws SQLException {
+        VirtualTable.destroy(conn, name);
+    }
+
+    /** Called for each use of the function in a query, with the values
+     *  of its parameters. A parameter not given is null. */
+    protected abstract Generator call(Object[] args) throws SQLException;
+
+
+    /** Produces the rows of a call. */
+    public interface Generator
+    {
+        /** Adds rows to <tt>rows</tt>, until it is full. Returns false
+         *  once the call has no more rows. */
+        boolean next(RowBuffer rows) throws SQLException;
+    }
+
+
+    private final class Table extends VirtualTable
+    {
+        Table() { super(declare(parameters, columns)); }
+
+        /** Passes the EQ constraints on parameters to the cursor, the
+         *  index number telling which were given. A plan where the value
+         *  of a given parameter is not available yet costs the most. */
+        protected void bestIndex(IndexInfo info) {
+            int given = 0;
+            for (int p=0; p < parameters.length; p++) {
+                for (int i=0; i < info.getConstraintCount(); i++) {
+                    if (info.getConstraintColumn(i) != columns.length + p
+                            || info.getConstraintOperator(i) != EQ)
+                        continue;
+                    if (!info.isConstraintUsable(i)) {
+                        info.setEstimatedCost(Double.MAX_VALUE);
+                        return;
+                    }
+                    info.use(i, true);
+                    given |= 1 << p;
+                    break;
+                }
+            }
+            info.setIndexNumber(given);
+            info.setEstimatedCost(1000);
+            info.setEstimatedRows(1000);
+        }
+
+        protected Cursor open() {
+            return new Cursor() {
+                private Object[] args;
+                private Generator gen;
+
+                protected void filter(int given, String str, Object[] values)
+                        throws SQLException {
+                    args = new Object[parameters.length];
+                    for (int p=0, i=0; p < args.length; p++)
+                        if ((given & (1 << p)) != 0) args[p] = values[i++];
+                    gen = call(args);
+                }
+
+                protected boolean next(RowBuffer rows) throws SQLException {
+                    if (gen == null) return false;
+                    final int from = rows.size();
+                    final boolean more = gen.next(rows);
+                    for (int p=0; p < args.length; p++)
+                        rows.fill(from, columns.length + p, args[p]);
+                    return more;
+                }
+            };
+        }
+    }
+
+    private static String[] declare(String[] parameters, String[] columns) {
+        final String[] decl = new String[columns.length + parameters.length];
+        System.arraycopy(columns, 0, decl, 0, columns.length);
+        for (int p=0; p < parameters.length; p++)
+            decl[columns.length + p] = parameters[p] + " hidden";
+        return decl;
+    }
+}
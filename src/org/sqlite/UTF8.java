@@ -0,0 +1,38 @@
+/*
+ * The author disclaims copyright to this source code.  In place of
+ * a legal notice, here is a blessing:
+ *
+ *    May you do good and not evil.
+ *    May you find forgiveness for yourself and forgive others.
+ *    May you share freely, never taking more than you give.
+ *
+ */
+package org.sqlite;
+
+import java.nio.charset.Charset;
+
+/** Encodes strings passed to SQLite as UTF-8 and decodes its text.
+ *
+ * <p>JNI's own string functions use modified UTF-8: they need a strlen()
+ * and a copy on the native side, turn supplementary characters into
+ * surrogate pairs and stop at embedded NULs. Text is instead passed as
+ * standard UTF-8 bytes with an explicit length, and converted by the
+ * JDK charset, which copies ASCII and Latin-1 strings without decoding
+ * them.</p>
+ */
+final class UTF8
+{
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private UTF8() {}
+
+    /** Returns the UTF-8 bytes of <tt>s</tt>, or null. */
+    static byte[] encode(String s) {
+        return s == null ? null : s.getBytes(UTF_8);
+    }
+
+    /** Returns the string of UTF-8 bytes <tt>b</tt>, or null. */
+    static String decode(byte[] b) {
+        return b == null ? null : new String(b, UTF_8);
+    }
+}
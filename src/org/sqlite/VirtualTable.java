@@ -0,0 +1,289 @@
+/*
+ * The author disclaims copyright to this source code.  In place of
+ * a legal notice, here is a blessing:
+ *
+ *    May you do good and not evil.
+ *    May you find forgiveness for yourself and forgive others.
+ *    May you share freely, never taking more than you give.
+ *
+ */
+package org.sqlite;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/** Provides an interface for creating SQLite virtual tables.
+ *
+ * <p>A <tt>VirtualTable.Module</tt> registered with
+ * <tt>VirtualTable.create()</tt> is called by each <tt>CREATE VIRTUAL
+ * TABLE ... USING</tt> the module name, and again whenever a connection
+ * opens a database declaring such a table. It returns a
+ * <tt>VirtualTable</tt>, which declares its columns and opens a
+ * <tt>Cursor</tt> for each scan.</p>
+ *
+ * Eg.
+ *
+ * <pre>
+ *      VirtualTable.create(conn, "prices", new VirtualTable.Module() {
+ *          public VirtualTable connect(String[] args) {
+ *              return new VirtualTable("symbol text", "price real") {
+ *                  protected Cursor open() { return new PriceCursor(map); }
+ *              };
+ *          }
+ *      });
+ *
+ *      stat.execute("create virtual table temp.p using prices;");
+ *      stat.executeQuery("select * from orders join p using (symbol);");
+ *  </pre>
+ *
+ * <p>Constraints and the ORDER BY of a query are passed to
+ * <tt>bestIndex()</tt>, which picks those the cursor handles. A cursor
+ * produces its rows in batches of a <tt>RowBuffer</tt>, so SQLite reads
+ * the columns of a row without calling into Java.</p>
+ */
+public abstract class VirtualTable
+{
+    /** Constraint operator. */
+    public static final int EQ          = 2;
+    /** Constraint operator. */
+    public static final int GT          = 4;
+    /** Constraint operator. */
+    public static final int LE          = 8;
+    /** Constraint operator. */
+    public static final int LT          = 16;
+    /** Constraint operator. */
+    public static final int GE          = 32;
+    /** Constraint operator. */
+    public static final int MATCH       = 64;
+    /** Constraint operator. */
+    public static final int LIKE        = 65;
+    /** Constraint operator. */
+    public static final int GLOB        = 66;
+    /** Constraint operator. */
+    public static final int REGEXP      = 67;
+    /** Constraint operator. */
+    public static final int NE          = 68;
+    /** Constraint operator. */
+    public static final int IS_NOT      = 69;
+    /** Constraint operator. */
+    public static final int IS_NOT_NULL = 70;
+    /** Constraint operator. */
+    public static final int IS_NULL     = 71;
+    /** Constraint operator. */
+    public static final int IS          = 72;
+    /** Constraint on the LIMIT of the query. */
+    public static final int LIMIT       = 73;
+    /** Constraint on the OFFSET of the query. */
+    public static final int OFFSET      = 74;
+
+    private final String[] columns;
+    private final int batch;
+
+    /** Declares the columns of the table, each as in a CREATE TABLE
+     *  statement, eg. <tt>"price real"</tt>. Cursors produce rows in
+     *  batches of <tt>RowBuffer.DEFAULT_CAPACITY</tt>. */
+    protected VirtualTable(String... columns) {
+        this(RowBuffer.DEFAULT_CAPACITY, columns);
+    }
+
+    /** Declares the columns of the table, each as in a CREATE TABLE
+     *  statement, and the number of rows per batch. */
+    protected VirtualTable(int batch, String... columns) {
+        if (columns == null || columns.length == 0)
+            throw new IllegalArgumentException("no columns");
+        if (batch < 1)
+            throw new IllegalArgumentException("batch must be > 0");
+        this.columns = columns.clone();
+        this.batch = batch;
+    }
+
+    /** Registers the given module with the Connection using the
+     *  provided name. */
+    public static void create(Connection conn, String name, Module module)
+            throws SQLException {
+        create(conn, name, module, false);
+    }
+
+    /** Removes the named module from the Connection. Does nothing once
+     *  the Connection is closed, which removed its modules. */
+    public static void destroy(Connection conn, String name)
+            throws SQLException {
+        if (conn == null || !(conn instanceof Conn))
+            throw new SQLException("connection must be to an SQLite db");
+        if (conn.isClosed()) return;
+        ((Conn)conn).db().create_module(name, null, false);
+    }
+
+    static void create(Connection conn, String name, Module module,
+                       boolean eponymous) throws SQLException {
+        if (conn == null || !(conn instanceof Conn))
+            throw new SQLException("connection must be to an SQLite db");
+        if (conn.isClosed())
+            throw new SQLException("connection closed");
+        if (name == null || name.length() > 255)
+            throw new SQLException("invalid module name: '"+name+"'");
+        if (module == null)
+            throw new SQLException("null module");
+
+        final DB db = ((Conn)conn).db();
+        if (db.create_module(name, module, eponymous) != Codes.SQLITE_OK)
+            throw new SQLException("error creating module");
+    }
+
+
+    /** Opens a cursor to scan the table. */
+    protected abstract Cursor open() throws SQLException;
+
+    /** Called when SQLite plans a query on the table, to choose the
+     *  constraints passed to <tt>Cursor.filter()</tt>. By default, all
+     *  rows are scanned. */
+    protected void bestIndex(IndexInfo info) throws SQLException {}
+
+    /** Called when the table is no longer used by the connection. */
+    protected void disconnect() throws SQLException {}
+
+
+    // called by native code
+
+    final String xSchema() {
+        final StringBuilder sql = new StringBuilder("create table x(");
+        for (int i=0; i < columns.length; i++) {
+            if (i > 0) sql.append(", ");
+            sql.append(columns[i]);
+        }
+        return sql.append(");").toString();
+    }
+
+    final IndexInfo xBestIndex(int[] constraints, int[] orderBy,
+                               double cost, long rows) throws SQLException {
+        final IndexInfo info = new IndexInfo(constraints, orderBy);
+        info.estimatedCost = cost;
+        info.estimatedRows = rows;
+        bestIndex(info);
+        return info;
+    }
+
+    final Cursor xOpen() throws SQLException {
+        final Cursor cursor = open();
+        if (cursor == null) throw new SQLException("no cursor opened");
+        cursor.rows = new RowBuffer(columns.length, batch);
+        return cursor;
+    }
+
+    final void xDisconnect() throws SQLException { disconnect(); }
+
+
+    /** Creates the tables of a virtual table module. */
+    public interface Module
+    {
+        /** Returns the table for a CREATE VIRTUAL TABLE statement. The
+         *  arguments are the module name, the database name, the table
+         *  name and the arguments of the statement, if any. */
+        VirtualTable connect(String[] args) throws SQLException;
+    }
+
+
+    /** A scan of a virtual table. */
+    public static abstract class Cursor
+    {
+        private RowBuffer rows;
+        private boolean eof = true;
+
+        /** Starts a scan with the arguments chosen by
+         *  <tt>IndexInfo.use()</tt>, in the order they were chosen. */
+        protected abstract void filter(int indexNumber, String indexString,
+                                       Object[] args) throws SQLException;
+
+        /** Adds rows of the scan to <tt>rows</tt>, until it is full.
+         *  Returns false once the scan has no more rows. */
+        protected abstract boolean next(RowBuffer rows) throws SQLException;
+
+        /** Called when the scan is over. */
+        protected void close() throws SQLException {}
+
+        // called by native code
+
+        final void xFilter(int indexNumber, String indexString,
+                           Object[] args) throws SQLException {
+            rows.reset();
+            eof = false;
+            filter(indexNumber, indexString, args);
+        }
+
+        final RowBuffer xFetch() throws SQLException {
+            rows.clear();
+            while (rows.size == 0 && !eof) eof = !next(rows);
+            return rows;
+        }
+
+        final void xClose() throws SQLException { close(); }
+    }
+
+
+    /** The constraints and ORDER BY of a query planned on the table, and
+     *  the way the table handles them. */
+    public static final class IndexInfo
+    {
+        private final int[] constraints;  // column, operator, usable
+        private final int[] orderBy;      // column, descending
+        private int args = 0;
+
+        final int[] usage;                // argument, omit
+        int indexNumber = 0;
+        String indexString = null;
+        boolean orderByConsumed = false;
+        boolean unique = false;
+        double estimatedCost;
+        long estimatedRows;
+
+        IndexInfo(int[] constraints, int[] orderBy) {
+            this.constraints = constraints;
+            this.orderBy = orderBy;
+            usage = new int[constraints.length / 3 * 2];
+        }
+
+        /** Returns the number of constraints on the table. */
+        public int getConstraintCount() { return constraints.length / 3; }
+        /** Returns the column of a constraint, -1 for the rowid. */
+        public int getConstraintColumn(int i) { return constraints[i*3]; }
+        /** Returns the operator of a constraint, such as <tt>EQ</tt>. */
+        public int getConstraintOperator(int i) { return constraints[i*3+1]; }
+        /** Returns false if the constraint cannot be used in this plan. */
+        public boolean isConstraintUsable(int i) {
+            return constraints[i*3+2] != 0; }
+
+        /** Passes the value of a usable constraint to
+         *  <tt>Cursor.filter()</tt>, after those already chosen. If
+         *  <tt>omit</tt> is true, SQLite trusts the cursor to apply the
+         *  constraint and does not check it again. */
+        public void use(int i, boolean omit) {
+            if (!isConstraintUsable(i))
+                throw new IllegalArgumentException("constraint not usable");
+            if (usage[i*2] != 0)
+                throw new IllegalArgumentException("constraint already used");
+            usage[i*2] = ++args;
+            usage[i*2+1] = omit ? 1 : 0;
+        }
+
+        /** Returns the number of ORDER BY terms. */
+        public int getOrderByCount() { return orderBy.length / 2; }
+        /** Returns the column of an ORDER BY term, -1 for the rowid. */
+        public int getOrderByColumn(int i) { return orderBy[i*2]; }
+        /** Returns true if an ORDER BY term is descending. */
+        public boolean isOrderByDescending(int i) { return orderBy[i*2+1] != 0; }
+
+        /** Tells SQLite the cursor returns rows in the ORDER BY order. */
+        public void setOrderByConsumed(boolean consumed) {
+            orderByConsumed = consumed; }
+        /** Sets the number passed to <tt>Cursor.filter()</tt>. */
+        public void setIndexNumber(int number) { indexNumber = number; }
+        /** Sets the string passed to <tt>Cursor.filter()</tt>. */
+        public void setIndexString(String string) { indexString = string; }
+        /** Sets the cost of the plan, compared to those of other plans. */
+        public void setEstimatedCost(double cost) { estimatedCost = cost; }
+        /** Sets the number of rows the plan returns. */
+        public void setEstimatedRows(long rows) { estimatedRows = rows; }
+        /** Tells SQLite the plan returns at most one row. */
+        public void setUnique(boolean unique) { this.unique = unique; }
+    }
+}
@@ -1,7 +1,18 @@
 package test;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import org.sqlite.ChangeListener;
+import org.sqlite.ChangeSet;
+import org.sqlite.Conn;
+import org.sqlite.ScriptResult;
 import org.junit.*;
 import static org.junit.Assert.*;
 
@@ -43,6 +54,126 @@ public class ConnectionTest
         testdb.delete();
     }
 
+    @Test public void openReadOnly() throws SQLException {
+        File testdb = new File("test.db");
+        if (testdb.exists()) testdb.delete();
+        Connection conn = DriverManager.getConnection("jdbc:sqlite:test.db");
+        conn.createStatement().executeUpdate("create table t (c1);");
+        conn.close();
+
+        Properties info = new Properties();
+        info.setProperty("read_only", "true");
+        conn = DriverManager.getConnection("jdbc:sqlite:test.db", info);
+        assertTrue(conn.isReadOnly());
+        assertReadOnly(conn);
+        try {
+            conn.setReadOnly(false);
+            fail("read-only database made writable");
+        } catch (SQLException e) {}
+        conn.close();
+
+        conn = DriverManager.getConnection("jdbc:sqlite:file:test.db?mode=ro");
+        assertTrue(conn.isReadOnly());
+        assertReadOnly(conn);
+        conn.close();
+
+        conn = DriverManager.getConnection("jdbc:sqlite:file:test.db?immutable=1");
+        assertTrue(conn.isReadOnly());
+        conn.close();
+
+        testdb.delete();
+    }
+
+    @Test public void openPathWithQuery() throws SQLException {
+        if (File.separatorChar != '/') return; // no '?' in Windows names
+        File odd = new File("odd?mode=ro.db");
+        if (odd.exists()) odd.delete();
+        Connection conn = DriverManager.getConnection("jdbc:sqlite:" + odd);
+        assertFalse(conn.isReadOnly());
+        conn.createStatement().executeUpdate("create table t (c1);");
+        conn.close();
+        assertTrue(odd.exists());
+        assertFalse(new File("odd").exists());
+        odd.delete();
+    }
+
+    @Test public void setReadOnly() throws SQLException {
+        Connection conn = DriverManager.getConnection("jdbc:sqlite:");
+        Statement stat = conn.createStatement();
+        stat.executeUpdate("create table t (c1);");
+        conn.setReadOnly(true);
+        assertTrue(conn.isReadOnly());
+        assertReadOnly(conn);
+        conn.setReadOnly(false);
+        assertFalse(conn.isReadOnly());
+        assertEquals(1, stat.executeUpdate("insert into t values (1);"));
+        stat.close();
+        conn.close();
+    }
+
+    private static void assertReadOnly(Connection conn) {
+        try {
+            conn.createStatement().executeUpdate("insert into t values (1);");
+            fail("read-only database modified");
+        } catch (SQLException e) {}
+    }
+
+    @Test public void mmap() throws SQLException {
+        File testdb = new File("test.db");
+        if (testdb.exists()) testdb.delete();
+        Properties info = new Properties();
+        info.setProperty("mmap_size", "1048576");
+        info.setProperty("io_stats", "true");
+        Conn conn = DriverManager.getConnection("jdbc:sqlite:test.db", info)
+            .unwrap(Conn.class);
+        assertEquals(1048576, conn.getMmapSize());
+        Statement stat = conn.createStatement();
+        stat.executeUpdate("create table t (c1);");
+        for (int i=0; i < 100; i++)
+            stat.executeUpdate("insert into t values (randomblob(1000));");
+        ResultSet rs = stat.executeQuery("select count(*) from t;");
+        assertTrue(rs.next());
+        assertEquals(100, rs.getInt(1));
+        rs.close();
+        stat.close();
+        try {
+            conn.setMmapSize(Long.MAX_VALUE);
+            fail("mmap_size above the compile-time maximum");
+        } catch (SQLException e) {}
+        conn.close();
+
+        // reading back the table on a new connection, with an empty page
+        // cache, is served from the mapping
+        conn = DriverManager.getConnection("jdbc:sqlite:test.db", info)
+            .unwrap(Conn.class);
+        assertEquals(100000, readBack(conn));
+        assertTrue(conn.getMappedPageCount() > 0);
+        conn.close();
+
+        info.setProperty("mmap_size", "0");
+        conn = DriverManager.getConnection("jdbc:sqlite:test.db", info)
+            .unwrap(Conn.class);
+        assertEquals(100000, readBack(conn));
+        assertTrue(conn.getReadCount() > 0);
+        assertEquals(0, conn.getMappedPageCount());
+        conn.close();
+
+        conn = DriverManager.getConnection("jdbc:sqlite:test.db").unwrap(Conn.class);
+        assertEquals(-1, conn.getMappedPageCount());
+        conn.close();
+        testdb.delete();
+    }
+
+    private static long readBack(Connection conn) throws SQLException {
+        Statement stat = conn.createStatement();
+        ResultSet rs = stat.executeQuery("select sum(length(c1)) from t;");
+        assertTrue(rs.next());
+        final long len = rs.getLong(1);
+        rs.close();
+        stat.close();
+        return len;
+    }
+
     @Test(expected= SQLException.class)
     public void closeTest() throws SQLException {
         Connection conn = DriverManager.getConnection("jdbc:sqlite:");
@@ -51,4 +182,229 @@ public class ConnectionTest
         conn.close();
         prep.clearParameters();
     }
+
+    @Test public void serialize() throws SQLException {
+        Conn conn = DriverManager.getConnection("jdbc:sqlite:").unwrap(Conn.class);
+        Statement stat = conn.createStatement();
+        stat.executeUpdate("create table t (c1);");
+        stat.executeUpdate("insert into t values (42);");
+        stat.close();
+        ByteBuffer image = conn.serialize(null);
+        ByteBuffer small = ByteBuffer.allocateDirect(image.remaining());
+        small.limit(image.remaining() - 1);
+        try {
+            conn.serialize(null, small);
+            fail("image written past the buffer limit");
+        } catch (SQLException e) {
+            assertTrue(e.getMessage().endsWith(
+                " < " + image.remaining() + " bytes"));
+        }
+        assertEquals(0, small.position());
+        conn.close();
+        assertTrue(image.isDirect());
+        assertTrue(image.remaining() > 0);
+
+        conn = DriverManager.getConnection("jdbc:sqlite:").unwrap(Conn.class);
+        conn.deserialize(null, image, false);
+        stat = conn.createStatement();
+        stat.executeUpdate("insert into t values (1);");
+        ResultSet rs = stat.executeQuery("select sum(c1) from t;");
+        assertTrue(rs.next());
+        assertEquals(43, rs.getInt(1));
+        rs.close();
+        stat.close();
+        conn.close();
+    }
+
+    @Test public void deserializeReadOnly() throws SQLException {
+        Conn conn = DriverManager.getConnection("jdbc:sqlite:").unwrap(Conn.class);
+        Statement stat = conn.createStatement();
+        stat.executeUpdate("create table t (c1);");
+        stat.executeUpdate("insert into t values (7);");
+        stat.close();
+        ByteBuffer image = ByteBuffer.allocateDirect(64 * 1024);
+        int size = conn.serialize("main", image);
+        assertEquals(size, image.position());
+        image.flip();
+        conn.close();
+
+        conn = DriverManager.getConnection("jdbc:sqlite:").unwrap(Conn.class);
+        conn.deserialize("main", image, true);
+        stat = conn.createStatement();
+        ResultSet rs = stat.executeQuery("select c1 from t;");
+        assertTrue(rs.next());
+        assertEquals(7, rs.getInt(1));
+        rs.close();
+        try {
+            stat.executeUpdate("insert into t values (8);");
+            fail("read-only image modified");
+        } catch (SQLException e) {}
+        stat.close();
+        conn.close();
+    }
+
+    @Test public void changeListener() throws SQLException {
+        Conn conn = DriverManager.getConnection("jdbc:sqlite:").unwrap(Conn.class);
+        Statement stat = conn.createStatement();
+        stat.executeUpdate("create table t (c1);");
+
+        final List<ChangeSet> commits = new ArrayList<ChangeSet>();
+        ChangeListener l = new ChangeListener() {
+            public void committed(ChangeSet changes) { commits.add(changes); }
+        };
+        conn.addChangeListener(l);
+
+        conn.setAutoCommit(false);
+        stat.executeUpdate("insert into t values (1);");
+        stat.executeUpdate("insert into t values (2);");
+        stat.executeUpdate("update t set c1 = 3 where rowid = 1;");
+        assertEquals(0, commits.size());
+        conn.commit();
+        assertEquals(1, commits.size());
+
+        ChangeSet changes = commits.get(0);
+        assertEquals(3, changes.size());
+        assertFalse(changes.isTruncated());
+        assertEquals(ChangeSet.INSERT, changes.getOperation(0));
+        assertEquals(ChangeSet.INSERT, changes.getOperation(1));
+        assertEquals(ChangeSet.UPDATE, changes.getOperation(2));
+        assertEquals("main", changes.getDatabase(0));
+        assertEquals("t", changes.getTable(1));
+        assertEquals(2, changes.getRowId(1));
+        assertEquals(1, changes.getRowId(2));
+
+        stat.executeUpdate("delete from t where rowid = 2;");
+        conn.rollback();
+        assertEquals(1, commits.size());
+
+        conn.removeChangeListener(l);
+        stat.executeUpdate("delete from t where rowid = 2;");
+        conn.commit();
+        assertEquals(1, commits.size());
+        stat.close();
+        conn.close();
+    }
+
+    @Test public void changeListenerBusyCommit() throws SQLException {
+        File testdb = new File("test.db");
+        if (testdb.exists()) testdb.delete();
+        Conn conn = DriverManager.getConnection("jdbc:sqlite:test.db")
+            .unwrap(Conn.class);
+        Connection reader = DriverManager.getConnection("jdbc:sqlite:test.db");
+        Statement stat = conn.createStatement();
+        stat.executeUpdate("create table t (c1);");
+        stat.executeUpdate("with recursive r(x) as (select 1 union all "
+            + "select x + 1 from r where x < 10000) insert into t select x from r;");
+        stat.executeQuery("pragma busy_timeout = 0;").close();
+
+        final List<ChangeSet> commits = new ArrayList<ChangeSet>();
+        conn.addChangeListener(new ChangeListener() {
+            public void committed(ChangeSet changes) { commits.add(changes); }
+        });
+        conn.setAutoCommit(false);
+        stat.executeUpdate("insert into t values (2);");
+
+        // an open read keeps the COMMIT busy after its commit hook ran
+        Statement stat2 = reader.createStatement();
+        ResultSet rs = stat2.executeQuery("select * from t;");
+        assertTrue(rs.next());
+        try {
+            conn.commit();
+            fail("commit while another connection reads");
+        } catch (SQLException e) {}
+        assertEquals(0, commits.size());
+
+        rs.close();
+        stat2.close();
+        reader.close();
+        conn.commit();
+        assertEquals(1, commits.size());
+        assertEquals(1, commits.get(0).size());
+        stat.close();
+        conn.close();
+        testdb.delete();
+    }
+
+    @Test public void executeScript() throws Exception {
+        Conn conn = DriverManager.getConnection("jdbc:sqlite:").unwrap(Conn.class);
+        final String script = "-- schema\n"
+            + "create table t (a, b);\n"
+            + "create table log (n);\n"
+            + "create trigger t_ins after insert on t begin\n"
+            + "  insert into log values (new.a); update log set n = n;\n"
+            + "end;\n"
+            + "insert into t values (1, 'caf\u00e9'), (2, '\ud83d\ude00');\n"
+            + "select * from t;\n"
+            + "update t set a = a + 1 /* trailing */";
+
+        // a reader returning a few characters at a time splits statements,
+        // the trigger body and the surrogate pair across chunks
+        Reader slow = new StringReader(script) {
+            public int read(char[] buf, int off, int len) throws IOException {
+                return super.read(buf, off, Math.min(len, 3));
+            }
+        };
+        ScriptResult res = conn.executeScript(slow, true);
+        assertEquals(6, res.size());
+        assertEquals(0, res.getUpdateCount(0));
+        assertEquals(2, res.getUpdateCount(3));
+        assertEquals(0, res.getUpdateCount(4));
+        assertEquals(2, res.getUpdateCount(5));
+        assertTrue(res.getNanos(3) >= 0);
+        assertTrue(res.getTotalNanos() >= res.getNanos(3));
+
+        Statement stat = conn.createStatement();
+        ResultSet rs = stat.executeQuery("select a, b from t order by a;");
+        assertTrue(rs.next());
+        assertEquals(2, rs.getInt(1));
+        assertEquals("caf\u00e9", rs.getString(2));
+        assertTrue(rs.next());
+        assertEquals("\ud83d\ude00", rs.getString(2));
+        rs.close();
+
+        try {
+            conn.executeScript("insert into t values (5, 5);\n"
+                + "insert into nope values (1);\n"
+                + "insert into t values (6, 6);", true);
+            fail("no such table");
+        } catch (BatchUpdateException e) {
+            assertEquals(1, e.getUpdateCounts().length);
+        }
+        rs = stat.executeQuery("select count(*) from t;");
+        assertEquals(2, rs.getInt(1));
+        rs.close();
+
+        // an error in an ended statement is reported without reading on
+        final StringBuilder tail = new StringBuilder();
+        for (int i=0; i < 1000; i++) tail.append("select 1;\n");
+        Reader bad = new StringReader("insert into nope values (1);\n" + tail) {
+            public int read(char[] buf, int off, int len) throws IOException {
+                return super.read(buf, off, Math.min(len, 3));
+            }
+        };
+        try {
+            conn.executeScript(bad, false);
+            fail("no such table");
+        } catch (BatchUpdateException e) {
+            assertEquals(0, e.getUpdateCounts().length);
+        }
+        assertTrue(bad.read() >= 0);
+
+        res = conn.executeScript("insert into t values (7, 7);");
+        assertEquals(1, res.getUpdateCounts()[0]);
+
+        // a ';' inside a literal does not end the statement
+        Reader semi = new StringReader("insert into t values (8, 'a;b;\n');") {
+            public int read(char[] buf, int off, int len) throws IOException {
+                return super.read(buf, off, Math.min(len, 3));
+            }
+        };
+        res = conn.executeScript(semi, true);
+        assertEquals(1, res.size());
+        rs = stat.executeQuery("select b from t where a = 8;");
+        assertEquals("a;b;\n", rs.getString(1));
+        rs.close();
+        stat.close();
+        conn.close();
+    }
 }
@@ -417,6 +417,33 @@ public class DBMetaDataTest
         assertEquals("BASE_TYPE", rsmeta.getColumnName(7));
     }
 
+    @Test public void schemaChange() throws SQLException {
+        ResultSet rs = meta.getColumns(null, null, "test", "%");
+        int cols = 0;
+        while (rs.next()) cols++;
+        assertEquals(3, cols);
+
+        stat.executeUpdate("alter table test add column ln;");
+        stat.executeUpdate("create index test_ln on test (ln);");
+        rs = meta.getColumns(null, null, "test", "%");
+        cols = 0;
+        while (rs.next()) cols++;
+        assertEquals(4, cols);
+
+        rs = meta.getIndexInfo(null, null, "test", false, false);
+        assertTrue(rs.next());
+        assertEquals("test_ln", rs.getString("INDEX_NAME"));
+        assertEquals("ln", rs.getString("COLUMN_NAME"));
+        assertEquals(1, rs.getInt("NON_UNIQUE"));
+        assertFalse(rs.next());
+
+        stat.executeUpdate("create temp table tmp (c1);");
+        rs = meta.getTables(null, null, "tmp", null);
+        assertTrue(rs.next());
+        assertEquals("tmp", rs.getString("TABLE_NAME"));
+        assertFalse(rs.next());
+    }
+
     @Test public void version() throws SQLException {
         assertNotNull(meta.getDatabaseProductVersion());
         assertTrue(
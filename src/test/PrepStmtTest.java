@@ -1,8 +1,16 @@
 package test;
 
 import java.sql.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.StringTokenizer;
+import org.sqlite.Conn;
+import org.sqlite.Function;
+import org.sqlite.Parameters;
+import org.sqlite.RowMapper;
 import org.junit.*;
 import static org.junit.Assert.*;
 
@@ -311,6 +319,323 @@ public class PrepStmtTest
         rs.close();
     }
 
+    @Test public void utf8() throws SQLException {
+        // stored as standard UTF-8: one 4-byte character, not a pair
+        PreparedStatement prep = conn.prepareStatement(
+            "select ?, length(?), hex(?), '"+utf01+"' = ?;");
+        prep.setString(1, "a\u0000b\u00e9"+utf01);
+        prep.setString(2, utf01);
+        prep.setString(3, utf01);
+        prep.setString(4, utf01);
+        ResultSet rs = prep.executeQuery();
+        assertTrue(rs.next());
+        assertEquals("a\u0000b\u00e9"+utf01, rs.getString(1));
+        assertEquals(1, rs.getInt(2));
+        assertEquals("F0A08180", rs.getString(3));
+        assertEquals(1, rs.getInt(4));
+        rs.close();
+    }
+
+    @Test public void columnNames() throws SQLException {
+        PreparedStatement prep = conn.prepareStatement(
+            "select ? as Id, ? as name, ? as NAME, ? as \"\u00c9t\u00e9\","
+            + " 5 as \"\ud801\udc00\";");
+        for (int i=0; i < 3; i++) {
+            prep.setInt(1, i); prep.setInt(2, 10 + i);
+            prep.setInt(3, 20 + i); prep.setInt(4, 30 + i);
+            ResultSet rs = prep.executeQuery();
+            assertTrue(rs.next());
+            assertEquals(1, rs.findColumn("ID"));
+            assertEquals(2, rs.findColumn("Name")); // first of duplicates
+            assertEquals(4, rs.findColumn("\u00e9T\u00c9"));
+            // Deseret letters, which only Java 16 and later take as equal
+            if ("\ud801\udc28".equalsIgnoreCase("\ud801\udc00"))
+                assertEquals(5, rs.findColumn("\ud801\udc28"));
+            assertEquals(i, rs.getInt("id"));
+            assertEquals(10 + i, rs.getInt("NAME"));
+            try { rs.findColumn("nope"); fail(); } catch (SQLException e) {}
+            rs.close();
+        }
+        prep.close();
+    }
+
+    static class Person {
+        long id;
+        private String firstName;
+        double height;
+        Integer age;
+        boolean active;
+    }
+
+    @Test public void rowMapper() throws SQLException {
+        stat.executeUpdate("create table people (id integer primary key, "
+            + "first_name text, height real, age integer, active, extra);");
+        stat.executeUpdate("insert into people values "
+            + "(1, 'Ada', 1.65, 36, 1, 'x'), (2, null, 1.8, null, 0, 'y');");
+        PreparedStatement prep = conn.prepareStatement(
+            "select * from people where id >= ? order by id;");
+        RowMapper<Person> mapper = RowMapper.of(Person.class);
+        assertSame(mapper, RowMapper.of(Person.class));
+        for (int n=0; n < 2; n++) {
+            prep.setInt(1, n + 1);
+            List<Person> people = RowMapper.query(prep, mapper);
+            assertEquals(2 - n, people.size());
+            Person p = people.get(people.size() - 1);
+            assertEquals(2, p.id);
+            assertNull(p.firstName);
+            assertEquals(1.8, p.height, 0);
+            assertNull(p.age);
+            assertFalse(p.active);
+        }
+        prep.setInt(1, 1);
+        Person p = RowMapper.query(prep, mapper).get(0);
+        assertEquals("Ada", p.firstName);
+        assertEquals(Integer.valueOf(36), p.age);
+        assertTrue(p.active);
+        prep.close();
+    }
+
+    static final class Height {
+        private final String firstName;
+        private final double height;
+        Height(String firstName, double height) {
+            this.firstName = firstName;
+            this.height = height;
+        }
+    }
+
+    @Test public void rowMapperConstructor() throws SQLException {
+        stat.executeUpdate("create table people (id integer primary key, "
+            + "first_name text, height real);");
+        stat.executeUpdate("insert into people values (1, 'Ada', 1.65);");
+        PreparedStatement prep = conn.prepareStatement(
+            "select height, id, first_name from people;");
+        List<Height> rows = RowMapper.query(prep, Height.class);
+        assertEquals(1, rows.size());
+        assertEquals("Ada", rows.get(0).firstName);
+        assertEquals(1.65, rows.get(0).height, 0);
+        prep.close();
+    }
+
+    @Test public void getObjectTyped() throws SQLException {
+        ResultSet rs = stat.executeQuery(
+            "select 5, null, '2.50', 1.5, x'0102';");
+        assertTrue(rs.next());
+        assertEquals(Long.valueOf(5), rs.getObject(1, Long.class));
+        assertEquals("5", rs.getObject(1, String.class));
+        assertNull(rs.getObject(2, Integer.class));
+        assertEquals(new java.math.BigDecimal("2.50"),
+                     rs.getObject(3, java.math.BigDecimal.class));
+        assertEquals(Double.valueOf(1.5), rs.getObject(4, Double.class));
+        assertEquals(2, rs.getObject(5, byte[].class).length);
+        try {
+            rs.getObject(1, Thread.class);
+            fail("converted to an unknown type");
+        } catch (SQLException e) {}
+        rs.close();
+    }
+
+    @Test public void javaTime() throws SQLException {
+        java.time.LocalDate date = java.time.LocalDate.of(2024, 2, 29);
+        java.time.LocalDateTime time =
+            java.time.LocalDateTime.of(2024, 2, 29, 13, 45, 10);
+        java.time.Instant instant = java.time.Instant.ofEpochMilli(1234567890123L);
+        java.util.UUID uuid = java.util.UUID.randomUUID();
+
+        PreparedStatement prep = conn.prepareStatement(
+            "select ?, ?, ?, ?, datetime(?), '2024-02-29 13:45:10+01:00', "
+            + "'" + uuid + "', '0123456789abcdef';");
+        prep.setObject(1, date);
+        prep.setObject(2, time);
+        prep.setObject(3, instant);
+        prep.setObject(4, uuid);
+        prep.setObject(5, time);
+        ResultSet rs = prep.executeQuery();
+        assertTrue(rs.next());
+        assertEquals(date, rs.getObject(1, java.time.LocalDate.class));
+        assertEquals("2024-02-29 13:45:10", rs.getString(2));
+        assertEquals(time, rs.getObject(2, java.time.LocalDateTime.class));
+        assertEquals(date, rs.getObject(2, java.time.LocalDate.class));
+        assertEquals(instant, rs.getObject(3, java.time.Instant.class));
+        assertEquals(uuid, rs.getObject(4, java.util.UUID.class));
+        assertEquals(time.toInstant(java.time.ZoneOffset.UTC),
+                     rs.getObject(5, java.time.Instant.class));
+        assertEquals(java.time.OffsetDateTime.of(time,
+                         java.time.ZoneOffset.ofHours(1)),
+                     rs.getObject(6, java.time.OffsetDateTime.class));
+        assertEquals(uuid, rs.getObject(7, java.util.UUID.class));
+        try {
+            rs.getObject(8, java.util.UUID.class);
+            fail("16 characters of text read as a binary UUID");
+        } catch (SQLException e) {}
+        rs.close();
+        prep.close();
+    }
+
+    static class Range { long low_bound; Long highBound; }
+
+    @Test public void namedParameters() throws SQLException {
+        PreparedStatement prep = conn.prepareStatement(
+            "select :low_bound, @highBound, $low_bound, ?, :low_bound + 1, "
+            + ":x, $x;");
+        assertEquals(1, Parameters.index(prep, ":low_bound"));
+        assertEquals(2, Parameters.index(prep, "highBound"));
+        assertEquals(2, Parameters.index(prep, "@highBound"));
+        assertEquals(3, Parameters.index(prep, "$low_bound"));
+        assertEquals(5, Parameters.index(prep, ":x"));
+        try { Parameters.index(prep, "x"); fail("ambiguous"); }
+        catch (SQLException e) {}
+        try { Parameters.index(prep, "low_bound"); fail("ambiguous"); }
+        catch (SQLException e) {}
+        try { Parameters.index(prep, "nope"); fail("no such parameter"); }
+        catch (SQLException e) {}
+
+        Parameters.set(prep, ":low_bound", 10);
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("highBound", "high");
+        values.put("$low_bound", 3.5);
+        values.put(":x", 1);
+        values.put("$x", 2);
+        Parameters.bind(prep, values);
+        prep.setInt(4, 4);
+        ResultSet rs = prep.executeQuery();
+        assertTrue(rs.next());
+        assertEquals(10, rs.getInt(1));
+        assertEquals("high", rs.getString(2));
+        assertEquals(3.5, rs.getDouble(3), 0);
+        assertEquals(4, rs.getInt(4));
+        assertEquals(11, rs.getInt(5));
+        assertEquals(2, rs.getInt(7));
+        rs.close();
+
+        Range r = new Range();
+        r.low_bound = 7;
+        Parameters.bind(prep, r);
+        rs = prep.executeQuery();
+        assertTrue(rs.next());
+        assertEquals(7, rs.getInt(1));
+        assertNull(rs.getString(2));
+        assertEquals(7, rs.getInt(3));
+        rs.close();
+        prep.close();
+    }
+
+    @Test public void arrays() throws SQLException {
+        stat.executeUpdate("create table in_list (id integer, name);");
+        for (int i=0; i < 10; i++)
+            stat.executeUpdate("insert into in_list values ("
+                + i + ", 'n" + i + "');");
+
+        PreparedStatement prep = conn.prepareStatement(
+            "select id from in_list where id in carray(?) order by id;");
+        prep.setObject(1, new long[] { 8, 3, 42, 5 });
+        ResultSet rs = prep.executeQuery();
+        assertTrue(rs.next()); assertEquals(3, rs.getInt(1));
+        assertTrue(rs.next()); assertEquals(5, rs.getInt(1));
+        assertTrue(rs.next()); assertEquals(8, rs.getInt(1));
+        assertFalse(rs.next());
+        rs.close();
+
+        prep.setArray(1, conn.createArrayOf("integer", new Object[] { 1, 2L }));
+        rs = prep.executeQuery();
+        assertTrue(rs.next()); assertEquals(1, rs.getInt(1));
+        assertTrue(rs.next()); assertEquals(2, rs.getInt(1));
+        assertFalse(rs.next());
+        rs.close();
+
+        prep.setObject(1, new long[0]);
+        rs = prep.executeQuery();
+        assertFalse(rs.next());
+        rs.close();
+        prep.close();
+
+        prep = conn.prepareStatement(
+            "select name from in_list where name in carray(?) order by id;");
+        Array names = conn.createArrayOf("text",
+            new Object[] { "n7", "n1", "\u00e9" });
+        assertEquals("n1", ((String[])names.getArray())[1]);
+        prep.setArray(1, names);
+        rs = prep.executeQuery();
+        assertTrue(rs.next()); assertEquals("n1", rs.getString(1));
+        assertTrue(rs.next()); assertEquals("n7", rs.getString(1));
+        assertFalse(rs.next());
+        rs.close();
+        prep.close();
+
+        prep = conn.prepareStatement("select value from carray(?);");
+        prep.setObject(1, new String[] { "a", "", "\u00e9t\u00e9" });
+        rs = prep.executeQuery();
+        assertTrue(rs.next()); assertEquals("a", rs.getString(1));
+        assertTrue(rs.next()); assertEquals("", rs.getString(1));
+        assertTrue(rs.next()); assertEquals("\u00e9t\u00e9", rs.getString(1));
+        assertFalse(rs.next());
+        rs.close();
+
+        prep.setObject(1, new double[] { 0.5 });
+        rs = prep.executeQuery();
+        assertTrue(rs.next()); assertEquals(0.5, rs.getDouble(1), 0);
+        rs.close();
+
+        prep.setObject(1, new byte[][] { { 1, 2 }, { 3 } });
+        rs = prep.executeQuery();
+        assertTrue(rs.next());
+        assertTrue(Arrays.equals(new byte[] { 1, 2 }, rs.getBytes(1)));
+        assertTrue(rs.next());
+        assertTrue(Arrays.equals(new byte[] { 3 }, rs.getBytes(1)));
+        rs.close();
+        prep.close();
+    }
+
+    @Test public void parameterTypes() throws SQLException {
+        stat.executeUpdate("create table typed (id integer primary key, "
+            + "a int, b text, r real, d date, x);");
+        stat.executeUpdate("create index typed_a on typed(a);");
+
+        PreparedStatement prep = conn.prepareStatement(
+            "select * from typed where a = ? and b = ? and r > ? and ? < d "
+            + "and x = ? and b like ? limit ?;");
+        ParameterMetaData meta = prep.getParameterMetaData();
+        assertEquals(7, meta.getParameterCount());
+        assertEquals(Types.BIGINT, meta.getParameterType(1));
+        assertEquals("java.lang.Long", meta.getParameterClassName(1));
+        assertEquals(Types.VARCHAR, meta.getParameterType(2));
+        assertEquals(Types.DOUBLE, meta.getParameterType(3));
+        assertEquals(Types.NUMERIC, meta.getParameterType(4));
+        assertEquals(Types.VARCHAR, meta.getParameterType(5));
+        assertEquals(Types.VARCHAR, meta.getParameterType(6));
+        assertEquals(Types.BIGINT, meta.getParameterType(7));
+        try { meta.getParameterType(8); fail("out of bounds"); }
+        catch (SQLException e) {}
+        prep.close();
+
+        prep = conn.prepareStatement(
+            "insert into typed (b, a, id, r) values (?, ?, ?, ?);");
+        meta = prep.getParameterMetaData();
+        assertEquals(Types.VARCHAR, meta.getParameterType(1));
+        assertEquals(Types.BIGINT, meta.getParameterType(2));
+        assertEquals(Types.BIGINT, meta.getParameterType(3));
+        assertEquals("REAL", meta.getParameterTypeName(4));
+        prep.close();
+
+        prep = conn.prepareStatement(
+            "update typed set r = ? where a between ? and ?;");
+        meta = prep.getParameterMetaData();
+        assertEquals(Types.DOUBLE, meta.getParameterType(1));
+        assertEquals(Types.BIGINT, meta.getParameterType(2));
+        assertEquals(Types.BIGINT, meta.getParameterType(3));
+        prep.close();
+
+        // index root pages of an attached database repeat those of main
+        stat.executeUpdate("attach ':memory:' as aux;");
+        stat.executeUpdate("create table aux.u (y);");
+        stat.executeUpdate("create index aux.u_y on u(y);");
+        prep = conn.prepareStatement("select y from aux.u where y = ?;");
+        assertEquals(Types.VARCHAR,
+                     prep.getParameterMetaData().getParameterType(1));
+        prep.close();
+        stat.executeUpdate("detach aux;");
+    }
+
     @Test public void batch() throws SQLException {
         ResultSet rs;
 
@@ -599,6 +924,118 @@ public class PrepStmtTest
         rs.getInt("noSuchColName");
     }
 
+    @Test public void resultCache() throws SQLException {
+        Conn c = conn.unwrap(Conn.class);
+        c.setResultCacheSize(1 << 20);
+        assertEquals(1 << 20, c.getResultCacheSize());
+        stat.executeUpdate("create table ref (id integer primary key, name);");
+        stat.executeUpdate("insert into ref values (1, 'one');");
+        stat.executeUpdate("insert into ref values (2, x'0102');");
+
+        PreparedStatement prep = conn.prepareStatement(
+            "select id, name from ref where id >= ? order by id;");
+        for (int i=0; i < 3; i++) {
+            prep.setInt(1, 1);
+            ResultSet rs = prep.executeQuery();
+            assertTrue(rs.next());
+            assertEquals(1, rs.getInt(1));
+            assertEquals("one", rs.getString(2));
+            assertTrue(rs.next());
+            assertEquals("2", rs.getString(1));
+            assertArrayEq(new byte[] { 1, 2 }, rs.getBytes(2));
+            assertFalse(rs.next());
+            rs.close();
+        }
+        assertEquals(1, c.getResultCacheMisses());
+        assertEquals(2, c.getResultCacheHits());
+
+        // other parameters are another entry
+        prep.setInt(1, 2);
+        ResultSet rs = prep.executeQuery();
+        assertTrue(rs.next());
+        assertEquals(2, rs.getLong(1));
+        assertFalse(rs.next());
+        rs.close();
+        assertEquals(2, c.getResultCacheMisses());
+
+        // a change to the table drops its results
+        stat.executeUpdate("update ref set name = 'two' where id = 2;");
+        rs = prep.executeQuery();
+        assertTrue(rs.next());
+        assertEquals("two", rs.getString(2));
+        assertFalse(rs.wasNull());
+        rs.close();
+        assertEquals(3, c.getResultCacheMisses());
+
+        // non-deterministic queries are not cached
+        PreparedStatement rnd = conn.prepareStatement("select random();");
+        rs = rnd.executeQuery();
+        assertTrue(rs.next());
+        rs.close();
+        rs = rnd.executeQuery();
+        assertTrue(rs.next());
+        rs.close();
+        assertEquals(2, c.getResultCacheHits());
+        rnd.close();
+        prep.close();
+
+        // arrays with the same elements hit the same entry
+        prep = conn.prepareStatement(
+            "select name from ref where id in carray(?);");
+        prep.setObject(1, new long[] { 1, 2 });
+        prep.executeQuery().close();
+        prep.setObject(1, new long[] { 1, 2 });
+        prep.executeQuery().close();
+        prep.setArray(1, conn.createArrayOf("text", new Object[] { "a" }));
+        prep.executeQuery().close();
+        assertEquals(5, c.getResultCacheMisses());
+        assertEquals(3, c.getResultCacheHits());
+        prep.close();
+
+        c.setResultCacheSize(0);
+        assertEquals(0, c.getResultCacheSize());
+    }
+
+    private int calls = 0;
+
+    @Test public void resultCacheOversized() throws SQLException {
+        Conn c = conn.unwrap(Conn.class);
+        c.setResultCacheSize(4096);
+        stat.executeUpdate("create table big (id integer primary key, t);");
+        stat.executeUpdate("insert into big values (1, 'a'), "
+            + "(2, printf('%.10000c', 'b')), (3, 'c');");
+        Function.create(conn, "calls", new Function() {
+            public void xFunc() throws SQLException {
+                calls++;
+                result(value_int(0));
+            }
+        });
+
+        // the rows read before the budget is exceeded are not read again
+        PreparedStatement prep = conn.prepareStatement(
+            "select calls(id), t from big where id >= ? order by id;");
+        for (int i=0; i < 2; i++) {
+            calls = 0;
+            prep.setInt(1, 1);
+            ResultSet rs = prep.executeQuery();
+            for (int id=1; id <= 3; id++) {
+                assertTrue(rs.next());
+                assertEquals(id, rs.getInt(1));
+            }
+            assertFalse(rs.next());
+            rs.close();
+            assertEquals(3, calls);
+        }
+
+        // smaller results of the same statement are still cached
+        prep.setInt(1, 3);
+        prep.executeQuery().close();
+        prep.executeQuery().close();
+        assertEquals(1, c.getResultCacheHits());
+        prep.close();
+        c.setResultCacheSize(0);
+    }
+
     private void assertArrayEq(byte[] a, byte[] b) {
         assertNotNull(a);
         assertNotNull(b);
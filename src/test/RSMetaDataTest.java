@@ -70,6 +70,48 @@ public class RSMetaDataTest
         assertEquals(ResultSetMetaData.columnNullable, meta.isNullable(1));
     }
 
+    @Test public void primaryKeyNullable() throws SQLException {
+        // only an INTEGER PRIMARY KEY is the rowid, other keys allow NULL
+        stat.executeUpdate("create table k (a text primary key, b);");
+        stat.executeUpdate("insert into k values (null, 1);");
+        meta = stat.executeQuery("select a from k;").getMetaData();
+        assertEquals(ResultSetMetaData.columnNullable, meta.isNullable(1));
+
+        // an INTEGER column of a composite key is not the rowid
+        stat.executeUpdate("create table c (a integer, b, primary key (a, b));");
+        stat.executeUpdate("insert into c values (null, 1);");
+        meta = stat.executeQuery("select a, b from c;").getMetaData();
+        assertEquals(ResultSetMetaData.columnNullable, meta.isNullable(1));
+        assertEquals(ResultSetMetaData.columnNullable, meta.isNullable(2));
+    }
+
+    @Test public void origin() throws SQLException {
+        stat.executeUpdate("create table t (a integer not null, b text);");
+        stat.executeUpdate("insert into t values (1, 'x');");
+        PreparedStatement prep = conn.prepareStatement(
+            "select a as x, b, a + 1 from t;");
+        ResultSet rs = prep.executeQuery();
+        meta = rs.getMetaData();
+        assertEquals("x", meta.getColumnName(1));
+        assertEquals("t", meta.getTableName(1));
+        assertEquals(ResultSetMetaData.columnNoNulls, meta.isNullable(1));
+        assertEquals(ResultSetMetaData.columnNullable, meta.isNullable(2));
+        assertEquals(ResultSetMetaData.columnNullable, meta.isNullable(3));
+        assertNull(meta.getTableName(3));
+        rs.close();
+
+        // recompiled by SQLite on the next execution
+        stat.executeUpdate("drop table t;");
+        stat.executeUpdate("create table t (a integer, b text not null);");
+        stat.executeUpdate("insert into t values (1, 'x');");
+        rs = prep.executeQuery();
+        meta = rs.getMetaData();
+        assertEquals(ResultSetMetaData.columnNullable, meta.isNullable(1));
+        assertEquals(ResultSetMetaData.columnNoNulls, meta.isNullable(2));
+        rs.close();
+        prep.close();
+    }
+
     @Test(expected= SQLException.class)
     public void badCatalogIndex() throws SQLException { meta.getCatalogName(4);}
 
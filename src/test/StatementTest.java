@@ -137,6 +137,23 @@ public class StatementTest
         rs.close();
     }
 
+    @Test public void typedNulls() throws SQLException {
+        ResultSet rs = stat.executeQuery(
+            "select null, 0, 0.0, '', x'', 86400000;");
+        assertTrue(rs.next());
+        assertEquals(0, rs.getDouble(1), 0); assertTrue(rs.wasNull());
+        assertNull(rs.getDate(1));           assertTrue(rs.wasNull());
+        assertEquals(0, rs.getLong(1));      assertTrue(rs.wasNull());
+        assertEquals(0, rs.getInt(2));       assertFalse(rs.wasNull());
+        assertEquals(0f, rs.getFloat(3), 0); assertFalse(rs.wasNull());
+        assertEquals("", rs.getString(4));   assertFalse(rs.wasNull());
+        assertNull(rs.getBytes(1));          assertTrue(rs.wasNull());
+        rs.getBytes(5);                      assertFalse(rs.wasNull());
+        assertEquals(86400000, rs.getTimestamp(6).getTime());
+        assertFalse(rs.wasNull());
+        rs.close();
+    }
+
     @Test public void tempTable() throws SQLException {
         assertEquals(0, stat.executeUpdate("create temp table myTemp (a);"));
         assertEquals(1, stat.executeUpdate("insert into myTemp values (2);"));
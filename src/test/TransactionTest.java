@@ -2,6 +2,7 @@ package test;
 
 import java.io.File;
 import java.sql.*;
+import org.sqlite.Checkpointer;
 import org.junit.*;
 import static org.junit.Assert.*;
 
@@ -52,6 +53,45 @@ public class TransactionTest
         rs.close();
     }
 
+    @Test public void checkpointer() throws Exception {
+        ResultSet rs = stat1.executeQuery("pragma journal_mode=wal;");
+        assertTrue(rs.next());
+        assertEquals("wal", rs.getString(1));
+        rs.close();
+
+        rs = stat2.executeQuery("pragma wal_autocheckpoint=50;");
+        rs.close();
+        Checkpointer checkpointer = new Checkpointer(conn1, 10);
+        checkpointer.attach(conn2);
+        Connection other = DriverManager.getConnection("jdbc:sqlite:");
+        try {
+            checkpointer.attach(other);
+            fail("attached a connection to another database");
+        } catch (SQLException e) {}
+        other.close();
+        stat1.executeUpdate("create table test (c1);");
+        for (int i=0; i < 100; i++) {
+            stat1.executeUpdate("insert into test values (randomblob(2000));");
+            stat2.executeUpdate("insert into test values (randomblob(2000));");
+        }
+        checkpointer.close();
+
+        assertTrue(checkpointer.getWalPages() >= 10);
+        assertTrue(checkpointer.getCheckpointCount() > 0);
+        assertTrue(checkpointer.getMaxCheckpointNanos() > 0);
+        assertNull(checkpointer.getLastError());
+        rs = stat3.executeQuery("select count(*) from test;");
+        assertTrue(rs.next());
+        assertEquals(200, rs.getInt(1));
+        rs.close();
+
+        // detaching restores the automatic checkpoints set before
+        rs = stat2.executeQuery("pragma wal_autocheckpoint;");
+        assertTrue(rs.next());
+        assertEquals(50, rs.getInt(1));
+        rs.close();
+    }
+
     @Test public void locking() throws SQLException {
         stat1.executeUpdate("create table test (c1);");
         stat1.executeUpdate("begin immediate;");
@@ -1,8 +1,11 @@
 package test;
 
 import java.io.File;
+import java.nio.ByteBuffer;
 import java.sql.*;
+import java.text.Collator;
 import java.util.*;
+import org.sqlite.Collation;
 import org.sqlite.Function;
 import org.junit.*;
 import static org.junit.Assert.*;
@@ -68,6 +71,42 @@ public class UDFTest
         }
     }
 
+    @Test public void argConversions() throws SQLException {
+        Function.create(conn, "conv", new Function() {
+            public void xFunc() throws SQLException {
+                result(value_type(0) + ":" + value_long(0) + ":"
+                    + value_double(0) + ":" + value_bytes(0));
+            }
+        });
+        String[][] cases = {
+            { "7", "1:7:7.0:1" },
+            { "2.75", "2:2:2.75:4" },
+            { "-2.75", "2:-2:-2.75:5" },
+            { "'12abc'", "3:12:12.0:5" },
+            { "x'0102'", "4:0:0.0:2" },
+            { "null", "5:0:0.0:0" },
+        };
+        for (int i=0; i < cases.length; i++) {
+            ResultSet rs = stat.executeQuery("select conv("+cases[i][0]+");");
+            assertTrue(rs.next());
+            assertEquals(cases[i][1], rs.getString(1));
+            rs.close();
+        }
+
+        // more arguments than SQLite passes to most functions
+        Function.create(conn, "last", new Function() {
+            public void xFunc() throws SQLException {
+                result(value_long(args() - 1));
+            }
+        });
+        StringBuilder sql = new StringBuilder("select last(0");
+        for (int i=1; i < 100; i++) sql.append(", ").append(i);
+        ResultSet rs = stat.executeQuery(sql.append(");").toString());
+        assertTrue(rs.next());
+        assertEquals(99, rs.getInt(1));
+        rs.close();
+    }
+
     @Test public void multipleArgs() throws SQLException {
         Function.create(conn, "f4", new Function() {
             public void xFunc() throws SQLException {
@@ -223,6 +262,169 @@ public class UDFTest
         assertEquals(rs.getInt(1), rs.getInt(2));
     }
 
+    @Test public void accumulator() throws SQLException {
+        // count, sum and mean of the values, and their concatenation
+        Function.create(conn, "stats", new Function.Accumulator(3) {
+            protected void xStep() throws SQLException {
+                state(0, state_long(0) + 1);
+                state(1, state_long(1) + value_long(0));
+                state(2, state_double(2) + value_double(0));
+                StringBuilder s = (StringBuilder)state_object();
+                if (s == null) state(s = new StringBuilder());
+                s.append(value_long(0));
+            }
+            protected void xFinal() throws SQLException {
+                long n = state_long(0);
+                Object s = state_object();
+                result(n + "/" + state_long(1) + "/"
+                    + (n == 0 ? 0 : state_double(2) / n) + "/" + s);
+            }
+        });
+        stat.executeUpdate("create table t (g, v);");
+        for (int i=0; i < 1000; i++)
+            stat.executeUpdate("insert into t values ("+(i%100)+", "+i+");");
+
+        ResultSet rs = stat.executeQuery(
+            "select g, stats(v), count(v), sum(v), avg(v), group_concat(v, '') "
+            + "from t group by g order by g;");
+        for (int g=0; g < 100; g++) {
+            assertTrue(rs.next());
+            assertEquals(g, rs.getInt(1));
+            assertEquals(rs.getInt(3) + "/" + rs.getLong(4) + "/"
+                + rs.getDouble(5) + "/" + rs.getString(6), rs.getString(2));
+        }
+        assertFalse(rs.next());
+        rs.close();
+
+        rs = stat.executeQuery("select stats(v) from t where g < 0;");
+        assertTrue(rs.next());
+        assertEquals("0/0/0.0/null", rs.getString(1));
+        rs.close();
+    }
+
+    @Test public void batch() throws SQLException {
+        // sum of x*y, over batches of 7 rows, and the rows seen
+        Function.create(conn, "dot", new Function.BatchAccumulator(2, 7) {
+            protected void xStepBatch(Function.Batch rows)
+                    throws SQLException {
+                double[] d = rows.doubles();
+                int x = rows.offset(0), y = rows.offset(1);
+                double sum = 0;
+                for (int i=0; i < rows.size(); i++)
+                    sum += d[x + i] * d[y + i];
+                state(0, state_double(0) + sum);
+                state(1, state_long(1) + rows.size());
+            }
+            protected void xFinal() throws SQLException {
+                result(state_double(0) + "/" + state_long(1));
+            }
+        }, 2, 0);
+        stat.executeUpdate("create table t (g, x, y);");
+        for (int i=0; i < 100; i++) stat.executeUpdate(
+            "insert into t values ("+(i%3)+", "+i+", "+(i*0.5)+");");
+
+        ResultSet rs = stat.executeQuery(
+            "select g, dot(x, y), sum(x*y), count(*) from t "
+            + "group by g order by g;");
+        for (int g=0; g < 3; g++) {
+            assertTrue(rs.next());
+            assertEquals(rs.getDouble(3) + "/" + rs.getInt(4),
+                         rs.getString(2));
+        }
+        assertFalse(rs.next());
+        rs.close();
+
+        // the same instance registered again has its own batch
+        Function dot = new Function.BatchAccumulator(2, 5) {
+            protected void xStepBatch(Function.Batch rows)
+                    throws SQLException {
+                for (int i=0; i < rows.size(); i++)
+                    state(0, state_double(0)
+                        + rows.getDouble(0, i) * rows.getDouble(1, i));
+            }
+            protected void xFinal() throws SQLException {
+                result(state_double(0));
+            }
+        };
+        Function.create(conn, "dot3", dot, 2, 0);
+        Function.create(conn, "dot4", dot, 2, 0);
+        rs = stat.executeQuery("select dot3(x, y), dot4(y, x), sum(x*y) "
+            + "from t group by g order by g;");
+        for (int g=0; g < 3; g++) {
+            assertTrue(rs.next());
+            assertEquals(rs.getDouble(3), rs.getDouble(1), 0.0001);
+            assertEquals(rs.getDouble(3), rs.getDouble(2), 0.0001);
+        }
+        rs.close();
+
+        try {
+            Function.create(conn, "dot2", new Function.BatchAccumulator(1, 4) {
+                protected void xStepBatch(Function.Batch rows) {}
+                protected void xFinal() {}
+            });
+            fail("batch functions need a fixed number of arguments");
+        } catch (SQLException e) {}
+
+        double[] r = Function.mapColumn(conn,
+            "select x, y from t order by x;", new Function.Vector() {
+                public void apply(Function.Batch rows, double[] out) {
+                    for (int i=0; i < rows.size(); i++)
+                        out[i] = rows.getLong(0, i) + rows.getDouble(1, i);
+                }
+            }, 16);
+        assertEquals(100, r.length);
+        for (int i=0; i < r.length; i++) assertEquals(i * 1.5, r[i], 0);
+    }
+
+    @Test public void window() throws SQLException {
+        Function.create(conn, "wsum", new Function.Window() {
+            private long sum = 0;
+            protected void xStep() throws SQLException { sum += value_long(0); }
+            protected void xInverse() throws SQLException {
+                sum -= value_long(0); }
+            protected void xValue() throws SQLException { result(sum); }
+            protected void xFinal() throws SQLException { result(sum); }
+        });
+        Function.create(conn, "wavg", new Function.WindowAccumulator(2) {
+            protected void xStep() throws SQLException {
+                state(0, state_long(0) + 1);
+                state(1, state_double(1) + value_double(0));
+            }
+            protected void xInverse() throws SQLException {
+                state(0, state_long(0) - 1);
+                state(1, state_double(1) - value_double(0));
+            }
+            protected void xValue() throws SQLException {
+                if (state_long(0) == 0) result();
+                else result(state_double(1) / state_long(0));
+            }
+            protected void xFinal() throws SQLException { xValue(); }
+        });
+
+        stat.executeUpdate("create table ts (t integer primary key, v);");
+        for (int i=1; i <= 50; i++)
+            stat.executeUpdate("insert into ts values ("+i+", "+(i*i)+");");
+
+        ResultSet rs = stat.executeQuery("select "
+            + "wsum(v) over w, sum(v) over w, wavg(v) over w, avg(v) over w "
+            + "from ts window w as (order by t rows between 3 preceding "
+            + "and current row) order by t;");
+        for (int i=1; i <= 50; i++) {
+            assertTrue(rs.next());
+            assertEquals(rs.getLong(2), rs.getLong(1));
+            assertEquals(rs.getDouble(4), rs.getDouble(3), 1e-9);
+        }
+        assertFalse(rs.next());
+        rs.close();
+
+        // still usable as plain aggregates
+        rs = stat.executeQuery("select wsum(v), wavg(v) from ts;");
+        assertTrue(rs.next());
+        assertEquals(42925, rs.getLong(1));
+        assertEquals(858.5, rs.getDouble(2), 1e-9);
+        rs.close();
+    }
+
     @Test public void destroy() throws SQLException {
         Function.create(conn, "f1", new Function() {
            public void xFunc() throws SQLException { val = 9; }
@@ -266,6 +468,45 @@ public class UDFTest
         rs.close();
     }
 
+    @Test public void registeredTwice() throws SQLException {
+        // one instance, for two arities, under two names and on two
+        // connections: each registration reads its own arguments
+        Function sum = new Function() {
+            protected void xFunc() throws SQLException {
+                long s = 0;
+                for (int i=0; i < args(); i++) s += value_long(i);
+                result(s);
+            }
+        };
+        Function.create(conn, "s", sum, 1, 0);
+        Function.create(conn, "s", sum, 2, 0);
+        Function.create(conn, "t", sum, 3, 0);
+        Connection other = DriverManager.getConnection("jdbc:sqlite:");
+        Function.create(other, "s", sum, 2, 0);
+
+        ResultSet rs = stat.executeQuery(
+            "select s(1), s(2, 3), t(4, 5, 6), s(7) + s(8, 9);");
+        assertTrue(rs.next());
+        assertEquals(1, rs.getLong(1));
+        assertEquals(5, rs.getLong(2));
+        assertEquals(15, rs.getLong(3));
+        assertEquals(24, rs.getLong(4));
+        rs.close();
+
+        Statement stat2 = other.createStatement();
+        rs = stat2.executeQuery("select s(10, 20);");
+        assertTrue(rs.next());
+        assertEquals(30, rs.getLong(1));
+        rs.close();
+        stat2.close();
+        other.close();
+
+        rs = stat.executeQuery("select s(11, 12);");
+        assertTrue(rs.next());
+        assertEquals(23, rs.getLong(1));
+        rs.close();
+    }
+
     @Test public void multipleThreads() throws Exception {
         Function func = new Function() {
             int sum = 0;
@@ -303,6 +544,156 @@ public class UDFTest
         assertEquals(times, Integer.parseInt(func.toString()));
     }
 
+    @Test public void collation() throws SQLException {
+        // orders runs of digits by their value: a2 < a10
+        Collation.create(conn, "natural", new Collation() {
+            protected int compare(ByteBuffer a, ByteBuffer b) {
+                int i = a.position(), j = b.position();
+                while (i < a.limit() && j < b.limit()) {
+                    if (isDigit(a.get(i)) && isDigit(b.get(j))) {
+                        long x = 0, y = 0;
+                        while (i < a.limit() && isDigit(a.get(i)))
+                            x = x * 10 + a.get(i++) - '0';
+                        while (j < b.limit() && isDigit(b.get(j)))
+                            y = y * 10 + b.get(j++) - '0';
+                        if (x != y) return x < y ? -1 : 1;
+                        continue;
+                    }
+                    int c = (a.get(i++) & 0xff) - (b.get(j++) & 0xff);
+                    if (c != 0) return c;
+                }
+                return (a.limit() - i) - (b.limit() - j);
+            }
+            private boolean isDigit(byte c) { return c >= '0' && c <= '9'; }
+        });
+
+        stat.executeUpdate("create table files (name text collate natural);");
+        String[] names = { "a10", "a2", "b1", "a1", "a20" };
+        for (int i=0; i < names.length; i++)
+            stat.executeUpdate("insert into files values ('"+names[i]+"');");
+        stat.executeUpdate("create index files_name on files (name);");
+
+        ResultSet rs = stat.executeQuery("select name from files order by 1;");
+        String[] sorted = { "a1", "a2", "a10", "a20", "b1" };
+        for (int i=0; i < sorted.length; i++) {
+            assertTrue(rs.next());
+            assertEquals(sorted[i], rs.getString(1));
+        }
+        assertFalse(rs.next());
+        rs.close();
+
+        rs = stat.executeQuery("select count(*) from files where name > 'a9';");
+        assertTrue(rs.next());
+        assertEquals(3, rs.getInt(1));
+        rs.close();
+    }
+
+    @Test public void collator() throws SQLException {
+        Collator fr = Collator.getInstance(Locale.FRENCH);
+        fr.setStrength(Collator.PRIMARY);
+        Collation.create(conn, "fr", Collation.collator(fr, 16));
+
+        stat.executeUpdate("create table words (w text);");
+        String[] words = { "\u00e9t\u00e9", "Ete", "zoo", "abc", "\u00c9cole" };
+        for (int i=0; i < words.length; i++)
+            stat.executeUpdate("insert into words values ('"+words[i]+"');");
+
+        ResultSet rs = stat.executeQuery(
+            "select w from words order by w collate fr, w;");
+        String[] sorted = { "abc", "\u00c9cole", "Ete", "\u00e9t\u00e9", "zoo" };
+        for (int i=0; i < sorted.length; i++) {
+            assertTrue(rs.next());
+            assertEquals(sorted[i], rs.getString(1));
+        }
+        assertFalse(rs.next());
+        rs.close();
+
+        rs = stat.executeQuery(
+            "select count(*) from words where w = 'ETE' collate fr;");
+        assertTrue(rs.next());
+        assertEquals(2, rs.getInt(1));
+        rs.close();
+
+        Collation.destroy(conn, "fr");
+        try {
+            stat.executeQuery("select w from words order by w collate fr;");
+            fail("collation removed");
+        } catch (SQLException e) {}
+
+        // closing removed it already
+        Connection closed = DriverManager.getConnection("jdbc:sqlite:");
+        Collation.create(closed, "fr", Collation.collator(fr, 16));
+        closed.close();
+        Collation.destroy(closed, "fr");
+    }
+
+    @Test public void deterministic() throws SQLException {
+        Function.create(conn, "lower2", new Function() {
+            protected void xFunc() throws SQLException {
+                result(value_text(0).toLowerCase());
+            }
+        }, 1, Function.DETERMINISTIC | Function.INNOCUOUS);
+
+        stat.executeUpdate("create table names (n text);");
+        stat.executeUpdate("insert into names values ('Ann');");
+        stat.executeUpdate("insert into names values ('BOB');");
+        stat.executeUpdate("create index names_lower on names (lower2(n));");
+        ResultSet rs = stat.executeQuery(
+            "select n from names where lower2(n) = 'bob';");
+        assertTrue(rs.next());
+        assertEquals("BOB", rs.getString(1));
+        assertFalse(rs.next());
+        rs.close();
+
+        // wrong number of arguments
+        try {
+            stat.executeQuery("select lower2('a', 'b');");
+            fail("lower2 takes one argument");
+        } catch (SQLException e) {}
+
+        // not deterministic, refused in an index
+        Function.create(conn, "lower3", new Function() {
+            protected void xFunc() throws SQLException {
+                result(value_text(0).toLowerCase());
+            }
+        });
+        try {
+            stat.executeUpdate("create index names_l3 on names (lower3(n));");
+            fail("non-deterministic function in index");
+        } catch (SQLException e) {}
+    }
+
+    @Test public void memoized() throws SQLException {
+        final int[] calls = new int[1];
+        Function.create(conn, "slow", new Function() {
+            protected void xFunc() throws SQLException {
+                calls[0]++;
+                if (value_type(0) == 5) result();
+                else result(value_long(0) * 2);
+            }
+        }, 1, Function.DETERMINISTIC, 16);
+
+        stat.executeUpdate("create table nums (n);");
+        for (int i=0; i < 100; i++)
+            stat.executeUpdate("insert into nums values (" + (i % 4) + ");");
+        stat.executeUpdate("insert into nums values (null);");
+
+        ResultSet rs = stat.executeQuery(
+            "select sum(slow(n)), count(slow(n)) from nums;");
+        assertTrue(rs.next());
+        assertEquals(300, rs.getInt(1));
+        assertEquals(100, rs.getInt(2));
+        rs.close();
+        assertEquals(5, calls[0]);
+
+        try {
+            Function.create(conn, "bad", new Function() {
+                protected void xFunc() {}
+            }, 1, 0, 16);
+            fail("memoized functions must be deterministic");
+        } catch (SQLException e) {}
+    }
+
     private void assertArrayEq(byte[] a, byte[] b) {
         assertNotNull(a);
         assertNotNull(b);
@@ -0,0 +1,294 @@
+package test;
+
+import java.sql.*;
+import java.util.*;
+import org.sqlite.RowBuffer;
+import org.sqlite.TableFunction;
+import org.sqlite.VirtualTable;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** Tests virtual tables implemented in Java. */
+public class VirtualTableTest
+{
+    private Connection conn;
+    private Statement stat;
+
+    @BeforeClass public static void forName() throws Exception {
+        Class.forName("org.sqlite.JDBC");
+    }
+
+    @Before public void connect() throws Exception {
+        conn = DriverManager.getConnection("jdbc:sqlite:");
+        stat = conn.createStatement();
+    }
+
+    @After public void close() throws SQLException {
+        stat.close();
+        conn.close();
+    }
+
+    /** Rows (id, name, score) for ids 1 to n, in batches of 3 rows. A
+     *  constraint id = ? is pushed down to the cursor. */
+    private static class Numbers extends VirtualTable {
+        final int n;
+        int scans = 0;
+        Object lastArg = null;
+
+        Numbers(int n) {
+            super(3, "id integer", "name text", "score real", "data blob");
+            this.n = n;
+        }
+
+        protected void bestIndex(IndexInfo info) {
+            for (int i=0; i < info.getConstraintCount(); i++) {
+                if (info.isConstraintUsable(i)
+                        && info.getConstraintColumn(i) == 0
+                        && info.getConstraintOperator(i) == EQ) {
+                    info.use(i, true);
+                    info.setIndexNumber(1);
+                    info.setEstimatedCost(1);
+                    info.setUnique(true);
+                    return;
+                }
+            }
+            info.setEstimatedCost(n);
+        }
+
+        protected Cursor open() {
+            return new Cursor() {
+                int next, last;
+                protected void filter(int num, String str, Object[] args) {
+                    scans++;
+                    next = 1;
+                    last = n;
+                    if (num == 1) {
+                        lastArg = args[0];
+                        next = last = ((Number)args[0]).intValue();
+                    }
+                }
+                protected boolean next(RowBuffer rows) {
+                    for (; next <= last && !rows.isFull(); next++) {
+                        rows.row(next).add(next).add("n" + next)
+                            .add(next / 2.0);
+                        if (next % 2 == 0) rows.add(new byte[] {(byte)next});
+                    }
+                    return next <= last;
+                }
+            };
+        }
+    }
+
+    @Test public void scan() throws SQLException {
+        final Numbers t = new Numbers(10);
+        VirtualTable.create(conn, "numbers", new VirtualTable.Module() {
+            public VirtualTable connect(String[] args) { return t; }
+        });
+        stat.execute("create virtual table temp.nums using numbers;");
+
+        ResultSet rs = stat.executeQuery(
+            "select rowid, id, name, score, data from nums;");
+        for (int i=1; i <= 10; i++) {
+            assertTrue(rs.next());
+            assertEquals(i, rs.getLong(1));
+            assertEquals(i, rs.getInt(2));
+            assertEquals("n" + i, rs.getString(3));
+            assertEquals(i / 2.0, rs.getDouble(4), 0.0);
+            byte[] data = rs.getBytes(5);
+            if (i % 2 == 0)
+                assertTrue(Arrays.equals(new byte[] {(byte)i}, data));
+            else assertNull(data);
+        }
+        assertFalse(rs.next());
+        rs.close();
+
+        rs = stat.executeQuery("select count(*), sum(id) from nums "
+            + "where name like 'n1%';");
+        assertTrue(rs.next());
+        assertEquals(2, rs.getInt(1));
+        assertEquals(11, rs.getInt(2));
+        rs.close();
+    }
+
+    @Test public void pushdown() throws SQLException {
+        final Numbers t = new Numbers(1000);
+        VirtualTable.create(conn, "numbers", new VirtualTable.Module() {
+            public VirtualTable connect(String[] args) { return t; }
+        });
+        stat.execute("create virtual table temp.nums using numbers;");
+        stat.execute("create table keys (k integer, v text);");
+        stat.execute("insert into keys values (7, 'seven');");
+        stat.execute("insert into keys values (500, 'five hundred');");
+
+        ResultSet rs = stat.executeQuery("select k, name, v from keys "
+            + "join nums on id = k order by k;");
+        assertTrue(rs.next());
+        assertEquals(7, rs.getInt(1));
+        assertEquals("n7", rs.getString(2));
+        assertTrue(rs.next());
+        assertEquals("n500", rs.getString(2));
+        assertEquals("five hundred", rs.getString(3));
+        assertFalse(rs.next());
+        rs.close();
+        assertEquals(Long.valueOf(500), t.lastArg);
+        assertEquals(2, t.scans);
+    }
+
+    @Test public void arguments() throws SQLException {
+        final List<String> got = new ArrayList<String>();
+        VirtualTable.create(conn, "args", new VirtualTable.Module() {
+            public VirtualTable connect(String[] args) {
+                got.addAll(Arrays.asList(args));
+                return new Numbers(1);
+            }
+        });
+        stat.execute("create virtual table temp.a using args(x, 'y z');");
+        assertEquals(Arrays.asList("args", "temp", "a", "x", "'y z'"), got);
+    }
+
+    @Test public void errors() throws SQLException {
+        VirtualTable.create(conn, "broken", new VirtualTable.Module() {
+            public VirtualTable connect(String[] args) {
+                return new VirtualTable("a") {
+                    protected Cursor open() throws SQLException {
+                        throw new SQLException("cannot open");
+                    }
+                };
+            }
+        });
+        stat.execute("create virtual table temp.b using broken;");
+        try {
+            stat.executeQuery("select * from b;").next();
+            fail("open should fail");
+        } catch (SQLException e) {
+            assertTrue(e.getMessage().indexOf("cannot open") >= 0);
+        }
+
+        VirtualTable.create(conn, "none", new VirtualTable.Module() {
+            public VirtualTable connect(String[] args) throws SQLException {
+                throw new SQLException("no table");
+            }
+        });
+        try {
+            stat.execute("create virtual table temp.c using none;");
+            fail("connect should fail");
+        } catch (SQLException e) {
+            assertTrue(e.getMessage().indexOf("no table") >= 0);
+        }
+    }
+
+    @Test public void destroy() throws SQLException {
+        VirtualTable.create(conn, "numbers", new VirtualTable.Module() {
+            public VirtualTable connect(String[] args) {
+                return new Numbers(3);
+            }
+        });
+        VirtualTable.destroy(conn, "numbers");
+        try {
+            stat.execute("create virtual table temp.n using numbers;");
+            fail("module removed");
+        } catch (SQLException e) {}
+
+        // closing removed it already
+        Connection closed = DriverManager.getConnection("jdbc:sqlite:");
+        VirtualTable.create(closed, "numbers", new VirtualTable.Module() {
+            public VirtualTable connect(String[] args) {
+                return new Numbers(3);
+            }
+        });
+        closed.close();
+        VirtualTable.destroy(closed, "numbers");
+    }
+
+    private static void series(Connection conn) throws SQLException {
+        TableFunction.create(conn, "series", new TableFunction(
+                new String[] { "start", "stop" }, "value integer") {
+            protected Generator call(Object[] args) {
+                final long start = ((Number)args[0]).longValue();
+                final long stop = args[1] == null ? start + 9
+                    : ((Number)args[1]).longValue();
+                return new Generator() {
+                    long i = start;
+                    public boolean next(RowBuffer rows) {
+                        while (!rows.isFull() && i <= stop)
+                            rows.row().add(i++);
+                        return i <= stop;
+                    }
+                };
+            }
+        });
+    }
+
+    @Test public void tableFunction() throws SQLException {
+        series(conn);
+        ResultSet rs = stat.executeQuery(
+            "select count(*), sum(value) from series(1, 1000);");
+        assertTrue(rs.next());
+        assertEquals(1000, rs.getInt(1));
+        assertEquals(500500, rs.getInt(2));
+        rs.close();
+
+        rs = stat.executeQuery("select value, start, stop from series(5);");
+        for (int i=5; i <= 14; i++) {
+            assertTrue(rs.next());
+            assertEquals(i, rs.getInt(1));
+            assertEquals(5, rs.getInt(2));
+            assertNull(rs.getObject(3));
+        }
+        assertFalse(rs.next());
+        rs.close();
+
+        rs = stat.executeQuery(
+            "select value from series where start = 3 and stop = 4;");
+        assertTrue(rs.next());
+        assertEquals(3, rs.getInt(1));
+        assertTrue(rs.next());
+        assertEquals(4, rs.getInt(1));
+        assertFalse(rs.next());
+        rs.close();
+    }
+
+    @Test public void tableFunctionJoin() throws SQLException {
+        series(conn);
+        TableFunction.create(conn, "split", new TableFunction(
+                new String[] { "text", "sep" }, "part text", "pos integer") {
+            protected Generator call(Object[] args) {
+                final String text = (String)args[0];
+                final String sep = (String)args[1];
+                return new Generator() {
+                    int start = 0, pos = 0;
+                    public boolean next(RowBuffer rows) {
+                        while (!rows.isFull() && start >= 0) {
+                            int end = text.indexOf(sep, start);
+                            rows.row().add(text.substring(start,
+                                end < 0 ? text.length() : end)).add(pos++);
+                            start = end < 0 ? -1 : end + sep.length();
+                        }
+                        return start >= 0;
+                    }
+                };
+            }
+        });
+
+        stat.execute("create table t (id integer, csv text);");
+        stat.execute("insert into t values (1, 'a,b,c');");
+        stat.execute("insert into t values (2, 'd,\u00e9t\u00e9');");
+        ResultSet rs = stat.executeQuery("select id, part, pos from t, "
+            + "split(t.csv, ',') order by id, pos;");
+        String[] parts = { "a", "b", "c", "d", "\u00e9t\u00e9" };
+        for (int i=0; i < parts.length; i++) {
+            assertTrue(rs.next());
+            assertEquals(i < 3 ? 1 : 2, rs.getInt(1));
+            assertEquals(parts[i], rs.getString(2));
+            assertEquals(i < 3 ? i : i - 3, rs.getInt(3));
+        }
+        assertFalse(rs.next());
+        rs.close();
+
+        rs = stat.executeQuery("select count(*) from series(1, 3) a, "
+            + "series(a.value, 3) b;");
+        assertTrue(rs.next());
+        assertEquals(6, rs.getInt(1));
+        rs.close();
+    }
+}